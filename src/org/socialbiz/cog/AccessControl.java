@@ -21,16 +21,10 @@
 package org.socialbiz.cog;
 
 import java.net.URLEncoder;
-import java.util.HashMap;
 import java.util.List;
 
 public class AccessControl {
 
-    //TODO: this is not a good idea, to cache the entire user page for every user
-    //that touches the system.  This should be cleared occasionally or store a
-    //smaller amount of data and should only cache a specified number of users.
-    static HashMap<String, UserPage> userPageMap = new HashMap<String, UserPage>();
-
     /**
     * When the web request is trying to access a particular document, this will
     * say whether that document should be accessed, based on logged in user being
@@ -328,8 +322,8 @@ public class AccessControl {
             //no magic number, no luck
             return false;
         }
-        if(userPageMap.containsKey(userKey)){
-            UserPage userPage = userPageMap.get(userKey);
+        if(UserManager.getUserProfileByKey(userKey)!=null){
+            UserPage userPage = UserManager.getStaticUserManager().findOrCreateUserPage(userKey);
             String expectedMN = userPage.emailDependentMagicNumber(resourceId);
             if (expectedMN.equals(mndoc)) {
                 ar.setSpecialSessionAccess(resourceId);
@@ -342,13 +336,8 @@ public class AccessControl {
 
     public static String getAccessSiteRequestParams(String userKey, SiteRequest accountDetails) throws Exception{
         String accessDocParam = "mnaccountrequest=";
-        UserPage userPage = null;
-        if(userPageMap.containsKey(userKey)){
-            userPage = userPageMap.get(userKey);
-        }else{
-            userPage = UserManager.getStaticUserManager().findOrCreateUserPage(userKey);
-            userPageMap.put(userKey, userPage);
-        }
+        //user pages are cached by UserPageCache, with a limit on how many
+        UserPage userPage = UserManager.getStaticUserManager().findOrCreateUserPage(userKey);
         String resourceId = "accountrequest:"+userPage.getKey()+":"+accountDetails.getRequestId();
         String encodedValue = URLEncoder.encode(userPage.emailDependentMagicNumber(resourceId), "UTF-8");
         accessDocParam += encodedValue;
@@ -0,0 +1,468 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * The most recent history of the workspaces, kept in memory, newest
+ * first: for each workspace, for each site, and for each user (the
+ * history of what that user did).  Each feed is limited in size, so a
+ * feed can be answered without reading or sorting any history.
+ *
+ * The feed of a workspace is taken from the history of the workspace
+ * when it is put in the index, and again every time it is saved, so
+ * history that was created but not saved does not show.  Only the
+ * entries that are different from the last time are looked at, and the
+ * site and user feeds are changed only when the workspace feed changed.
+ *
+ * The site and user feeds keep the newest entries that came from the
+ * workspace feeds.  Entries that fell off the end of a site or user feed
+ * do not come back, so those feeds do not go further back in time than
+ * their size.  The history of a single workspace can be paged back past
+ * its feed, see getOlderWorkspaceHistory.
+ *
+ * A page of a feed is asked for with a cursor, which is the "cursor"
+ * value of the last entry of the previous page, and the entries after
+ * that one are returned.  Entries are ordered by time, and entries with
+ * the same time by workspace and id, so the cursor does not skip or
+ * repeat entries when new ones are added.
+ */
+public class ActivityFeed {
+
+    public static final int WORKSPACE_FEED_SIZE = 100;
+    public static final int SITE_FEED_SIZE = 500;
+    public static final int USER_FEED_SIZE = 200;
+    public static final int DEFAULT_PAGE_SIZE = 20;
+    public static final int MAX_PAGE_SIZE = 200;
+
+    private final ConcurrentHashMap<String, Feed> workspaceFeeds = new ConcurrentHashMap<String, Feed>();
+    private final ConcurrentHashMap<String, Feed> siteFeeds = new ConcurrentHashMap<String, Feed>();
+    private final ConcurrentHashMap<String, Feed> userFeeds = new ConcurrentHashMap<String, Feed>();
+
+
+    /**
+     * One history record of a workspace, as it was when the workspace was
+     * last saved.  The name of the object it is about is looked up when
+     * the entry is made.
+     */
+    public static class Activity {
+        public final String siteKey;
+        public final String workspaceKey;
+        public final String historyId;
+        public final long time;
+        public final int contextType;
+        public final String contextName;
+        public final int eventType;
+        public final String responsible;
+        public final String comments;
+        final String sortKey;
+
+        Activity(String siteKey, String workspaceKey, HistoryRecord hist, NGPage ngp) throws Exception {
+            this.siteKey = siteKey;
+            this.workspaceKey = workspaceKey;
+            historyId = hist.getId();
+            time = hist.getTimeStamp();
+            contextType = hist.getContextType();
+            contextName = hist.lookUpObjectName(ngp);
+            eventType = hist.getEventType();
+            responsible = hist.getResponsible();
+            comments = hist.getComments();
+            sortKey = siteKey + "|" + workspaceKey + "|" + historyId;
+        }
+
+        //only for finding the place of a cursor
+        private Activity(long time, String sortKey) {
+            siteKey = null;
+            workspaceKey = null;
+            historyId = null;
+            this.time = time;
+            contextType = 0;
+            contextName = null;
+            eventType = 0;
+            responsible = null;
+            comments = null;
+            this.sortKey = sortKey;
+        }
+
+        String getWorkspaceCombinedKey() {
+            return siteKey + "|" + workspaceKey;
+        }
+
+        public String getCursor() {
+            return time + "_" + sortKey;
+        }
+
+        /**
+         * The same as HistoryRecord.getJSON, plus the cursor.
+         */
+        public JSONObject getJSON() throws Exception {
+            AddressListEntry ale = new AddressListEntry(responsible);
+            JSONObject jo = new JSONObject();
+            jo.put("ctxType", HistoryRecord.getContextTypeName(contextType));
+            jo.put("ctxName", contextName);
+            jo.put("ctxSite", siteKey);
+            jo.put("ctxProject", workspaceKey);
+            jo.put("event", HistoryRecord.convertEventTypeToString(eventType));
+            JSONObject user = ale.getJSON();
+            UserProfile uProf = ale.getUserProfile();
+            if (uProf!=null) {
+                user.put("image", ImageThumbnails.getUserImage(uProf.getImage(), 32));
+            }
+            else {
+                user.put("image","unknown.jpg");
+            }
+            jo.put("responsible", user);
+            jo.put("time", time);
+            jo.put("comment", comments);
+            jo.put("id", historyId);
+            jo.put("cursor", getCursor());
+            return jo;
+        }
+
+        boolean sameAs(HistoryRecord hist) throws Exception {
+            return historyId.equals(hist.getId()) && time == hist.getTimeStamp()
+                    && eventType == hist.getEventType();
+        }
+    }
+
+    private static final Comparator<Activity> NEWEST_FIRST = new Comparator<Activity>() {
+        public int compare(Activity a1, Activity a2) {
+            if (a1.time != a2.time) {
+                return (a1.time > a2.time) ? -1 : 1;
+            }
+            return a1.sortKey.compareTo(a2.sortKey);
+        }
+    };
+
+
+    /**
+     * A list of activities, newest first, at most max long.  The list is
+     * replaced, never changed, so it is read without locking.
+     */
+    private static class Feed {
+        final int max;
+        volatile List<Activity> newestFirst = Collections.emptyList();
+
+        Feed(int max) {
+            this.max = max;
+        }
+
+        /**
+         * Replace the entries from one workspace with new ones, which must
+         * be newest first.
+         */
+        synchronized void replaceWorkspace(String combinedKey, List<Activity> fromWorkspace) {
+            List<Activity> old = newestFirst;
+            List<Activity> merged = new ArrayList<Activity>(Math.min(max, old.size() + fromWorkspace.size()));
+            int i = 0;
+            int j = 0;
+            while (merged.size() < max) {
+                while (i < old.size() && combinedKey.equals(old.get(i).getWorkspaceCombinedKey())) {
+                    i++;
+                }
+                if (i >= old.size() && j >= fromWorkspace.size()) {
+                    break;
+                }
+                if (j >= fromWorkspace.size()
+                        || (i < old.size() && NEWEST_FIRST.compare(old.get(i), fromWorkspace.get(j)) < 0)) {
+                    merged.add(old.get(i++));
+                }
+                else {
+                    merged.add(fromWorkspace.get(j++));
+                }
+            }
+            newestFirst = Collections.unmodifiableList(merged);
+        }
+
+        boolean isFull() {
+            return newestFirst.size() >= max;
+        }
+    }
+
+
+    /**
+     * Read the newest history of the workspace, and change the feeds if it
+     * is not the same as the last time.  Called when the workspace is put
+     * in the index, and after it is saved.
+     */
+    public void workspaceChanged(NGPage ngw) throws Exception {
+        String siteKey = ngw.getSiteKey();
+        String wsKey = ngw.getKey();
+        String combinedKey = siteKey + "|" + wsKey;
+        List<HistoryRecord> recent = ngw.getRecentHistory(WORKSPACE_FEED_SIZE);
+
+        Feed wsFeed = getFeed(workspaceFeeds, combinedKey, WORKSPACE_FEED_SIZE);
+        List<Activity> newList;
+        List<Activity> oldList;
+        synchronized (wsFeed) {
+            oldList = wsFeed.newestFirst;
+            if (isSame(oldList, recent)) {
+                return;
+            }
+            HashMap<String, Activity> unchanged = new HashMap<String, Activity>();
+            for (Activity act : oldList) {
+                unchanged.put(act.historyId, act);
+            }
+            newList = new ArrayList<Activity>();
+            for (HistoryRecord hist : recent) {
+                Activity act = unchanged.get(hist.getId());
+                if (act == null || !act.sameAs(hist)) {
+                    act = new Activity(siteKey, wsKey, hist, ngw);
+                }
+                newList.add(act);
+            }
+            newList = Collections.unmodifiableList(newList);
+            wsFeed.newestFirst = newList;
+        }
+        getFeed(siteFeeds, siteKey, SITE_FEED_SIZE).replaceWorkspace(combinedKey, newList);
+        updateUserFeeds(combinedKey, oldList, newList);
+    }
+
+    /**
+     * Take the entries of the workspace out of all the feeds.
+     */
+    public void workspaceRemoved(String siteKey, String wsKey) {
+        String combinedKey = siteKey + "|" + wsKey;
+        Feed wsFeed = workspaceFeeds.remove(combinedKey);
+        if (wsFeed == null) {
+            return;
+        }
+        List<Activity> empty = Collections.emptyList();
+        Feed siteFeed = siteFeeds.get(siteKey);
+        if (siteFeed != null) {
+            siteFeed.replaceWorkspace(combinedKey, empty);
+        }
+        updateUserFeeds(combinedKey, wsFeed.newestFirst, empty);
+    }
+
+    private void updateUserFeeds(String combinedKey, List<Activity> oldList, List<Activity> newList) {
+        HashSet<String> users = new HashSet<String>();
+        for (Activity act : oldList) {
+            users.add(userFeedKey(act.responsible));
+        }
+        HashMap<String, List<Activity>> byUser = new HashMap<String, List<Activity>>();
+        for (Activity act : newList) {
+            String user = userFeedKey(act.responsible);
+            users.add(user);
+            List<Activity> list = byUser.get(user);
+            if (list == null) {
+                list = new ArrayList<Activity>();
+                byUser.put(user, list);
+            }
+            list.add(act);
+        }
+        for (String user : users) {
+            List<Activity> list = byUser.get(user);
+            if (list == null) {
+                list = Collections.emptyList();
+            }
+            getFeed(userFeeds, user, USER_FEED_SIZE).replaceWorkspace(combinedKey, list);
+        }
+    }
+
+    private static String userFeedKey(String responsible) {
+        if (responsible == null) {
+            return "";
+        }
+        return responsible.toLowerCase();
+    }
+
+    private static boolean isSame(List<Activity> oldList, List<HistoryRecord> recent) throws Exception {
+        if (oldList.size() != recent.size()) {
+            return false;
+        }
+        for (int i = 0; i < recent.size(); i++) {
+            if (!oldList.get(i).sameAs(recent.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Feed getFeed(ConcurrentHashMap<String, Feed> feeds, String key, int max) {
+        Feed feed = feeds.get(key);
+        if (feed == null) {
+            Feed newFeed = new Feed(max);
+            feed = feeds.putIfAbsent(key, newFeed);
+            if (feed == null) {
+                feed = newFeed;
+            }
+        }
+        return feed;
+    }
+
+
+    public List<Activity> getWorkspaceFeed(String siteKey, String wsKey) {
+        return listOf(workspaceFeeds.get(siteKey + "|" + wsKey));
+    }
+
+    public List<Activity> getSiteFeed(String siteKey) {
+        return listOf(siteFeeds.get(siteKey));
+    }
+
+    /**
+     * The activities of the user under all of the user's ids.
+     */
+    public List<Activity> getUserFeed(UserProfile user) {
+        List<Activity> all = new ArrayList<Activity>();
+        HashSet<String> seen = new HashSet<String>();
+        for (String id : user.getAllIds()) {
+            if (seen.add(userFeedKey(id))) {
+                all.addAll(listOf(userFeeds.get(userFeedKey(id))));
+            }
+        }
+        if (seen.size() > 1) {
+            Collections.sort(all, NEWEST_FIRST);
+        }
+        return all;
+    }
+
+    private static List<Activity> listOf(Feed feed) {
+        if (feed == null) {
+            return Collections.emptyList();
+        }
+        return feed.newestFirst;
+    }
+
+    /**
+     * True if the feed of the workspace is full, meaning that the workspace
+     * may have older history than the feed has.
+     */
+    public boolean isWorkspaceFeedFull(String siteKey, String wsKey) {
+        Feed feed = workspaceFeeds.get(siteKey + "|" + wsKey);
+        return feed != null && feed.isFull();
+    }
+
+    /**
+     * A page of the list: the entries after the one the cursor names
+     * (from the start if the cursor is empty), at most limit of them, and
+     * never more than MAX_PAGE_SIZE.  "more" is true if the list has more
+     * entries after this page.
+     */
+    public static JSONObject getPageJSON(List<Activity> newestFirst, String cursor, int limit) throws Exception {
+        if (limit <= 0) {
+            limit = DEFAULT_PAGE_SIZE;
+        }
+        if (limit > MAX_PAGE_SIZE) {
+            limit = MAX_PAGE_SIZE;
+        }
+        int start = 0;
+        Activity after = parseCursor(cursor);
+        if (after != null) {
+            start = Collections.binarySearch(newestFirst, after, NEWEST_FIRST);
+            if (start >= 0) {
+                start++;
+            }
+            else {
+                start = -start - 1;
+            }
+        }
+        JSONArray list = new JSONArray();
+        int end = Math.min(newestFirst.size(), start + limit);
+        String nextCursor = cursor;
+        for (int i = start; i < end; i++) {
+            Activity act = newestFirst.get(i);
+            list.put(act.getJSON());
+            nextCursor = act.getCursor();
+        }
+        JSONObject result = new JSONObject();
+        result.put("activity", list);
+        result.put("cursor", nextCursor == null ? "" : nextCursor);
+        result.put("more", end < newestFirst.size());
+        return result;
+    }
+
+    /**
+     * A page of the feed of the workspace.  When the cursor is past the end
+     * of the feed, and the feed is full so there might be older history,
+     * the page is read from the workspace itself.
+     */
+    public JSONObject getWorkspacePageJSON(NGWorkspace ngw, String cursor, int limit) throws Exception {
+        if (limit <= 0) {
+            limit = DEFAULT_PAGE_SIZE;
+        }
+        if (limit > MAX_PAGE_SIZE) {
+            limit = MAX_PAGE_SIZE;
+        }
+        String siteKey = ngw.getSiteKey();
+        String wsKey = ngw.getKey();
+        JSONObject page = getPageJSON(getWorkspaceFeed(siteKey, wsKey), cursor, limit);
+        if (page.getBoolean("more") || !isWorkspaceFeedFull(siteKey, wsKey)) {
+            return page;
+        }
+        if (page.getJSONArray("activity").length() > 0) {
+            //the next page will come from the workspace
+            page.put("more", true);
+            return page;
+        }
+        //one extra to know if there are more
+        List<Activity> older = getOlderWorkspaceHistory(ngw, cursor, limit + 1);
+        page = getPageJSON(older, null, limit);
+        if (older.size() == 0) {
+            page.put("cursor", cursor);
+        }
+        return page;
+    }
+
+    /**
+     * The history of the workspace after the cursor, read from the
+     * workspace itself, for paging back past the end of the feed.
+     */
+    public static List<Activity> getOlderWorkspaceHistory(NGWorkspace ngw, String cursor, int limit)
+            throws Exception {
+        Activity after = parseCursor(cursor);
+        List<HistoryRecord> page;
+        if (after == null) {
+            page = ngw.getRecentHistory(limit);
+        }
+        else {
+            int bar = after.sortKey.lastIndexOf("|");
+            page = ngw.getOlderHistory(limit, after.time, after.sortKey.substring(bar + 1));
+        }
+        List<Activity> ret = new ArrayList<Activity>();
+        for (HistoryRecord hist : page) {
+            ret.add(new Activity(ngw.getSiteKey(), ngw.getKey(), hist, ngw));
+        }
+        return ret;
+    }
+
+    private static Activity parseCursor(String cursor) {
+        if (cursor == null || cursor.length() == 0) {
+            return null;
+        }
+        int pos = cursor.indexOf("_");
+        if (pos <= 0) {
+            return null;
+        }
+        long time = DOMFace.safeConvertLong(cursor.substring(0, pos));
+        return new Activity(time, cursor.substring(pos + 1));
+    }
+}
@@ -989,6 +989,10 @@ public abstract class AttachmentRecord extends CommentContainer implements Email
             allCommentss.put(cr.getHtmlJSON(ar));
         }
         thisDoc.put("comments",  allCommentss);
+        String thumbnail = ImageThumbnails.getAttachmentThumbnailPath(this, ngp, 64);
+        if (thumbnail!=null) {
+            thisDoc.put("thumbnail", thumbnail);
+        }
         return thisDoc;
     }
 
@@ -61,6 +61,7 @@ public class AttachmentRecordProj extends AttachmentRecord
         if (docFile.exists()) {
             //this will fail if the file already exists.
             docFile.renameTo(newFile);
+            FolderIndex.fileChanged(newFile);
         }
         else {
             //it is possible that user is 'fixing' the project by changing the name of an attachment
@@ -139,12 +140,9 @@ public class AttachmentRecordProj extends AttachmentRecord
         }
         File projectFolder = ((NGWorkspace)ngc).containingFolder;
         String attachName = getDisplayName();
-        for (File testFile : projectFolder.listFiles())
-        {
-            String testName = testFile.getName();
-            if (attachName.equalsIgnoreCase(testName)) {
-                return new AttachmentVersionProject(testFile, ver+1, true, true);
-            }
+        FolderIndex.Entry testFile = FolderIndex.getIndex(projectFolder).findFileIgnoreCase(attachName);
+        if (testFile!=null) {
+            return new AttachmentVersionProject(testFile, ver+1, true, true);
         }
         return null;
     }
@@ -181,6 +179,7 @@ public class AttachmentRecordProj extends AttachmentRecord
             throw new NGException("nugen.exception.unable.to.rename.temp.file",
                 new Object[]{tempCogFile,specialVerFile});
         }
+        FolderIndex.fileChanged(specialVerFile);
     }
 
     @Override
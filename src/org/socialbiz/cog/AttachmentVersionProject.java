@@ -104,6 +104,10 @@ import org.socialbiz.cog.exception.ProgramLogicError;
 * in the main folder so that it is NOT the same as the highest numbered version in
 * the COG folder.  In this case the list of versions is extended and one more
 * is included to represent the file in the folder.
+*
+* The folders are not listed for each attachment: the file names, sizes, and
+* dates come from the FolderIndex of the workspace folder.  Anything here that
+* changes the files tells the index about it.
 */
 public class AttachmentVersionProject implements AttachmentVersion {
     private final File      actualFile;
@@ -111,6 +115,10 @@ public class AttachmentVersionProject implements AttachmentVersion {
     private final boolean   readOnly;
     public  boolean   isInMainFolder;    //DUPLICATED in the cog subfolder
 
+    //size and date from the folder index, or -1 to ask the file system
+    private final long      fileSize;
+    private final long      fileDate;
+
     /**
     * This is the static method that will search the file system for all of the attachments
     * for a given container and attachment id.  Keeping this code here in the class
@@ -129,7 +137,8 @@ public class AttachmentVersionProject implements AttachmentVersion {
         if (attachmentId==null) {
             throw new ProgramLogicError("null attachment Id sent to getProjectVersions");
         }
-        if (!projectfolder.exists()) {
+        FolderIndex index = FolderIndex.getIndex(projectfolder);
+        if (!index.folderExists()) {
             throw new ProgramLogicError("getProjectVersions needs to be passed a valid projectfolder.  This does not exist: "+projectfolder.toString());
         }
         List<AttachmentVersion> list = new ArrayList<AttachmentVersion>();
@@ -144,14 +153,11 @@ public class AttachmentVersionProject implements AttachmentVersion {
 
         //This is needed only if there have been recent edits to the display copy
         //this is detected by comparing lengths
-        for (File testFile : projectfolder.listFiles()) {
-            String testName = testFile.getName();
-            if (attachName.equalsIgnoreCase(testName)) {
-                //only add to the list of versions if it is a different length
-                if (highestInternal==null || highestInternal.getFileSize()!=testFile.length()) {
-                    list.add(new AttachmentVersionProject(testFile, highestVersionSeen+1, true, true));
-                }
-                break;
+        FolderIndex.Entry displayCopy = index.findFileIgnoreCase(attachName);
+        if (displayCopy!=null) {
+            //only add to the list of versions if it is a different length
+            if (highestInternal==null || highestInternal.getFileSize()!=displayCopy.size) {
+                list.add(new AttachmentVersionProject(displayCopy, highestVersionSeen+1, true, true));
             }
         }
 
@@ -161,11 +167,6 @@ public class AttachmentVersionProject implements AttachmentVersion {
     public static AttachmentVersionProject fillListReturnHighestInternalVersion(
             List<AttachmentVersion> list, File projectfolder,  String attachName,
             String attachmentId) {
-        File cogfolder = new File(projectfolder, ".cog");
-        if (!cogfolder.exists()) {
-            return null;
-        }
-
         int highestVersionSeen = 0;
         AttachmentVersionProject highestVersion = null;
         // Here we make up a name to store the file on the server by combining the
@@ -174,8 +175,8 @@ public class AttachmentVersionProject implements AttachmentVersion {
         String storageNameBase = "att"+attachmentId+"-";
         int len = storageNameBase.length();
 
-        for (File testFile : cogfolder.listFiles()) {
-            String testName = testFile.getName();
+        for (FolderIndex.Entry testFile : FolderIndex.getIndex(projectfolder).getVersionFiles(attachmentId)) {
+            String testName = testFile.name;
             if (testName.startsWith(storageNameBase)) {
                 String tail = testName.substring(len);
                 //the version number is everything up to the dot
@@ -254,7 +255,10 @@ public class AttachmentVersionProject implements AttachmentVersion {
         //to avoid the problem with two threads claiming the same version number.
         synchronized(AttachmentVersionProject.class)
         {
-            //first, see what versions exist, and get the latest
+            //first, see what versions exist, and get the latest.  The index must
+            //be read fresh here, a version number missed would be overwritten
+            FolderIndex index = FolderIndex.getIndex(projectFolder);
+            index.invalidate();
             List<AttachmentVersion> list = getProjectVersions(projectFolder, attachName, attachmentId);
 
             int newSubVersion = 1;
@@ -300,6 +304,7 @@ public class AttachmentVersionProject implements AttachmentVersion {
                 throw new NGException("nugen.exception.unable.to.rename.temp.file",
                         new Object[]{tempFile,currentFile});
             }
+            index.invalidate();
             return new AttachmentVersionProject(currentFile, newSubVersion, false, true);
         }
     }
@@ -335,6 +340,20 @@ public class AttachmentVersionProject implements AttachmentVersion {
         number = newNumber;
         readOnly = isReadOnly;
         isInMainFolder = theLatest;
+        fileSize = -1;
+        fileDate = -1;
+    }
+
+    /**
+    * A version found in the folder index, which already knows the size and date.
+    */
+    public AttachmentVersionProject(FolderIndex.Entry versionFile, int newNumber, boolean isReadOnly, boolean theLatest) {
+        actualFile = versionFile.file;
+        number = newNumber;
+        readOnly = isReadOnly;
+        isInMainFolder = theLatest;
+        fileSize = versionFile.size;
+        fileDate = versionFile.lastModified;
     }
 
     @Override
@@ -344,11 +363,17 @@ public class AttachmentVersionProject implements AttachmentVersion {
 
     @Override
     public long getCreatedDate() {
+        if (fileDate>=0) {
+            return fileDate;
+        }
         return actualFile.lastModified();
     }
 
     @Override
     public long getFileSize() {
+        if (fileSize>=0) {
+            return fileSize;
+        }
         return actualFile.length();
     }
 
@@ -386,6 +411,7 @@ public class AttachmentVersionProject implements AttachmentVersion {
     public void purgeLocalFile() throws Exception {
         if (actualFile.exists()) {
             actualFile.delete();
+            FolderIndex.fileChanged(actualFile);
         }
         if (actualFile.exists()) {
             throw new Exception("Attempted, and unable to delete file "+actualFile);
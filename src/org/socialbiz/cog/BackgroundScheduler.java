@@ -0,0 +1,340 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONException;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * Runs the periodic background jobs of the server.
+ *
+ * The jobs are divided into lanes, and each lane has its own thread, so
+ * a slow job (for example sending email to a mail server that does not
+ * answer) delays only the other jobs in the same lane.  Within a lane the
+ * jobs run one at a time.  A job that throws an exception, or even an
+ * Error, is recorded and runs again at its next time, it can not stop
+ * the lane.  Each job runs its period after the end of the previous run,
+ * so a job that falls behind does not run several times in a row to
+ * catch up.  A job is never run twice at the same time.
+ *
+ * For each job the number of runs and failures, how long the runs take,
+ * how late they started (lag), and the last failure are kept, and shown
+ * on the "Background Jobs" admin page.
+ *
+ * Work that is not periodic, like making the thumbnails of an uploaded
+ * image, can be given to a lane with submit.  Each run is counted with
+ * the other runs of the same job name, and the lag is how long it waited.
+ *
+ * When the Java VM has virtual threads, the lanes run on virtual threads,
+ * otherwise on daemon threads.
+ *
+ * One scheduler is made by the ServerInitializer each time the server is
+ * started, and shut down when the server is paused.
+ */
+public class BackgroundScheduler {
+
+    public static final String LANE_OUTBOUND_MAIL = "outbound mail";
+    public static final String LANE_INBOUND_MAIL  = "inbound mail";
+    public static final String LANE_DIGEST        = "digest";
+    public static final String LANE_INDEXING      = "indexing";
+    public static final String LANE_MAINTENANCE   = "maintenance";
+    public static final String LANE_THUMBNAILS    = "thumbnails";
+
+    private static final String[] ALL_LANES = new String[] {LANE_OUTBOUND_MAIL,
+            LANE_INBOUND_MAIL, LANE_DIGEST, LANE_INDEXING, LANE_MAINTENANCE, LANE_THUMBNAILS};
+
+    private String name;
+    private boolean virtualThreads = false;
+    private LinkedHashMap<String, ScheduledExecutorService> lanes =
+            new LinkedHashMap<String, ScheduledExecutorService>();
+    private List<Job> jobs = new ArrayList<Job>();
+    private boolean isShutdown = false;
+
+
+    public BackgroundScheduler(String _name) {
+        name = _name;
+        ThreadFactory virtualFactory = getVirtualThreadFactory();
+        virtualThreads = (virtualFactory!=null);
+        for (String lane : ALL_LANES) {
+            ThreadFactory factory = virtualFactory;
+            if (factory==null) {
+                factory = new DaemonThreadFactory(name + ": " + lane);
+            }
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, factory);
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+            lanes.put(lane, executor);
+        }
+    }
+
+    /**
+     * Run the job over and over in the lane, starting after the delay, and
+     * then the period after each run ends.  The name is only for display.
+     */
+    public synchronized void schedule(String lane, String jobName, Runnable task,
+            long delayMillis, long periodMillis) throws Exception {
+        if (isShutdown) {
+            throw new Exception("Can not schedule job ("+jobName+") because the background scheduler has been shut down.");
+        }
+        ScheduledExecutorService executor = lanes.get(lane);
+        if (executor==null) {
+            throw new Exception("Can not schedule job ("+jobName+") because there is no background lane named ("+lane+")");
+        }
+        Job job = new Job(lane, jobName, task, periodMillis);
+        job.nextDue = System.currentTimeMillis() + delayMillis;
+        jobs.add(job);
+        executor.scheduleWithFixedDelay(job, delayMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run the task once in the lane, after the jobs and tasks that are
+     * already waiting there.  The runs are counted under the job name.
+     */
+    public synchronized void submit(String lane, String jobName, Runnable task) throws Exception {
+        if (isShutdown) {
+            throw new Exception("Can not run job ("+jobName+") because the background scheduler has been shut down.");
+        }
+        ScheduledExecutorService executor = lanes.get(lane);
+        if (executor==null) {
+            throw new Exception("Can not run job ("+jobName+") because there is no background lane named ("+lane+")");
+        }
+        Job job = null;
+        for (Job existing : jobs) {
+            if (existing.period==0 && existing.lane.equals(lane) && existing.jobName.equals(jobName)) {
+                job = existing;
+            }
+        }
+        if (job==null) {
+            job = new Job(lane, jobName, null, 0);
+            jobs.add(job);
+        }
+        executor.execute(job.oneRun(task));
+    }
+
+    /**
+     * Stops all the lanes.  A job that is running now is interrupted, and
+     * no more jobs are started.
+     */
+    public synchronized void shutdown() {
+        isShutdown = true;
+        for (ScheduledExecutorService executor : lanes.values()) {
+            executor.shutdownNow();
+        }
+    }
+
+    public synchronized boolean isShutdown() {
+        return isShutdown;
+    }
+
+    /**
+     * The state and measurements of all the jobs, grouped by lane.
+     */
+    public synchronized JSONObject getStatusJSON() throws Exception {
+        JSONObject jo = new JSONObject();
+        jo.put("name", name);
+        jo.put("virtualThreads", virtualThreads);
+        jo.put("shutdown", isShutdown);
+        JSONArray laneList = new JSONArray();
+        for (String lane : lanes.keySet()) {
+            JSONObject laneObj = new JSONObject();
+            laneObj.put("name", lane);
+            JSONArray jobList = new JSONArray();
+            for (Job job : jobs) {
+                if (job.lane.equals(lane)) {
+                    jobList.put(job.getJSON());
+                }
+            }
+            laneObj.put("jobs", jobList);
+            laneList.put(laneObj);
+        }
+        jo.put("lanes", laneList);
+        return jo;
+    }
+
+
+    /**
+     * Wraps the task of a job, keeps the measurements of it, and makes sure
+     * that nothing thrown by the task gets out to the lane.  A job with a
+     * period of zero has no task of its own, it counts the runs of the
+     * tasks given to submit.
+     */
+    private static class Job implements Runnable {
+        final String lane;
+        final String jobName;
+        final Runnable task;
+        final long period;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+
+        //the time that the next run should start
+        long nextDue;
+
+        long runCount = 0;
+        long failureCount = 0;
+        long skippedCount = 0;
+        long lastStart = 0;
+        long lastDuration = 0;
+        long totalDuration = 0;
+        long maxDuration = 0;
+        long lastLag = 0;
+        long maxLag = 0;
+        long lastFailureTime = 0;
+        String lastFailure = null;
+
+        Job(String _lane, String _jobName, Runnable _task, long _period) {
+            lane = _lane;
+            jobName = _jobName;
+            task = _task;
+            period = _period;
+        }
+
+        public void run() {
+            if (!running.compareAndSet(false, true)) {
+                synchronized (this) {
+                    skippedCount++;
+                }
+                return;
+            }
+            long due;
+            synchronized (this) {
+                due = nextDue;
+            }
+            runTask(task, due);
+        }
+
+        Runnable oneRun(final Runnable oneTask) {
+            final long submitTime = System.currentTimeMillis();
+            return new Runnable() {
+                public void run() {
+                    //the lane runs one at a time, so this job is not running now
+                    running.set(true);
+                    runTask(oneTask, submitTime);
+                }
+            };
+        }
+
+        private void runTask(Runnable theTask, long due) {
+            long startTime = System.currentTimeMillis();
+            Throwable failure = null;
+            try {
+                theTask.run();
+            }
+            catch (Throwable t) {
+                failure = t;
+                JSONException.traceException(System.out, t, "BACKGROUND JOB ("+jobName+") failed");
+            }
+            finally {
+                //a job must never leave a workspace locked for the next job on this thread
+                NGPageIndex.clearLocksHeldByThisThread();
+                long endTime = System.currentTimeMillis();
+                synchronized (this) {
+                    long lag = Math.max(0, startTime - due);
+                    long duration = endTime - startTime;
+                    runCount++;
+                    lastStart = startTime;
+                    lastDuration = duration;
+                    totalDuration += duration;
+                    maxDuration = Math.max(maxDuration, duration);
+                    lastLag = lag;
+                    maxLag = Math.max(maxLag, lag);
+                    if (failure!=null) {
+                        failureCount++;
+                        lastFailureTime = endTime;
+                        lastFailure = failure.toString();
+                    }
+                    if (period>0) {
+                        nextDue = endTime + period;
+                    }
+                }
+                running.set(false);
+            }
+        }
+
+        synchronized JSONObject getJSON() throws Exception {
+            JSONObject jo = new JSONObject();
+            jo.put("name", jobName);
+            jo.put("periodMs", period);
+            jo.put("running", running.get());
+            jo.put("runs", runCount);
+            jo.put("failures", failureCount);
+            jo.put("skipped", skippedCount);
+            jo.put("lastStart", lastStart);
+            jo.put("nextDue", nextDue);
+            jo.put("lastDurationMs", lastDuration);
+            jo.put("maxDurationMs", maxDuration);
+            if (runCount>0) {
+                jo.put("avgDurationMs", totalDuration / runCount);
+            }
+            else {
+                jo.put("avgDurationMs", 0);
+            }
+            jo.put("lastLagMs", lastLag);
+            jo.put("maxLagMs", maxLag);
+            if (lastFailure!=null) {
+                jo.put("lastFailure", lastFailure);
+                jo.put("lastFailureTime", lastFailureTime);
+            }
+            return jo;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private String threadName;
+
+        DaemonThreadFactory(String _threadName) {
+            threadName = _threadName;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, threadName);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().factory() on a Java VM that has virtual threads,
+     * and null on one that does not.  This is found by reflection so that
+     * the server still compiles and runs on older Java versions.
+     */
+    private static ThreadFactory getVirtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
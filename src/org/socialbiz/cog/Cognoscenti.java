@@ -4,7 +4,6 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.Timer;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -15,9 +14,11 @@ import org.socialbiz.cog.api.LightweightAuthServlet;
 import org.socialbiz.cog.dms.FolderAccessHelper;
 import org.socialbiz.cog.exception.NGException;
 import org.socialbiz.cog.exception.ProgramLogicError;
+import org.socialbiz.cog.mail.ChunkTemplate;
 import org.socialbiz.cog.mail.EmailSender;
 import org.socialbiz.cog.rest.ServerInitializer;
 import org.socialbiz.cog.spring.BaseController;
+import org.socialbiz.cog.spring.MeetingControler;
 
 /**
  * This is the main class for the Cognoscenti object package.
@@ -45,10 +46,12 @@ public class Cognoscenti {
     private UserManager userManager;
 
     //managing the known containers
-    private List<NGPageIndex> allContainers;
+    private ContainerIndex allContainers;
     private Hashtable<String, NGPageIndex> keyToSites;
     private Hashtable<String, NGPageIndex> keyToWorkspace;
     private Hashtable<String, NGPageIndex> upstreamToContainer;
+    private WorkspaceHierarchy hierarchy;
+    private ActivityFeed activityFeed;
 
     // there may be a number of pages that have unsent email, and so this is a
     // list of keys, but there can be extras in this list without problem
@@ -57,6 +60,8 @@ public class Cognoscenti {
     SearchManager searchManager = null;
     private long searchIndexBuildtime = 0;
 
+    private BackgroundScheduler backgroundScheduler = null;
+
     private Cognoscenti(ServletContext sc) {
         System.out.println("Weaver Server Object == Constructing");
         rootFolder = new File(sc.getRealPath(""));
@@ -147,6 +152,14 @@ System.out.println("Weaver Server Object == Start the Server");
         return userManager;
     }
 
+    /**
+     * The scheduler running the background jobs, or null if the server
+     * was initialized without background processing.
+     */
+    public BackgroundScheduler getBackgroundScheduler() {
+        return backgroundScheduler;
+    }
+
 
     //TODO: get rid of this static
     public static String getServerGlobalId() {
@@ -162,6 +175,9 @@ System.out.println("Weaver Server Object == Start the Server");
      */
     public synchronized void clearAllStaticVariables() {
         System.out.println("Weaver Server Object == clear all static variables");
+        //make sure nothing saved is lost before throwing away the workspaces in memory
+        WorkspaceSaveQueue.flushAll();
+        EmailListener.stopListener();
         NGPageIndex.clearAllStaticVars();
         NGBook.clearAllStaticVars();
         NGPage.clearAllStaticVars();
@@ -169,6 +185,15 @@ System.out.println("Weaver Server Object == Start the Server");
         SectionDef.clearAllStaticVars();
         UserManager.clearAllStaticVars();
         MicroProfileMgr.clearAllStaticVars();
+        ChunkTemplate.clearAllStaticVars();
+        WikiHtmlCache.clearAllStaticVars();
+        PDFExportQueue.clearAllStaticVars();
+        ImageThumbnails.clearAllStaticVars();
+        SiteStatsMgr.clearAllStaticVars();
+        RemoteJSON.clearAllStaticVars();
+        FolderIndex.clearAllStaticVars();
+        PeopleIndex.clearAllStaticVars();
+        UserPageCache.clearAllStaticVars();
         AuthDummy.clearStaticVariables();
         isInitialized = false;
         initializingNow = false;
@@ -176,6 +201,8 @@ System.out.println("Weaver Server Object == Start the Server");
         keyToSites = null;
         keyToWorkspace = null;
         upstreamToContainer = null;
+        hierarchy = null;
+        activityFeed = null;
         projectsWithEmailToSend = null;
     }
 
@@ -183,12 +210,12 @@ System.out.println("Weaver Server Object == Start the Server");
      * From the passed in values will initialize the module.
      * @param rootFolder is the root on the installed folder and requires that there
      *        be a file at {rootFolder}/WEB-INF/config.txt
-     * @param backgroundTimer is used for all the background activity for
+     * @param scheduler is used for all the background activity for
      *        sending and receiving email, passing a null in will disable
      *        email sending and receiving
      * @exception will be thrown if anything in the configuration appears to be incorrect
      */
-    public synchronized void initializeAll(Timer backgroundTimer) throws Exception {
+    public synchronized void initializeAll(BackgroundScheduler scheduler) throws Exception {
         System.out.println("Weaver Server Object == Initialize All");
         try {
 
@@ -218,12 +245,24 @@ System.out.println("Weaver Server Object == Start the Server");
             userCacheMgr = new UserCacheMgr(this);
 
             NGPageIndex.initAllStaticVars();
+            WorkspaceSaveQueue.initialize(this);
+            ChunkTemplate.initialize(this);
+            WikiHtmlCache.initialize(this);
+            PDFExportQueue.initialize(this);
+            ImageThumbnails.initialize(this);
+            RemoteJSON.initialize(this);
+            FolderIndex.initialize(this);
+            UserPageCache.initialize(this);
             initIndexOfContainers();
             MicroProfileMgr.loadMicroProfilesInMemory(this);
-            if (backgroundTimer!=null) {
-                EmailSender.initSender(backgroundTimer, this);
+            backgroundScheduler = scheduler;
+            if (scheduler!=null) {
+                EmailSender.initSender(scheduler, this);
                 //SendEmailTimerTask.initEmailSender(backgroundTimer, this);
-                EmailListener.initListener(backgroundTimer);
+                EmailListener.initListener(scheduler);
+                SiteStatsMgr.initRefresher(scheduler, this);
+                FolderIndex.initCleanup(scheduler);
+                ImageThumbnails.initBackground(scheduler);
             }
 
             FolderAccessHelper.initLocalConnections(this);
@@ -294,18 +333,17 @@ System.out.println("Weaver Server Object == Start the Server");
             return ret;
         }
         // if system is not initialized then return an empty vector
-        for (NGPageIndex ngpi : allContainers) {
+        for (NGPageIndex ngpi : allContainers.getAll()) {
             if (!ngpi.isDeleted) {
                 ret.add(ngpi);
             }
         }
-        NGPageIndex.sortByName(ret);
         return ret;
     }
 
     public List<NGPageIndex> getDeletedContainers() {
         List<NGPageIndex> ret = new ArrayList<NGPageIndex>();
-        for (NGPageIndex ngpi : allContainers) {
+        for (NGPageIndex ngpi : allContainers.getAll()) {
             if (ngpi.isDeleted) {
                 ret.add(ngpi);
             }
@@ -387,7 +425,7 @@ System.out.println("Weaver Server Object == Start the Server");
      * migrate to the combined keys.
      */
     public NGPageIndex lookForWSBySimpleKeyOnly(String nonUniqueSimpleKey) {
-        for (NGPageIndex ngps : allContainers) {
+        for (NGPageIndex ngps : allContainers.getAll()) {
             if (ngps.containerKey.equals(nonUniqueSimpleKey)) {
                 return ngps;
             }
@@ -399,14 +437,18 @@ System.out.println("Weaver Server Object == Start the Server");
     /**
      * Finding pages by name means that you might find more than one so you get
      * a vector back, which might be empty, it might have one or it might have
-     * more pages.
+     * more pages.  The list returned must not be changed.
      */
     public List<NGPageIndex> getPageIndexByName(String pageName) throws Exception {
         assertInitialized();
 
-        NGTerm term = NGTerm.findTerm(pageName);
+        //looking a name up does not make a term for it
+        NGTerm term = NGTerm.findTermIfExists(pageName);
         if (term == null) {
-            throw new NGException("nugen.exception.key.dont.have.alphanum", null);
+            if (SectionWiki.sanitize(pageName).length() == 0) {
+                throw new NGException("nugen.exception.key.dont.have.alphanum", null);
+            }
+            return new ArrayList<NGPageIndex>();
         }
         return term.targetLeaves;
     }
@@ -441,13 +483,7 @@ System.out.println("Weaver Server Object == Start the Server");
 
     
     public List<NGPageIndex> getAllSites() {
-        ArrayList<NGPageIndex> res = new ArrayList<NGPageIndex>();
-        for (NGPageIndex ngpi : allContainers) {
-            if (!ngpi.isProject()) {
-                res.add(ngpi);
-            }
-        }
-        return res;
+        return new ArrayList<NGPageIndex>(allContainers.getSites());
     }
     
 
@@ -486,23 +522,29 @@ System.out.println("Weaver Server Object == Start the Server");
      * are all part of a single site. Should be called get all projects in site
      */
     public List<NGPageIndex> getAllProjectsInSite(String accountKey) throws Exception {
+        return selectDeleted(allContainers.getWorkspacesByName(accountKey), false);
+    }
+
+    /**
+     * Same as getAllProjectsInSite, but the most recently changed first.
+     */
+    public List<NGPageIndex> getAllProjectsInSiteByChange(String accountKey) throws Exception {
+        return selectDeleted(allContainers.getWorkspacesByChange(accountKey), false);
+    }
+
+    /**
+     * The deleted workspaces of a site, which are not in getAllProjectsInSite.
+     */
+    public List<NGPageIndex> getDeletedProjectsInSite(String accountKey) throws Exception {
+        return selectDeleted(allContainers.getWorkspacesByName(accountKey), true);
+    }
+
+    private List<NGPageIndex> selectDeleted(List<NGPageIndex> list, boolean deleted) {
         List<NGPageIndex> ret = new ArrayList<NGPageIndex>();
-        for (NGPageIndex ngpi : getAllContainers()) {
-            if (!ngpi.isProject()) {
-                // only consider book/project style containers
-                continue;
-            }
-            if (!accountKey.equals(ngpi.wsSiteKey)) {
-                // only consider if the project is in the site we look for
-                continue;
-            }
-            /*
-            if (ngpi.isDeleted) {
-                // ignore deleted projects
-                continue;
+        for (NGPageIndex ngpi : list) {
+            if (ngpi.isDeleted == deleted) {
+                ret.add(ngpi);
             }
-            */
-            ret.add(ngpi);
         }
         return ret;
     }
@@ -544,6 +586,20 @@ System.out.println("Weaver Server Object == Start the Server");
         return ret;
     }
 
+    /**
+     * The recent history of the workspaces, by workspace, site, and user.
+     */
+    public ActivityFeed getActivityFeed() {
+        return activityFeed;
+    }
+
+    /**
+     * The parent and child relationships between the workspaces.
+     */
+    public WorkspaceHierarchy getWorkspaceHierarchy() {
+        return hierarchy;
+    }
+
     public NGWorkspace getWorkspaceByUpstreamLink(String upstream) throws Exception {
         if (upstream==null || upstream.length()==0) {
             return null;
@@ -574,7 +630,9 @@ System.out.println("Weaver Server Object == Start the Server");
         keyToSites = new Hashtable<String, NGPageIndex>();
         keyToWorkspace = new Hashtable<String, NGPageIndex>();
         upstreamToContainer = new Hashtable<String, NGPageIndex>();
-        allContainers = new ArrayList<NGPageIndex>();
+        hierarchy = new WorkspaceHierarchy(this);
+        activityFeed = new ActivityFeed();
+        allContainers = new ContainerIndex();
 
         //TODO: eliminate statics, put them as members of this Cognoscenti class!
         NGBook.initStaticVars();
@@ -694,6 +752,7 @@ System.out.println("Weaver Server Object == Start the Server");
             foundPage.unlinkAll();
             allContainers.remove(foundPage);
             keyToSites.remove(foundPage.containerKey);
+            NGTerm.linkIndexChanged();
         }
     }
     
@@ -715,6 +774,8 @@ System.out.println("Weaver Server Object == Start the Server");
         }
         allContainers.add(bIndex);
         keyToWorkspace.put(workspaceKey, bIndex);
+        hierarchy.workspaceChanged(bIndex);
+        refreshActivity(ngw);
 
         //special upstream link handling
         String upstream = ngw.getUpstreamLink();
@@ -729,6 +790,34 @@ System.out.println("Weaver Server Object == Start the Server");
         }
     }
 
+    /**
+     * Called after the index entry of a workspace was refreshed from the
+     * workspace (see NGPage.refreshOutboundLinks) to move it to the right
+     * place in the lists that are kept sorted, and in the hierarchy.
+     */
+    public void workspaceIndexRefreshed(NGPageIndex ngpi, NGPage ngw) {
+        allContainers.entryChanged(ngpi);
+        hierarchy.workspaceChanged(ngpi);
+        if (ngpi.rolesChanged()) {
+            MeetingControler.meetingCache.rolesChanged(ngw);
+        }
+        refreshActivity(ngw);
+    }
+
+    /**
+     * The activity feeds are not important enough to fail the save or the
+     * indexing of the workspace for.
+     */
+    private void refreshActivity(NGPage ngw) {
+        try {
+            activityFeed.workspaceChanged(ngw);
+        }
+        catch (Exception e) {
+            AuthDummy.serverBackgroundRequest().logException(
+                    "Unable to update the activity feeds from workspace "+ngw.getKey(), e);
+        }
+    }
+
     public void eliminateIndexForWorkspace(NGWorkspace ngw) {
         String key = ngw.getKey();
         String workspaceKey = ngw.getSiteKey() + "|" + key;
@@ -739,6 +828,9 @@ System.out.println("Weaver Server Object == Start the Server");
             foundPage.unlinkAll();
             allContainers.remove(foundPage);
             keyToWorkspace.remove(workspaceKey);
+            hierarchy.workspaceRemoved(foundPage);
+            activityFeed.workspaceRemoved(ngw.getSiteKey(), key);
+            NGTerm.linkIndexChanged();
         }
     }
     
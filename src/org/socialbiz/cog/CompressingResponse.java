@@ -0,0 +1,384 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compresses the body of a response with gzip or deflate, for a browser
+ * that said in Accept-Encoding that it can take it.  NGFilter wraps every
+ * response in this.
+ *
+ * Whether to compress is decided when the first byte of the body is
+ * written, because the servlets and JSP set the content type (and the
+ * length, for a document) before writing, but after AuthRequest has
+ * already asked for the writer.  The body is compressed if:
+ *
+ * - the content type is text, JSON, JavaScript, XML or one of the document
+ *   types that are not already compressed (see isCompressible)
+ * - the response does not already have a Content-Encoding (AllPeople.json
+ *   sends a body that is gzipped ahead of time)
+ * - it is not a part of a document (Content-Range) and is not tiny
+ *
+ * When it is compressed the Content-Length that was set is dropped, since
+ * it is the length before compressing.  Otherwise everything is passed
+ * straight through to the wrapped response.
+ *
+ * finish must be called at the end of the request to write the end of
+ * the compressed data.
+ */
+public class CompressingResponse extends HttpServletResponseWrapper {
+
+    //smaller than this, the headers cost more than compressing saves
+    private static final int MIN_COMPRESS_SIZE = 1024;
+
+    private static final MetricsRegistry.Counter COMPRESSED = MetricsRegistry.counter(
+            "cog_http_responses_compressed_total", "Web responses sent compressed");
+
+    private final String encoding;
+    private int status = SC_OK;
+    private int declaredLength = -1;
+    private boolean hasContentEncoding = false;
+    private boolean hasContentRange = false;
+
+    private DecidingStream stream;
+    private PrintWriter writer;
+
+
+    /**
+     * The encoding to use for the request, "gzip" or "deflate", or null if
+     * the browser does not take either.  Gzip is used if both are allowed.
+     * The "*" wildcard allows an encoding only if it is not named with q=0.
+     */
+    public static String chooseEncoding(HttpServletRequest req) {
+        String accept = req.getHeader("Accept-Encoding");
+        if (accept == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean gzipRefused = false;
+        boolean deflate = false;
+        boolean deflateRefused = false;
+        boolean any = false;
+        for (String part : accept.split(",")) {
+            String name = part;
+            float quality = 1;
+            int semi = part.indexOf(';');
+            if (semi >= 0) {
+                name = part.substring(0, semi);
+                String param = part.substring(semi + 1).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2).trim());
+                    }
+                    catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            name = name.trim().toLowerCase();
+            boolean allowed = quality > 0;
+            if ("gzip".equals(name) || "x-gzip".equals(name)) {
+                gzip |= allowed;
+                gzipRefused |= !allowed;
+            }
+            else if ("deflate".equals(name)) {
+                deflate |= allowed;
+                deflateRefused |= !allowed;
+            }
+            else if ("*".equals(name)) {
+                any |= allowed;
+            }
+        }
+        if (gzip || (any && !gzipRefused)) {
+            return "gzip";
+        }
+        if (deflate || (any && !deflateRefused)) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    /**
+     * Content types that are worth compressing.  Images, zip files, and
+     * the newer office documents (which are zip files) are already
+     * compressed.
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        int semi = type.indexOf(';');
+        if (semi >= 0) {
+            type = type.substring(0, semi);
+        }
+        type = type.trim();
+        return type.startsWith("text/")
+            || type.equals("application/json")
+            || type.equals("application/javascript")
+            || type.equals("application/x-javascript")
+            || type.equals("application/xml")
+            || type.endsWith("+xml")
+            || type.endsWith("+json")
+            || type.equals("application/rtf")
+            || type.equals("application/msword")
+            || type.equals("application/vnd.ms-excel")
+            || type.equals("application/vnd.ms-powerpoint")
+            || type.equals("application/postscript");
+    }
+
+    public CompressingResponse(HttpServletResponse resp, String encoding) {
+        super(resp);
+        this.encoding = encoding;
+        //a cache must not give a compressed copy to a browser that did not ask for it
+        resp.addHeader("Vary", "Accept-Encoding");
+    }
+
+    /**
+     * Like HttpServletResponseWithoutBug, this can be called more than once,
+     * and along with getWriter, which writes to the same stream.
+     */
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (stream == null) {
+            stream = new DecidingStream();
+        }
+        return stream;
+    }
+
+    public PrintWriter getWriter() throws IOException {
+        if (writer != null) {
+            return writer;
+        }
+        getOutputStream();
+        String charset = getCharacterEncoding();
+        if (charset == null) {
+            charset = "UTF-8";
+        }
+        writer = new PrintWriter(new OutputStreamWriter(stream, charset));
+        return writer;
+    }
+
+    /**
+     * Writes out everything that is buffered, and the end of the compressed
+     * data if it is being compressed.  Called once, at the end of the request.
+     */
+    public void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (stream != null) {
+            stream.finish();
+        }
+    }
+
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (stream != null) {
+            stream.flush();
+        }
+        super.flushBuffer();
+    }
+
+    public void reset() {
+        if (stream != null && stream.decided) {
+            throw new IllegalStateException("Can not reset a response after the body started");
+        }
+        super.reset();
+        getHttpResponse().addHeader("Vary", "Accept-Encoding");
+        declaredLength = -1;
+        hasContentEncoding = false;
+        hasContentRange = false;
+        status = SC_OK;
+    }
+
+    /**
+     * Once the body has started, the compressor has written its header and
+     * holds state for the bytes so far, so clearing the buffer would leave
+     * a broken body.  Like reset, this is refused then.
+     */
+    public void resetBuffer() {
+        if (stream != null && stream.decided) {
+            throw new IllegalStateException("Can not reset the buffer of a response after the body started");
+        }
+        super.resetBuffer();
+    }
+
+    public void setStatus(int sc) {
+        status = sc;
+        super.setStatus(sc);
+    }
+
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        status = sc;
+        super.setStatus(sc, sm);
+    }
+
+    public void setContentLength(int len) {
+        declaredLength = len;
+        if (!isDecided()) {
+            //held until it is known whether the body is compressed
+            return;
+        }
+        if (!stream.compressing) {
+            super.setContentLength(len);
+        }
+    }
+
+    public void setHeader(String name, String value) {
+        if (noteHeader(name, value)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    public void addHeader(String name, String value) {
+        if (noteHeader(name, value)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    public void setIntHeader(String name, int value) {
+        if (noteHeader(name, Integer.toString(value))) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    public void addIntHeader(String name, int value) {
+        if (noteHeader(name, Integer.toString(value))) {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    /**
+     * Keeps track of the headers that decide about compressing.  Returns
+     * false for a Content-Length that must not be passed on yet.
+     */
+    private boolean noteHeader(String name, String value) {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            setContentLength((int) DOMFace.safeConvertLong(value));
+            return false;
+        }
+        if ("Content-Encoding".equalsIgnoreCase(name)) {
+            hasContentEncoding = true;
+        }
+        else if ("Content-Range".equalsIgnoreCase(name)) {
+            hasContentRange = true;
+        }
+        return true;
+    }
+
+    private boolean isDecided() {
+        return stream != null && stream.decided;
+    }
+
+    private HttpServletResponse getHttpResponse() {
+        return (HttpServletResponse) getResponse();
+    }
+
+    private boolean shouldCompress() {
+        if (hasContentEncoding || hasContentRange || status == SC_PARTIAL_CONTENT) {
+            return false;
+        }
+        if (declaredLength >= 0 && declaredLength < MIN_COMPRESS_SIZE) {
+            return false;
+        }
+        return isCompressible(getContentType());
+    }
+
+
+    /**
+     * Decides on the first write whether to compress, and from then on
+     * writes either to the compressor or straight to the wrapped response.
+     */
+    private class DecidingStream extends ServletOutputStream {
+        boolean decided = false;
+        boolean compressing = false;
+        private OutputStream out;
+        private DeflaterOutputStream compressor;
+
+        private OutputStream target() throws IOException {
+            if (!decided) {
+                decided = true;
+                out = getResponse().getOutputStream();
+                if (shouldCompress()) {
+                    compressing = true;
+                    getHttpResponse().setHeader("Content-Encoding", encoding);
+                    if ("gzip".equals(encoding)) {
+                        compressor = new GZIPOutputStream(out, 8192);
+                    }
+                    else {
+                        compressor = new DeflaterOutputStream(out);
+                    }
+                    out = compressor;
+                    COMPRESSED.inc();
+                }
+                else if (declaredLength >= 0) {
+                    getHttpResponse().setContentLength(declaredLength);
+                }
+            }
+            return out;
+        }
+
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            target().write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        public void close() throws IOException {
+            finish();
+        }
+
+        void finish() throws IOException {
+            if (compressor != null) {
+                compressor.finish();
+                compressor = null;
+            }
+            if (out != null) {
+                out.flush();
+            }
+        }
+    }
+}
@@ -111,19 +111,36 @@ public abstract class ContainerCommon extends NGContainer
     abstract public int currentSchemaVersion();
 
     public void save() throws Exception {
+        assureSchemaCurrent();
+        super.save();
+    }
+
+    /**
+     * Must be called before anything is written out, so that the file
+     * on disk is always at the current schema level.
+     */
+    protected void assureSchemaCurrent() throws Exception {
         int sv = getSchemaVersion();
         int current = currentSchemaVersion();
         if (sv<current) {
             schemaUpgrade(sv, current);
             setSchemaVersion(current);
         }
-        super.save();
     }
 
 
 
     //these are methods that the extending classes need to implement so that this class will work
     public abstract String getUniqueOnPage() throws Exception;
+
+    /**
+    * Called when an element with a four digit id is physically removed,
+    * so that the id can be handed out again.  Containers that do not keep
+    * track of ids in use can ignore this.
+    */
+    public void releaseUniqueOnPage(String id) throws Exception {
+        //default does nothing
+    }
     protected abstract DOMFace getAttachmentParent() throws Exception;
     protected abstract DOMFace getNoteParent() throws Exception;
     protected abstract DOMFace getRoleParent() throws Exception;
@@ -246,6 +263,7 @@ public abstract class ContainerCommon extends NGContainer
     public void eraseAttachmentRecord(String id) throws Exception {
         AttachmentRecord att = findAttachmentByIDOrFail( id );
         attachParent.removeChild(att);
+        releaseUniqueOnPage(id);
     }
     public void purgeDeletedAttachments() throws Exception {
         List<AttachmentRecord> cleanList = new ArrayList<AttachmentRecord>();
@@ -508,11 +526,21 @@ public abstract class ContainerCommon extends NGContainer
     }
     
     public HistoryRecord getLatestHistory() throws Exception {
-        List<HistoryRecord> allSortedHist = getAllHistory();
-        if (allSortedHist.size()==0) {
-            return null;
-        }
-        return allSortedHist.get(0);
+        return HistoryRecord.findLatest(historyParent.getChildren("event", HistoryRecord.class));
+    }
+
+    public List<HistoryRecord> getRecentHistory(int count) throws Exception {
+        return HistoryRecord.selectNewest(historyParent.getChildren("event", HistoryRecord.class),
+                count, 0, null);
+    }
+
+    /**
+     * The next count history records after the one with the given time
+     * and id, in the order of getRecentHistory.
+     */
+    public List<HistoryRecord> getOlderHistory(int count, long afterTime, String afterId) throws Exception {
+        return HistoryRecord.selectNewest(historyParent.getChildren("event", HistoryRecord.class),
+                count, afterTime, afterId);
     }
 
 
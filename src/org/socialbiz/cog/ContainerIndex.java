@@ -0,0 +1,278 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All the index entries (NGPageIndex) of the server, kept in lists that
+ * are already sorted: for each site its workspaces both by name and by
+ * last change (most recent first), the sites by name, and all the
+ * containers by name.
+ *
+ * The lists are never changed.  Adding, removing, or updating an entry
+ * makes new lists for the site of the entry and replaces the old ones, so
+ * reading a list never locks and never sees it half changed, and the cost
+ * of a change depends on the size of the site, not of the server.  The
+ * list of all containers is only made again, when it is next asked for,
+ * after an entry was added or removed or changed its name.
+ *
+ * The entries include deleted containers.  The name and the last change
+ * of an entry change when its container is saved, and Cognoscenti calls
+ * entryChanged then to put it back in the right place.  Until then the
+ * entry is out of place, so each list keeps a copy of the sort key that
+ * every entry had when it was placed, and places are found with those
+ * copies, never with the entries themselves.
+ */
+public class ContainerIndex {
+
+    private final ConcurrentHashMap<String, SiteLists> siteLists =
+            new ConcurrentHashMap<String, SiteLists>();
+    private volatile Sorted sitesByName = Sorted.EMPTY;
+
+    //made from the other lists when needed, null when it has to be made again
+    private volatile List<NGPageIndex> allByName = Collections.emptyList();
+
+    /**
+     * What the lists are sorted on.
+     */
+    private enum Order {
+        NAME {
+            Comparable<?> keyOf(NGPageIndex ngpi) {
+                return ngpi.containerName.toLowerCase();
+            }
+        },
+        CHANGE {
+            //negative, so that the most recent is first
+            Comparable<?> keyOf(NGPageIndex ngpi) {
+                return Long.valueOf(-ngpi.lastChange);
+            }
+        };
+
+        abstract Comparable<?> keyOf(NGPageIndex ngpi);
+
+        @SuppressWarnings("unchecked")
+        static int compare(Comparable<?> key1, Comparable<?> key2) {
+            return ((Comparable<Object>) key1).compareTo(key2);
+        }
+    }
+
+    /**
+     * A sorted list of entries, and the sort key of each entry at the
+     * time it was placed, in the same order.
+     */
+    private static class Sorted {
+        final List<NGPageIndex> entries;
+        final List<Comparable<?>> keys;
+
+        static final Sorted EMPTY = new Sorted(new ArrayList<NGPageIndex>(),
+                new ArrayList<Comparable<?>>());
+
+        Sorted(List<NGPageIndex> entries, List<Comparable<?>> keys) {
+            this.entries = Collections.unmodifiableList(entries);
+            this.keys = keys;
+        }
+
+        int indexOf(NGPageIndex ngpi) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i) == ngpi) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * True if the entry is in the list and its key is the one it was
+         * placed with.
+         */
+        boolean isInPlace(NGPageIndex ngpi, Order order) {
+            int pos = indexOf(ngpi);
+            return pos >= 0 && keys.get(pos).equals(order.keyOf(ngpi));
+        }
+
+        /**
+         * A new list with the entry in its place, taking it out first if
+         * it was already in the list.
+         */
+        Sorted placed(NGPageIndex ngpi, Order order) {
+            Sorted rest = without(ngpi);
+            List<NGPageIndex> newEntries = new ArrayList<NGPageIndex>(rest.entries.size() + 1);
+            List<Comparable<?>> newKeys = new ArrayList<Comparable<?>>(rest.keys.size() + 1);
+            newEntries.addAll(rest.entries);
+            newKeys.addAll(rest.keys);
+            Comparable<?> key = order.keyOf(ngpi);
+            int low = 0;
+            int high = newKeys.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (Order.compare(newKeys.get(mid), key) <= 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            newEntries.add(low, ngpi);
+            newKeys.add(low, key);
+            return new Sorted(newEntries, newKeys);
+        }
+
+        Sorted without(NGPageIndex ngpi) {
+            List<NGPageIndex> newEntries = new ArrayList<NGPageIndex>(entries.size());
+            List<Comparable<?>> newKeys = new ArrayList<Comparable<?>>(keys.size());
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i) != ngpi) {
+                    newEntries.add(entries.get(i));
+                    newKeys.add(keys.get(i));
+                }
+            }
+            return new Sorted(newEntries, newKeys);
+        }
+    }
+
+    /**
+     * The workspaces of one site.  Both lists have the same entries.
+     */
+    private static class SiteLists {
+        final Sorted byName;
+        final Sorted byChange;
+
+        SiteLists(Sorted byName, Sorted byChange) {
+            this.byName = byName;
+            this.byChange = byChange;
+        }
+    }
+
+    private static final SiteLists NO_WORKSPACES = new SiteLists(Sorted.EMPTY, Sorted.EMPTY);
+
+
+    /**
+     * Add a new entry, or put an entry that is already there in the right
+     * place after its name or last change changed.
+     */
+    public synchronized void add(NGPageIndex ngpi) {
+        if (ngpi.isProject()) {
+            SiteLists old = getSiteLists(ngpi.wsSiteKey);
+            Sorted byName = old.byName;
+            if (!byName.isInPlace(ngpi, Order.NAME)) {
+                byName = byName.placed(ngpi, Order.NAME);
+                allByName = null;
+            }
+            Sorted byChange = old.byChange;
+            if (!byChange.isInPlace(ngpi, Order.CHANGE)) {
+                byChange = byChange.placed(ngpi, Order.CHANGE);
+            }
+            if (byName != old.byName || byChange != old.byChange) {
+                siteLists.put(ngpi.wsSiteKey, new SiteLists(byName, byChange));
+            }
+        }
+        else if (!sitesByName.isInPlace(ngpi, Order.NAME)) {
+            sitesByName = sitesByName.placed(ngpi, Order.NAME);
+            allByName = null;
+        }
+    }
+
+    /**
+     * The entry was refreshed from its container, and its name or last
+     * change might be different.
+     */
+    public void entryChanged(NGPageIndex ngpi) {
+        add(ngpi);
+    }
+
+    public synchronized void remove(NGPageIndex ngpi) {
+        if (ngpi.isProject()) {
+            SiteLists old = siteLists.get(ngpi.wsSiteKey);
+            if (old == null || old.byName.indexOf(ngpi) < 0) {
+                return;
+            }
+            Sorted byName = old.byName.without(ngpi);
+            if (byName.entries.size() == 0) {
+                siteLists.remove(ngpi.wsSiteKey);
+            }
+            else {
+                siteLists.put(ngpi.wsSiteKey, new SiteLists(byName, old.byChange.without(ngpi)));
+            }
+        }
+        else {
+            if (sitesByName.indexOf(ngpi) < 0) {
+                return;
+            }
+            sitesByName = sitesByName.without(ngpi);
+        }
+        allByName = null;
+    }
+
+    /**
+     * All the containers, sites and workspaces, deleted or not, by name.
+     */
+    public List<NGPageIndex> getAll() {
+        List<NGPageIndex> all = allByName;
+        if (all == null) {
+            all = makeAll();
+        }
+        return all;
+    }
+
+    private synchronized List<NGPageIndex> makeAll() {
+        if (allByName != null) {
+            return allByName;
+        }
+        List<NGPageIndex> all = new ArrayList<NGPageIndex>(sitesByName.entries);
+        for (SiteLists lists : siteLists.values()) {
+            all.addAll(lists.byName.entries);
+        }
+        NGPageIndex.sortByName(all);
+        allByName = Collections.unmodifiableList(all);
+        return allByName;
+    }
+
+    public List<NGPageIndex> getSites() {
+        return sitesByName.entries;
+    }
+
+    /**
+     * The workspaces of the site, deleted or not, by name.
+     */
+    public List<NGPageIndex> getWorkspacesByName(String siteKey) {
+        return getSiteLists(siteKey).byName.entries;
+    }
+
+    /**
+     * The workspaces of the site, deleted or not, the most recently
+     * changed first.
+     */
+    public List<NGPageIndex> getWorkspacesByChange(String siteKey) {
+        return getSiteLists(siteKey).byChange.entries;
+    }
+
+    private SiteLists getSiteLists(String siteKey) {
+        SiteLists lists = siteLists.get(siteKey);
+        if (lists == null) {
+            return NO_WORKSPACES;
+        }
+        return lists;
+    }
+}
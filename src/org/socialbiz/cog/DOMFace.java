@@ -27,6 +27,7 @@ import java.util.List;
 import org.socialbiz.cog.exception.NGException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONObject;
@@ -86,10 +87,11 @@ public class DOMFace
         }
         if (value == null)
         {
-            fEle.removeAttribute(attrName);
+            clearAttribute(attrName);
         }
-        else
+        else if (!fEle.hasAttribute(attrName) || !value.equals(fEle.getAttribute(attrName)))
         {
+            //setting the same value again would mark the file as changed
             fEle.setAttribute(attrName, value);
         }
     }
@@ -100,7 +102,10 @@ public class DOMFace
             throw new RuntimeException("Program logic error: a null attribute name"
                 +" was passed to setAttribute.");
         }
-        fEle.removeAttribute(attrName);
+        if (fEle.hasAttribute(attrName))
+        {
+            fEle.removeAttribute(attrName);
+        }
     }
 
     public String getAttribute(String attrName)
@@ -158,6 +163,19 @@ public class DOMFace
             throw new RuntimeException("Program logic error: a null member name"
                 +" was passed to setScalar.");
         }
+        if (value != null) {
+            //avoid touching the DOM (and marking the file changed) when the
+            //value is already there as the single text node
+            Element child = DOMUtils.getChildElement(fEle, memberName);
+            if (child != null) {
+                Node text = child.getFirstChild();
+                if (text != null && text == child.getLastChild()
+                        && text.getNodeType() == Node.TEXT_NODE
+                        && value.equals(text.getNodeValue())) {
+                    return;
+                }
+            }
+        }
         DOMUtils.setChildValue(fDoc, fEle, memberName, value);
     }
     public String getScalar(String memberName) {
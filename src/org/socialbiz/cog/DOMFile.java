@@ -26,7 +26,9 @@ import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.socialbiz.cog.exception.NGException;
 import org.socialbiz.cog.exception.ProgramLogicError;
@@ -34,6 +36,9 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
 
 /**
  * At the root of a DOM tree is a node that has no parent, and that is the root
@@ -41,13 +46,81 @@ import org.w3c.dom.NodeList;
  *
  * DOMFile is a subclass of DOMFace, with the additional capabilities to read
  * and write files.
+ *
+ * DOMFile listens to the DOM mutation events of the document so that it knows
+ * whether anything has changed since the file was read or last written.
+ * A save of an unchanged document does not touch the disk, and when it does
+ * write, only the parts of the tree that were changed are sorted.  This catches all changes, including those made directly on the
+ * DOM elements without going through DOMFace.
  */
 public class DOMFile extends DOMFace {
     File associatedFile;
 
+    //true if the document may differ from the file on disk.  If the DOM
+    //implementation does not support mutation events this stays true.
+    private boolean changed = true;
+
+    //elements whose list of children (or own text/attributes) changed
+    private Set<Node> changedLevels = new HashSet<Node>();
+
+    //elements added to the tree since last save, need complete sorting
+    private Set<Node> insertedNodes = new HashSet<Node>();
+
+    //set while this class is itself rearranging the tree for output
+    private boolean suspendTracking = false;
+
+    private long lastSaveBytes = 0;
+
     public DOMFile(File path, Document doc) {
         super(doc, doc.getDocumentElement(), null);
         associatedFile = path;
+        removeIndentation(fEle);
+        if (doc instanceof EventTarget) {
+            EventTarget target = (EventTarget) doc;
+            target.addEventListener("DOMSubtreeModified", new EventListener() {
+                public void handleEvent(Event evt) {
+                    if (!suspendTracking) {
+                        changed = true;
+                        changedLevels.add((Node) evt.getTarget());
+                    }
+                }
+            }, false);
+            target.addEventListener("DOMNodeInserted", new EventListener() {
+                public void handleEvent(Event evt) {
+                    if (!suspendTracking) {
+                        changed = true;
+                        insertedNodes.add((Node) evt.getTarget());
+                    }
+                }
+            }, false);
+            //a document that was read from the file matches it, a new document does not
+            changed = !path.exists();
+        }
+    }
+
+    /**
+     * Tells whether the document has been modified since it was read
+     * from the file, or since the last save.
+     */
+    public boolean hasUnsavedChanges() {
+        return changed || !associatedFile.exists();
+    }
+
+    /**
+     * Force the next save to write the file, even if no change to the
+     * document has been detected.
+     */
+    public void markChanged() {
+        changed = true;
+        insertedNodes.add(fDoc.getDocumentElement());
+    }
+
+    /**
+     * The number of bytes written to disk by the last save.
+     * Zero if the last save found nothing to write.
+     */
+    public long getLastSaveBytes() {
+        return lastSaveBytes;
     }
 
     public File getFilePath() {
@@ -72,10 +145,18 @@ public class DOMFile extends DOMFace {
         }
     }
 
+    /**
+     * Writes the document to the file, but only if something has changed.
+     * Only the subtrees that were changed are sorted before writing.
+     */
     public void save() throws Exception {
         try {
-            reformatXML();
-            DOMUtils.writeDomToFile(fDoc, associatedFile);
+            if (!hasUnsavedChanges()) {
+                lastSaveBytes = 0;
+                return;
+            }
+            reformatChangedXML();
+            writeAndClearChanges();
         }
         catch (Exception e) {
             throw new NGException("nugen.exception.unable.to.write.file",
@@ -85,7 +166,7 @@ public class DOMFile extends DOMFace {
 
     public void saveNoFormatting() throws Exception {
         try {
-            DOMUtils.writeDomToFile(fDoc, associatedFile);
+            writeAndClearChanges();
         }
         catch (Exception e) {
             throw new NGException("nugen.exception.unable.to.write.file",
@@ -96,7 +177,7 @@ public class DOMFile extends DOMFace {
     public void saveAs(File newFile) throws Exception {
         try {
             associatedFile = newFile;
-            DOMUtils.writeDomToFile(fDoc, associatedFile);
+            writeAndClearChanges();
         }
         catch (Exception e) {
             throw new NGException("nugen.exception.unable.to.write.file",
@@ -104,96 +185,222 @@ public class DOMFile extends DOMFace {
         }
     }
 
+    private void writeAndClearChanges() throws Exception {
+        DOMUtils.writeDomToFile(fDoc, associatedFile);
+        lastSaveBytes = associatedFile.length();
+        clearChanges();
+    }
+
+    private void clearChanges() {
+        changed = false;
+        changedLevels.clear();
+        insertedNodes.clear();
+    }
+
+    /**
+     * Prepares the document exactly as save would, and returns a private
+     * copy of it, for something else to write to the file later.  The copy
+     * is independent of this object, so it can be written by another thread
+     * while this object continues to be used and modified.
+     *
+     * After this the document is considered saved, so the caller takes
+     * responsibility for writing the copy.  Returns null if there are no
+     * changes since the last save or snapshot.
+     */
+    public Document takeSnapshot() throws Exception {
+        if (!hasUnsavedChanges()) {
+            return null;
+        }
+        reformatChangedXML();
+        boolean wasSuspended = suspendTracking;
+        suspendTracking = true;
+        try {
+            Document copy = (Document) fDoc.cloneNode(true);
+            clearChanges();
+            return copy;
+        }
+        finally {
+            suspendTracking = wasSuspended;
+        }
+    }
+
+    /**
+     * A copy of the document as it is now, independent of this object.
+     * Unlike takeSnapshot this does not change what is considered saved.
+     */
+    public Document copyDocument() {
+        boolean wasSuspended = suspendTracking;
+        suspendTracking = true;
+        try {
+            return (Document) fDoc.cloneNode(true);
+        }
+        finally {
+            suspendTracking = wasSuspended;
+        }
+    }
+
+    /**
+     * Sort the entire document.
+     */
     public void reformatXML() throws Exception {
         Element root = fDoc.getDocumentElement();
-        indentChildren(root, "\n");
+        boolean wasSuspended = suspendTracking;
+        suspendTracking = true;
+        try {
+            sortChildren(root);
+        }
+        finally {
+            suspendTracking = wasSuspended;
+        }
     }
 
-    private void indentChildren(Element parent, String indent) throws Exception {
-        NodeList childNdList = parent.getChildNodes();
-        String newIndent = indent + "  ";
+    /**
+     * Sort only the parts of the document that changed since the last save.
+     * Elements that were inserted are sorted completely.  Elements whose
+     * children changed get that one level re-sorted.  Everything else is
+     * left alone, except to walk down to the changed parts.  Results are the
+     * same as reformatXML as long as the file was sorted when read.
+     */
+    private void reformatChangedXML() throws Exception {
+        Element root = fDoc.getDocumentElement();
+        if (insertedNodes.contains(root)) {
+            reformatXML();
+            return;
+        }
 
-        // first scan to see if there are child Elements, or just text
-        boolean hasChildElements = false;
-        for (int i = 0; i < childNdList.getLength(); i++) {
-            Node n = childNdList.item(i);
-            if (n == null) {
-                continue; // there are strange cases where it can be null
+        //collect all the elements on the path from root to a change
+        Set<Node> onChangedPath = new HashSet<Node>();
+        addPathsToRoot(changedLevels, root, onChangedPath);
+        addPathsToRoot(insertedNodes, root, onChangedPath);
+        if (!onChangedPath.contains(root)) {
+            return;
+        }
+
+        boolean wasSuspended = suspendTracking;
+        suspendTracking = true;
+        try {
+            sortChangedChildren(root, onChangedPath);
+        }
+        finally {
+            suspendTracking = wasSuspended;
+        }
+    }
+
+    /**
+     * For each node, walk up and record every element up to the root.  Nodes that
+     * have since been removed from the document never reach the root and are ignored.
+     */
+    private static void addPathsToRoot(Set<Node> changes, Element root, Set<Node> result) {
+        List<Node> path = new ArrayList<Node>();
+        for (Node n : changes) {
+            path.clear();
+            while (n != null && !result.contains(n)) {
+                path.add(n);
+                if (n == root) {
+                    break;
+                }
+                n = n.getParentNode();
             }
-            if (n.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
-                hasChildElements = true;
-                break;
+            if (n != null) {
+                //either reached the root or an element already known to be attached
+                result.addAll(path);
             }
         }
+    }
 
-        // if there are no elements, then don't modify anything ... it is a data
-        // value
-        if (!hasChildElements) {
+    private void sortChangedChildren(Element parent, Set<Node> onChangedPath) throws Exception {
+        if (insertedNodes.contains(parent)) {
+            sortChildren(parent);
             return;
         }
+        if (changedLevels.contains(parent)) {
+            sortOneLevel(parent);
+        }
+        Node child = parent.getFirstChild();
+        while (child != null) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && onChangedPath.contains(child)) {
+                sortChangedChildren((Element) child, onChangedPath);
+            }
+            child = child.getNextSibling();
+        }
+    }
+
+    private void sortChildren(Element parent) throws Exception {
+        List<Element> elementSet = sortOneLevel(parent);
 
-        // Since there are some elements, then we know this should be in this
-        // pattern:
-        //
-        // indentation text node
-        // element
-        // indentation text node
-        // element
-        // smaller indentation text node
-        //
-        // All other text nodes can be deleted. Each indentation node is a
-        // CR then n*2 spaces. The smaller indent is (n-1)*2 spaces.
-        // To accomplish this, all Elements are removed from the parent and
-        // placed
-        // in a vector for temporary holding, and all the existing text nodes
-        // are destroyed.
-        // Once the parent is empty, the correct indenting nodes are added
-        // between
-        // the Element nodes.
+        // recursively sort the children elements now
+        for (Element ele : elementSet) {
+            sortChildren(ele);
+        }
+    }
 
+    /**
+     * Sort the immediate children of the element, returning the
+     * child elements in their new order.
+     *
+     * If there are child Elements, then all text nodes between them are
+     * removed, and the elements are put back in sorted order.  Indentation
+     * is not stored in the DOM: the serializer indents on output.  If there
+     * are no child Elements, then this is a data value, and is left alone.
+     */
+    private List<Element> sortOneLevel(Element parent) throws Exception {
         List<Element> elementSet = new ArrayList<Element>();
-        for (int i = 0; i < childNdList.getLength(); i++) {
-            Node n = childNdList.item(i);
-            if (n == null) {
-                continue; // there are strange cases where it can be null
-            }
-            if (n.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE) {
+        Node n = parent.getFirstChild();
+        while (n != null) {
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
                 elementSet.add((Element) n);
             }
+            n = n.getNextSibling();
         }
-        {
-
-            Node nx = parent.getFirstChild();
-            while (nx != null) {
-                parent.removeChild(nx);
-                nx = parent.getFirstChild();
-            }
+        if (elementSet.size() == 0) {
+            return elementSet;
         }
 
+        Node nx = parent.getFirstChild();
+        while (nx != null) {
+            parent.removeChild(nx);
+            nx = parent.getFirstChild();
+        }
         if (parent.hasChildNodes()) {
             throw new ProgramLogicError(
                     "just cleaned out child nodes, but there seems to still be one.");
         }
-        childNdList = parent.getChildNodes();
-        if (childNdList.getLength() > 0) {
-            throw new ProgramLogicError(
-                    "just cleaned out child nodes, but there seems to still be one in childlist.");
-        }
 
         Collections.sort(elementSet, new DOMElementComparator());
 
         for (Element ele : elementSet) {
-            parent.appendChild(fDoc.createTextNode(newIndent));
             parent.appendChild(ele);
         }
+        return elementSet;
+    }
 
-        parent.appendChild(fDoc.createTextNode(indent));
-
-        // recursively indent the children elements now
-        for (Element ele : elementSet) {
-            indentChildren(ele, newIndent);
+    /**
+     * The serializer adds its own indentation, so the whitespace that was
+     * read from the file between elements has to be removed, otherwise every
+     * save would add another layer of it.  Text in elements that have no
+     * child elements is data and is never touched.
+     */
+    private static void removeIndentation(Element parent) {
+        boolean hasChildElements = false;
+        Node n = parent.getFirstChild();
+        while (n != null) {
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                hasChildElements = true;
+                removeIndentation((Element) n);
+            }
+            n = n.getNextSibling();
+        }
+        if (!hasChildElements) {
+            return;
+        }
+        n = parent.getFirstChild();
+        while (n != null) {
+            Node next = n.getNextSibling();
+            if (n.getNodeType() == Node.TEXT_NODE && n.getNodeValue().trim().length() == 0) {
+                parent.removeChild(n);
+            }
+            n = next;
         }
-
     }
 
     /**
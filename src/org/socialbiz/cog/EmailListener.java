@@ -25,11 +25,11 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.mail.Authenticator;
 import javax.mail.FetchProfile;
@@ -46,9 +46,35 @@ import javax.swing.text.html.HTMLEditorKit;
 import org.socialbiz.cog.exception.NGException;
 import org.socialbiz.cog.mail.MailFile;
 
+import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONException;
-
-public class EmailListener extends TimerTask{
+import com.purplehillsbooks.json.JSONObject;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.pop3.POP3Folder;
+
+/**
+ * Reads the inbound email once a minute and stores it in inboundMail.json
+ * in the user folder.
+ *
+ * Only messages that have not been read before are fetched.  Which ones
+ * have been read is kept in inboundMailState.json next to it, so this
+ * survives a restart of the server.  For POP3 that is the list of unique
+ * ids (UIDL) of messages read that are still on the server, which is
+ * needed for servers that keep messages even after they are deleted.
+ * For IMAP it is the highest UID read, and only messages above that are
+ * fetched.  All the new messages are written to inboundMail.json at once.
+ *
+ * The protocol is set in EmailNotification.properties:
+ *
+ * mail.listener.protocol   pop3 (default), imap, or imaps
+ * mail.listener.idle       true to have an IMAP server tell us about new
+ *                          mail as soon as it arrives, with IMAP IDLE,
+ *                          instead of waiting for the next minute
+ *
+ * The user and password are always mail.pop3.user and mail.pop3.password.
+ */
+public class EmailListener implements Runnable {
 
     private static EmailListener singletonListener = null;
 
@@ -62,7 +88,7 @@ public class EmailListener extends TimerTask{
     private File emailPropFile = null;
     private static Properties emailProperties = null;
     private AuthRequest ar;
-    private static HashSet<String> alreadyProcessed = new HashSet<String>();
+    private static IdleWatcher idleWatcher = null;
 
     //TODO: this can probably be eliminated, and replaced with the PAUSE/REINIT model
     public static boolean propertiesChanged = false;
@@ -79,8 +105,9 @@ public class EmailListener extends TimerTask{
      * This is an initialization routine, and should only be called once, when the
      * server starts up.  There are some error checks to make sure that this is the case.
      */
-     public static void initListener(Timer timer) throws Exception
+     public static void initListener(BackgroundScheduler scheduler) throws Exception
      {
+         stopIdleWatcher();
          singletonListener = new EmailListener();
          String user = emailProperties.getProperty("mail.pop3.user");
          if (user==null || user.length()==0) {
@@ -92,7 +119,46 @@ public class EmailListener extends TimerTask{
              System.out.println("Email listener: no configuration for mail.pop3.password");
              return;
          }
-         timer.scheduleAtFixedRate(singletonListener, 60000, EVERY_MINUTE);
+         scheduler.schedule(BackgroundScheduler.LANE_INBOUND_MAIL, "Inbound email",
+                 singletonListener, 60000, EVERY_MINUTE);
+
+         //the scheduled check keeps running as well, in case the IDLE connection is lost
+         if ("true".equals(emailProperties.getProperty("mail.listener.idle"))
+                 && getProtocol().startsWith("imap")) {
+             idleWatcher = singletonListener.new IdleWatcher();
+             idleWatcher.start();
+         }
+     }
+
+     /**
+      * Stops the IDLE thread, if there is one.  The check each minute is
+      * stopped with the scheduler that runs it.  Called when the server is
+      * paused and when the static variables are cleared, so that no thread
+      * is left reading mail with the old configuration.
+      */
+     public static void stopListener() {
+         stopIdleWatcher();
+     }
+
+     private static synchronized void stopIdleWatcher() {
+         if (idleWatcher!=null) {
+             idleWatcher.stopWatching();
+             idleWatcher = null;
+         }
+     }
+
+     /**
+      * pop3, imap, or imaps
+      */
+     private static String getProtocol() {
+         String protocol = null;
+         if (emailProperties!=null) {
+             protocol = emailProperties.getProperty("mail.listener.protocol");
+         }
+         if (protocol==null || protocol.trim().length()==0) {
+             return "pop3";
+         }
+         return protocol.trim().toLowerCase();
      }
 
      static long lastRunTime = 0;
@@ -103,18 +169,24 @@ public class EmailListener extends TimerTask{
      static long minPause = 45000;
      
      public void run() {
-         // When you computer goes to sleep for a while and wakes up, the Java
-         // system will send you all the events to make up for all the events it
-         // missed while asleep.   We don't really need that.  Every time we get an
-         // event we pick up all the email.  We expect a tick every minute, so
-         // ignore any timer ticks if it has not been at least 45 seconds.
+         // Every time we get a tick we pick up all the email, and the IDLE
+         // thread may have just done that.  We expect a tick every minute, so
+         // ignore any ticks if it has not been at least 45 seconds, or 5 minutes
+         // when the same failure keeps happening.
          long nowTime = System.currentTimeMillis();
          if (nowTime - lastRunTime < minPause) {
              //less than 45 seconds since last run, just exit quickly
              return;
          }
          lastRunTime = nowTime;
-         
+         readInbox(nowTime);
+     }
+
+     /**
+      * Called each minute from the scheduler, and from the IDLE thread when the
+      * server says that new mail arrived.  Only one read at a time.
+      */
+     private synchronized void readInbox(long nowTime) {
          // make sure that this method doesn't throw any exception
          try
          {
@@ -141,7 +213,7 @@ public class EmailListener extends TimerTask{
              ar.nowTime = nowTime;
 
              //now really attempt to read the email.  Errors after this point recorded in file
-             handlePOP3Folder();
+             handleInbox();
              
              //if you make it here, then no exception thrown, so clear out any cache that is there
              //and make the delay to be 45 seconds.
@@ -156,7 +228,7 @@ public class EmailListener extends TimerTask{
                  return;
              }
              lastException = e;
-             Exception failure = new Exception("Failure in the EmailListener TimerTask run method.", e);
+             Exception failure = new Exception("Failure in the EmailListener run method.", e);
              ar.logException("EMAIL LISTENER PROBLEM: ", failure);
              threadLastCheckException = failure;
              try {
@@ -222,7 +294,7 @@ public class EmailListener extends TimerTask{
                 session = getSession();
                 propertiesChanged = false;
             }
-            return session.getStore("pop3");
+            return session.getStore(getProtocol());
 
         }catch (MessagingException me) {
             throw new NGException("nugen.exception.email.unable.to.create.pop3store",null,me);
@@ -263,59 +335,42 @@ public class EmailListener extends TimerTask{
         }
     }
 
-    private void handlePOP3Folder() throws Exception {
-        Folder popFolder = null;
+    private void handleInbox() throws Exception {
+        Folder inbox = null;
         try {
 
-            popFolder = connectToMailServer();
+            inbox = connectToMailServer();
 
-            if (!popFolder.isOpen()) {
+            if (!inbox.isOpen()) {
                 throw new Exception("for some reason the 'INBOX' folder was not opened.");
             }
-            Message[] messages = popFolder.getMessages();
-            if (messages == null || messages.length == 0) {
-                // nothing to process.
-                return;
-            }
-
-            FetchProfile fp = new FetchProfile();
-            fp.add(UIDFolder.FetchProfileItem.UID);
-            popFolder.fetch(messages, fp);
 
-            for (int i = 0; i < messages.length; i++) {
-                Message message = messages[i];
+            File userFolder = ar.getCogInstance().getConfig().getUserFolderOrFail();
+            InboxState state = new InboxState(new File(userFolder, "inboundMailState.json"));
+            List<Message> newMessages = state.getNewMessages(inbox);
 
-                // most of the POP mail servers/providers does not support flags
-                // for other then delete
-                if (message.isSet(Flag.DELETED)) {
-                    continue;
-                }
+            if (newMessages.size()>0) {
+                List<Message> stored = storeInboundMsgs(userFolder, newMessages);
 
-                String signature = message.getSubject() + message.getSentDate();
-                if (alreadyProcessed.contains(signature)) {
-                    //skip processing of messages already seen
-                    continue;
+                //only after they are safely saved are they removed from the server
+                for (Message message : stored) {
+                    message.setFlag(Flag.DELETED, true);
                 }
-                alreadyProcessed.add(signature);
 
-                try {
-                    processEmailMsg(message);
-                }
-                catch (Exception e) {
-                    //failure of one message should not stop the processing of other email messages
-                    //this is kind of dangerous...should have a list of previously processed
-                    //messages someplace.
-                    ar.logException("Error Processing Message "+i, e);
-                }
+                //a message that could not be stored is not tried again either,
+                //the failure was logged and the message is left on the server
+                state.markRead(inbox, newMessages);
             }
+            state.save();
             lastFolderRead = System.currentTimeMillis();
 
         }catch (Exception e) {
             throw new NGException("nugen.exception.email.listner.thread.read.fail",null, e);
         }finally {
             try {
-                if(popFolder != null){
-                    popFolder.close(true);
+                if(inbox != null){
+                    inbox.close(true);
+                    inbox.getStore().close();
                 }
             } catch (Exception e) {
                 /* ignore this exception */
@@ -323,24 +378,248 @@ public class EmailListener extends TimerTask{
         }
     }
 
-    private void processEmailMsg(Message message) throws Exception {
-        try{
+    /**
+     * Stores all the messages with one read and one write of inboundMail.json,
+     * and returns the ones that were stored.
+     */
+    private List<Message> storeInboundMsgs(File userFolder, List<Message> messages) throws Exception {
+        File inboundMailPath = new File(userFolder, "inboundMail.json");
+        MailFile inboundMail = MailFile.readOrCreate(inboundMailPath, 3);
+        List<Message> stored = new ArrayList<Message>();
+        for (Message message : messages) {
+            try {
+                inboundMail.storeMessage(message);
+                stored.add(message);
+            }
+            catch (Exception e) {
+                //failure of one message should not stop the processing of other email messages
+                //May be in this case we should also send reply to sender stating that 'topic could not be created due to some reason'.
+                ar.logException("Error Processing Message "+message.getMessageNumber(),
+                        new NGException("nugen.exception.could.not.process.email", new Object[]{message.getSubject()},e));
+            }
+        }
+        if (stored.size()>0) {
+            inboundMail.save();
+        }
+        return stored;
+    }
+
+    /**
+     * Remembers which messages in the inbox have been read already.
+     * For IMAP this is the UIDVALIDITY of the inbox and the highest UID read.
+     * For POP3 this is the UIDL of each message read that is still on the
+     * server, so the list is never longer than the inbox.
+     *
+     * Public so that EmailListenerCheck can run it against a stub server.
+     */
+    public static class InboxState {
+        private File stateFile;
+        private JSONObject state;
+        private boolean changed = false;
+
+        //POP3 UIDs in the inbox now that were read before
+        private JSONArray stillThere = new JSONArray();
+
+        public InboxState(File _stateFile) throws Exception {
+            stateFile = _stateFile;
+            if (stateFile.exists()) {
+                state = JSONObject.readFromFile(stateFile);
+            }
+            else {
+                state = new JSONObject();
+            }
+        }
 
-            storeInboundMsg(message);
-            message.setFlag(Flag.DELETED, true);
+        public List<Message> getNewMessages(Folder inbox) throws Exception {
+            List<Message> newMessages = new ArrayList<Message>();
+            if (inbox instanceof UIDFolder) {
+                UIDFolder uidInbox = (UIDFolder) inbox;
+                long uidValidity = uidInbox.getUIDValidity();
+                if (uidValidity != state.optLong("uidValidity")) {
+                    //UIDs from before mean nothing now, everything is new
+                    state.put("uidValidity", uidValidity);
+                    state.put("lastUid", 0);
+                    changed = true;
+                }
+                long lastUid = state.optLong("lastUid");
+                Message[] messages = uidInbox.getMessagesByUID(lastUid+1, UIDFolder.LASTUID);
+                for (Message message : messages) {
+                    //the range always includes the last message, even if it is old
+                    if (message!=null && uidInbox.getUID(message)>lastUid
+                            && !message.isSet(Flag.DELETED)) {
+                        newMessages.add(message);
+                    }
+                }
+                return newMessages;
+            }
 
-        }catch (Exception e) {
-            //May be in this case we should also send reply to sender stating that 'topic could not be created due to some reason'.
-            throw new NGException("nugen.exception.could.not.process.email", new Object[]{message.getSubject()},e);
+            //POP3 has no way to ask for only the new ones, but the UIDs of
+            //all of them can be fetched with one command, and only the new
+            //messages themselves are read from the server
+            Message[] messages = inbox.getMessages();
+            if (messages.length==0) {
+                if (state.has("seenUids") && state.getJSONArray("seenUids").length()>0) {
+                    changed = true;
+                }
+                return newMessages;
+            }
+            FetchProfile fp = new FetchProfile();
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            inbox.fetch(messages, fp);
+
+            HashSet<String> seen = new HashSet<String>();
+            JSONArray seenUids = state.optJSONArray("seenUids");
+            if (seenUids!=null) {
+                for (int i=0; i<seenUids.length(); i++) {
+                    seen.add(seenUids.getString(i));
+                }
+            }
+            for (Message message : messages) {
+                // most of the POP mail servers/providers does not support flags
+                // for other then delete
+                if (message.isSet(Flag.DELETED)) {
+                    continue;
+                }
+                String uid = getPOP3UID(inbox, message);
+                if (seen.contains(uid)) {
+                    stillThere.put(uid);
+                }
+                else {
+                    newMessages.add(message);
+                }
+            }
+            if (seen.size()!=stillThere.length()) {
+                changed = true;
+            }
+            return newMessages;
+        }
+
+        public void markRead(Folder inbox, List<Message> messages) throws Exception {
+            if (inbox instanceof UIDFolder) {
+                UIDFolder uidInbox = (UIDFolder) inbox;
+                long lastUid = state.optLong("lastUid");
+                for (Message message : messages) {
+                    lastUid = Math.max(lastUid, uidInbox.getUID(message));
+                }
+                state.put("lastUid", lastUid);
+            }
+            else {
+                for (Message message : messages) {
+                    stillThere.put(getPOP3UID(inbox, message));
+                }
+            }
+            changed = true;
+        }
+
+        public void save() throws Exception {
+            if (!changed) {
+                return;
+            }
+            state.put("seenUids", stillThere);
+            state.writeToFile(stateFile);
+        }
+
+        /**
+         * A server without UIDL gives no UID, and then the subject and date
+         * are the best available.
+         */
+        private static String getPOP3UID(Folder inbox, Message message) throws Exception {
+            String uid = null;
+            if (inbox instanceof POP3Folder) {
+                uid = ((POP3Folder) inbox).getUID(message);
+            }
+            if (uid==null) {
+                uid = message.getSubject() + message.getSentDate();
+            }
+            return uid;
         }
     }
-    
-    private void storeInboundMsg(Message message) throws Exception {
-        File userFolder = ar.getCogInstance().getConfig().getUserFolderOrFail();
-        File inboundMailPath = new File(userFolder, "inboundMail.json");
-        MailFile inboundMail = MailFile.readOrCreate(inboundMailPath, 3);
-        inboundMail.storeMessage(message);
-        inboundMail.save();
+
+    /**
+     * Keeps a connection to an IMAP server open in IDLE, so the server tells
+     * us as soon as mail arrives, and then reads the inbox right away.  The
+     * connection has no read timeout, since it waits for the server.  If the
+     * connection fails it is opened again a minute later, and if the server
+     * does not support IDLE this just stops, leaving the scheduler to check
+     * once a minute.
+     */
+    private class IdleWatcher extends Thread {
+        private volatile boolean stopped = false;
+        private volatile Store store = null;
+
+        IdleWatcher() {
+            super("EmailListener IDLE");
+            setDaemon(true);
+        }
+
+        void stopWatching() {
+            stopped = true;
+            interrupt();
+            try {
+                Store s = store;
+                if (s!=null) {
+                    s.close();
+                }
+            }
+            catch (Exception e) {
+                /* ignore this exception */
+            }
+        }
+
+        public void run() {
+            while (!stopped) {
+                try {
+                    Properties idleProps = new Properties();
+                    idleProps.putAll(emailProperties);
+                    String protocol = getProtocol();
+                    idleProps.remove("mail."+protocol+".timeout");
+                    Session idleSession = Session.getInstance(idleProps, new EmailAuthenticator(
+                            emailProperties.getProperty("mail.pop3.user"),
+                            emailProperties.getProperty("mail.pop3.password")));
+                    store = idleSession.getStore(protocol);
+                    store.connect();
+                    if (!(store instanceof IMAPStore) || !((IMAPStore)store).hasCapability("IDLE")) {
+                        System.out.println("Email listener: server does not support IDLE, checking once a minute instead");
+                        return;
+                    }
+                    IMAPFolder inbox = (IMAPFolder) store.getFolder("INBOX");
+                    inbox.open(Folder.READ_ONLY);
+
+                    //pick up anything that arrived while not connected
+                    readInbox(System.currentTimeMillis());
+                    while (!stopped && inbox.isOpen()) {
+                        //returns when the server reports any change to the inbox
+                        inbox.idle(true);
+                        if (!stopped) {
+                            lastRunTime = System.currentTimeMillis();
+                            readInbox(lastRunTime);
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    if (!stopped) {
+                        System.out.println("Email listener: IDLE connection failed, will try again in a minute: "+e);
+                        try {
+                            Thread.sleep(EVERY_MINUTE);
+                        }
+                        catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+                finally {
+                    try {
+                        if (store!=null) {
+                            store.close();
+                        }
+                    }
+                    catch (Exception e) {
+                        /* ignore this exception */
+                    }
+                    store = null;
+                }
+            }
+        }
     }
 
     /**
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What files are in a workspace folder, and what version files are in its
+ * .cog folder, with their sizes and dates, kept in memory.
+ *
+ * Finding the attachments and versions of a workspace used to list the
+ * folders and check each file, again for every attachment.  On network
+ * storage each of those is a round trip.  Instead the two folders are
+ * listed once into an index, and all the attachment and version questions
+ * are answered from that.
+ *
+ * The index is listed again when it is older than folderIndexMaxAge
+ * seconds (default 60), when anything in the server changes the files
+ * (call fileChanged), and, when the Java VM has a file system watcher,
+ * as soon as the operating system reports a change in either folder.  The
+ * watcher can be turned off with folderIndexWatch=false, for example on
+ * network storage where the events do not arrive, and then the age limit
+ * alone keeps the index up to date.
+ *
+ * Indexes that have not been used for 30 minutes are dropped by a job in
+ * the maintenance lane.
+ */
+public class FolderIndex {
+
+    private static final long DEFAULT_MAX_AGE = 60000;
+    private static final long UNUSED_LIMIT = 30 * 60000;
+
+    private static ConcurrentHashMap<String, FolderIndex> allIndexes =
+            new ConcurrentHashMap<String, FolderIndex>();
+    private static long maxAge = DEFAULT_MAX_AGE;
+    private static Watcher watcher = null;
+
+    final File folder;
+    final File cogFolder;
+    private Snapshot snapshot = null;
+    private volatile boolean stale = true;
+    private volatile long lastUsed = System.currentTimeMillis();
+    final Set<Object> watchKeys = Collections.synchronizedSet(new HashSet<Object>());
+
+
+    public static synchronized void initialize(Cognoscenti cog) throws Exception {
+        clearAllStaticVars();
+        int maxAgeSeconds = DOMFace.safeConvertInt(cog.getConfig().getProperty("folderIndexMaxAge"));
+        if (maxAgeSeconds>0) {
+            maxAge = maxAgeSeconds * 1000L;
+        }
+        if (!"false".equals(cog.getConfig().getProperty("folderIndexWatch"))) {
+            try {
+                //java.nio.file is Java 7, look for it before loading the class that uses it
+                Class.forName("java.nio.file.WatchService");
+                Watcher newWatcher = (Watcher) Class.forName("org.socialbiz.cog.FolderWatcher")
+                        .getConstructor().newInstance();
+                newWatcher.start();
+                watcher = newWatcher;
+            }
+            catch (Throwable t) {
+                //no watcher on this Java VM or file system, the age limit will do
+                System.out.println("FOLDERINDEX: no file system watcher, using only the age limit: "+t);
+            }
+        }
+    }
+
+    public static synchronized void clearAllStaticVars() {
+        if (watcher!=null) {
+            watcher.shutdown();
+            watcher = null;
+        }
+        allIndexes.clear();
+        maxAge = DEFAULT_MAX_AGE;
+    }
+
+    /**
+     * Drops the indexes that have not been used for a while, so that the
+     * workspaces nobody is looking at are not kept or watched.
+     */
+    public static void initCleanup(BackgroundScheduler scheduler) throws Exception {
+        scheduler.schedule(BackgroundScheduler.LANE_MAINTENANCE, "Folder index cleanup", new Runnable() {
+            public void run() {
+                dropUnusedIndexes();
+            }
+        }, 300000, 300000);
+    }
+
+    static void dropUnusedIndexes() {
+        long limit = System.currentTimeMillis() - UNUSED_LIMIT;
+        for (FolderIndex index : allIndexes.values()) {
+            if (index.lastUsed < limit) {
+                allIndexes.remove(index.folder.getAbsolutePath());
+                Watcher w = watcher;
+                if (w!=null) {
+                    w.unwatch(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * The index for a workspace folder.  Made the first time it is asked
+     * for, and the folders are listed the first time it is used.
+     */
+    public static FolderIndex getIndex(File workspaceFolder) {
+        String key = workspaceFolder.getAbsolutePath();
+        FolderIndex index = allIndexes.get(key);
+        if (index==null) {
+            FolderIndex newIndex = new FolderIndex(workspaceFolder);
+            index = allIndexes.putIfAbsent(key, newIndex);
+            if (index==null) {
+                index = newIndex;
+                Watcher w = watcher;
+                if (w!=null) {
+                    w.watch(index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Call this after anything is written, renamed, or deleted in a
+     * workspace folder or its .cog folder, so that the next question is
+     * answered from a fresh listing.
+     */
+    public static void fileChanged(File file) {
+        File dir = file.getParentFile();
+        if (dir==null) {
+            return;
+        }
+        if (".cog".equals(dir.getName())) {
+            dir = dir.getParentFile();
+        }
+        FolderIndex index = allIndexes.get(dir.getAbsolutePath());
+        if (index!=null) {
+            index.invalidate();
+        }
+    }
+
+
+    private FolderIndex(File workspaceFolder) {
+        folder = workspaceFolder;
+        cogFolder = new File(workspaceFolder, ".cog");
+    }
+
+    /**
+     * The next question will list the folders again.
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    public boolean folderExists() {
+        return current().folderExists;
+    }
+
+    /**
+     * The file with exactly this name in the workspace folder, or null
+     */
+    public Entry getFile(String name) {
+        return current().mainByName.get(name);
+    }
+
+    /**
+     * The file with this name, ignoring case, in the workspace folder, or null
+     */
+    public Entry findFileIgnoreCase(String name) {
+        return current().mainByLowerName.get(name.toLowerCase());
+    }
+
+    /**
+     * Whether a file in the workspace folder, or a version file in the .cog
+     * folder, exists.  Other files are asked of the file system.
+     */
+    public boolean exists(File file) {
+        File dir = file.getParentFile();
+        if (folder.equals(dir)) {
+            return current().mainByName.containsKey(file.getName());
+        }
+        if (cogFolder.equals(dir) && file.getName().startsWith("att")) {
+            return current().versionNames.contains(file.getName());
+        }
+        return file.exists();
+    }
+
+    /**
+     * All the files and folders in the workspace folder
+     */
+    public List<Entry> getFiles() {
+        return current().mainFiles;
+    }
+
+    /**
+     * The version files of one attachment in the .cog folder, which are
+     * named "att{id}-{version}{extension}".
+     */
+    public List<Entry> getVersionFiles(String attachmentId) {
+        List<Entry> versions = current().versionsById.get(attachmentId);
+        if (versions==null) {
+            return Collections.emptyList();
+        }
+        return versions;
+    }
+
+    private synchronized Snapshot current() {
+        long now = System.currentTimeMillis();
+        lastUsed = now;
+        if (snapshot==null || stale || snapshot.readTime < now - maxAge) {
+            //cleared first, so that a change while listing makes it stale again
+            stale = false;
+            snapshot = new Snapshot(folder, cogFolder, now);
+        }
+        return snapshot;
+    }
+
+    void changeReported(boolean inCogFolder, String fileName) {
+        if (inCogFolder) {
+            //the workspace files are saved in the .cog folder all the time,
+            //only the version files matter here
+            if (fileName.startsWith("att")) {
+                stale = true;
+            }
+            return;
+        }
+        stale = true;
+        if (".cog".equals(fileName)) {
+            Watcher w = watcher;
+            if (w!=null) {
+                w.watch(this);
+            }
+        }
+    }
+
+
+    /**
+     * A file as it was when the folder was listed.
+     */
+    public static class Entry {
+        public final File file;
+        public final String name;
+        public final long size;
+        public final long lastModified;
+        public final boolean isDirectory;
+
+        Entry(File _file) {
+            file = _file;
+            name = _file.getName();
+            isDirectory = _file.isDirectory();
+            size = _file.length();
+            lastModified = _file.lastModified();
+        }
+    }
+
+    /**
+     * One listing of both folders.  Never changed after it is made, so it
+     * can be read by many threads at once.
+     */
+    private static class Snapshot {
+        final long readTime;
+        final boolean folderExists;
+        final List<Entry> mainFiles;
+        final HashMap<String, Entry> mainByName = new HashMap<String, Entry>();
+        final HashMap<String, Entry> mainByLowerName = new HashMap<String, Entry>();
+        final HashMap<String, List<Entry>> versionsById = new HashMap<String, List<Entry>>();
+        final HashSet<String> versionNames = new HashSet<String>();
+
+        Snapshot(File folder, File cogFolder, long now) {
+            readTime = now;
+            List<Entry> files = new ArrayList<Entry>();
+            File[] children = folder.listFiles();
+            folderExists = (children!=null);
+            if (children!=null) {
+                for (File child : children) {
+                    Entry entry = new Entry(child);
+                    files.add(entry);
+                    mainByName.put(entry.name, entry);
+                    String lower = entry.name.toLowerCase();
+                    if (!mainByLowerName.containsKey(lower)) {
+                        mainByLowerName.put(lower, entry);
+                    }
+                }
+            }
+            mainFiles = Collections.unmodifiableList(files);
+
+            String[] cogNames = cogFolder.list();
+            if (cogNames!=null) {
+                for (String cogName : cogNames) {
+                    if (!cogName.startsWith("att")) {
+                        continue;
+                    }
+                    versionNames.add(cogName);
+                    int dashPos = cogName.indexOf('-');
+                    if (dashPos<4) {
+                        continue;
+                    }
+                    String id = cogName.substring(3, dashPos);
+                    List<Entry> versions = versionsById.get(id);
+                    if (versions==null) {
+                        versions = new ArrayList<Entry>();
+                        versionsById.put(id, versions);
+                    }
+                    versions.add(new Entry(new File(cogFolder, cogName)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Listens for changes in the indexed folders.  The implementation is
+     * FolderWatcher, which uses java.nio.file, and is loaded by name only
+     * when the Java VM has a WatchService.
+     */
+    interface Watcher {
+        void start();
+        void watch(FolderIndex index);
+        void unwatch(FolderIndex index);
+        void shutdown();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.io.File;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Listens for changes in the folders of the FolderIndex objects.  Uses
+ * java.nio.file, so FolderIndex loads this class by name, and only on a
+ * Java VM that has it.
+ */
+public class FolderWatcher extends Thread implements FolderIndex.Watcher {
+    private final WatchService service;
+    private final ConcurrentHashMap<WatchKey, FolderIndex> indexByKey =
+            new ConcurrentHashMap<WatchKey, FolderIndex>();
+    private final Set<WatchKey> cogKeys = Collections.synchronizedSet(new HashSet<WatchKey>());
+    private volatile boolean stopped = false;
+
+    public FolderWatcher() throws Exception {
+        super("Folder Index Watcher");
+        setDaemon(true);
+        service = FileSystems.getDefault().newWatchService();
+    }
+
+    public void watch(FolderIndex index) {
+        register(index.folder, index, false);
+        if (index.cogFolder.exists()) {
+            register(index.cogFolder, index, true);
+        }
+    }
+
+    private void register(File dir, FolderIndex index, boolean isCog) {
+        try {
+            WatchKey key = dir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            indexByKey.put(key, index);
+            if (isCog) {
+                cogKeys.add(key);
+            }
+            index.watchKeys.add(key);
+        }
+        catch (Exception e) {
+            //the age limit still keeps this folder up to date
+            System.out.println("FOLDERINDEX: unable to watch "+dir+": "+e);
+        }
+    }
+
+    public void unwatch(FolderIndex index) {
+        synchronized (index.watchKeys) {
+            for (Object key : index.watchKeys) {
+                ((WatchKey)key).cancel();
+                indexByKey.remove(key);
+                cogKeys.remove(key);
+            }
+            index.watchKeys.clear();
+        }
+    }
+
+    public void run() {
+        while (!stopped) {
+            WatchKey key;
+            try {
+                key = service.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            catch (ClosedWatchServiceException e) {
+                return;
+            }
+            FolderIndex index = indexByKey.get(key);
+            boolean isCog = cogKeys.contains(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (index==null) {
+                    continue;
+                }
+                if (event.kind()==StandardWatchEventKinds.OVERFLOW || event.context()==null) {
+                    index.invalidate();
+                }
+                else {
+                    index.changeReported(isCog, event.context().toString());
+                }
+            }
+            if (!key.reset()) {
+                //the folder is gone
+                indexByKey.remove(key);
+                cogKeys.remove(key);
+                if (index!=null) {
+                    index.watchKeys.remove(key);
+                    index.invalidate();
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        stopped = true;
+        try {
+            service.close();
+        }
+        catch (Exception e) {
+            System.out.println("FOLDERINDEX: error closing the watcher: "+e);
+        }
+        interrupt();
+    }
+}
@@ -21,9 +21,11 @@
 package org.socialbiz.cog;
 
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.socialbiz.cog.exception.NGException;
 import org.socialbiz.cog.exception.ProgramLogicError;
@@ -746,6 +748,89 @@ history.task.subtask.add    113
         Collections.sort(list, new HistoryRecord.HistoryContextComparator());
     }
 
+    /**
+     * The newest count records of the list, newest first, without sorting
+     * the whole list.  Records with the same time are in order of id.
+     *
+     * If afterId is not null, only the records that come after the record
+     * with afterTime and afterId in that order are considered (older ones,
+     * or as old with a larger id), which is how the history is read a page
+     * at a time.
+     */
+    public static List<HistoryRecord> selectNewest(List<HistoryRecord> list, int count,
+            long afterTime, String afterId) throws Exception
+    {
+        PriorityQueue<Stamped> oldestOnTop = new PriorityQueue<Stamped>(count+1,
+                Collections.reverseOrder(NEWEST_FIRST));
+        Stamped after = null;
+        if (afterId!=null) {
+            after = new Stamped(afterTime, afterId, null);
+        }
+        for (HistoryRecord rec : list) {
+            Stamped one = new Stamped(rec.getTimeStamp(), rec.getId(), rec);
+            if (after!=null && NEWEST_FIRST.compare(one, after)<=0) {
+                continue;
+            }
+            if (oldestOnTop.size()<count) {
+                oldestOnTop.add(one);
+            }
+            else if (count>0 && NEWEST_FIRST.compare(one, oldestOnTop.peek())<0) {
+                oldestOnTop.poll();
+                oldestOnTop.add(one);
+            }
+        }
+        List<Stamped> found = new ArrayList<Stamped>(oldestOnTop);
+        Collections.sort(found, NEWEST_FIRST);
+        List<HistoryRecord> ret = new ArrayList<HistoryRecord>();
+        for (Stamped one : found) {
+            ret.add(one.rec);
+        }
+        return ret;
+    }
+
+    /**
+     * The record with the latest time, or null if the list is empty.
+     * Of records with the same time, the first one.
+     */
+    public static HistoryRecord findLatest(List<HistoryRecord> list) throws Exception
+    {
+        HistoryRecord latest = null;
+        long latestTime = 0;
+        for (HistoryRecord rec : list) {
+            long time = rec.getTimeStamp();
+            if (latest==null || time>latestTime) {
+                latest = rec;
+                latestTime = time;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * The time is read from the DOM only once for each record.
+     */
+    private static class Stamped
+    {
+        final long time;
+        final String id;
+        final HistoryRecord rec;
+
+        Stamped(long time, String id, HistoryRecord rec) {
+            this.time = time;
+            this.id = id;
+            this.rec = rec;
+        }
+    }
+
+    private static final Comparator<Stamped> NEWEST_FIRST = new Comparator<Stamped>() {
+        public int compare(Stamped o1, Stamped o2) {
+            if (o1.time != o2.time) {
+                return (o1.time > o2.time) ? -1 : 1;
+            }
+            return o1.id.compareTo(o2.id);
+        }
+    };
+
 
 
     public static class HistoryTimeStampComparator implements Comparator<HistoryRecord>
@@ -850,7 +935,8 @@ history.task.subtask.add    113
         JSONObject user = ale.getJSON();
         UserProfile uProf = ale.getUserProfile();
         if (uProf!=null) {
-            user.put("image", uProf.getImage());
+            //shown as a small icon, so a thumbnail when there is one
+            user.put("image", ImageThumbnails.getUserImage(uProf.getImage(), 32));
         }
         else {
             user.put("image","unknown.jpg");
@@ -21,8 +21,11 @@
 package org.socialbiz.cog;
 
 
+import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 
 import javax.swing.text.MutableAttributeSet;
 import javax.swing.text.html.HTML;
@@ -116,18 +119,26 @@ public class HtmlToWikiConverter {
      */
     public static String htmlToWiki(String unused,String htmlValue) throws Exception {
         //HtmlToWikiConverter.baseURL = baseURL;
-        // There was some problem saving &nbsp; in XML file so replaced it with
-        // the space.
-        htmlValue = htmlValue.replaceAll( "&nbsp;", " " ).replaceAll( "\r", "" );
+        StringWriter sw = new StringWriter(htmlValue.length()/2 + 16);
+        htmlToWiki(new StringReader(htmlValue), sw);
+        return sw.toString();
+    }
 
-        Reader reader = new StringReader( htmlValue );
+    /**
+     * Streaming version: reads HTML from the reader and writes the wiki text
+     * to the writer, without ever holding the whole document as a string.
+     * Output is the same as the string version, including that leading and
+     * trailing white space is trimmed.  The reader is not closed.
+     */
+    public static void htmlToWiki(Reader htmlIn, Writer wikiOut) throws Exception {
+        // There was some problem saving &nbsp; in XML file so replaced it with
+        // the space.  Carriage returns are dropped as well.
+        Reader reader = new NbspFilterReader(htmlIn);
         HTMLEditorKit.Parser parser = new ParserDelegator();
-        HTMLParser htmlParser = new HTMLParser();
+        TrimmedWikiWriter wikiText = new TrimmedWikiWriter(wikiOut);
+        HTMLParser htmlParser = new HTMLParser(wikiText);
         parser.parse( reader, htmlParser, true );
-        reader.close();
-        String wikiValue = htmlParser.wikiText.toString();
-        wikiValue= wikiValue.trim();
-        return wikiValue;
+        wikiText.finish();
     }
 
 }
@@ -155,15 +166,23 @@ class HTMLParser extends HTMLEditorKit.ParserCallback {
     private boolean prepareItal = false;
     private boolean prepareLineFeed = false;
 
-    //TODO: convert this to use a stream instead if a string buffer
-    StringBuilder wikiText = new StringBuilder();
+    private TrimmedWikiWriter wikiText;
+
+    HTMLParser(TrimmedWikiWriter output) {
+        wikiText = output;
+    }
 
     public void handleText(char[] data, int pos)
     {
 
-        String tempStr = new String(data);
-        tempStr = tempStr.trim();
-        if (tempStr.length()==0)
+        boolean allWhite = true;
+        for (char ch : data) {
+            if (ch > ' ') {
+                allWhite = false;
+                break;
+            }
+        }
+        if (allWhite)
         {
             return;   //don't do any processing below because not non-white
         }
@@ -200,12 +219,8 @@ class HTMLParser extends HTMLEditorKit.ParserCallback {
             //this text is NOT in a link.  We need to escape dangerous
             //characters, and also to look for unlinked URLS for automatic
             //conversion to a link.
-            StringBuilder smallerBuffer = new StringBuilder();
-
-            //copy over -- don't escape here, do it lower down
-            for (char ch : data) {
-                smallerBuffer.append( ch );
-            }
+            //don't escape here, do it lower down
+            String smallerBuffer = new String(data);
 
             //now search for occurrences of http:// and https://
             int start = 0;
@@ -239,7 +254,7 @@ class HTMLParser extends HTMLEditorKit.ParserCallback {
         }
     }
 
-    private void copyWhileEscaping(StringBuilder dest, String input) {
+    private void copyWhileEscaping(TrimmedWikiWriter dest, String input) {
         //walk through and escape special characters that would
         //otherwise cause possible styling errors
         for (int i=0; i<input.length(); i++) {
@@ -472,3 +487,154 @@ class HTMLParser extends HTMLEditorKit.ParserCallback {
     }
 
 }
+
+
+/**
+ * Removes carriage returns, and replaces &nbsp; with a plain space, as the
+ * HTML is read.  Reads the underlying reader a block at a time, keeping
+ * enough characters to recognize an &nbsp; that spans two blocks.
+ */
+class NbspFilterReader extends Reader {
+
+    private Reader in;
+    private char[] buf = new char[8192];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    NbspFilterReader(Reader source) {
+        in = source;
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int count = 0;
+        while (count < len) {
+            if (limit - pos < 6 && !eof) {
+                fill();
+            }
+            if (pos >= limit) {
+                break;
+            }
+            char ch = buf[pos];
+            if (ch == '\r') {
+                pos++;
+                continue;
+            }
+            if (ch == '&' && limit - pos >= 6 && buf[pos+1] == 'n' && buf[pos+2] == 'b'
+                    && buf[pos+3] == 's' && buf[pos+4] == 'p' && buf[pos+5] == ';') {
+                cbuf[off + count++] = ' ';
+                pos += 6;
+                continue;
+            }
+            cbuf[off + count++] = ch;
+            pos++;
+        }
+        if (count == 0 && len > 0) {
+            return -1;
+        }
+        return count;
+    }
+
+    private void fill() throws IOException {
+        int remaining = limit - pos;
+        System.arraycopy(buf, pos, buf, 0, remaining);
+        pos = 0;
+        limit = remaining;
+        while (limit < 6 || limit == remaining) {
+            int amt = in.read(buf, limit, buf.length - limit);
+            if (amt < 0) {
+                eof = true;
+                return;
+            }
+            limit += amt;
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
+
+/**
+ * The destination of the wiki text produced by HTMLParser.  The parser
+ * callbacks can not throw IOException, so a failure to write is held and
+ * thrown from finish.  Leading and trailing white space is trimmed (the same
+ * characters as String.trim) by holding back white space until it is known
+ * that more non-white text follows.
+ */
+class TrimmedWikiWriter {
+
+    private Writer out;
+    private boolean started = false;
+    private StringBuilder pendingWhite = new StringBuilder();
+    private IOException failure = null;
+
+    TrimmedWikiWriter(Writer dest) {
+        out = dest;
+    }
+
+    void append(char ch) {
+        if (ch <= ' ') {
+            if (started) {
+                pendingWhite.append(ch);
+            }
+            return;
+        }
+        try {
+            if (pendingWhite.length() > 0) {
+                out.write(pendingWhite.toString());
+                pendingWhite.setLength(0);
+            }
+            out.write(ch);
+            started = true;
+        }
+        catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    void append(String str) {
+        //find the last non-white character, everything after it is held back
+        int last = str.length() - 1;
+        while (last >= 0 && str.charAt(last) <= ' ') {
+            last--;
+        }
+        if (last < 0) {
+            if (started) {
+                pendingWhite.append(str);
+            }
+            return;
+        }
+        int first = 0;
+        if (!started) {
+            while (str.charAt(first) <= ' ') {
+                first++;
+            }
+        }
+        try {
+            if (pendingWhite.length() > 0) {
+                out.write(pendingWhite.toString());
+                pendingWhite.setLength(0);
+            }
+            out.write(str, first, last + 1 - first);
+            started = true;
+        }
+        catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (last < str.length() - 1) {
+            pendingWhite.append(str, last + 1, str.length());
+        }
+    }
+
+    void finish() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        out.flush();
+    }
+}
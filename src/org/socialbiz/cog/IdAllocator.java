@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.socialbiz.cog.exception.ProgramLogicError;
+
+/**
+* Keeps track of the four digit ids in use within a single container
+* (workspace, site, or user page) so that a new unique id can be handed
+* out without scanning every record in the container.
+*
+* The container builds one of these when the first id is requested,
+* seeding it with all the ids that already exist, and then every id
+* handed out is marked as used.  Elements that are physically removed
+* can release their id.
+*
+* Synchronization is on the allocator object, so that allocating an id
+* in one workspace never waits for another workspace.
+*/
+public class IdAllocator
+{
+    private static final int ID_SPACE = 10000;
+
+    private final BitSet used = new BitSet(ID_SPACE);
+    private int usedCount = 0;
+
+    public IdAllocator() {
+    }
+
+    /**
+    * Construct an allocator already seeded with the ids in the list.
+    * Values that are not four digit ids are ignored.
+    */
+    public IdAllocator(List<String> existingIds) {
+        for (String id : existingIds) {
+            markUsed(id);
+        }
+    }
+
+    /**
+    * Record that the id is in use.  Has no effect if it is not
+    * a four digit id, or if already marked.
+    */
+    public synchronized void markUsed(String id) {
+        int val = fourDigitValue(id);
+        if (val>=0 && !used.get(val)) {
+            used.set(val);
+            usedCount++;
+        }
+    }
+
+    /**
+    * Make an id available for reuse.  Only call this when the element
+    * with that id has actually been removed from the container.
+    */
+    public synchronized void release(String id) {
+        int val = fourDigitValue(id);
+        if (val>=0 && used.get(val)) {
+            used.clear(val);
+            usedCount--;
+        }
+    }
+
+    public synchronized boolean isUsed(String id) {
+        int val = fourDigitValue(id);
+        return (val>=0 && used.get(val));
+    }
+
+    public synchronized int size() {
+        return usedCount;
+    }
+
+    /**
+    * Get a four digit numeric id which is not already in use, and mark
+    * it as used.  Starting point is time based (as before) so that ids
+    * continue to look random, and the probe sequence is the same as the
+    * one used by IdGenerator.generateFourDigit.
+    */
+    public synchronized String allocate() throws Exception {
+        if (usedCount>=ID_SPACE) {
+            throw new ProgramLogicError("All "+ID_SPACE+" four digit ids are in use in this container");
+        }
+        int seed = (int) (System.currentTimeMillis() % ID_SPACE);
+        int spin = seed;
+        int probes = 0;
+        while (used.get(seed)) {
+            if (++probes > ID_SPACE) {
+                //the spin sequence does not visit every slot, so when the
+                //space is nearly full just take the next free slot
+                seed = used.nextClearBit(0);
+                break;
+            }
+            seed = (seed+spin)%ID_SPACE;
+            spin++;
+        }
+        used.set(seed);
+        usedCount++;
+        return IdGenerator.fourDigitConvert(seed);
+    }
+
+    /**
+    * Four digit ids are written least significant digit first
+    * (see IdGenerator.fourDigitConvert) so convert back the same way.
+    * Returns -1 for anything that is not exactly four digits.
+    */
+    private static int fourDigitValue(String id) {
+        if (id==null || id.length()!=4) {
+            return -1;
+        }
+        int val = 0;
+        for (int i=3; i>=0; i--) {
+            char ch = id.charAt(i);
+            if (ch<'0' || ch>'9') {
+                return -1;
+            }
+            val = val*10 + (ch-'0');
+        }
+        return val;
+    }
+}
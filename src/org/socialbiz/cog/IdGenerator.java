@@ -67,33 +67,26 @@ public class IdGenerator
     * current context (on a page, or for a user page, whatever)
     * Generated four digit value will be random, and will not
     * be oneof the values in the vector.
+    *
+    * This builds a throw-away IdAllocator from the list every time.
+    * Containers that hand out many ids should keep their own
+    * IdAllocator instead.  No global lock is needed because the
+    * list belongs to the caller.
     */
-    public synchronized static String generateFourDigit(List<String> existingIds)
+    public static String generateFourDigit(List<String> existingIds)
         throws Exception
     {
-        int seed = (int) (System.currentTimeMillis() % 10000);
-        int spin = seed;
-        String id = fourDigitConvert(seed);
-        while (idAlreadyExists(existingIds, id))
-        {
-            seed = (seed+spin)%10000;
-            spin++;
-            id = fourDigitConvert(seed);
-        }
-        existingIds.add(id);  //assume it gets used, no harm
-        return id;
-    }
-
-    private static boolean idAlreadyExists(List<String> existingIds, String currentId) {
-        if (existingIds == null) {
-            return false;
-        }
-        for (String anId : existingIds) {
-            if (anId.equals(currentId)) {
-                return true;
+        IdAllocator allocator = new IdAllocator();
+        if (existingIds != null) {
+            for (String anId : existingIds) {
+                allocator.markUsed(anId);
             }
         }
-        return false;
+        String id = allocator.allocate();
+        if (existingIds != null) {
+            existingIds.add(id);  //assume it gets used, no harm
+        }
+        return id;
     }
 
     public static String fourDigitConvert(int id)
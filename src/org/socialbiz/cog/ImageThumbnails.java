@@ -0,0 +1,569 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Makes small copies of the images that are shown small: the user
+ * photos (avatars) and the image attachments in the document lists, so
+ * that a page with many of them does not download every image at full
+ * size.  Each image gets a JPEG thumbnail in each of the SIZES.
+ *
+ * User photos are in the 'users' folder of the web application, and
+ * their thumbnails go in 'users/thumbs', named with the user image name,
+ * the start of a SHA-1 hash of the photo, and the size, for example
+ * 'thumbs/ABCDEFG-1a2b3c4d5e6f-32.jpg'.  A new photo gets a new name, so
+ * NGFilter lets browsers keep these for a year.  The thumbnails are made
+ * in the "thumbnails" lane of the BackgroundScheduler when the photo is
+ * uploaded.  For a photo that
+ * does not have them yet, getUserImage returns the full photo and starts
+ * making them.
+ *
+ * Attachment thumbnails are named with the document id and version.  A
+ * version of a document never changes, so these can be kept for a year
+ * as well.  They go in "thumbnailFolder", or a folder in the system temp
+ * folder if that is not set, are made in the background when an image
+ * is uploaded, and made when asked for if they are not there.
+ *
+ * Avatars are cut to a square from the middle, attachment thumbnails
+ * keep the shape of the image and fit inside the square.  An image with
+ * more than MAX_PIXELS is not read at all, since the whole of it would
+ * have to be in memory, and gets no thumbnails.
+ */
+public class ImageThumbnails {
+
+    public static final int[] SIZES = {32, 64, 128};
+
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".gif", ".bmp"};
+
+    //about 100MB once read, larger than any photo needs to be
+    private static final long MAX_PIXELS = 25000000L;
+
+    private static BackgroundScheduler scheduler = null;
+    private static File userImageFolder = null;
+    private static File thumbnailFolder = null;
+
+    //image name -> the thumbnails that were made for it
+    private static ConcurrentHashMap<String, UserThumbs> userThumbs =
+            new ConcurrentHashMap<String, UserThumbs>();
+
+    //path of the file being made or waiting to be made, to avoid making it twice
+    private static ConcurrentHashMap<String, Object> inProgress =
+            new ConcurrentHashMap<String, Object>();
+
+
+    /**
+     * The thumbnails made for one user photo, good as long as the photo
+     * file has the same date and size.
+     */
+    private static class UserThumbs {
+        final String baseName;
+        final String hash;
+        final long fileTime;
+        final long fileSize;
+        //the photo could not be read as an image
+        final boolean failed;
+
+        UserThumbs(String baseName, String hash, File source, boolean failed) {
+            this.baseName = baseName;
+            this.hash = hash;
+            this.fileTime = source.lastModified();
+            this.fileSize = source.length();
+            this.failed = failed;
+        }
+
+        boolean isFor(File source) {
+            return source.lastModified() == fileTime && source.length() == fileSize;
+        }
+
+        String getName(int size) {
+            return baseName + "-" + hash + "-" + size + ".jpg";
+        }
+    }
+
+
+    public static synchronized void initialize(Cognoscenti cog) throws Exception {
+        clearAllStaticVars();
+        userImageFolder = cog.getConfig().getFileFromRoot("users");
+        String folderPath = cog.getConfig().getProperty("thumbnailFolder");
+        if (folderPath!=null && folderPath.length()>0) {
+            thumbnailFolder = new File(folderPath);
+        }
+        else {
+            thumbnailFolder = new File(System.getProperty("java.io.tmpdir"), "cogThumbnails");
+        }
+        if (!thumbnailFolder.exists() && !thumbnailFolder.mkdirs()) {
+            throw new Exception("Unable to create the thumbnail folder "+thumbnailFolder);
+        }
+    }
+
+    /**
+     * Thumbnails are made in the background only when there is a scheduler.
+     * Without one the attachment thumbnails are still made when asked for.
+     */
+    public static synchronized void initBackground(BackgroundScheduler _scheduler) {
+        scheduler = _scheduler;
+    }
+
+    public static synchronized void clearAllStaticVars() {
+        scheduler = null;
+        userImageFolder = null;
+        thumbnailFolder = null;
+        userThumbs = new ConcurrentHashMap<String, UserThumbs>();
+        inProgress = new ConcurrentHashMap<String, Object>();
+    }
+
+    /**
+     * The smallest of the SIZES that is at least the given size, or the
+     * largest if none is.
+     */
+    public static int pickSize(int wanted) {
+        for (int size : SIZES) {
+            if (size >= wanted) {
+                return size;
+            }
+        }
+        return SIZES[SIZES.length-1];
+    }
+
+    public static boolean isImage(String fileName) {
+        if (fileName==null) {
+            return false;
+        }
+        String lcName = fileName.toLowerCase();
+        for (String ext : IMAGE_EXTENSIONS) {
+            if (lcName.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    //////////////////////////// USER PHOTOS ///////////////////////////////
+
+    /**
+     * The path, relative to the 'users' folder, of the thumbnail of a
+     * user photo that is at least the given size.  If there is no
+     * thumbnail yet, this returns the photo itself, and the thumbnails
+     * are made in the background for the next time.
+     */
+    public static String getUserImage(String imageName, int size) {
+        if (imageName==null || imageName.length()==0 || userImageFolder==null) {
+            return imageName;
+        }
+        File source = new File(userImageFolder, imageName);
+        UserThumbs thumbs = userThumbs.get(imageName);
+        if (thumbs!=null && thumbs.isFor(source)) {
+            if (thumbs.failed) {
+                return imageName;
+            }
+            return "thumbs/" + thumbs.getName(pickSize(size));
+        }
+        if (source.exists()) {
+            scheduleUserThumbnails(imageName);
+        }
+        return imageName;
+    }
+
+    /**
+     * Called when a user uploads a new photo.  The thumbnails of the old
+     * one are deleted, and the new ones made in the background.
+     */
+    public static void userImageChanged(String oldImageName, String newImageName) {
+        if (oldImageName!=null && oldImageName.length()>0) {
+            userThumbs.remove(oldImageName);
+            deleteOldUserThumbnails(oldImageName, null);
+        }
+        if (newImageName!=null && newImageName.length()>0) {
+            userThumbs.remove(newImageName);
+            scheduleUserThumbnails(newImageName);
+        }
+    }
+
+    private static void scheduleUserThumbnails(final String imageName) {
+        BackgroundScheduler theScheduler = scheduler;
+        if (theScheduler==null) {
+            return;
+        }
+        final String key = "user:" + imageName;
+        if (inProgress.putIfAbsent(key, Boolean.TRUE)!=null) {
+            return;
+        }
+        try {
+            theScheduler.submit(BackgroundScheduler.LANE_THUMBNAILS, "User photo thumbnails", new Runnable() {
+                public void run() {
+                    try {
+                        makeUserThumbnails(imageName);
+                    }
+                    catch (Exception e) {
+                        AuthDummy.serverBackgroundRequest().logException(
+                                "Unable to make the thumbnails of user image "+imageName, e);
+                    }
+                    finally {
+                        inProgress.remove(key);
+                    }
+                }
+            });
+        }
+        catch (Exception e) {
+            //the scheduler was shut down
+            inProgress.remove(key);
+        }
+    }
+
+    /**
+     * Makes the thumbnails of one photo in all sizes, unless they are
+     * already there, and deletes the ones of an earlier photo with the
+     * same name.
+     */
+    public static void makeUserThumbnails(String imageName) throws Exception {
+        File folder = userImageFolder;
+        if (folder==null) {
+            return;
+        }
+        File source = new File(folder, imageName);
+        if (!source.exists()) {
+            return;
+        }
+        String baseName = imageName;
+        int dotPos = baseName.lastIndexOf(".");
+        if (dotPos > 0) {
+            baseName = baseName.substring(0, dotPos);
+        }
+        String hash = hashOfFile(source);
+        File thumbFolder = new File(folder, "thumbs");
+        if (!thumbFolder.exists()) {
+            thumbFolder.mkdirs();
+        }
+        UserThumbs thumbs = new UserThumbs(baseName, hash, source, false);
+        BufferedImage image = null;
+        for (int size : SIZES) {
+            File thumbFile = new File(thumbFolder, thumbs.getName(size));
+            if (thumbFile.exists()) {
+                continue;
+            }
+            if (image==null) {
+                image = readImage(source);
+                if (image==null) {
+                    //not a kind of image that can be read, or too large, use the photo as it is
+                    userThumbs.put(imageName, new UserThumbs(baseName, hash, source, true));
+                    return;
+                }
+            }
+            writeThumbnail(image, size, true, thumbFile);
+        }
+        deleteOldUserThumbnails(imageName, hash);
+        userThumbs.put(imageName, thumbs);
+    }
+
+    /**
+     * Delete the thumbnails of the image name that do not have the given
+     * hash, or all of them if the hash is null.
+     */
+    private static void deleteOldUserThumbnails(String imageName, String keepHash) {
+        File folder = userImageFolder;
+        if (folder==null) {
+            return;
+        }
+        File[] children = new File(folder, "thumbs").listFiles();
+        if (children==null) {
+            return;
+        }
+        String baseName = imageName;
+        int dotPos = baseName.lastIndexOf(".");
+        if (dotPos > 0) {
+            baseName = baseName.substring(0, dotPos);
+        }
+        String prefix = baseName + "-";
+        for (File child : children) {
+            String name = child.getName();
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            //the rest is hash-size.jpg, a longer base name would have more dashes
+            String rest = name.substring(prefix.length());
+            int dashPos = rest.indexOf("-");
+            if (dashPos<0 || rest.indexOf("-", dashPos+1)>=0) {
+                continue;
+            }
+            if (keepHash==null || !rest.startsWith(keepHash + "-")) {
+                child.delete();
+            }
+        }
+    }
+
+
+    //////////////////////////// ATTACHMENTS ///////////////////////////////
+
+    /**
+     * The path, relative to the workspace, of the thumbnail of the latest
+     * version of an image attachment, or null if it is not an image.
+     */
+    public static String getAttachmentThumbnailPath(AttachmentRecord att, NGContainer ngc, int size)
+            throws Exception {
+        if (!"FILE".equals(att.getType()) || !isImage(att.getNiceName())) {
+            return null;
+        }
+        AttachmentVersion av = att.getLatestVersion(ngc);
+        if (av==null) {
+            return null;
+        }
+        return "thumb/" + pickSize(size) + "/" + att.getId() + "/" + av.getNumber() + ".jpg";
+    }
+
+    /**
+     * Called when a new version of an attachment was stored, to make its
+     * thumbnails in the background if it is an image.
+     */
+    public static void attachmentVersionAdded(String siteKey, String wsKey,
+            AttachmentRecord att, AttachmentVersion av) {
+        if (av==null || !isImage(att.getNiceName())) {
+            return;
+        }
+        BackgroundScheduler theScheduler = scheduler;
+        if (theScheduler==null) {
+            return;
+        }
+        final String fSite = siteKey;
+        final String fWs = wsKey;
+        final String docId = att.getId();
+        final AttachmentVersion fav = av;
+        try {
+            theScheduler.submit(BackgroundScheduler.LANE_THUMBNAILS, "Document thumbnails", new Runnable() {
+                public void run() {
+                    try {
+                        for (int size : SIZES) {
+                            getAttachmentThumbnail(fSite, fWs, docId, fav, size);
+                        }
+                    }
+                    catch (Exception e) {
+                        AuthDummy.serverBackgroundRequest().logException(
+                                "Unable to make the thumbnails of document "+docId+" in "+fSite+"/"+fWs, e);
+                    }
+                }
+            });
+        }
+        catch (Exception e) {
+            //the scheduler was shut down, they will be made when asked for
+        }
+    }
+
+    /**
+     * The thumbnail file of a version of an attachment, made now if it is
+     * not there.  Returns null if the version can not be read as an image,
+     * or has more than MAX_PIXELS.
+     * The caller should not hold the lock on the workspace while this
+     * runs.
+     */
+    public static File getAttachmentThumbnail(String siteKey, String wsKey, String docId,
+            AttachmentVersion av, int size) throws Exception {
+        File rootFolder = thumbnailFolder;
+        if (rootFolder==null) {
+            throw new Exception("ImageThumbnails has not been initialized");
+        }
+        size = pickSize(size);
+        File folder = new File(new File(rootFolder, siteKey), wsKey);
+        File thumbFile = new File(folder, docId + "-" + av.getNumber() + "-" + size + ".jpg");
+        if (thumbFile.exists()) {
+            return thumbFile;
+        }
+        //only one thread makes each thumbnail, others wait for it
+        Object lock = new Object();
+        Object existing = inProgress.putIfAbsent(thumbFile.getPath(), lock);
+        if (existing!=null) {
+            lock = existing;
+        }
+        synchronized (lock) {
+            try {
+                if (thumbFile.exists()) {
+                    return thumbFile;
+                }
+                if (!folder.exists()) {
+                    folder.mkdirs();
+                }
+                BufferedImage image;
+                InputStream is = av.getInputStream();
+                try {
+                    image = readImage(is);
+                }
+                finally {
+                    is.close();
+                }
+                if (image==null) {
+                    return null;
+                }
+                writeThumbnail(image, size, false, thumbFile);
+                return thumbFile;
+            }
+            finally {
+                inProgress.remove(thumbFile.getPath(), lock);
+            }
+        }
+    }
+
+
+    //////////////////////////// IMAGES ///////////////////////////////
+
+    /**
+     * Reads the image from a File or an InputStream.  The width and height
+     * are read from the header first, and an image with more than
+     * MAX_PIXELS is refused, so that one upload can not use up the memory
+     * of the server.  Returns null if the image is refused or the kind of
+     * image can not be read.
+     */
+    static BufferedImage readImage(Object input) throws Exception {
+        ImageInputStream iis = ImageIO.createImageInputStream(input);
+        if (iis==null) {
+            return null;
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (pixels > MAX_PIXELS) {
+                    System.out.println("THUMBNAILS: image of "+pixels+" pixels is too large for a thumbnail");
+                    return null;
+                }
+                return reader.read(0);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Scales the image to the size and writes it as JPEG to a temporary
+     * file, which is renamed at the end so that a half written thumbnail
+     * is never served.
+     */
+    private static void writeThumbnail(BufferedImage image, int size, boolean square, File thumbFile)
+            throws Exception {
+        BufferedImage thumb = scale(image, size, square);
+        File tempFile = new File(thumbFile.getParentFile(), thumbFile.getName() + ".~TMP");
+        if (!ImageIO.write(thumb, "jpg", tempFile)) {
+            throw new Exception("No JPEG writer available to write "+thumbFile);
+        }
+        if (thumbFile.exists()) {
+            thumbFile.delete();
+        }
+        if (!tempFile.renameTo(thumbFile)) {
+            tempFile.delete();
+            throw new Exception("Unable to rename "+tempFile+" to "+thumbFile);
+        }
+    }
+
+    /**
+     * Square: the middle square of the image, scaled to size x size.
+     * Otherwise the whole image scaled to fit in size x size.  Images that
+     * are already small enough are not made larger.  Transparent parts
+     * become white, since JPEG has no transparency.
+     */
+    static BufferedImage scale(BufferedImage image, int size, boolean square) {
+        int srcX = 0;
+        int srcY = 0;
+        int srcW = image.getWidth();
+        int srcH = image.getHeight();
+        if (square) {
+            int side = Math.min(srcW, srcH);
+            srcX = (srcW - side) / 2;
+            srcY = (srcH - side) / 2;
+            srcW = side;
+            srcH = side;
+        }
+        double factor = Math.min(1.0, Math.min((double) size / srcW, (double) size / srcH));
+        int destW = Math.max(1, (int) Math.round(srcW * factor));
+        int destH = Math.max(1, (int) Math.round(srcH * factor));
+
+        BufferedImage current = image.getSubimage(srcX, srcY, srcW, srcH);
+        //halving a step at a time looks much better than one big step
+        int curW = srcW;
+        int curH = srcH;
+        while (curW / 2 >= destW && curH / 2 >= destH) {
+            curW = curW / 2;
+            curH = curH / 2;
+            current = draw(current, curW, curH);
+        }
+        return draw(current, destW, destH);
+    }
+
+    private static BufferedImage draw(BufferedImage source, int width, int height) {
+        BufferedImage dest = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dest.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(source, 0, 0, width, height, null);
+        }
+        finally {
+            g.dispose();
+        }
+        return dest;
+    }
+
+    private static String hashOfFile(File file) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int amt = fis.read(buf);
+            while (amt > 0) {
+                md.update(buf, 0, amt);
+                amt = fis.read(buf);
+            }
+        }
+        finally {
+            fis.close();
+        }
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            sb.append(Integer.toHexString((digest[i] >> 4) & 0xF));
+            sb.append(Integer.toHexString(digest[i] & 0xF));
+        }
+        return sb.toString();
+    }
+}
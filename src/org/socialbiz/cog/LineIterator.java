@@ -19,6 +19,10 @@
  */
 
 package org.socialbiz.cog;
+
+import java.io.IOException;
+import java.io.Reader;
+
 /**
 * This class walks through a block of text, and pulls out each
 * line one at a time, handling return and line feed characters
@@ -32,6 +36,10 @@ package org.socialbiz.cog;
 *         //process the line here
 *     }
 * </pre>
+*
+* It can also be constructed on a Reader, in which case only one line
+* is held in memory at a time.  The lines returned are the same as for
+* a string with the same content.
 */
 public class LineIterator
 {
@@ -39,6 +47,12 @@ public class LineIterator
     String currentLine;   //buffered parsed line
     int    nextBegin;     //position in the original string
 
+    Reader reader;        //used instead of source when streaming
+    StringBuilder lineBuf;
+    char[] readBuf;
+    int    readPos;
+    int    readLimit;
+
     public LineIterator(String newSource)
     {
         source = newSource;
@@ -46,6 +60,14 @@ public class LineIterator
         nextLine();          //actually get first line in buffer
     }
 
+    public LineIterator(Reader newReader)
+    {
+        reader = newReader;
+        lineBuf = new StringBuilder();
+        readBuf = new char[8192];
+        nextLine();          //actually get first line in buffer
+    }
+
     public boolean moreLines()
     {
         return currentLine!=null;
@@ -58,6 +80,17 @@ public class LineIterator
         //each value can be gotten only once
         currentLine = null;
 
+        if (reader!=null)
+        {
+            try {
+                currentLine = readLineFromReader();
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Unable to read the next line of text", e);
+            }
+            return retVal;
+        }
+
         if (nextBegin<0)
         {
             return retVal;
@@ -105,4 +138,58 @@ public class LineIterator
         }
     }
 
+    /**
+    * Same rules as the string version: return characters at the start of
+    * a line are skipped, and there is no line after a final line feed.
+    * Returns null at the end of the text.
+    */
+    private String readLineFromReader() throws IOException
+    {
+        //skip the return characters at the start of the line
+        while (true)
+        {
+            if (readPos>=readLimit && !fillBuffer())
+            {
+                return null;
+            }
+            if (readBuf[readPos]!='\r')
+            {
+                break;
+            }
+            readPos++;
+        }
+        lineBuf.setLength(0);
+        while (true)
+        {
+            int start = readPos;
+            while (readPos<readLimit && readBuf[readPos]!='\n')
+            {
+                readPos++;
+            }
+            lineBuf.append(readBuf, start, readPos-start);
+            if (readPos<readLimit)
+            {
+                //skip the line feed
+                readPos++;
+                return lineBuf.toString();
+            }
+            if (!fillBuffer())
+            {
+                return lineBuf.toString();
+            }
+        }
+    }
+
+    private boolean fillBuffer() throws IOException
+    {
+        int amt = reader.read(readBuf, 0, readBuf.length);
+        while (amt==0)
+        {
+            amt = reader.read(readBuf, 0, readBuf.length);
+        }
+        readPos = 0;
+        readLimit = Math.max(amt, 0);
+        return amt>0;
+    }
+
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * Measurements of what the server is doing: counters, gauges, and
+ * histograms (timers are histograms of milliseconds).
+ *
+ * A class that measures something makes its metric once, in a static
+ * field, and then updates it:
+ *
+ *     private static final MetricsRegistry.Counter SENT =
+ *             MetricsRegistry.counter("cog_mail_sent_total", "Email messages sent");
+ *     ...
+ *     SENT.inc();
+ *
+ * Updating a metric is an atomic add, with no lock, so this can be used on
+ * the busiest paths.  Metrics live as long as the server VM, they are not
+ * cleared when the server is reinitialized, so counters only go up.
+ *
+ * The metrics are available to the super admin as JSON from
+ * /v/su/metrics.json, and in the Prometheus text format from
+ * /v/su/metrics.txt.  A Prometheus server can not log in, so if
+ * "metricsToken" is set in the config file, a request with that token as
+ * a bearer token (or as the "token" parameter) may read the text format.
+ */
+public class MetricsRegistry {
+
+    /**
+     * Bucket limits, in milliseconds, for timers
+     */
+    public static final long[] TIME_BUCKETS = new long[] {1, 2, 5, 10, 25, 50, 100, 250,
+            500, 1000, 2500, 5000, 10000, 30000};
+
+    /**
+     * Bucket limits, in bytes, for sizes
+     */
+    public static final long[] SIZE_BUCKETS = new long[] {1024, 4096, 16384, 65536, 262144,
+            1048576, 4194304, 16777216, 67108864};
+
+    private static ConcurrentSkipListMap<String, Metric> allMetrics =
+            new ConcurrentSkipListMap<String, Metric>();
+
+    static {
+        gauge("cog_jvm_heap_used_bytes", "Memory in use by the Java VM", new GaugeValue() {
+            public double getValue() {
+                Runtime rt = Runtime.getRuntime();
+                return rt.totalMemory() - rt.freeMemory();
+            }
+        });
+        gauge("cog_jvm_threads", "Live threads in the Java VM", new GaugeValue() {
+            public double getValue() {
+                return ManagementFactory.getThreadMXBean().getThreadCount();
+            }
+        });
+    }
+
+
+    /**
+     * Gets the counter with this name, making it if it does not exist.
+     */
+    public static Counter counter(String name, String help) {
+        return (Counter) register(new Counter(name, help));
+    }
+
+    /**
+     * Gets the timer with this name, making it if it does not exist.
+     * Record times in milliseconds, they are reported in seconds.
+     */
+    public static Histogram timer(String name, String help) {
+        return (Histogram) register(new Histogram(name, help, TIME_BUCKETS, 1000));
+    }
+
+    /**
+     * Gets the histogram of sizes with this name, making it if it does not exist.
+     */
+    public static Histogram sizes(String name, String help) {
+        return (Histogram) register(new Histogram(name, help, SIZE_BUCKETS, 1));
+    }
+
+    /**
+     * A gauge is asked for its value only when the metrics are read, so it
+     * can report something that is already kept elsewhere, like the length
+     * of a queue.  Registering again with the same name replaces the value
+     * source, so this can be called each time the server is initialized.
+     */
+    public static void gauge(String name, String help, GaugeValue value) {
+        Metric existing = allMetrics.get(name);
+        if (existing instanceof Gauge) {
+            ((Gauge)existing).value = value;
+            return;
+        }
+        register(new Gauge(name, help, value));
+    }
+
+    private static Metric register(Metric newMetric) {
+        Metric existing = allMetrics.putIfAbsent(newMetric.name, newMetric);
+        if (existing==null) {
+            return newMetric;
+        }
+        if (existing.getClass()!=newMetric.getClass()) {
+            throw new RuntimeException("Metric ("+newMetric.name+") is already registered as a different kind of metric");
+        }
+        return existing;
+    }
+
+    /**
+     * All the metrics, by name.
+     */
+    public static JSONObject getJSON() throws Exception {
+        JSONObject jo = new JSONObject();
+        for (Metric metric : allMetrics.values()) {
+            jo.put(metric.name, metric.getJSON());
+        }
+        return jo;
+    }
+
+    /**
+     * All the metrics in the Prometheus text exposition format (version 0.0.4)
+     */
+    public static void writePrometheus(Writer w) throws Exception {
+        for (Metric metric : allMetrics.values()) {
+            w.write("# HELP ");
+            w.write(metric.name);
+            w.write(" ");
+            w.write(metric.help.replace("\\", "\\\\").replace("\n", "\\n"));
+            w.write("\n# TYPE ");
+            w.write(metric.name);
+            w.write(" ");
+            w.write(metric.getType());
+            w.write("\n");
+            metric.writePrometheus(w);
+        }
+    }
+
+    private static String formatNumber(double val) {
+        if (val == Math.rint(val) && Math.abs(val) < 1e15) {
+            return Long.toString((long) val);
+        }
+        return Double.toString(val);
+    }
+
+
+    public abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String _name, String _help) {
+            name = _name;
+            help = _help;
+        }
+
+        abstract String getType();
+        abstract JSONObject getJSON() throws Exception;
+        abstract void writePrometheus(Writer w) throws Exception;
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter extends Metric {
+        private final AtomicLong count = new AtomicLong();
+
+        Counter(String _name, String _help) {
+            super(_name, _help);
+        }
+
+        public void inc() {
+            count.incrementAndGet();
+        }
+
+        public void add(long amount) {
+            count.addAndGet(amount);
+        }
+
+        public long get() {
+            return count.get();
+        }
+
+        String getType() {
+            return "counter";
+        }
+
+        JSONObject getJSON() throws Exception {
+            JSONObject jo = new JSONObject();
+            jo.put("type", getType());
+            jo.put("value", count.get());
+            return jo;
+        }
+
+        void writePrometheus(Writer w) throws Exception {
+            w.write(name + " " + count.get() + "\n");
+        }
+    }
+
+    /**
+     * Supplies the current value of a gauge.
+     */
+    public interface GaugeValue {
+        double getValue() throws Exception;
+    }
+
+    public static class Gauge extends Metric {
+        volatile GaugeValue value;
+
+        Gauge(String _name, String _help, GaugeValue _value) {
+            super(_name, _help);
+            value = _value;
+        }
+
+        double getValue() {
+            try {
+                return value.getValue();
+            }
+            catch (Exception e) {
+                return Double.NaN;
+            }
+        }
+
+        String getType() {
+            return "gauge";
+        }
+
+        JSONObject getJSON() throws Exception {
+            JSONObject jo = new JSONObject();
+            jo.put("type", getType());
+            double val = getValue();
+            if (!Double.isNaN(val)) {
+                jo.put("value", val);
+            }
+            return jo;
+        }
+
+        void writePrometheus(Writer w) throws Exception {
+            double val = getValue();
+            w.write(name + " " + (Double.isNaN(val) ? "NaN" : formatNumber(val)) + "\n");
+        }
+    }
+
+    /**
+     * Counts values into buckets, and keeps the count, sum, and largest.
+     * The buckets are fixed, so recording a value is a few atomic adds.
+     */
+    public static class Histogram extends Metric {
+        private final long[] limits;
+        private final double unit;
+        private final AtomicLongArray buckets;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String _name, String _help, long[] _limits, double _unit) {
+            super(_name, _help);
+            limits = _limits;
+            unit = _unit;
+            buckets = new AtomicLongArray(limits.length + 1);
+        }
+
+        public void record(long value) {
+            int i = 0;
+            while (i < limits.length && value > limits[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long oldMax = max.get();
+            while (value > oldMax && !max.compareAndSet(oldMax, value)) {
+                oldMax = max.get();
+            }
+        }
+
+        /**
+         * Records the milliseconds since the start time.
+         */
+        public void recordSince(long startMillis) {
+            record(System.currentTimeMillis() - startMillis);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        String getType() {
+            return "histogram";
+        }
+
+        JSONObject getJSON() throws Exception {
+            JSONObject jo = new JSONObject();
+            jo.put("type", getType());
+            long n = count.get();
+            jo.put("count", n);
+            jo.put("sum", sum.get());
+            jo.put("max", max.get());
+            if (n > 0) {
+                jo.put("avg", sum.get() / n);
+            }
+            JSONArray bucketList = new JSONArray();
+            for (int i=0; i<=limits.length; i++) {
+                JSONObject bucket = new JSONObject();
+                if (i<limits.length) {
+                    bucket.put("le", limits[i]);
+                }
+                else {
+                    bucket.put("le", "+Inf");
+                }
+                bucket.put("count", buckets.get(i));
+                bucketList.put(bucket);
+            }
+            jo.put("buckets", bucketList);
+            return jo;
+        }
+
+        void writePrometheus(Writer w) throws Exception {
+            long cumulative = 0;
+            for (int i=0; i<limits.length; i++) {
+                cumulative += buckets.get(i);
+                w.write(name + "_bucket{le=\"" + formatNumber(limits[i] / unit) + "\"} " + cumulative + "\n");
+            }
+            cumulative += buckets.get(limits.length);
+            w.write(name + "_bucket{le=\"+Inf\"} " + cumulative + "\n");
+            w.write(name + "_sum " + formatNumber(sum.get() / unit) + "\n");
+            w.write(name + "_count " + cumulative + "\n");
+        }
+    }
+}
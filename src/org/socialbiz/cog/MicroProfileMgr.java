@@ -64,6 +64,7 @@ public class MicroProfileMgr {
             microProfiles.put(lowerCase, profileRecord);
             allProfileIds.add(new AddressListEntry(profileRecord.getId()));
         }
+        PeopleIndex.peopleChanged();
     }
 
     public static List<MicroProfileRecord> getAllMicroProfileRecords() throws Exception
@@ -127,6 +128,7 @@ public class MicroProfileMgr {
         String lowerCase = emailId.toLowerCase();
         microProfiles.put(lowerCase, profileRecord);
         allProfileIds.add(AddressListEntry.parseCombinedAddress(emailId));
+        PeopleIndex.peopleChanged();
         return profileRecord;
     }
 
@@ -152,6 +154,7 @@ public class MicroProfileMgr {
     {
         MicroProfileRecord child = findOrCreateMicroProfile(id, displayName);
         child.setDisplayName(displayName);
+        PeopleIndex.peopleChanged();
     }
 
     public static List<AddressListEntry> getAllProfileIds() throws Exception
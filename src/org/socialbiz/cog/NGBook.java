@@ -45,7 +45,7 @@ public class NGBook extends ContainerCommon {
     private static Hashtable<String, NGBook> keyToSite = null;
     private static List<NGBook> allSites = null;
 
-    private List<String> existingIds = null;
+    private IdAllocator idAllocator = null;
     private List<String> displayNames;
     private final SiteInfoRecord siteInfoRec;
     private final NGRole executiveRole;
@@ -465,12 +465,13 @@ public class NGBook extends ContainerCommon {
     }
 
     @Override
-    public String getUniqueOnPage() throws Exception {
-        if (existingIds == null) {
-            existingIds = new ArrayList<String>();
+    public synchronized String getUniqueOnPage() throws Exception {
+        if (idAllocator == null) {
+            List<String> existingIds = new ArrayList<String>();
             findIDs(existingIds);
+            idAllocator = new IdAllocator(existingIds);
         }
-        return IdGenerator.generateFourDigit(existingIds);
+        return idAllocator.allocate();
     }
 
     @Override
@@ -1080,24 +1081,13 @@ public class NGBook extends ContainerCommon {
 
     }
 
+    /**
+     * The statistics of the site are added up from the statistics of each
+     * workspace, which are kept up to date in the background by SiteStatsMgr.
+     * This does not read any workspace.
+     */
     public WorkspaceStats getRecentStats(Cognoscenti cog) throws Exception {
-        File statsFile = getStatsFilePath();
-        long timeStamp = statsFile.lastModified();
-        long recentEnough = System.currentTimeMillis() - 24L*60*60*1000;
-        if (timeStamp>recentEnough) {
-            return getStatsFile();
-        }
-
-        //we should figure out how to do this at a time when all the
-        //projects are being scanned for some other purpose....
-        WorkspaceStats siteStats = new WorkspaceStats();
-        for (NGPageIndex ngpi : cog.getAllProjectsInSite(this.getKey())) {
-            NGPage ngp = ngpi.getWorkspace();
-            siteStats.gatherFromWorkspace(ngp);
-            siteStats.numWorkspaces++;
-        }
-        saveStatsFile(siteStats);
-        return siteStats;
+        return SiteStatsMgr.getSiteStats(cog, this);
     }
 
     public WorkspaceStats getStatsFile() throws Exception {
@@ -137,6 +137,12 @@ public abstract class NGContainer extends DOMFile
     public abstract HistoryRecord createNewHistory() throws Exception;
     public abstract HistoryRecord getLatestHistory() throws Exception;
 
+    /**
+    * The newest count history records, newest first.  Cheaper than
+    * getAllHistory when only the top of the history is needed.
+    */
+    public abstract List<HistoryRecord> getRecentHistory(int count) throws Exception;
+
 
     ////////////// Other container bookkeeping methods ////////////////////
 
@@ -28,31 +28,74 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 public class NGFilter implements Filter {
 
+    private static final MetricsRegistry.Histogram REQUEST_TIME = MetricsRegistry.timer(
+            "cog_http_request_seconds", "Time to handle a web request");
+    private static final MetricsRegistry.Counter REQUEST_ERRORS = MetricsRegistry.counter(
+            "cog_http_request_errors_total", "Web requests that ended with an exception");
+
+    //set the init-param compressResponses to false in web.xml to turn off
+    //the gzip compression of responses, e.g. when a proxy in front does it
+    private boolean compressResponses = true;
+
     public void destroy() {
         //nothing to destroy
     }
 
     public void doFilter(ServletRequest request, ServletResponse response,
             FilterChain chain) throws IOException, ServletException {
+        long startTime = System.currentTimeMillis();
+        boolean succeeded = false;
+        CompressingResponse compressing = null;
         try{
             //always set the encoding to UTF-8 in filter, as early as possible to avoid well known J2EE bug
             request.setCharacterEncoding("UTF-8");
             if (response instanceof HttpServletResponse) {
                 HttpServletResponse rsp = (HttpServletResponse) response;
                 rsp.setHeader("Cache-Control", "must-revalidate");
+                if (request instanceof HttpServletRequest
+                        && ((HttpServletRequest) request).getRequestURI().indexOf("/users/thumbs/")>=0) {
+                    //the name has a hash of the photo, a new photo has a new name
+                    rsp.setHeader("Cache-Control", "public, max-age=31536000");
+                }
+                if (compressResponses && request instanceof HttpServletRequest) {
+                    String encoding = CompressingResponse.chooseEncoding((HttpServletRequest) request);
+                    if (encoding != null) {
+                        compressing = new CompressingResponse(rsp, encoding);
+                        response = compressing;
+                    }
+                }
             }
             chain.doFilter(request, response);
+            succeeded = true;
         }finally{
+            //first, so the end of the response is not sent before the saves are journaled
             NGPageIndex.clearLocksHeldByThisThread();
+            if (compressing != null) {
+                //even after an exception, so the browser gets a complete compressed body
+                try {
+                    compressing.finish();
+                }
+                catch (Exception e) {
+                    System.out.println("NGFILTER: unable to finish the compressed response: "+e);
+                }
+            }
+            REQUEST_TIME.recordSince(startTime);
+            if (!succeeded) {
+                REQUEST_ERRORS.inc();
+            }
         }
 
     }
 
     public void init(FilterConfig arg0) throws ServletException {
+        if ("false".equals(arg0.getInitParameter("compressResponses"))) {
+            compressResponses = false;
+        }
     }
 
 }
@@ -61,7 +61,7 @@ public abstract class NGPage extends ContainerCommon {
     protected List<String> displayNames;
     protected List<NGSection> sectionElements = null;
     private NGBook prjSite;
-    protected List<String> existingIds = null;
+    protected IdAllocator idAllocator = null;
 
 
     //Least Recently Used Cache .... keep copies of the last ten
@@ -235,6 +235,7 @@ public abstract class NGPage extends ContainerCommon {
      */
     public static void removeCachedPage(String fullFilePath) {
         pageCache.unstore(fullFilePath);
+        WorkspaceSaveQueue.discardLiveCopy(fullFilePath);
     }
 
 
@@ -278,7 +279,7 @@ public abstract class NGPage extends ContainerCommon {
 
             //Update blocking Queue
             NGPageIndex.postEventMsg(this.getKey());
-            System.out.println("FILESAVE done ("+getKey()+") tid="+thisThread);
+            System.out.println("FILESAVE done ("+getKey()+") tid="+thisThread+" bytes="+getLastSaveBytes());
         }
         catch (Exception e) {
             throw new NGException("nugen.exception.unable.to.write.file",
@@ -290,15 +291,15 @@ public abstract class NGPage extends ContainerCommon {
      * This should be called everytime the page contents are changed in a way
      * that might effect the links on the page.
      */
-    private void refreshOutboundLinks(Cognoscenti cog) throws Exception {
+    protected void refreshOutboundLinks(Cognoscenti cog) throws Exception {
         String key = getKey();
         String siteKey = getSiteKey();
         NGPageIndex ngpi = cog.getWSBySiteAndKey(siteKey, key);
         if (ngpi == null) {
             throw new Exception("unable to find a workspace with site ("+siteKey+") and key ("+key+")");
         }
-        ngpi.unlinkAll();
         ngpi.buildLinks(this);
+        cog.workspaceIndexRefreshed(ngpi, this);
 
         // check if there is new email, and put this in the index as well
         if (countEmailToSend() > 0) {
@@ -643,9 +644,28 @@ public abstract class NGPage extends ContainerCommon {
     }
 
     public void setUpstreamLink(String uStrm) {
+        String oldLink = getUpstreamLink();
+        if (oldLink==null || !oldLink.equals(uStrm)) {
+            //a different upstream, so the next synchronization starts over
+            setUpstreamSyncToken(0);
+        }
         pageInfo.setScalar("upstream", uStrm);
     }
 
+    /**
+     * The sync token is the time, on the upstream server, of the last time
+     * that everything was downloaded from the upstream workspace.  The next
+     * synchronization only needs the details of what changed after that.
+     * Zero means there has been no synchronization yet.
+     */
+    public long getUpstreamSyncToken() {
+        return pageInfo.getScalarLong("upstreamSyncToken");
+    }
+
+    public void setUpstreamSyncToken(long token) {
+        pageInfo.setScalarLong("upstreamSyncToken", token);
+    }
+
     public void findLinks(List<String> v) throws Exception {
         for (NGSection sec : getAllSections()) {
             sec.findLinks(v);
@@ -991,12 +1011,31 @@ public abstract class NGPage extends ContainerCommon {
 
     /**
     * Get a four digit numeric id which is unique on the page.
+    * The set of ids in use is gathered once, the first time an id is
+    * needed, and after that the allocator is kept up to date as ids
+    * are handed out and released.
     */
     @Override
     public String getUniqueOnPage()
         throws Exception
     {
-        existingIds = new ArrayList<String>();
+        return getIdAllocator().allocate();
+    }
+
+    /**
+    * Call this when an element with a four digit id is actually removed
+    * from the workspace (not just marked deleted) so the id can be reused.
+    */
+    @Override
+    public void releaseUniqueOnPage(String id) throws Exception {
+        getIdAllocator().release(id);
+    }
+
+    private synchronized IdAllocator getIdAllocator() throws Exception {
+        if (idAllocator!=null) {
+            return idAllocator;
+        }
+        List<String> existingIds = new ArrayList<String>();
 
         //this is not to be trusted any more
         for (NGSection sec : getAllSections()) {
@@ -1020,7 +1059,11 @@ public abstract class NGPage extends ContainerCommon {
                 existingIds.add(ai.getId());
             }
         }
-        return IdGenerator.generateFourDigit(existingIds);
+        for (EmailGenerator egen : getAllEmailGenerators()) {
+            existingIds.add(egen.getId());
+        }
+        idAllocator = new IdAllocator(existingIds);
+        return idAllocator;
     }
 
 
@@ -1516,7 +1559,14 @@ public abstract class NGPage extends ContainerCommon {
     }
     public void removeMeeting(String id) throws Exception {
         DOMFace meetings = requireChild("meetings", DOMFace.class);
+        MeetingRecord mr = findMeetingOrNull(id);
         meetings.removeChildrenByNameAttrVal("meeting", "id", id);
+        if (mr!=null) {
+            for (AgendaItem ai : mr.getAgendaItems()) {
+                releaseUniqueOnPage(ai.getId());
+            }
+            releaseUniqueOnPage(id);
+        }
     }
 
     public MeetingRecord getAgendaItemBacklog() throws Exception {
@@ -1607,6 +1657,7 @@ public abstract class NGPage extends ContainerCommon {
     public void deleteEmailGenerator(String id) throws Exception {
         DOMFace generators =  requireChild("generators", DOMFace.class);
         generators.removeChildrenByNameAttrVal("emailGenerator", "id", id);
+        releaseUniqueOnPage(id);
     }
 
 
@@ -1682,6 +1733,10 @@ public abstract class NGPage extends ContainerCommon {
         return getInfoParent().getScalar("parentProject");
     }
 
+    /**
+     * The workspace hierarchy of the server picks up the new parent when
+     * the workspace is saved.
+     */
     public void setParentKey(String parentKey) throws Exception {
         getInfoParent().setScalar("parentProject", parentKey);
     }
@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
@@ -101,15 +102,21 @@ import com.purplehillsbooks.json.JSONObject;
  */
 public class NGPageIndex {
 
-    public List<NGTerm> nameTerms;
-    public List<NGTerm> refTerms;
-    public List<NGTerm> hashTags;
+    //these lists are replaced when they change, never changed, see relinkTerms
+    public volatile List<NGTerm> nameTerms;
+    private String nameSignature;
+    private String roleSignature;
+    private boolean rolesChanged;
+    public volatile List<NGTerm> refTerms;
+    public volatile List<NGTerm> hashTags;
     public long lastChange;
     public boolean requestWaiting;
     public boolean isDeleted;
     private boolean isFrozen;
     private boolean isMoved;
     public String[] admins; // a.k.a. authors
+    //ids of the members as of the last buildLinks, replaced never changed, see isMember
+    private volatile List<String> memberIds = new ArrayList<String>();
     public long nextScheduledAction;
 
     public File containerPath;
@@ -150,6 +157,13 @@ public class NGPageIndex {
     public static final String NO_LOCK_ID = "nolock";
     private static HashMap<String, List<NGPageIndex>> lockMap = new HashMap<String, List<NGPageIndex>>();
 
+    private static final MetricsRegistry.Histogram LOCK_WAIT_TIME = MetricsRegistry.timer(
+            "cog_lock_wait_seconds", "Time to get a workspace lock");
+    private static final MetricsRegistry.Counter LOCK_CONTENDED = MetricsRegistry.counter(
+            "cog_lock_contended_total", "Workspace locks that were held by another thread when requested");
+    private static final MetricsRegistry.Counter LOCK_TIMEOUTS = MetricsRegistry.counter(
+            "cog_lock_timeouts_total", "Workspace locks not obtained within 10 seconds");
+
 
 
 
@@ -161,9 +175,10 @@ public class NGPageIndex {
      */
     public List<NGPageIndex> getOutLinkPages() {
         List<NGPageIndex> ret = new ArrayList<NGPageIndex>();
+        HashSet<NGPageIndex> seen = new HashSet<NGPageIndex>();
         for (NGTerm term : refTerms) {
             for (NGPageIndex target : term.targetLeaves) {
-                if (!ret.contains(target)) {
+                if (seen.add(target)) {
                     ret.add(target);
                 }
             }
@@ -179,9 +194,10 @@ public class NGPageIndex {
      */
     public List<NGPageIndex> getInLinkPages() {
         List<NGPageIndex> ret = new ArrayList<NGPageIndex>();
+        HashSet<NGPageIndex> seen = new HashSet<NGPageIndex>();
         for (NGTerm term : nameTerms) {
             for (NGPageIndex target : term.sourceLeaves) {
-                if (!ret.contains(target)) {
+                if (seen.add(target)) {
                     ret.add(target);
                 }
             }
@@ -323,15 +339,36 @@ public class NGPageIndex {
         return false;
     }
 
+    /**
+     * Same as isInVector, but this entry itself does not count.
+     */
+    private boolean isOtherInVector(List<NGPageIndex> v) {
+        boolean isProject = isProject();
+        for (NGPageIndex y : v) {
+            if (y != this && containerKey.equals(y.containerKey)) {
+                if (!isProject) {
+                    return true;
+                }
+                if (wsSiteKey!=null && y.wsSiteKey!=null && wsSiteKey.equals(y.wsSiteKey)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Implement sorting and comparator classes
      */
+    static final Comparator<NGPageIndex> BY_NAME = new NGPIByName();
+    static final Comparator<NGPageIndex> BY_CHANGE = new NGPIByInverseChange();
+
     public static void sortByName(List<NGPageIndex> v) {
-        Collections.sort(v, new NGPIByName());
+        Collections.sort(v, BY_NAME);
     }
 
     public static void sortInverseChronological(List<NGPageIndex> v) {
-        Collections.sort(v, new NGPIByInverseChange());
+        Collections.sort(v, BY_CHANGE);
     }
 
     private static class NGPIByName implements Comparator<NGPageIndex> {
@@ -442,12 +479,16 @@ public class NGPageIndex {
                 return;
             }
             if (lockedBy!=0) {
+                LOCK_CONTENDED.inc();
                 System.out.println("    WAIT: tid="+thisThread+" is about to wait for lock held by tid="+lockedBy+" now="+(System.currentTimeMillis()%10000));
             }
 
             String ctid = "tid:" + thisThread;
+            long waitStart = System.currentTimeMillis();
             String lockObj = lockBlq.poll(10, TimeUnit.SECONDS);
+            LOCK_WAIT_TIME.recordSince(waitStart);
             if (lockObj == null) {
+                LOCK_TIMEOUTS.inc();
                 throw new Exception("tid="+thisThread+" failed after 10 seconds to set a lock for container ("+this.containerKey
                          +"), Lock held by tid="+lockedBy,  lockedByAuditException);
             }
@@ -548,12 +589,13 @@ public class NGPageIndex {
         }
         String ctid = "tid:" + Thread.currentThread().getId();
         List<NGPageIndex> indexList = lockMap.remove(ctid);
-        if (indexList == null) {
-            return;
-        }
-        for (NGPageIndex ngpindx : indexList) {
-            ngpindx.clearLock();
+        if (indexList != null) {
+            for (NGPageIndex ngpindx : indexList) {
+                ngpindx.clearLock();
+            }
         }
+        //saves queued by this thread reach the journal without a workspace locked
+        WorkspaceSaveQueue.waitForJournal();
     }
 
     public static void releaseLock(NGContainer ngc) {
@@ -593,24 +635,19 @@ public class NGPageIndex {
         buildLinks(container);
     }
 
+    /**
+     * Reads everything the index needs from the container.  This is called
+     * when the entry is made, and again every time the container is saved.
+     * The terms are changed only where they differ from the last time: a
+     * save that does not change the names, links, or tags of the container
+     * does not touch the term graph at all.
+     */
     public void buildLinks(NGContainer container) throws Exception {
 
-        containerName = "~Container Has No Name";
         isDeleted = container.isDeleted();
         isFrozen = container.isFrozen();
         lastChange = container.getLastModifyTime();
 
-        // consistency check, either the nameTerms or refTerms vectors must
-        // be missing or empty.
-        if (nameTerms != null && nameTerms.size() > 0) {
-            throw new RuntimeException(
-                    "Program logic is asking for building nameTerms links when it already has some.");
-        }
-        if (refTerms != null && refTerms.size() > 0) {
-            throw new RuntimeException(
-                    "Program logic is asking for building refTerms links when it already has some.");
-        }
-
         containerPath = container.getFilePath();
         containerKey = container.getKey();
 
@@ -625,21 +662,6 @@ public class NGPageIndex {
                     + containerPath);
         }
 
-        initNameTerms(container);
-
-        initLinkTerms(container);
-
-        // record the admins (authors) of the page
-        NGRole adminRole = container.getSecondaryRole();
-        List<AddressListEntry> v = adminRole.getExpandedPlayers(container);
-        admins = new String[v.size()];
-        int i = 0;
-        for (AddressListEntry ale : v) {
-            admins[i++] = ale.getUniversalId();
-        }
-
-        initIndexForHashTags(container);
-
         if (container instanceof NGWorkspace) {
             NGWorkspace ngw = (NGWorkspace) container;
             NGBook ngb = ngw.getSite();
@@ -650,6 +672,36 @@ public class NGPageIndex {
             }
             parentKey = ngw.getParentKey();
         }
+
+        // everything is read from the container first, so that the term
+        // graph is locked only while the changes are made
+        List<String> containerNames = container.getContainerNames();
+        List<String> linkNames = findLinkNames(container);
+        List<String> tagNames = new ArrayList<String>();
+        if (container instanceof NGPage) {
+            ((NGPage) container).findTags(tagNames);
+        }
+
+        relinkTerms(containerNames, linkNames, tagNames);
+
+        // record the admins (authors) of the page
+        NGRole adminRole = container.getSecondaryRole();
+        List<AddressListEntry> v = adminRole.getExpandedPlayers(container);
+        String[] newAdmins = new String[v.size()];
+        int i = 0;
+        for (AddressListEntry ale : v) {
+            newAdmins[i++] = ale.getUniversalId();
+        }
+        admins = newAdmins;
+
+        memberIds = findMemberIds(container);
+
+        // remember if the players of the roles are not what they were the
+        // last time, so that whatever depends on the roles can be told
+        String newRoleSignature = makeRoleSignature(container);
+        rolesChanged = (roleSignature != null && !newRoleSignature.equals(roleSignature));
+        roleSignature = newRoleSignature;
+
         nextScheduledAction = container.nextActionDue();
     }
 
@@ -657,128 +709,272 @@ public class NGPageIndex {
      * The container (project or site) can have any number of names. For each
      * name, an associated term is found, and that term is made to point to this
      * container.
+     *
+     * Containers have outbound links. For each link the associated term is
+     * marked as having a source link from this container.
+     *
+     * Page objects can have hash tags in the description. The hash tag starts
+     * with a # character and continues to the first white space A NGTerm object
+     * is created for each tag, and made to point to this page Each NGPageIndex
+     * object contains a vector of such hash terms. If each page lists their
+     * hash tags, and links to all the other pages that have that hash tag, then
+     * it is an easy way to link similar pages together automatically in both
+     * directions.
+     *
+     * Only the terms that were added or removed since the last time are
+     * changed.  The leaves of a term are kept in order of name, so if the
+     * name of this container changed it is removed from all its terms and
+     * added again.
      */
-    private void initNameTerms(NGContainer container) throws Exception {
-        List<NGTerm> nameTermsTmp = new ArrayList<NGTerm>();
-
-        // make a link to the page key first
-        String combinedKey = containerKey;
-        if (isProject()) {
-            combinedKey = wsSiteKey + "|" + containerKey;
-        }
-        NGTerm term = NGTerm.findTerm(combinedKey);
-        if (term == null) {
-            throw new NGException("nugen.exception.key.dont.have.alphanum", null);
-        }
-        if (isInVector(term.targetLeaves)) {
-            throw new NGException("nugen.exception.duplicacy.problem", null);
-        }
-        term.targetLeaves.add(this);
-        nameTermsTmp.add(term);
-
-        List<String> containerNames = container.getContainerNames();
+    private void relinkTerms(List<String> containerNames, List<String> linkNames,
+            List<String> tagNames) throws Exception {
+        String newName = "~Container Has No Name";
         if (containerNames.size() > 0) {
             // picks the first name as the nicest, official, name
-            containerName = containerNames.get(0);
+            newName = containerNames.get(0);
         }
-        for (int i = 0; i < containerNames.size(); i++) {
-            String name = containerNames.get(i);
-            term = NGTerm.findTerm(name);
+
+        List<NGTerm> oldNames = (nameTerms == null) ? new ArrayList<NGTerm>() : nameTerms;
+        List<NGTerm> oldRefs = (refTerms == null) ? new ArrayList<NGTerm>() : refTerms;
+        List<NGTerm> oldTags = (hashTags == null) ? new ArrayList<NGTerm>() : hashTags;
+
+        synchronized (NGTerm.class) {
+            List<NGTerm> nameTermsTmp = new ArrayList<NGTerm>();
+
+            // make a link to the page key first
+            String combinedKey = containerKey;
+            if (isProject()) {
+                combinedKey = wsSiteKey + "|" + containerKey;
+            }
+            NGTerm term = NGTerm.findTerm(combinedKey);
             if (term == null) {
-                // this is not a good name, ignore it
-                continue;
+                throw new NGException("nugen.exception.key.dont.have.alphanum", null);
             }
-            if (!nameTermsTmp.contains(term)) {
-                if (isInVector(term.targetLeaves)) {
+            nameTermsTmp.add(term);
+            for (String name : containerNames) {
+                term = NGTerm.findTerm(name);
+                // a null term is not a good name, ignore it
+                if (term != null && !nameTermsTmp.contains(term)) {
+                    nameTermsTmp.add(term);
+                }
+            }
+
+            List<NGTerm> refTermTmp = new ArrayList<NGTerm>();
+            for (String entry : linkNames) {
+                term = NGTerm.findTerm(entry);
+                // a null term is not a good link, ignore it
+                if (term != null && !refTermTmp.contains(term)) {
+                    refTermTmp.add(term);
+                }
+            }
+
+            List<NGTerm> hashTagsTmp = new ArrayList<NGTerm>();
+            for (String hashVal : tagNames) {
+                if (hashVal.length() < 3) {
+                    continue;
+                }
+                // term can be null if the tag value was not a valid tag value
+                // for example it was zero length, or consisted only of punctuation.
+                // also, eliminate duplicates at this step
+                term = NGTerm.findOrCreateTag(hashVal);
+                if (term != null && !hashTagsTmp.contains(term)) {
+                    hashTagsTmp.add(term);
+                }
+            }
+
+            // check everything before changing anything, so that a failure
+            // leaves the graph as it was
+            HashSet<NGTerm> oldNameSet = new HashSet<NGTerm>(oldNames);
+            for (NGTerm nameTerm : nameTermsTmp) {
+                if (!oldNameSet.contains(nameTerm) && isOtherInVector(nameTerm.targetLeaves)) {
                     throw new NGException("nugen.exception.duplicacy.problem", null);
                 }
-                term.targetLeaves.add(this);
-                sortByName(term.targetLeaves);
-                nameTermsTmp.add(term);
             }
+            HashSet<NGTerm> oldRefSet = new HashSet<NGTerm>(oldRefs);
+            for (NGTerm refTerm : refTermTmp) {
+                if (!oldRefSet.contains(refTerm) && isOtherInVector(refTerm.sourceLeaves)) {
+                    throw new NGException("nugen.exception.duplicacy.problem.with.source.leaves",
+                            null);
+                }
+            }
+
+            if (!newName.equals(containerName)) {
+                // the order of the leaves depends on the name
+                for (NGTerm oldTerm : oldNames) {
+                    oldTerm.removeTarget(this);
+                }
+                for (NGTerm oldTerm : oldRefs) {
+                    oldTerm.removeSource(this);
+                }
+                for (NGTerm oldTerm : oldTags) {
+                    oldTerm.removeTarget(this);
+                }
+                oldNames = new ArrayList<NGTerm>();
+                oldRefs = new ArrayList<NGTerm>();
+                oldTags = new ArrayList<NGTerm>();
+                containerName = newName;
+            }
+
+            changeTargets(oldNames, nameTermsTmp);
+            changeSources(oldRefs, refTermTmp);
+            changeTargets(oldTags, hashTagsTmp);
+
+            // the lists are replaced, never changed, so that other threads
+            // can read them without locking
+            nameTerms = nameTermsTmp;
+            refTerms = refTermTmp;
+            hashTags = hashTagsTmp;
+        }
+
+        // only tell the link index that something changed if this container
+        // now answers to different names than it did before
+        StringBuilder sig = new StringBuilder();
+        sig.append(containerType);
+        sig.append("|");
+        sig.append(wsSiteKey);
+        sig.append("|");
+        sig.append(containerKey);
+        sig.append("|");
+        sig.append(containerName);
+        for (NGTerm nameTerm : nameTerms) {
+            sig.append("|");
+            sig.append(nameTerm.sanitizedName);
+        }
+        String newSignature = sig.toString();
+        if (!newSignature.equals(nameSignature)) {
+            nameSignature = newSignature;
+            NGTerm.linkIndexChanged();
         }
-        nameTerms = nameTermsTmp;
     }
 
     /**
-     * Containers have outbound links. This method finds all the links, and then
-     * finds the associated terms, then marks those terms as having source links
-     * from this container.
+     * True if the last buildLinks found that the players of the roles of
+     * the container were changed since the one before.
      */
-    private void initLinkTerms(NGContainer container) throws Exception {
-        List<String> tmpRef = new ArrayList<String>();
-        if (container instanceof NGPage) {
-            // find the links in the page, right now only the Link type sections
+    public boolean rolesChanged() {
+        return rolesChanged;
+    }
 
-            ((NGPage) container).findLinks(tmpRef);
-            Collections.sort(tmpRef);
+    /**
+     * True if the user was a member of the container when the entry was
+     * last built: for a workspace a player of the primary or secondary
+     * role or an assignee of an active action item, and for a site an
+     * executive.  This is what primaryOrSecondaryPermission checks, except
+     * that the executives of the site of a workspace are on the site entry.
+     */
+    public boolean isMember(UserRef user) {
+        for (String id : memberIds) {
+            if (user.hasAnyId(id)) {
+                return true;
+            }
         }
-        // remove duplicate entries in the map
-        List<NGTerm> refTermTmp = new ArrayList<NGTerm>();
-        for (String entry : tmpRef) {
-            int barPos = entry.indexOf("|");
-            if (barPos >= 0) {
-                entry = entry.substring(barPos + 1).trim();
+        return false;
+    }
+
+    private static List<String> findMemberIds(NGContainer container) throws Exception {
+        List<String> ids = new ArrayList<String>();
+        if (container instanceof NGBook) {
+            NGRole execs = ((NGBook) container).getRole("Executives");
+            if (execs != null) {
+                for (AddressListEntry ale : execs.getDirectPlayers()) {
+                    ids.add(ale.getInitialId());
+                }
+            }
+            return ids;
+        }
+        for (AddressListEntry ale : container.getPrimaryRole().getExpandedPlayers(container)) {
+            ids.add(ale.getInitialId());
+        }
+        for (AddressListEntry ale : container.getSecondaryRole().getExpandedPlayers(container)) {
+            ids.add(ale.getInitialId());
+        }
+        if (container instanceof NGPage) {
+            for (GoalRecord gr : ((NGPage) container).getAllGoals()) {
+                if (gr.isPassive()) {
+                    continue;
+                }
+                int state = gr.getState();
+                if (state == BaseRecord.STATE_OFFERED
+                        || state == BaseRecord.STATE_ACCEPTED
+                        || state == BaseRecord.STATE_WAITING) {
+                    for (AddressListEntry ale : gr.getAssigneeRole().getDirectPlayers()) {
+                        ids.add(ale.getInitialId());
+                    }
+                }
             }
+        }
+        return ids;
+    }
 
-            // detect external links, any link with a slash in it, is assumed
-            // to be a URL. To address a page with a slash in the name, address
-            // it without the slash (which is stripped in sanitize anyway).
-            if (entry.indexOf("/") >= 0) {
-                continue; // skip external links
+    private static String makeRoleSignature(NGContainer container) throws Exception {
+        StringBuilder sig = new StringBuilder();
+        for (CustomRole role : container.getAllRoles()) {
+            sig.append("|");
+            sig.append(role.getName());
+            for (AddressListEntry ale : role.getDirectPlayers()) {
+                sig.append(",");
+                sig.append(ale.getUniversalId());
             }
-            NGTerm term = NGTerm.findTerm(entry);
-            if (term == null) {
-                // this is not a good link, ignore it
-                continue;
+        }
+        return sig.toString();
+    }
+
+    private void changeTargets(List<NGTerm> oldTerms, List<NGTerm> newTerms) {
+        HashSet<NGTerm> newSet = new HashSet<NGTerm>(newTerms);
+        for (NGTerm term : oldTerms) {
+            if (!newSet.contains(term)) {
+                term.removeTarget(this);
             }
-            if (!refTermTmp.contains(term)) {
-                refTermTmp.add(term);
-                if (isInVector(term.sourceLeaves)) {
-                    throw new NGException("nugen.exception.duplicacy.problem.with.source.leaves",
-                            null);
-                }
-                term.sourceLeaves.add(this);
-                sortByName(term.sourceLeaves);
+        }
+        HashSet<NGTerm> oldSet = new HashSet<NGTerm>(oldTerms);
+        for (NGTerm term : newTerms) {
+            if (!oldSet.contains(term)) {
+                term.addTarget(this);
+            }
+        }
+    }
+
+    private void changeSources(List<NGTerm> oldTerms, List<NGTerm> newTerms) {
+        HashSet<NGTerm> newSet = new HashSet<NGTerm>(newTerms);
+        for (NGTerm term : oldTerms) {
+            if (!newSet.contains(term)) {
+                term.removeSource(this);
+            }
+        }
+        HashSet<NGTerm> oldSet = new HashSet<NGTerm>(oldTerms);
+        for (NGTerm term : newTerms) {
+            if (!oldSet.contains(term)) {
+                term.addSource(this);
             }
         }
-        // update this all at once at the end to avoid multi-threading problems
-        // with half-built indices
-        refTerms = refTermTmp;
     }
 
     /**
-     * Page objects can have hash tags in the description. The hash tag starts
-     * with a # character and continues to the first white space A NGTerm object
-     * is created for each tag, and made to point to this page Each NGPageIndex
-     * object contains a vector of such hash terms. If each page lists their
-     * hash tags, and links to all the other pages that have that hash tag, then
-     * it is an easy way to link similar pages together automatically in both
-     * directions.
+     * The names of the other containers that this container links to.
+     * Right now only the Link type sections of pages.
      */
-    private void initIndexForHashTags(NGContainer container) throws Exception {
-        List<String> tagVals = new ArrayList<String>();
+    private List<String> findLinkNames(NGContainer container) throws Exception {
+        List<String> tmpRef = new ArrayList<String>();
         if (container instanceof NGPage) {
-            NGPage ngp = (NGPage) container;
-            ngp.findTags(tagVals);
+            ((NGPage) container).findLinks(tmpRef);
+            Collections.sort(tmpRef);
         }
-        List<NGTerm> hashTagsTmp = new ArrayList<NGTerm>();
-        for (String hashVal : tagVals) {
-            if (hashVal.length() < 3) {
-                continue;
+        List<String> res = new ArrayList<String>();
+        for (String entry : tmpRef) {
+            int barPos = entry.indexOf("|");
+            if (barPos >= 0) {
+                entry = entry.substring(barPos + 1).trim();
             }
-            NGTerm term = NGTerm.findOrCreateTag(hashVal);
 
-            // term can be null if the tag value was not a valid tag value
-            // for example it was zero length, or consisted only of punctuation.
-            // also, eliminate duplicates at this step
-            if (term != null && !hashTagsTmp.contains(term)) {
-                term.targetLeaves.add(this);
-                sortByName(term.targetLeaves);
-                hashTagsTmp.add(term);
+            // detect external links, any link with a slash in it, is assumed
+            // to be a URL. To address a page with a slash in the name, address
+            // it without the slash (which is stripped in sanitize anyway).
+            if (entry.indexOf("/") >= 0) {
+                continue; // skip external links
             }
+            res.add(entry);
         }
-        hashTags = hashTagsTmp;
+        return res;
     }
 
     /**
@@ -787,20 +983,22 @@ public class NGPageIndex {
      * the index.
      */
     public void unlinkAll() {
-        for (NGTerm term : nameTerms) {
-            term.removeTarget(this);
-        }
-        nameTerms.clear();
+        synchronized (NGTerm.class) {
+            for (NGTerm term : nameTerms) {
+                term.removeTarget(this);
+            }
+            nameTerms = new ArrayList<NGTerm>();
 
-        for (NGTerm term : refTerms) {
-            term.removeSource(this);
-        }
-        refTerms.clear();
+            for (NGTerm term : refTerms) {
+                term.removeSource(this);
+            }
+            refTerms = new ArrayList<NGTerm>();
 
-        for (NGTerm term : hashTags) {
-            term.removeTarget(this);
+            for (NGTerm term : hashTags) {
+                term.removeTarget(this);
+            }
+            hashTags = new ArrayList<NGTerm>();
         }
-        hashTags.clear();
     }
 
     public JSONObject getJSON4List() throws Exception {
@@ -21,29 +21,46 @@
 package org.socialbiz.cog;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
 * NGTerm implements the many-to-many linking of pages (with multiple links)
 * to pages (with multiple names).  Each term object represents a particular
 * simplified name.
+*
+* The lists of source and target leaves are never changed: adding or removing
+* a leaf replaces the list with a new one.  So a list can be read, and looped
+* through, by any thread without locking, and it will not change while it is
+* being read.  Do not change the lists that you get from a term.
+*
+* All changes to the term graph (creating terms, adding and removing leaves)
+* are done holding the lock on NGTerm.class, so that a term that has become
+* empty can be removed from the index without another thread adding a leaf
+* to it at the same time.  Only the change itself is done holding the lock,
+* NGPageIndex works out what to change before taking it.
 */
 public class NGTerm
 {
     public String sanitizedName;
-    public List<NGPageIndex> sourceLeaves = new ArrayList<NGPageIndex>();
-    public List<NGPageIndex> targetLeaves = new ArrayList<NGPageIndex>();
+    public volatile List<NGPageIndex> sourceLeaves = Collections.emptyList();
+    public volatile List<NGPageIndex> targetLeaves = Collections.emptyList();
+    private final boolean isTag;
 
-    private static Hashtable<String,NGTerm> allTerms;
-    private static Hashtable<String,NGTerm> allTags;
+    private static ConcurrentHashMap<String,NGTerm> allTerms;
+    private static ConcurrentHashMap<String,NGTerm> allTags;
+
+    //incremented whenever a name might resolve to a different container
+    private static volatile long linkIndexVersion = 0;
 
     /**
     * Name must be sanitized before constructing the term object.
     */
-    private NGTerm(String name)
+    private NGTerm(String name, boolean _isTag)
     {
         sanitizedName = name;
+        isTag = _isTag;
     }
 
 
@@ -59,10 +76,29 @@ public class NGTerm
     }
 
 
-    static public void initialize()
+    public synchronized static void initialize()
+    {
+        allTerms  = new ConcurrentHashMap<String,NGTerm>();
+        allTags  = new ConcurrentHashMap<String,NGTerm>();
+        linkIndexChanged();
+    }
+
+
+    /**
+    * Anything computed from resolving names to containers, like
+    * rendered wiki links, is only good while this value is unchanged.
+    */
+    public static long getLinkIndexVersion()
+    {
+        return linkIndexVersion;
+    }
+
+    /**
+    * Call when the names of a container, or the set of containers, change.
+    */
+    public synchronized static void linkIndexChanged()
     {
-        allTerms  = new Hashtable<String,NGTerm>();
-        allTags  = new Hashtable<String,NGTerm>();
+        linkIndexVersion++;
     }
 
 
@@ -70,8 +106,12 @@ public class NGTerm
     * Pass a NON-sanitized name, and this will return
     * the term object corresponding to that term.
     * It will create one if an existing one is not found.
+    *
+    * Only for linking a container to the term.  To look up a name
+    * use findTermIfExists, which does not fill the index with terms
+    * that nothing links to.
     */
-    static public NGTerm findTerm(String name)
+    synchronized static public NGTerm findTerm(String name)
     {
         String sanitizedName = SectionWiki.sanitize(name);
         if (sanitizedName.length()==0)
@@ -81,7 +121,7 @@ public class NGTerm
         NGTerm termx = allTerms.get(sanitizedName);
         if (termx==null)
         {
-            termx = new NGTerm(sanitizedName);
+            termx = new NGTerm(sanitizedName, false);
             allTerms.put(sanitizedName, termx);
         }
         return termx;
@@ -99,7 +139,7 @@ public class NGTerm
     * don't get mixed up or cross linked.  Otherwise
     * tags that are the same as a name gets confused.
     */
-    static public NGTerm findOrCreateTag(String name)
+    synchronized static public NGTerm findOrCreateTag(String name)
     {
         String sanitizedName = SectionWiki.sanitize(name);
         if (sanitizedName.length()<3)
@@ -109,7 +149,7 @@ public class NGTerm
         NGTerm termx = allTags.get(sanitizedName);
         if (termx==null)
         {
-            termx = new NGTerm(sanitizedName);
+            termx = new NGTerm(sanitizedName, true);
             allTags.put(sanitizedName, termx);
         }
         return termx;
@@ -134,31 +174,132 @@ public class NGTerm
         return termx;
     }
 
-    public void removeSource(NGPageIndex idx)
+    /**
+    * Adds a page that links to this term.  Adding a page that is
+    * already there does nothing.
+    */
+    public void addSource(NGPageIndex idx)
     {
-        sourceLeaves.remove(idx);
+        synchronized (NGTerm.class)
+        {
+            sourceLeaves = withLeaf(sourceLeaves, idx);
+            putBackIfRemoved();
+        }
+    }
+
+    /**
+    * Adds a page that this term names.  Adding a page that is
+    * already there does nothing.
+    */
+    public void addTarget(NGPageIndex idx)
+    {
+        synchronized (NGTerm.class)
+        {
+            targetLeaves = withLeaf(targetLeaves, idx);
+            putBackIfRemoved();
+        }
+    }
 
-        //if there are no inbound nor outbound references, then
-        //remove the term from the index ... no longer needed
-        //and will be recreated later if needed.
-        if (sourceLeaves.size()==0 && targetLeaves.size()==0)
+    public void removeSource(NGPageIndex idx)
+    {
+        synchronized (NGTerm.class)
         {
-            allTerms.remove(this);
+            sourceLeaves = withoutLeaf(sourceLeaves, idx);
+            removeIfUnused();
         }
     }
 
     public void removeTarget(NGPageIndex idx)
     {
-        targetLeaves.remove(idx);
+        synchronized (NGTerm.class)
+        {
+            targetLeaves = withoutLeaf(targetLeaves, idx);
+            removeIfUnused();
+        }
+    }
+
+    /**
+    * If there are no inbound nor outbound references, then
+    * remove the term from the index ... no longer needed
+    * and will be recreated later if needed.
+    */
+    private void removeIfUnused()
+    {
+        if (sourceLeaves.size()>0 || targetLeaves.size()>0)
+        {
+            return;
+        }
+        ConcurrentHashMap<String,NGTerm> pool = isTag ? allTags : allTerms;
+        if (pool!=null)
+        {
+            pool.remove(sanitizedName, this);
+        }
+    }
 
-        //if there are no inbound nor outbound references, then
-        //remove the term from the index ... no longer needed
-        //and will be recreated later if needed.
-        if (sourceLeaves.size()==0 && targetLeaves.size()==0)
+    /**
+    * A term that was found, then emptied and removed from the index while
+    * the pages were being relinked, goes back into the index when it is
+    * used again.
+    */
+    private void putBackIfRemoved()
+    {
+        ConcurrentHashMap<String,NGTerm> pool = isTag ? allTags : allTerms;
+        if (pool!=null)
         {
-            allTerms.remove(this);
+            pool.putIfAbsent(sanitizedName, this);
         }
     }
 
-}
+    /**
+    * A new list, in order of name, with the leaf added.
+    */
+    private static List<NGPageIndex> withLeaf(List<NGPageIndex> list, NGPageIndex idx)
+    {
+        for (NGPageIndex existing : list)
+        {
+            if (existing==idx)
+            {
+                return list;
+            }
+        }
+        int pos = Collections.binarySearch(list, idx, NGPageIndex.BY_NAME);
+        if (pos<0)
+        {
+            pos = -pos - 1;
+        }
+        List<NGPageIndex> newList = new ArrayList<NGPageIndex>(list.size()+1);
+        newList.addAll(list.subList(0, pos));
+        newList.add(idx);
+        newList.addAll(list.subList(pos, list.size()));
+        return Collections.unmodifiableList(newList);
+    }
+
+    /**
+    * A new list with the leaf removed, or the same list if it was not there.
+    */
+    private static List<NGPageIndex> withoutLeaf(List<NGPageIndex> list, NGPageIndex idx)
+    {
+        int pos = -1;
+        for (int i=0; i<list.size(); i++)
+        {
+            if (list.get(i)==idx)
+            {
+                pos = i;
+                break;
+            }
+        }
+        if (pos<0)
+        {
+            return list;
+        }
+        if (list.size()==1)
+        {
+            return Collections.emptyList();
+        }
+        List<NGPageIndex> newList = new ArrayList<NGPageIndex>(list.size()-1);
+        newList.addAll(list.subList(0, pos));
+        newList.addAll(list.subList(pos+1, list.size()));
+        return Collections.unmodifiableList(newList);
+    }
 
+}
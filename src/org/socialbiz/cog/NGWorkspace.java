@@ -29,6 +29,7 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 
 import org.socialbiz.cog.exception.NGException;
@@ -37,6 +38,7 @@ import org.w3c.dom.Document;
 
 import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONObject;
+import com.purplehillsbooks.json.JSONTokener;
 import com.purplehillsbooks.streams.HTMLWriter;
 
 /**
@@ -59,6 +61,21 @@ public class NGWorkspace extends NGPage {
 
     private File        jsonFilePath;
     private JSONObject  workspaceJSON;
+
+    //the JSON content as it is on disk, so that unchanged JSON is not rewritten
+    private String      savedJSONContent = null;
+    private long        lastJSONSaveBytes = 0;
+
+    static final MetricsRegistry.Histogram LOAD_TIME = MetricsRegistry.timer(
+            "cog_workspace_load_seconds", "Time to read and parse a workspace file that was not in memory");
+    static final MetricsRegistry.Histogram LOAD_BYTES = MetricsRegistry.sizes(
+            "cog_workspace_load_bytes", "Size of the workspace files read");
+    static final MetricsRegistry.Counter CACHE_HITS = MetricsRegistry.counter(
+            "cog_workspace_cache_hits_total", "Workspaces found in memory instead of read from disk");
+    static final MetricsRegistry.Histogram SAVE_TIME = MetricsRegistry.timer(
+            "cog_workspace_save_seconds", "Time to write a workspace to disk");
+    static final MetricsRegistry.Histogram SAVE_BYTES = MetricsRegistry.sizes(
+            "cog_workspace_save_bytes", "Bytes written by each workspace save");
     
 
     public NGWorkspace(File theFile, Document newDoc, NGBook site) throws Exception {
@@ -69,6 +86,7 @@ public class NGWorkspace extends NGPage {
         jsonFilePath = new File(theFile.getParent(), "WorkspaceInfo.json");
         if (jsonFilePath.exists()) {
             workspaceJSON = JSONObject.readFromFile(jsonFilePath);
+            savedJSONContent = workspaceJSON.toString();
         }
         else {
             workspaceJSON = new JSONObject();
@@ -116,12 +134,29 @@ public class NGWorkspace extends NGPage {
     /**
      * Need to inject the saving of the JSON file at this point
      * to assure that both XML and JSON get saved.
+     * Each is written only if it changed since it was read or last saved.
      */
     @Override
     public void save() throws Exception {
+        //anything waiting in the write-behind queue has to be on disk first
+        WorkspaceSaveQueue.flushNow(this);
+        long startTime = System.currentTimeMillis();
         super.save();
         
-        workspaceJSON.writeToFile(jsonFilePath);
+        String currentJSON = workspaceJSON.toString();
+        if (!currentJSON.equals(savedJSONContent) || !jsonFilePath.exists()) {
+            workspaceJSON.writeToFile(jsonFilePath);
+            savedJSONContent = currentJSON;
+            lastJSONSaveBytes = jsonFilePath.length();
+        }
+        else {
+            lastJSONSaveBytes = 0;
+        }
+        long bytes = getLastSaveBytes();
+        if (bytes>0) {
+            SAVE_TIME.recordSince(startTime);
+            SAVE_BYTES.record(bytes);
+        }
         //store into the cache.  Something might be copying things in memory,
         //and this assures that the cache matches the latest written version.
         //String fullFilePath = associatedFile.toString();
@@ -129,6 +164,73 @@ public class NGWorkspace extends NGPage {
         pageCache.emptyCache();
     }
 
+    /**
+     * When the write-behind queue is enabled, the save is recorded in memory
+     * and the actual file write (along with the link index refresh) happens
+     * a short time later, combined with any other saves of this workspace
+     * that come in the meantime.
+     */
+    @Override
+    public void saveWithoutMarkingModified(String modUser, String comment, Cognoscenti cog) throws Exception
+    {
+        SiteStatsMgr.workspaceChanged(getSiteKey(), getKey());
+        if (WorkspaceSaveQueue.isEnabled()) {
+            System.out.println("FILESAVE queued ("+getKey()+") tid="+Thread.currentThread().getId()
+                    +" by ("+modUser+") for ("+comment+")");
+            WorkspaceSaveQueue.scheduleSave(this);
+            return;
+        }
+        super.saveWithoutMarkingModified(modUser, comment, cog);
+    }
+
+    /**
+     * Get a private copy of the XML document, for writing later, and consider
+     * the document saved.  Returns null if nothing changed.
+     */
+    Document takeSaveSnapshot() throws Exception {
+        assureSchemaCurrent();
+        return takeSnapshot();
+    }
+
+    /**
+     * Get a private copy of the JSON side file, for writing later, and
+     * consider it saved.  Returns null if it has not changed.
+     */
+    JSONObject takeJSONSnapshot() throws Exception {
+        String currentJSON = workspaceJSON.toString();
+        if (currentJSON.equals(savedJSONContent) && jsonFilePath.exists()) {
+            return null;
+        }
+        savedJSONContent = currentJSON;
+        return new JSONObject(new JSONTokener(currentJSON));
+    }
+
+    File getJSONFilePath() {
+        return jsonFilePath;
+    }
+
+    /**
+     * Used when rebuilding a workspace from a queued snapshot, where the JSON
+     * file on disk might be older than the one waiting to be written.
+     */
+    void restoreJSON(JSONObject snapshot) throws Exception {
+        savedJSONContent = snapshot.toString();
+        workspaceJSON = new JSONObject(new JSONTokener(savedJSONContent));
+    }
+
+    @Override
+    public boolean hasUnsavedChanges() {
+        return super.hasUnsavedChanges() || !workspaceJSON.toString().equals(savedJSONContent);
+    }
+
+    /**
+     * Bytes written by the last save, both the XML and the JSON file.
+     */
+    @Override
+    public long getLastSaveBytes() {
+        return super.getLastSaveBytes() + lastJSONSaveBytes;
+    }
+
     public void saveFile(AuthRequest ar, String comment) throws Exception {
         super.saveFile(ar, comment);
         assureLaunchingPad(ar);
@@ -197,33 +299,23 @@ public class NGWorkspace extends NGPage {
         try {
             String fullFilePath = theFile.toString();
 
-            //look in the cache
-            NGWorkspace newWorkspace = pageCache.recall(fullFilePath);
+            //saved but not yet written workspaces come first, then the cache
+            NGWorkspace newWorkspace = WorkspaceSaveQueue.getQueuedWorkspace(fullFilePath);
             if (newWorkspace==null) {
-                 //determine the site settings
-                File cogFolder = theFile.getParentFile();
-                File workFolder = cogFolder.getParentFile();
-                File siteFolder = workFolder.getParentFile();
-                String siteKey = siteFolder.getName();
-                NGBook theSite = NGBook.readSiteByKey(siteKey);
-             
+                newWorkspace = pageCache.recall(fullFilePath);
+            }
+            if (newWorkspace==null) {
+                long startTime = System.currentTimeMillis();
                 Document newDoc;
                 InputStream is = new FileInputStream(theFile);
                 newDoc = DOMUtils.convertInputStreamToDocument(is, false, false);
                 is.close();
-                newWorkspace = new NGWorkspace(theFile, newDoc, theSite);
-                
-                if (!siteKey.equals(newWorkspace.getSiteKey())) {
-                    System.out.println("Site ("+siteKey+") != ("+newWorkspace.getSiteKey()+") FIXING UP workspace "+theFile);
-                    newWorkspace.setSiteKey(siteKey);
-                    System.out.println("    NOW ("+newWorkspace.getSiteKey()+")");
-                }
-                
-                String workspaceKey = workFolder.getName();
-                if (!workspaceKey.equals(newWorkspace.getKey())) {
-                    System.out.println("Workspace ("+workspaceKey+") != ("+newWorkspace.getKey()+") FIXING UP workspace "+theFile);
-                    newWorkspace.setKey(workspaceKey);
-                }
+                newWorkspace = constructWorkspace(theFile, newDoc);
+                LOAD_TIME.recordSince(startTime);
+                LOAD_BYTES.record(theFile.length());
+            }
+            else {
+                CACHE_HITS.inc();
             }
 
             //store into the cache.  
@@ -236,26 +328,60 @@ public class NGWorkspace extends NGPage {
     }
 
 
+    /**
+     * Construct the workspace object for a document that was read from
+     * (or is about to be written to) the file, fixing up the site and
+     * workspace key to match the location of the file.
+     */
+    static NGWorkspace constructWorkspace(File theFile, Document newDoc) throws Exception {
+        //determine the site settings
+        File cogFolder = theFile.getParentFile();
+        File workFolder = cogFolder.getParentFile();
+        File siteFolder = workFolder.getParentFile();
+        String siteKey = siteFolder.getName();
+        NGBook theSite = NGBook.readSiteByKey(siteKey);
+
+        NGWorkspace newWorkspace = new NGWorkspace(theFile, newDoc, theSite);
+
+        if (!siteKey.equals(newWorkspace.getSiteKey())) {
+            System.out.println("Site ("+siteKey+") != ("+newWorkspace.getSiteKey()+") FIXING UP workspace "+theFile);
+            newWorkspace.setSiteKey(siteKey);
+            System.out.println("    NOW ("+newWorkspace.getSiteKey()+")");
+        }
+
+        String workspaceKey = workFolder.getName();
+        if (!workspaceKey.equals(newWorkspace.getKey())) {
+            System.out.println("Workspace ("+workspaceKey+") != ("+newWorkspace.getKey()+") FIXING UP workspace "+theFile);
+            newWorkspace.setKey(workspaceKey);
+        }
+        return newWorkspace;
+    }
+
+
     public List<AttachmentRecord> getAllAttachments() throws Exception {
         @SuppressWarnings("unchecked")
         List<AttachmentRecord> list = (List<AttachmentRecord>)(List<?>)
                 attachParent.getChildren("attachment", AttachmentRecordProj.class);
+        if (list.size()==0) {
+            //nothing to check, and while a new workspace is being constructed
+            //the folder is not set yet
+            return list;
+        }
+        FolderIndex index = FolderIndex.getIndex(containingFolder);
         for (AttachmentRecord att : list) {
             att.setContainer(this);
             String atype = att.getType();
             boolean isDel = att.isDeleted();
             if (atype.equals("FILE") && !isDel)
             {
-                File attPath = new File(containingFolder, att.getDisplayName());
-                if (!attPath.exists()) {
+                if (!attachmentFileExists(index, att.getDisplayName())) {
                     //the file is missing, set to GONE, but should this be persistent?
                     att.setType("GONE");
                 }
             }
             else if (atype.equals("GONE"))
             {
-                File attPath = new File(containingFolder, att.getDisplayName());
-                if (isDel || attPath.exists()) {
+                if (isDel || attachmentFileExists(index, att.getDisplayName())) {
                     //either attachment deleted, or we found it again, so set it back to file
                     att.setType("FILE");
                 }
@@ -264,6 +390,18 @@ public class NGWorkspace extends NGPage {
         return list;
     }
 
+    /**
+     * The index is case sensitive, but on Windows and Mac the file system
+     * is not, so when the index does not have the exact name the file
+     * system decides, the same as it did before the index.
+     */
+    private boolean attachmentFileExists(FolderIndex index, String name) {
+        if (index.getFile(name)!=null) {
+            return true;
+        }
+        return new File(containingFolder, name).exists();
+    }
+
     public AttachmentRecord createAttachment() throws Exception {
         AttachmentRecord attach = attachParent.createChild("attachment", AttachmentRecordProj.class);
         String newId = getUniqueOnPage();
@@ -273,14 +411,24 @@ public class NGWorkspace extends NGPage {
         return attach;
     }
 
+    /**
+     * Looks at the workspace folder for files that are not attachments yet,
+     * and for attachments whose files are gone.  The user asked for this,
+     * so the folder index is listed fresh first.
+     */
     public void scanForNewFiles() throws Exception {
-        File[] children = containingFolder.listFiles();
+        FolderIndex index = FolderIndex.getIndex(containingFolder);
+        index.invalidate();
         List<AttachmentRecord> list = getAllAttachments();
-        for (File child : children) {
-            if (child.isDirectory()) {
+        HashSet<String> knownNames = new HashSet<String>();
+        for (AttachmentRecord knownAtt : list) {
+            knownNames.add(knownAtt.getDisplayName());
+        }
+        for (FolderIndex.Entry child : index.getFiles()) {
+            if (child.isDirectory) {
                 continue;
             }
-            String fname = child.getName();
+            String fname = child.name;
             if (fname.endsWith(".sp")) {
                 //ignoring other possible project files
                 continue;
@@ -291,19 +439,14 @@ public class NGWorkspace extends NGPage {
             }
 
             //all others are possible documents at this point
-            AttachmentRecord att = null;
-            for (AttachmentRecord knownAtt : list) {
-                if (fname.equals(knownAtt.getDisplayName())) {
-                    att = knownAtt;
-                }
-            }
-            if (att!=null) {
+            if (knownNames.contains(fname)) {
                 continue;
             }
-            att = createAttachment();
+            AttachmentRecord att = createAttachment();
             att.setDisplayName(fname);
             att.setType("EXTRA");
             list.add(att);
+            knownNames.add(fname);
         }
         List<AttachmentRecord> ghosts = new ArrayList<AttachmentRecord>();
         for (AttachmentRecord knownAtt : list) {
@@ -317,7 +460,7 @@ public class NGWorkspace extends NGPage {
                 continue;
             }
             File attFile = aVer.getLocalFile();
-            if (!attFile.exists()) {
+            if (!index.exists(attFile)) {
                 knownAtt.setType("GONE");
             }
         }
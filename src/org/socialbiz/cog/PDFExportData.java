@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * Everything that goes into a PDF export of a workspace, copied out of the
+ * workspace while the lock is held.  The PDF is then rendered from this
+ * copy, usually on a background thread, without holding the lock.
+ *
+ * The digest of the copy is used as the version of the export: two exports
+ * with the same options of a workspace that has not changed (in any way that
+ * shows in the PDF) have the same digest, and so the same PDF.
+ */
+public class PDFExportData {
+
+    public String siteKey;
+    public String workspaceKey;
+    public String workspaceName;
+    public String siteName;
+
+    public boolean includeDecisions;
+    public boolean includeAttachments;
+    public boolean includeComments;
+    public boolean includeRoles;
+    public boolean includeActionItems;
+
+    public List<NoteData> notes = new ArrayList<NoteData>();
+    public List<DecisionData> decisions = new ArrayList<DecisionData>();
+    public List<AttachmentData> attachments = new ArrayList<AttachmentData>();
+    public List<ActionItemData> actionItems = new ArrayList<ActionItemData>();
+    public List<RoleData> roles = new ArrayList<RoleData>();
+
+    private String digest;
+
+    public static class NoteData {
+        public String subject;
+        public String editorName;
+        public long lastEdited;
+        public String wiki;
+        public List<CommentData> comments = new ArrayList<CommentData>();
+    }
+
+    public static class CommentData {
+        public long time;
+        public String userName;
+        public String content;
+    }
+
+    public static class DecisionData {
+        public int number;
+        public long timestamp;
+        public String decision;
+    }
+
+    public static class AttachmentData {
+        public String name;
+        public String description;
+    }
+
+    public static class ActionItemData {
+        public String synopsis;
+        public int state;
+        public String description;
+        public List<String> assignees = new ArrayList<String>();
+        public long dueDate;
+        public long startDate;
+        public long endDate;
+    }
+
+    public static class RoleData {
+        public String name;
+        public String description;
+        public String requirements;
+        public List<String> players = new ArrayList<String>();
+    }
+
+    /**
+     * Copy out of the workspace the topics listed, and the other sections
+     * that are selected.  Topic ids that are not found are ignored.  The
+     * caller must hold the lock on the workspace.
+     */
+    public static PDFExportData collect(NGWorkspace ngw, String[] noteIds,
+            boolean decisions, boolean attachments, boolean comments,
+            boolean roles, boolean actionItems) throws Exception {
+        PDFExportData data = new PDFExportData();
+        data.siteKey = ngw.getSiteKey();
+        data.workspaceKey = ngw.getKey();
+        data.workspaceName = ngw.getFullName();
+        data.siteName = ngw.getSite().getFullName();
+        data.includeDecisions = decisions;
+        data.includeAttachments = attachments;
+        data.includeComments = comments;
+        data.includeRoles = roles;
+        data.includeActionItems = actionItems;
+
+        if (noteIds!=null) {
+            for (String noteId : noteIds) {
+                TopicRecord note = ngw.getNote(noteId);
+                if (note==null) {
+                    continue;
+                }
+                NoteData nd = new NoteData();
+                nd.subject = note.getSubject();
+                nd.editorName = note.getModUser().getName();
+                nd.lastEdited = note.getLastEdited();
+                nd.wiki = note.getWiki();
+                if (comments) {
+                    for (CommentRecord cr : note.getComments()) {
+                        if (cr.getState() == CommentRecord.COMMENT_STATE_DRAFT) {
+                            continue;
+                        }
+                        CommentData cd = new CommentData();
+                        cd.time = cr.getPostTime();
+                        if (cd.time<100) {
+                            cd.time = cr.getTime();
+                        }
+                        cd.userName = cr.getUser().getName();
+                        cd.content = cr.getContent();
+                        nd.comments.add(cd);
+                    }
+                }
+                data.notes.add(nd);
+            }
+        }
+        if (decisions) {
+            for (DecisionRecord dr : ngw.getDecisions()) {
+                DecisionData dd = new DecisionData();
+                dd.number = dr.getNumber();
+                dd.timestamp = dr.getTimestamp();
+                dd.decision = dr.getDecision();
+                data.decisions.add(dd);
+            }
+        }
+        if (attachments) {
+            for (AttachmentRecord att : ngw.getAllAttachments()) {
+                AttachmentData ad = new AttachmentData();
+                ad.name = att.getDisplayName();
+                ad.description = att.getDescription();
+                data.attachments.add(ad);
+            }
+        }
+        if (actionItems) {
+            for (GoalRecord goal : ngw.getAllGoals()) {
+                ActionItemData ai = new ActionItemData();
+                ai.synopsis = goal.getSynopsis();
+                ai.state = goal.getState();
+                ai.description = goal.getDescription();
+                for (AddressListEntry ale : goal.getAssigneeRole().getDirectPlayers()) {
+                    ai.assignees.add(ale.getName());
+                }
+                ai.dueDate = goal.getDueDate();
+                ai.startDate = goal.getStartDate();
+                ai.endDate = goal.getEndDate();
+                data.actionItems.add(ai);
+            }
+        }
+        if (roles) {
+            for (CustomRole role : ngw.getAllRoles()) {
+                RoleData rd = new RoleData();
+                rd.name = role.getName();
+                rd.description = role.getDescription();
+                rd.requirements = role.getRequirements();
+                for (AddressListEntry ale : role.getDirectPlayers()) {
+                    rd.players.add(ale.getName());
+                }
+                data.roles.add(rd);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Read the options from a posted JSON object of the form:
+     *
+     * {
+     *   "publicNotes": ["id1", "id2"],
+     *   "decisions": true,
+     *   "attachments": false,
+     *   "comments": true,
+     *   "roles": false,
+     *   "actionItems": true
+     * }
+     */
+    public static PDFExportData collect(NGWorkspace ngw, JSONObject options) throws Exception {
+        String[] noteIds = new String[0];
+        if (options.has("publicNotes")) {
+            JSONArray ja = options.getJSONArray("publicNotes");
+            noteIds = new String[ja.length()];
+            for (int i=0; i<ja.length(); i++) {
+                noteIds[i] = ja.getString(i);
+            }
+        }
+        return collect(ngw, noteIds,
+                options.optBoolean("decisions"),
+                options.optBoolean("attachments"),
+                options.optBoolean("comments"),
+                options.optBoolean("roles"),
+                options.optBoolean("actionItems"));
+    }
+
+    /**
+     * A hex SHA-1 of everything in the export, including the options.
+     */
+    public synchronized String getDigest() throws Exception {
+        if (digest!=null) {
+            return digest;
+        }
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        add(md, siteKey);
+        add(md, workspaceKey);
+        add(md, workspaceName);
+        add(md, siteName);
+        add(md, includeDecisions);
+        add(md, includeAttachments);
+        add(md, includeComments);
+        add(md, includeRoles);
+        add(md, includeActionItems);
+        for (NoteData nd : notes) {
+            add(md, "note");
+            add(md, nd.subject);
+            add(md, nd.editorName);
+            add(md, nd.lastEdited);
+            add(md, nd.wiki);
+            for (CommentData cd : nd.comments) {
+                add(md, "comment");
+                add(md, cd.time);
+                add(md, cd.userName);
+                add(md, cd.content);
+            }
+        }
+        for (DecisionData dd : decisions) {
+            add(md, "decision");
+            add(md, dd.number);
+            add(md, dd.timestamp);
+            add(md, dd.decision);
+        }
+        for (AttachmentData ad : attachments) {
+            add(md, "attachment");
+            add(md, ad.name);
+            add(md, ad.description);
+        }
+        for (ActionItemData ai : actionItems) {
+            add(md, "action");
+            add(md, ai.synopsis);
+            add(md, ai.state);
+            add(md, ai.description);
+            for (String name : ai.assignees) {
+                add(md, name);
+            }
+            add(md, ai.dueDate);
+            add(md, ai.startDate);
+            add(md, ai.endDate);
+        }
+        for (RoleData rd : roles) {
+            add(md, "role");
+            add(md, rd.name);
+            add(md, rd.description);
+            add(md, rd.requirements);
+            for (String name : rd.players) {
+                add(md, name);
+            }
+        }
+        StringBuilder sb = new StringBuilder(40);
+        for (byte b : md.digest()) {
+            int val = b & 0xFF;
+            if (val<16) {
+                sb.append('0');
+            }
+            sb.append(Integer.toHexString(val));
+        }
+        digest = sb.toString();
+        return digest;
+    }
+
+    private static void add(MessageDigest md, String value) throws Exception {
+        if (value!=null) {
+            md.update(value.getBytes("UTF-8"));
+        }
+        //separator so that adjacent values can not run together
+        md.update((byte)0);
+    }
+
+    private static void add(MessageDigest md, long value) throws Exception {
+        add(md, Long.toString(value));
+    }
+
+    private static void add(MessageDigest md, boolean value) throws Exception {
+        add(md, value ? "1" : "0");
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.socialbiz.cog.exception.ProgramLogicError;
+
+import com.purplehillsbooks.json.JSONException;
+import com.purplehillsbooks.json.JSONObject;
+import com.purplehillsbooks.streams.NullWriter;
+
+/**
+ * Renders PDF exports of workspaces on background threads.
+ *
+ * The request thread copies what is needed out of the workspace (see
+ * PDFExportData) while it holds the lock, releases the lock, and then
+ * submits the copy here.  The PDF is rendered to a file in the export
+ * folder, and the job can be polled for its status as JSON, and the
+ * file downloaded when it is done.
+ *
+ * Finished exports are kept, keyed by the digest of the copied data, so
+ * asking again for the same export of a workspace that has not changed
+ * gets the same file without rendering it again.  The number kept is
+ * set by "pdfExportCacheSize" (default 50), the oldest are deleted first.
+ * The number of threads rendering is "pdfExportThreads" (default 2).
+ * The files are in "pdfExportFolder", or a folder in the system temp
+ * folder if that is not set, and are deleted when the server starts.
+ */
+public class PDFExportQueue {
+
+    public static final String STATE_WAITING = "waiting";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_DONE    = "done";
+    public static final String STATE_FAILED  = "failed";
+
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_CACHE_SIZE = 50;
+
+    private static Cognoscenti cog = null;
+    private static ExecutorService pool = null;
+    private static File exportFolder = null;
+    private static int cacheSize = DEFAULT_CACHE_SIZE;
+
+    //all jobs by id, and the same jobs by digest, oldest first
+    private static HashMap<String, ExportJob> jobsById = new HashMap<String, ExportJob>();
+    private static LinkedHashMap<String, ExportJob> jobsByDigest = new LinkedHashMap<String, ExportJob>(64, 0.75f, true);
+
+    private static long totalRequests = 0;
+    private static long cacheHits = 0;
+
+    public static class ExportJob {
+        private String id;
+        private String digest;
+        private String siteKey;
+        private String workspaceKey;
+        private String state = STATE_WAITING;
+        private File file;
+        private long created;
+        private long started;
+        private long finished;
+        private String error;
+
+        public String getId() {
+            return id;
+        }
+        public String getSiteKey() {
+            return siteKey;
+        }
+        public String getWorkspaceKey() {
+            return workspaceKey;
+        }
+        public synchronized String getState() {
+            return state;
+        }
+        public synchronized boolean isFinished() {
+            return STATE_DONE.equals(state) || STATE_FAILED.equals(state);
+        }
+
+        /**
+         * The rendered PDF, or null if the job is not done.
+         */
+        public synchronized File getFile() {
+            if (!STATE_DONE.equals(state)) {
+                return null;
+            }
+            return file;
+        }
+
+        /**
+         * Wait up to the given time for the job to finish.  Zero waits
+         * until it is finished, however long that is.
+         */
+        public synchronized void waitFor(long timeout) throws Exception {
+            long endTime = System.currentTimeMillis() + timeout;
+            while (!isFinished()) {
+                if (timeout<=0) {
+                    wait();
+                    continue;
+                }
+                long remaining = endTime - System.currentTimeMillis();
+                if (remaining<=0) {
+                    return;
+                }
+                wait(remaining);
+            }
+        }
+
+        public synchronized JSONObject getJSON() throws Exception {
+            JSONObject jo = new JSONObject();
+            jo.put("id", id);
+            jo.put("state", state);
+            jo.put("created", created);
+            jo.put("started", started);
+            jo.put("finished", finished);
+            if (STATE_DONE.equals(state)) {
+                jo.put("size", file.length());
+            }
+            if (error!=null) {
+                jo.put("error", error);
+            }
+            return jo;
+        }
+
+        private synchronized void fail(String reason) {
+            error = reason;
+            setState(STATE_FAILED);
+        }
+
+        private synchronized void setState(String newState) {
+            state = newState;
+            if (STATE_RUNNING.equals(newState)) {
+                started = System.currentTimeMillis();
+            }
+            else if (isFinished()) {
+                finished = System.currentTimeMillis();
+                notifyAll();
+            }
+        }
+    }
+
+    public static void initialize(Cognoscenti newCog) throws Exception {
+        int threads = DOMFace.safeConvertInt(newCog.getConfig().getProperty("pdfExportThreads"));
+        if (threads<=0) {
+            threads = DEFAULT_THREADS;
+        }
+        int newSize = DOMFace.safeConvertInt(newCog.getConfig().getProperty("pdfExportCacheSize"));
+        if (newSize<=0) {
+            newSize = DEFAULT_CACHE_SIZE;
+        }
+        String folderPath = newCog.getConfig().getProperty("pdfExportFolder");
+        File newFolder;
+        if (folderPath!=null && folderPath.length()>0) {
+            newFolder = new File(folderPath);
+        }
+        else {
+            newFolder = new File(System.getProperty("java.io.tmpdir"), "cogPdfExport");
+        }
+        if (!newFolder.exists() && !newFolder.mkdirs()) {
+            throw new Exception("Unable to create the PDF export folder "+newFolder);
+        }
+        clearAllStaticVars();
+        File[] leftOver = newFolder.listFiles();
+        if (leftOver!=null) {
+            for (File child : leftOver) {
+                String name = child.getName();
+                if (name.endsWith(".pdf") || name.endsWith(".tmp")) {
+                    child.delete();
+                }
+            }
+        }
+        synchronized (PDFExportQueue.class) {
+            cog = newCog;
+            exportFolder = newFolder;
+            cacheSize = newSize;
+            pool = Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    public static synchronized void clearAllStaticVars() {
+        if (pool!=null) {
+            //the renders that never started are failed, so that anyone
+            //waiting for them is woken up
+            for (Runnable notRun : pool.shutdownNow()) {
+                if (notRun instanceof RenderTask) {
+                    ((RenderTask) notRun).job.fail("The PDF export was stopped before it started");
+                }
+            }
+            pool = null;
+        }
+        for (ExportJob job : jobsById.values()) {
+            if (job.file!=null) {
+                job.file.delete();
+            }
+        }
+        jobsById.clear();
+        jobsByDigest.clear();
+        totalRequests = 0;
+        cacheHits = 0;
+    }
+
+    /**
+     * Start rendering the export, or return the job that already has (or
+     * is making) the same export.  The caller must NOT be holding the lock
+     * on the workspace, there is no need for it.
+     */
+    public static ExportJob submit(PDFExportData data) throws Exception {
+        String digest = data.getDigest();
+        ExportJob job;
+        synchronized (PDFExportQueue.class) {
+            if (pool==null) {
+                throw new ProgramLogicError("PDFExportQueue has not been initialized");
+            }
+            totalRequests++;
+            job = jobsByDigest.get(digest);
+            if (job!=null && !STATE_FAILED.equals(job.getState())) {
+                cacheHits++;
+                return job;
+            }
+            job = new ExportJob();
+            job.id = IdGenerator.generateKey();
+            job.digest = digest;
+            job.siteKey = data.siteKey;
+            job.workspaceKey = data.workspaceKey;
+            job.created = System.currentTimeMillis();
+            job.file = new File(exportFolder, job.id + ".pdf");
+            jobsById.put(job.id, job);
+            jobsByDigest.put(digest, job);
+            trimCache();
+            //execute, not submit, so that shutdownNow gives back the RenderTask
+            pool.execute(new RenderTask(job, data, cog));
+        }
+        return job;
+    }
+
+    public static synchronized ExportJob getJob(String id) {
+        return jobsById.get(id);
+    }
+
+    /**
+     * Remove the oldest finished jobs, and their files, beyond the cache
+     * size.  Jobs that are still rendering are left alone.
+     */
+    private static void trimCache() {
+        int excess = jobsByDigest.size() - cacheSize;
+        if (excess<=0) {
+            return;
+        }
+        Iterator<ExportJob> iter = jobsByDigest.values().iterator();
+        while (excess>0 && iter.hasNext()) {
+            ExportJob old = iter.next();
+            if (!old.isFinished()) {
+                continue;
+            }
+            iter.remove();
+            jobsById.remove(old.id);
+            old.file.delete();
+            excess--;
+        }
+    }
+
+    public static synchronized JSONObject getStatsJSON() throws Exception {
+        JSONObject jo = new JSONObject();
+        jo.put("jobs", jobsById.size());
+        jo.put("maxSize", cacheSize);
+        jo.put("requests", totalRequests);
+        jo.put("cacheHits", cacheHits);
+        return jo;
+    }
+
+    private static class RenderTask implements Runnable {
+        ExportJob job;
+        PDFExportData data;
+        Cognoscenti taskCog;
+
+        RenderTask(ExportJob newJob, PDFExportData newData, Cognoscenti newCog) {
+            job = newJob;
+            data = newData;
+            taskCog = newCog;
+        }
+
+        public void run() {
+            job.setState(STATE_RUNNING);
+            File tempFile = new File(job.file.getParentFile(), job.id + ".tmp");
+            try {
+                AuthRequest ar = new AuthDummy(new NullWriter(), taskCog);
+                WikiToPDF wtp = new WikiToPDF(ar);
+                OutputStream out = new FileOutputStream(tempFile);
+                try {
+                    wtp.writeDataAsPDF(data, out);
+                }
+                finally {
+                    out.close();
+                }
+                if (job.file.exists()) {
+                    job.file.delete();
+                }
+                if (!tempFile.renameTo(job.file)) {
+                    throw new Exception("Unable to rename "+tempFile+" to "+job.file);
+                }
+                System.out.println("PDFEXPORT: rendered "+job.siteKey+"/"+job.workspaceKey
+                        +" in "+(System.currentTimeMillis()-job.started)+"ms, "+job.file.length()+" bytes");
+                job.setState(STATE_DONE);
+            }
+            catch (Throwable e) {
+                //an Error too, like running out of memory on a big workspace,
+                //otherwise the job would stay running and be reused forever
+                JSONException.traceException(System.out, e, "PDFEXPORT: failed for "+job.siteKey+"/"+job.workspaceKey);
+                tempFile.delete();
+                job.fail(e.toString());
+                if (e instanceof Error) {
+                    throw (Error) e;
+                }
+            }
+            finally {
+                NGPageIndex.clearLocksHeldByThisThread();
+            }
+        }
+    }
+}
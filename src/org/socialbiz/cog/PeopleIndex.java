@@ -0,0 +1,410 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * All the people that the server knows about (user profiles that are not
+ * disabled, and micro profiles) arranged for finding them as the user
+ * types into a people picker.
+ *
+ * Every word of the name, every part of the email address, and the user
+ * key are kept in one sorted array, so that the people with a word that
+ * starts with what was typed are found with a binary search.  Names and
+ * addresses are also indexed by every three letters, so that typing the
+ * middle of a word still finds the person, as the picker in the browser
+ * always did.
+ *
+ * The index does not change once made.  When a user profile or micro
+ * profile changes call peopleChanged(), and the next query makes a new
+ * index.  An index older than 10 minutes is also made again, to pick up
+ * changes to profiles that were not saved.
+ *
+ * The full list (AllPeople.json) is made once for each index, as bytes
+ * and as gzip bytes, so sending it is just copying the bytes out.
+ */
+public class PeopleIndex {
+
+    public static final int DEFAULT_PAGE_SIZE = 20;
+    public static final int MAX_PAGE_SIZE = 100;
+    private static final long MAX_AGE = 600000;
+
+    private static AtomicLong changeCount = new AtomicLong();
+    private static AtomicLong buildCount = new AtomicLong();
+    private static volatile PeopleIndex current = null;
+
+    private final long changesSeen;
+    private final long builtTime;
+    private final String version;
+    private final Person[] people;
+    private final String[] tokens;
+    private final int[] tokenPerson;
+    private final HashMap<String, int[]> trigrams;
+
+    private byte[] fullList = null;
+    private byte[] fullListGzip = null;
+
+
+    /**
+     * Call this when any profile is added, removed, or changed.
+     */
+    public static void peopleChanged() {
+        changeCount.incrementAndGet();
+    }
+
+    public static void clearAllStaticVars() {
+        current = null;
+        changeCount.incrementAndGet();
+    }
+
+    /**
+     * The current index, made again first if anything has changed.
+     */
+    public static PeopleIndex getIndex() throws Exception {
+        PeopleIndex index = current;
+        if (index!=null && index.isCurrent()) {
+            return index;
+        }
+        synchronized (PeopleIndex.class) {
+            index = current;
+            if (index==null || !index.isCurrent()) {
+                //read the count before the users, so a change while reading makes it stale
+                long seen = changeCount.get();
+                index = new PeopleIndex(seen,
+                        UserManager.getStaticUserManager().getAllPossibleUsers());
+                current = index;
+            }
+            return index;
+        }
+    }
+
+    private boolean isCurrent() {
+        return changesSeen==changeCount.get()
+                && builtTime > System.currentTimeMillis() - MAX_AGE;
+    }
+
+
+    private PeopleIndex(long _changesSeen, List<AddressListEntry> allPeople) throws Exception {
+        changesSeen = _changesSeen;
+        builtTime = System.currentTimeMillis();
+        version = Long.toString(builtTime, 36) + "-" + buildCount.incrementAndGet();
+
+        List<Person> personList = new ArrayList<Person>();
+        for (AddressListEntry ale : allPeople) {
+            personList.add(new Person(ale));
+        }
+        Collections.sort(personList, new Comparator<Person>() {
+            public int compare(Person p1, Person p2) {
+                return p1.lowerName.compareTo(p2.lowerName);
+            }
+        });
+        people = personList.toArray(new Person[personList.size()]);
+
+        List<TokenRef> tokenList = new ArrayList<TokenRef>();
+        HashMap<String, List<Integer>> gramLists = new HashMap<String, List<Integer>>();
+        for (int i=0; i<people.length; i++) {
+            Person p = people[i];
+            for (String token : p.getTokens()) {
+                tokenList.add(new TokenRef(token, i));
+            }
+            addTrigrams(gramLists, p.lowerName, i);
+            addTrigrams(gramLists, p.lowerUid, i);
+        }
+        Collections.sort(tokenList);
+        tokens = new String[tokenList.size()];
+        tokenPerson = new int[tokenList.size()];
+        for (int i=0; i<tokens.length; i++) {
+            tokens[i] = tokenList.get(i).token;
+            tokenPerson[i] = tokenList.get(i).person;
+        }
+        trigrams = new HashMap<String, int[]>();
+        for (String gram : gramLists.keySet()) {
+            List<Integer> list = gramLists.get(gram);
+            int[] postings = new int[list.size()];
+            for (int i=0; i<postings.length; i++) {
+                postings[i] = list.get(i);
+            }
+            trigrams.put(gram, postings);
+        }
+    }
+
+    private static void addTrigrams(HashMap<String, List<Integer>> gramLists, String value, int person) {
+        for (int i=0; i+3<=value.length(); i++) {
+            String gram = value.substring(i, i+3);
+            List<Integer> list = gramLists.get(gram);
+            if (list==null) {
+                list = new ArrayList<Integer>();
+                gramLists.put(gram, list);
+            }
+            //people are added in order, so a repeat is always the last one
+            if (list.isEmpty() || list.get(list.size()-1)!=person) {
+                list.add(person);
+            }
+        }
+    }
+
+    /**
+     * Changes every time the index is made again, use it to tell whether a
+     * client already has the current list.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return people.length;
+    }
+
+    /**
+     * The people that match what was typed, best matches first.  Each word
+     * of the query has to match, either as the start of a word of the name,
+     * the email address, or the key, or anywhere in the name or address.
+     * People whose name or address starts with the whole query come first,
+     * then those where every word starts a word, then the rest, and within
+     * each of those in order of name.  An empty query matches everyone.
+     */
+    public JSONObject query(String query, int offset, int limit) throws Exception {
+        if (limit<=0) {
+            limit = DEFAULT_PAGE_SIZE;
+        }
+        if (limit>MAX_PAGE_SIZE) {
+            limit = MAX_PAGE_SIZE;
+        }
+        if (offset<0) {
+            offset = 0;
+        }
+        String q = (query==null) ? "" : query.trim().toLowerCase();
+        List<Integer> matches = findMatches(q);
+
+        JSONArray list = new JSONArray();
+        int end = Math.min(matches.size(), offset+limit);
+        for (int i=offset; i<end; i++) {
+            list.put(people[matches.get(i)].entry.getJSON());
+        }
+        JSONObject result = new JSONObject();
+        result.put("query", q);
+        result.put("offset", offset);
+        result.put("limit", limit);
+        result.put("total", matches.size());
+        result.put("version", version);
+        result.put("people", list);
+        return result;
+    }
+
+    List<Integer> findMatches(String q) {
+        List<Integer> res = new ArrayList<Integer>();
+        if (q.length()==0) {
+            for (int i=0; i<people.length; i++) {
+                res.add(i);
+            }
+            return res;
+        }
+        String[] words = q.split("\\s+");
+        BitSet found = null;
+        BitSet allPrefix = null;
+        for (String word : words) {
+            if (word.length()==0) {
+                continue;
+            }
+            BitSet prefixMatches = findPrefix(word);
+            BitSet wordMatches = (BitSet) prefixMatches.clone();
+            wordMatches.or(findContaining(word));
+            if (found==null) {
+                found = wordMatches;
+                allPrefix = prefixMatches;
+            }
+            else {
+                found.and(wordMatches);
+                allPrefix.and(prefixMatches);
+            }
+        }
+        if (found==null) {
+            return res;
+        }
+
+        final int[] rank = new int[people.length];
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i+1)) {
+            Person p = people[i];
+            if (p.lowerName.startsWith(q) || p.lowerUid.startsWith(q)) {
+                rank[i] = 0;
+            }
+            else if (allPrefix.get(i)) {
+                rank[i] = 1;
+            }
+            else {
+                rank[i] = 2;
+            }
+            res.add(i);
+        }
+        //people are in name order, and this sort keeps that order for the same rank
+        Collections.sort(res, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return rank[i1] - rank[i2];
+            }
+        });
+        return res;
+    }
+
+    private BitSet findPrefix(String word) {
+        BitSet res = new BitSet(people.length);
+        int pos = Arrays.binarySearch(tokens, word);
+        if (pos<0) {
+            pos = -pos - 1;
+        }
+        while (pos<tokens.length && tokens[pos].startsWith(word)) {
+            res.set(tokenPerson[pos]);
+            pos++;
+        }
+        return res;
+    }
+
+    private BitSet findContaining(String word) {
+        BitSet res = new BitSet(people.length);
+        if (word.length()<3) {
+            //too short for the trigrams, but these are found by prefix anyway
+            return res;
+        }
+        //the shortest list of any three letters in the word has all the candidates
+        int[] candidates = null;
+        for (int i=0; i+3<=word.length(); i++) {
+            int[] postings = trigrams.get(word.substring(i, i+3));
+            if (postings==null) {
+                return res;
+            }
+            if (candidates==null || postings.length<candidates.length) {
+                candidates = postings;
+            }
+        }
+        for (int candidate : candidates) {
+            Person p = people[candidate];
+            if (p.lowerName.indexOf(word)>=0 || p.lowerUid.indexOf(word)>=0) {
+                res.set(candidate);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The whole list of people in UTF-8 JSON, as AllPeople.json has always
+     * returned it.
+     */
+    public synchronized byte[] getFullList() throws Exception {
+        if (fullList==null) {
+            JSONArray peopleList = new JSONArray();
+            for (Person p : people) {
+                peopleList.put(p.entry.getJSON());
+            }
+            JSONObject result = new JSONObject();
+            result.put("people", peopleList);
+            result.put("version", version);
+            fullList = result.toString().getBytes("UTF-8");
+        }
+        return fullList;
+    }
+
+    /**
+     * The full list, gzip compressed.
+     */
+    public synchronized byte[] getFullListGzip() throws Exception {
+        if (fullListGzip==null) {
+            byte[] plain = getFullList();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(plain.length/4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(baos);
+            gzip.write(plain);
+            gzip.close();
+            fullListGzip = baos.toByteArray();
+        }
+        return fullListGzip;
+    }
+
+
+    private static class Person {
+        final AddressListEntry entry;
+        final String lowerName;
+        final String lowerUid;
+        final String lowerKey;
+
+        Person(AddressListEntry ale) {
+            entry = ale;
+            String uid = ale.getUniversalId();
+            String name = ale.getName();
+            if (name==null || name.length()==0) {
+                name = uid;
+            }
+            lowerUid = (uid==null) ? "" : uid.toLowerCase();
+            lowerName = (name==null) ? "" : name.toLowerCase();
+            UserProfile up = ale.getUserProfile();
+            lowerKey = (up==null) ? null : up.getKey().toLowerCase();
+        }
+
+        List<String> getTokens() {
+            List<String> res = new ArrayList<String>();
+            addWords(res, lowerName);
+            res.add(lowerUid);
+            addWords(res, lowerUid);
+            if (lowerKey!=null) {
+                res.add(lowerKey);
+            }
+            return res;
+        }
+
+        private static void addWords(List<String> res, String value) {
+            int start = -1;
+            for (int i=0; i<=value.length(); i++) {
+                boolean isWordChar = i<value.length() && Character.isLetterOrDigit(value.charAt(i));
+                if (isWordChar && start<0) {
+                    start = i;
+                }
+                else if (!isWordChar && start>=0) {
+                    res.add(value.substring(start, i));
+                    start = -1;
+                }
+            }
+        }
+    }
+
+    private static class TokenRef implements Comparable<TokenRef> {
+        final String token;
+        final int person;
+
+        TokenRef(String _token, int _person) {
+            token = _token;
+            person = _person;
+        }
+
+        public int compareTo(TokenRef other) {
+            return token.compareTo(other.token);
+        }
+    }
+}
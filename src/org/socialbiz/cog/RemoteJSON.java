@@ -20,11 +20,28 @@
 
 package org.socialbiz.cog;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
+import java.io.StringWriter;
 import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
 import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONObject;
@@ -32,9 +49,98 @@ import com.purplehillsbooks.json.JSONTokener;
 
 /**
 * A remote retrieval of JSON (GET) and call (POST)
+*
+* All requests go through one pooled HTTP client, so connections to the
+* same upstream server are kept alive and reused instead of opened for
+* every call.  Every request has a connect timeout and a read timeout, so
+* an upstream server that does not answer can not hang a request thread
+* forever.  The settings are in the config file:
+*
+* remoteConnectTimeout     milliseconds to wait for a connection (default 30000)
+* remoteReadTimeout        milliseconds to wait for data (default 60000)
+* remoteMaxConnections     connections kept open per server (default 8)
+* remoteParallelTransfers  documents and topics transferred at the same
+*                          time when synchronizing a workspace (default 4)
 */
 public class RemoteJSON {
 
+    private static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    private static final int DEFAULT_READ_TIMEOUT = 60000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+    private static final int DEFAULT_PARALLEL_TRANSFERS = 4;
+
+    private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static int readTimeout = DEFAULT_READ_TIMEOUT;
+    private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private static int parallelTransfers = DEFAULT_PARALLEL_TRANSFERS;
+
+    private static CloseableHttpClient client = null;
+
+
+    public static void initialize(Cognoscenti cog) throws Exception {
+        int newConnect = getConfigInt(cog, "remoteConnectTimeout", DEFAULT_CONNECT_TIMEOUT);
+        int newRead = getConfigInt(cog, "remoteReadTimeout", DEFAULT_READ_TIMEOUT);
+        int newMax = getConfigInt(cog, "remoteMaxConnections", DEFAULT_MAX_CONNECTIONS);
+        int newParallel = getConfigInt(cog, "remoteParallelTransfers", DEFAULT_PARALLEL_TRANSFERS);
+        configure(newConnect, newRead, newMax, newParallel);
+    }
+
+    /**
+     * Set the timeouts and sizes directly, without a config file, for
+     * example from a test.  The client is made again on the next call.
+     */
+    public static void configure(int newConnect, int newRead, int newMax, int newParallel) {
+        clearAllStaticVars();
+        synchronized (RemoteJSON.class) {
+            connectTimeout = newConnect;
+            readTimeout = newRead;
+            maxConnections = newMax;
+            parallelTransfers = newParallel;
+        }
+    }
+
+    public static synchronized void clearAllStaticVars() {
+        if (client!=null) {
+            try {
+                client.close();
+            }
+            catch (Exception e) {
+                System.out.println("REMOTEJSON: error closing the HTTP client: "+e);
+            }
+            client = null;
+        }
+    }
+
+    /**
+     * How many transfers to do at the same time when synchronizing.
+     */
+    public static synchronized int getParallelTransfers() {
+        return parallelTransfers;
+    }
+
+    /**
+     * The client is made on first use, so this works even when the
+     * server has not been initialized, for example from a test.
+     */
+    private static synchronized CloseableHttpClient getClient() {
+        if (client==null) {
+            PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+            pool.setMaxTotal(maxConnections * 4);
+            pool.setDefaultMaxPerRoute(maxConnections);
+            RequestConfig config = RequestConfig.custom()
+                    .setConnectTimeout(connectTimeout)
+                    .setConnectionRequestTimeout(connectTimeout)
+                    .setSocketTimeout(readTimeout)
+                    .build();
+            client = HttpClients.custom()
+                    .setConnectionManager(pool)
+                    .setDefaultRequestConfig(config)
+                    .evictIdleConnections(60, TimeUnit.SECONDS)
+                    .build();
+        }
+        return client;
+    }
+
 
     /**
      * Retrieves a remote JSONObject.
@@ -44,9 +150,9 @@ public class RemoteJSON {
      * to be thrown instead of returning the object.
      */
     public static JSONObject getFromRemote(URL url) throws Exception {
-        InputStream is = url.openStream();
-        JSONTokener jt = new JSONTokener(is);
-        JSONObject retrievedObj = new JSONObject(jt);
+        HttpGet get = new HttpGet(url.toExternalForm());
+        get.setHeader("Accept", "application/json");
+        JSONObject retrievedObj = executeForJSON(get, url);
         String responseCode = retrievedObj.optString("responseCode");
         if (responseCode!=null && responseCode.length()>0 && !"200".equals(responseCode)) {
             StringBuilder reason = new StringBuilder();
@@ -71,30 +177,18 @@ public class RemoteJSON {
      */
     public static JSONObject postToRemote(URL url, JSONObject msg) throws Exception {
         try {
-            HttpURLConnection httpCon = (HttpURLConnection) url.openConnection();
-            httpCon.setDoOutput(true);
-            httpCon.setDoInput(true);
-            httpCon.setUseCaches(false);
-            httpCon.setRequestProperty( "Content-Type", "application/json" );
-            httpCon.setRequestProperty("Accept", "application/json");
+            HttpPost post = new HttpPost(url.toExternalForm());
+            post.setHeader("Accept", "application/json");
 
             //put this in because currently the authentication provider expects something in the origin
             //might not be necessary
-            httpCon.setRequestProperty("Origin", "http://bogus.example.com/");
-
-            httpCon.setRequestMethod("POST");
-            httpCon.connect();
-            OutputStream os = httpCon.getOutputStream();
-            OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-            msg.write(osw, 2, 0);
-            osw.flush();
-            osw.close();
-            os.close();
+            post.setHeader("Origin", "http://bogus.example.com/");
 
+            StringWriter sw = new StringWriter();
+            msg.write(sw, 2, 0);
+            post.setEntity(new StringEntity(sw.toString(), ContentType.APPLICATION_JSON));
 
-            InputStream is = httpCon.getInputStream();
-            JSONTokener jt = new JSONTokener(is);
-            JSONObject resp = new JSONObject(jt);
+            JSONObject resp = executeForJSON(post, url);
 
             int responseCode = resp.getInt("responseCode");
             if (responseCode!=200) {
@@ -122,4 +216,130 @@ public class RemoteJSON {
     }
 
 
+    /**
+     * Retrieves the remote resource as text, for example the wiki of a topic.
+     */
+    public static String getTextFromRemote(URL url) throws Exception {
+        CloseableHttpResponse response = execute(new HttpGet(url.toExternalForm()), url);
+        try {
+            InputStream is = getContent(response, url);
+            InputStreamReader isr = new InputStreamReader(is, "UTF-8");
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[4096];
+            int amt = isr.read(buf);
+            while (amt>0) {
+                sb.append(buf,0,amt);
+                amt = isr.read(buf);
+            }
+            isr.close();
+            return sb.toString();
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Retrieves the remote resource into a local file, for example the
+     * contents of a document.
+     */
+    public static void getFileFromRemote(URL url, File destination) throws Exception {
+        CloseableHttpResponse response = execute(new HttpGet(url.toExternalForm()), url);
+        try {
+            InputStream is = getContent(response, url);
+            OutputStream os = new FileOutputStream(destination);
+            try {
+                UtilityMethods.streamToStream(is, os);
+            }
+            finally {
+                os.close();
+                is.close();
+            }
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Sends the contents of a local file to the remote address with a PUT.
+     */
+    public static void putFileToRemote(URL url, File source) throws Exception {
+        HttpPut put = new HttpPut(url.toExternalForm());
+        put.setEntity(new FileEntity(source, ContentType.APPLICATION_OCTET_STREAM));
+        CloseableHttpResponse response = execute(put, url);
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            if (status!=200) {
+                throw new Exception("Attempt to PUT file failed with code ("
+                        +status+"): "+url);
+            }
+        }
+        finally {
+            response.close();
+        }
+    }
+
+
+    private static CloseableHttpResponse execute(HttpUriRequest request, URL url) throws Exception {
+        try {
+            return getClient().execute(request);
+        }
+        catch (Exception e) {
+            throw new Exception("Unable to reach the remote server at "+url, e);
+        }
+    }
+
+    private static InputStream getContent(CloseableHttpResponse response, URL url) throws Exception {
+        int status = response.getStatusLine().getStatusCode();
+        if (status!=200) {
+            throw new Exception("Remote server returned status "+status+" for "+url);
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity==null) {
+            throw new Exception("Remote server returned no content for "+url);
+        }
+        return entity.getContent();
+    }
+
+    /**
+     * Parse the response as JSON.  Errors from the cognoscenti API are
+     * JSON with an error status, so the body is parsed whatever the status
+     * is, and the status is reported only if the body is not JSON.
+     */
+    private static JSONObject executeForJSON(HttpUriRequest request, URL url) throws Exception {
+        CloseableHttpResponse response = execute(request, url);
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (entity==null) {
+                throw new Exception("Remote server returned status "+status+" and no content for "+url);
+            }
+            InputStream is = entity.getContent();
+            try {
+                return new JSONObject(new JSONTokener(is));
+            }
+            catch (Exception e) {
+                if (status!=200) {
+                    throw new Exception("Remote server returned status "+status+" for "+url, e);
+                }
+                throw e;
+            }
+            finally {
+                is.close();
+            }
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    private static int getConfigInt(Cognoscenti cog, String name, int defaultValue) throws Exception {
+        int val = DOMFace.safeConvertInt(cog.getConfig().getProperty(name));
+        if (val<=0) {
+            return defaultValue;
+        }
+        return val;
+    }
+
 }
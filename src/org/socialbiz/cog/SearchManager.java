@@ -48,6 +48,9 @@ public class SearchManager {
     private Analyzer analyzer = null;
     private Cognoscenti cog = null;
 
+    private static final MetricsRegistry.Histogram SEARCH_TIME = MetricsRegistry.timer(
+            "cog_search_seconds", "Time to perform a full text search");
+
     public SearchManager(Cognoscenti _cog) {
         cog = _cog;
     }
@@ -281,6 +284,7 @@ public class SearchManager {
 
         ireader.close();
         System.out.println("SearchManager - finished serching: "+(System.currentTimeMillis()-startTime)+" ms");
+        SEARCH_TIME.recordSince(startTime);
         return vec;
     }
 
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import com.purplehillsbooks.json.JSONException;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * Keeps the statistics of each workspace, so that the statistics of a site
+ * can be added up from them without reading every workspace in the site.
+ *
+ * Each workspace has its own statistics, kept in memory and in stats.json
+ * in the .cog folder of the workspace.  When a workspace is saved it is
+ * marked as stale, and a background task gathers the statistics again for
+ * just the workspaces that are stale.  A workspace is also stale when the
+ * workspace file is newer than its stats file, which covers changes made
+ * while the server was not running.
+ *
+ * The site totals are added up on request from whatever is known.  Page
+ * requests never gather statistics from a workspace; a workspace that has
+ * never been gathered is left out until the background task gets to it.
+ * The background task runs every "statsRefreshSeconds" (default 60).
+ */
+public class SiteStatsMgr implements Runnable {
+
+    private static final long DEFAULT_REFRESH_SECONDS = 60;
+
+    //stats by site key then workspace key
+    private static HashMap<String, HashMap<String, WorkspaceStats>> statsBySite =
+            new HashMap<String, HashMap<String, WorkspaceStats>>();
+
+    //workspaces to gather again, "siteKey|workspaceKey"
+    private static LinkedHashSet<String> stale = new LinkedHashSet<String>();
+
+    private static boolean initialScanDone = false;
+    private static long gatherCount = 0;
+    private static long gatherMillis = 0;
+
+    private Cognoscenti cog;
+
+    private SiteStatsMgr(Cognoscenti newCog) {
+        cog = newCog;
+    }
+
+    public static void initRefresher(BackgroundScheduler scheduler, Cognoscenti cog) throws Exception {
+        long seconds = DOMFace.safeConvertLong(cog.getConfig().getProperty("statsRefreshSeconds"));
+        if (seconds<=0) {
+            seconds = DEFAULT_REFRESH_SECONDS;
+        }
+        scheduler.schedule(BackgroundScheduler.LANE_INDEXING, "Workspace statistics",
+                new SiteStatsMgr(cog), 45000, seconds*1000);
+    }
+
+    public static synchronized void clearAllStaticVars() {
+        statsBySite.clear();
+        stale.clear();
+        initialScanDone = false;
+        gatherCount = 0;
+        gatherMillis = 0;
+    }
+
+    /**
+     * Called whenever a workspace is saved.  This is cheap, the statistics
+     * are gathered later in the background.
+     */
+    public static synchronized void workspaceChanged(String siteKey, String workspaceKey) {
+        stale.add(siteKey + "|" + workspaceKey);
+    }
+
+    /**
+     * Add up the statistics of all the workspaces in the site that are known.
+     * If nothing is known about any of them yet (the server just started
+     * and the background task has not run) then the last saved site totals
+     * are returned, if there are any.
+     */
+    public static WorkspaceStats getSiteStats(Cognoscenti cog, NGBook site) throws Exception {
+        String siteKey = site.getKey();
+        WorkspaceStats siteStats = new WorkspaceStats();
+        int found = 0;
+        List<NGPageIndex> missing = new ArrayList<NGPageIndex>();
+        synchronized (SiteStatsMgr.class) {
+            HashMap<String, WorkspaceStats> siteMap = getSiteMap(siteKey);
+            for (NGPageIndex ngpi : cog.getAllProjectsInSite(siteKey)) {
+                WorkspaceStats wStats = siteMap.get(ngpi.containerKey);
+                if (wStats==null) {
+                    missing.add(ngpi);
+                    continue;
+                }
+                siteStats.addAllStats(wStats);
+                found++;
+            }
+        }
+        //the saved files can be read without any workspace lock
+        for (NGPageIndex ngpi : missing) {
+            WorkspaceStats wStats = readStatsFile(ngpi);
+            if (wStats==null) {
+                continue;
+            }
+            synchronized (SiteStatsMgr.class) {
+                getSiteMap(siteKey).put(ngpi.containerKey, wStats);
+            }
+            siteStats.addAllStats(wStats);
+            found++;
+        }
+        if (found==0 && site.getStatsFilePath().exists()) {
+            return site.getStatsFile();
+        }
+        return siteStats;
+    }
+
+    public static synchronized JSONObject getStatusJSON() throws Exception {
+        JSONObject jo = new JSONObject();
+        int count = 0;
+        for (HashMap<String, WorkspaceStats> siteMap : statsBySite.values()) {
+            count += siteMap.size();
+        }
+        jo.put("workspaces", count);
+        jo.put("stale", stale.size());
+        jo.put("gathered", gatherCount);
+        jo.put("gatherMillis", gatherMillis);
+        return jo;
+    }
+
+    private static HashMap<String, WorkspaceStats> getSiteMap(String siteKey) {
+        HashMap<String, WorkspaceStats> siteMap = statsBySite.get(siteKey);
+        if (siteMap==null) {
+            siteMap = new HashMap<String, WorkspaceStats>();
+            statsBySite.put(siteKey, siteMap);
+        }
+        return siteMap;
+    }
+
+    private static File getStatsFile(NGPageIndex ngpi) {
+        File cogFolder = ngpi.containerPath.getParentFile();
+        if (cogFolder==null || !".cog".equals(cogFolder.getName())) {
+            return null;
+        }
+        return new File(cogFolder, "stats.json");
+    }
+
+    /**
+     * Returns the saved statistics, or null if there are none or if the
+     * workspace has been changed since they were saved.
+     */
+    private static WorkspaceStats readStatsFile(NGPageIndex ngpi) {
+        File statsFile = getStatsFile(ngpi);
+        if (statsFile==null || !statsFile.exists()) {
+            return null;
+        }
+        if (statsFile.lastModified() < ngpi.containerPath.lastModified()) {
+            return null;
+        }
+        try {
+            return WorkspaceStats.fromJSON(JSONObject.readFromFile(statsFile));
+        }
+        catch (Exception e) {
+            //a damaged file is simply gathered again
+            return null;
+        }
+    }
+
+    /**
+     * The background task.  On the first run every workspace that has no
+     * current stats file is marked stale, after that only the workspaces
+     * that have been saved are gathered.
+     */
+    public void run() {
+        try {
+            NGPageIndex.assertNoLocksOnThread();
+            if (!cog.isInitialized) {
+                return;
+            }
+            boolean firstRun;
+            synchronized (SiteStatsMgr.class) {
+                firstRun = !initialScanDone;
+                initialScanDone = true;
+            }
+            if (firstRun) {
+                markMissingAsStale();
+            }
+            while (true) {
+                String next;
+                synchronized (SiteStatsMgr.class) {
+                    if (stale.isEmpty()) {
+                        break;
+                    }
+                    next = stale.iterator().next();
+                    stale.remove(next);
+                }
+                int barPos = next.indexOf('|');
+                refreshWorkspace(next.substring(0, barPos), next.substring(barPos+1));
+            }
+        }
+        catch (Exception e) {
+            JSONException.traceException(System.out, e, "SITESTATS: failure refreshing statistics");
+        }
+        finally {
+            NGPageIndex.clearLocksHeldByThisThread();
+        }
+    }
+
+    private void markMissingAsStale() throws Exception {
+        for (NGPageIndex ngpi : cog.getAllContainers()) {
+            if (!ngpi.isProject()) {
+                continue;
+            }
+            WorkspaceStats wStats = readStatsFile(ngpi);
+            synchronized (SiteStatsMgr.class) {
+                if (wStats==null) {
+                    stale.add(ngpi.wsSiteKey + "|" + ngpi.containerKey);
+                }
+                else {
+                    getSiteMap(ngpi.wsSiteKey).put(ngpi.containerKey, wStats);
+                }
+            }
+        }
+    }
+
+    private void refreshWorkspace(String siteKey, String workspaceKey) {
+        long startTime = System.currentTimeMillis();
+        try {
+            NGPageIndex ngpi = cog.getWSBySiteAndKey(siteKey, workspaceKey);
+            if (ngpi==null) {
+                //workspace has been removed
+                synchronized (SiteStatsMgr.class) {
+                    getSiteMap(siteKey).remove(workspaceKey);
+                }
+                return;
+            }
+            WorkspaceStats wStats = new WorkspaceStats();
+            wStats.gatherFromWorkspace(ngpi.getWorkspace());
+            NGPageIndex.clearLocksHeldByThisThread();
+
+            File statsFile = getStatsFile(ngpi);
+            if (statsFile!=null) {
+                wStats.getJSON().writeToFile(statsFile);
+            }
+            synchronized (SiteStatsMgr.class) {
+                getSiteMap(siteKey).put(workspaceKey, wStats);
+                gatherCount++;
+                gatherMillis += System.currentTimeMillis() - startTime;
+            }
+        }
+        catch (Exception e) {
+            JSONException.traceException(System.out, e, "SITESTATS: unable to gather statistics for "
+                    +siteKey+"/"+workspaceKey);
+        }
+        finally {
+            NGPageIndex.clearLocksHeldByThisThread();
+        }
+    }
+}
@@ -662,6 +662,10 @@ public class TopicRecord extends CommentContainer implements EmailContext {
       }
 
       public String getNoteHtml(AuthRequest ar) throws Exception {
+          if (ar.ngp!=null) {
+              //uses the cache of converted wiki text
+              return WikiConverterForWYSIWYG.makeHtmlString(ar, getWiki());
+          }
           MemFile htmlChunk = new MemFile();
           AuthDummy dummy = new AuthDummy(ar.getUserProfile(), htmlChunk.getWriter(), ar.getCogInstance());
           dummy.ngp     = ar.ngp;
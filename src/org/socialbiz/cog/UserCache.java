@@ -94,7 +94,7 @@ public class UserCache {
                     //now determine if the user is asked to attend this meeting
                     NGRole targetRole = aPage.getRole(meet.getTargetRole());
                     if (targetRole!=null && targetRole.isPlayer(up)) {
-                        addMeetingToList(futureMeetings, meet, aPage, address);
+                        futureMeetings.put(meetingJSON(meet, aPage, address));
                     }
                 }
             }
@@ -109,6 +109,18 @@ public class UserCache {
         cacheObj.put("futureMeetings", futureMeetings);
     }
 
+    /**
+     * Replaces the lists with ones that were made somewhere else, like the
+     * daily digest does from its one pass over all the workspaces.
+     */
+    public void setLists(JSONArray actionItemList, JSONArray proposalList,
+            JSONArray openRounds, JSONArray futureMeetings) throws Exception {
+        cacheObj.put("actionItems", actionItemList);
+        cacheObj.put("proposals", proposalList);
+        cacheObj.put("openRounds", openRounds);
+        cacheObj.put("futureMeetings", futureMeetings);
+    }
+
     private void addPollIfNoResponse(JSONArray proposalList, JSONArray openRounds, CommentRecord cr,
             UserProfile up, NGPage aPage, String targetRoleName, String address, long nowTime) throws Exception {
 
@@ -118,7 +130,7 @@ public class UserCache {
             if (up.equals(cr.getUser())) {
                 //first ... is this the owner, and if overdue let them know
                 //If user created this round, then remember that ... because it is still open or draft
-                addRecordToList(openRounds, cr,  aPage, address);
+                openRounds.put(commentJSON(cr, aPage, address));
             }
 
 
@@ -130,7 +142,7 @@ public class UserCache {
                     //add proposal info if there is no response from this user
                     //seems a bit overkill to have everything, but then,
                     //everything is there for displaying a list...
-                    addRecordToList(proposalList, cr,  aPage, address);
+                    proposalList.put(commentJSON(cr, aPage, address));
                 }
             }
         }
@@ -138,12 +150,15 @@ public class UserCache {
         //now check to see if there are any draft comments hanging around.
         else if (cr.getState()==CommentRecord.COMMENT_STATE_DRAFT) {
             if (up.equals(cr.getUser())) {
-                addRecordToList(openRounds, cr,  aPage, address);
+                openRounds.put(commentJSON(cr, aPage, address));
             }
         }
     }
 
-    private void addRecordToList(JSONArray list, CommentRecord cr, NGPage aPage, String address) throws Exception {
+    /**
+     * The entry of a comment in the proposals or open rounds list.
+     */
+    public static JSONObject commentJSON(CommentRecord cr, NGPage aPage, String address) throws Exception {
         JSONObject jo = cr.getJSON();
         String prop = cr.getContent();
         if (prop.length()>100) {
@@ -156,11 +171,14 @@ public class UserCache {
         jo.put("siteKey", site.getKey());
         jo.put("siteName", site.getFullName());
         jo.put("address", address+"#cmt"+cr.getTime());
-        list.put(jo);
+        return jo;
     }
 
 
-    private void addMeetingToList(JSONArray list, MeetingRecord meet, NGPage aPage, String address) throws Exception {
+    /**
+     * The entry of a meeting in the future meetings list.
+     */
+    public static JSONObject meetingJSON(MeetingRecord meet, NGPage aPage, String address) throws Exception {
         JSONObject jo = meet.getMinimalJSON();
         jo.put("workspaceKey", aPage.getKey());
         jo.put("workspaceName", aPage.getFullName());
@@ -168,7 +186,7 @@ public class UserCache {
         jo.put("siteKey", site.getKey());
         jo.put("siteName", site.getFullName());
         jo.put("address", address);
-        list.put(jo);
+        return jo;
     }
 
 
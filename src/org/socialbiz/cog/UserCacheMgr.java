@@ -1,9 +1,12 @@
 package org.socialbiz.cog;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import com.purplehillsbooks.json.JSONArray;
+
 public class UserCacheMgr {
 
     Set<String> needsRecalc;
@@ -11,7 +14,8 @@ public class UserCacheMgr {
 
     public UserCacheMgr(Cognoscenti _cog) throws Exception{
         cog = _cog;
-        needsRecalc = new HashSet<String>();
+        //the daily digest uses this from several threads at once
+        needsRecalc = Collections.synchronizedSet(new HashSet<String>());
 
         //now initialize all users as needing a recalc sisce we don't know who
         //needed update at the time the server was last shut down.
@@ -32,6 +36,18 @@ public class UserCacheMgr {
         needsRecalc.add(aUser);
     }
 
+    /**
+     * Saves lists that were already made for the user, without looking at
+     * the workspaces.  A user marked for recalc stays marked, because
+     * something may have changed after the lists were made.
+     */
+    public void storeLists(String userKey, JSONArray actionItemList, JSONArray proposalList,
+            JSONArray openRounds, JSONArray futureMeetings) throws Exception {
+        UserCache theCache = new UserCache(cog, userKey);
+        theCache.setLists(actionItemList, proposalList, openRounds, futureMeetings);
+        theCache.save();
+    }
+
     public UserCache getCache(String userKey) throws Exception {
         UserCache theCache = new UserCache(cog, userKey);
         if (needsRecalc.contains(userKey)) {
@@ -40,6 +40,11 @@ public class UserManager
     public static int loadCount = 0;
     public static int modCount = 0;
     public static int saveCount = 0;
+
+    private static final MetricsRegistry.Counter LOAD_COUNT = MetricsRegistry.counter(
+            "cog_user_file_loads_total", "Times the user profile file was read");
+    private static final MetricsRegistry.Counter SAVE_COUNT = MetricsRegistry.counter(
+            "cog_user_file_saves_total", "Times the user profile file was written");
     
     private static Hashtable<String, UserProfile> userHashByUID = new Hashtable<String, UserProfile>();
     private static Hashtable<String, UserProfile> userHashByKey = new Hashtable<String, UserProfile>();
@@ -123,6 +128,7 @@ public class UserManager
        
         JSONObject userFile = JSONObject.readFromFile(jsonFileName);
         loadCount++;
+        LOAD_COUNT.inc();
         
         JSONArray users = userFile.getJSONArray("users");
         
@@ -204,6 +210,7 @@ public class UserManager
         Document userDoc = DOMUtils.convertInputStreamToDocument(is, false, false);
         DOMFile profileFile = new DOMFile(xmlFileName, userDoc);
         loadCount++;
+        LOAD_COUNT.inc();
 
         //there was some kind of bug that allowed multiple entries to be created
         //with the same unique key, and that causes all sorts of problems.
@@ -247,6 +254,8 @@ public class UserManager
         userFile.writeToFile(jsonFileName);
         
         saveCount++;
+        SAVE_COUNT.inc();
+        PeopleIndex.peopleChanged();
     }
 
    
@@ -263,6 +272,7 @@ public class UserManager
         }
         userHashByUID = readHashByUID;
         userHashByKey = readHashByKey;
+        PeopleIndex.peopleChanged();
     }
 
 
@@ -446,23 +456,15 @@ public class UserManager
         return sendTo;
     }
 
-    public synchronized UserPage findOrCreateUserPage(String userKey)  throws Exception {
+    /**
+    * Each call gets its own copy of the user page, read from memory when
+    * the file has not changed, see UserPageCache.
+    */
+    public UserPage findOrCreateUserPage(String userKey)  throws Exception {
         if (userKey==null || userKey.length()==0) {
             throw new NGException("nugen.exception.cant.create.user.page",null);
         }
-        File userFolder = cog.getConfig().getUserFolderOrFail();
-        File newPlace = new File(userFolder, userKey+".user");
-
-        //check to see if the file is there
-        if (!newPlace.exists())  {
-            //it might be in the old position.
-            File oldPlace = cog.getConfig().getFile(userKey+".user");
-            if (oldPlace.exists()) {
-                UserPage.moveFile(oldPlace, newPlace);
-            }
-        }
-        Document newDoc = UserPage.readOrCreateFile(newPlace, "user");
-        return new UserPage(newPlace, newDoc, userKey);
+        return UserPageCache.getUserPage(cog, userKey);
     }
 
     
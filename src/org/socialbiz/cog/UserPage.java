@@ -22,8 +22,9 @@ package org.socialbiz.cog;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Vector;
+import java.util.Set;
 
 import org.socialbiz.cog.dms.ConnectionSettings;
 import org.socialbiz.cog.dms.ConnectionType;
@@ -43,7 +44,7 @@ public class UserPage extends ContainerCommon
 {
     private UserInfoRecord userInfo;
     private String    key;
-    private Vector<String> existingIds = null;
+    private IdAllocator idAllocator = null;
 
     private DOMFace taskRefs = null;
     private List<RemoteGoal> userTaskRefs = null;
@@ -103,6 +104,31 @@ public class UserPage extends ContainerCommon
         save();
     }
 
+    /**
+     * Writes the file holding the lock of this user, and gives a copy of
+     * what was written to UserPageCache for the next request.  If the write fails,
+     * the cache reads the file again next time.
+     */
+    @Override
+    public void save() throws Exception {
+        Object lock = UserPageCache.acquireLock(key);
+        try {
+            synchronized (lock) {
+                try {
+                    super.save();
+                }
+                catch (Exception e) {
+                    UserPageCache.forget(lock);
+                    throw e;
+                }
+                UserPageCache.pageSaved(lock, this);
+            }
+        }
+        finally {
+            UserPageCache.releaseLock(lock);
+        }
+    }
+
 
     public void setLastModify(AuthRequest ar)
     {
@@ -119,9 +145,9 @@ public class UserPage extends ContainerCommon
     /**
     * Get a four digit numeric id which is unique on the page.
     */
-    public String getUniqueOnPage() throws Exception {
-        if (existingIds == null) {
-            existingIds = new Vector<String>();
+    public synchronized String getUniqueOnPage() throws Exception {
+        if (idAllocator == null) {
+            List<String> existingIds = new ArrayList<String>();
 
             // walk through all sections and find current ids
             for (StatusReport stat : getStatusReports()) {
@@ -133,8 +159,9 @@ public class UserPage extends ContainerCommon
             for (AgentRule ar : getAgentRules()) {
                 existingIds.add(ar.getId());
             }
+            idAllocator = new IdAllocator(existingIds);
         }
-        return IdGenerator.generateFourDigit(existingIds);
+        return idAllocator.allocate();
     }
 
 
@@ -441,6 +468,7 @@ public class UserPage extends ContainerCommon
         RemoteGoal newOne = taskRefs.createChild("Task", RemoteGoal.class);
         newOne.setProjectKey(projectKey);
         newOne.setId(id);
+        userTaskRefs = null;
         return newOne;
 
     }
@@ -468,6 +496,7 @@ public class UserPage extends ContainerCommon
 
         RemoteGoal newOne = taskRefs.createChild("Task", RemoteGoal.class);
         newOne.setAccessURL(accessUrl);
+        userTaskRefs = null;
         return newOne;
     }
 
@@ -541,6 +570,7 @@ public class UserPage extends ContainerCommon
         if (statusReps==null) {
             statusReps = requireChild("StatusReps", DOMFace.class);
         }
+        statusRepList = null;
         StatusReport newOne = statusReps.createChild("StatusReport", StatusReport.class);
         newOne.setId(getUniqueOnPage());
         return newOne;
@@ -572,13 +602,19 @@ public class UserPage extends ContainerCommon
     public List<AddressListEntry> getPeopleYouMayKnowList() throws Exception{
 
         List<AddressListEntry> resultList = new ArrayList<AddressListEntry>();
-        List <AddressListEntry> existingContacts = getExistingContacts();
+
+        //the contact ids in lower case, so that each person is checked with a
+        //few lookups instead of comparing with every contact
+        Set<String> contactIds = new HashSet<String>();
+        for (AddressListEntry contact : getExistingContacts()) {
+            contactIds.add(contact.getInitialId().toLowerCase());
+        }
 
         //TODO: this looks very suspicious.  It gets your contacts, and then it looks through
         // all of the user profiles, and gets the address list entry of the contct.
         // I can't tell if this does anything important or not.
         for (UserProfile userProfile : UserManager.getStaticUserManager().getAllUserProfiles()) {
-            if(!CustomRole.isPlayerOfAddressList(userProfile, existingContacts)){
+            if(!isContact(userProfile, contactIds)){
                 resultList.add(new AddressListEntry(userProfile));
             }
         }
@@ -587,7 +623,15 @@ public class UserPage extends ContainerCommon
         //I don't understand why it needs to do this.
         List<AddressListEntry> microProfileIds = MicroProfileMgr.getAllProfileIds();
         for (AddressListEntry ale : microProfileIds) {
-            if(!CustomRole.isPlayerOfAddressList(ale, existingContacts)){
+            UserProfile up = ale.getUserProfile();
+            boolean known;
+            if (up!=null) {
+                known = isContact(up, contactIds);
+            }
+            else {
+                known = contactIds.contains(ale.getInitialId().toLowerCase());
+            }
+            if(!known){
                 resultList.add(ale);
             }
         }
@@ -595,6 +639,24 @@ public class UserPage extends ContainerCommon
         return resultList;
     }
 
+    /**
+     * Same test as UserProfile.hasAnyId for each contact: any id, the
+     * name, or the key, ignoring case.
+     */
+    private static boolean isContact(UserProfile up, Set<String> contactIds) {
+        for (String id : up.getAllIds()) {
+            if (contactIds.contains(id.toLowerCase())) {
+                return true;
+            }
+        }
+        String name = up.getName();
+        if (name!=null && contactIds.contains(name.toLowerCase())) {
+            return true;
+        }
+        String key = up.getKey();
+        return (key!=null && contactIds.contains(key.toLowerCase()));
+    }
+
     public List<ProfileRef> getProfileRefs() throws Exception {
         if (profileRefs==null) {
             profileRefs = requireChild("ProfileRefs", DOMFace.class);
@@ -615,6 +677,7 @@ public class UserPage extends ContainerCommon
 
         ProfileRef newOne = profileRefs.createChild("ProfileRef", ProfileRef.class);
         newOne.setAddress(address);
+        profileList = null;
         return newOne;
     }
 
@@ -632,6 +695,7 @@ public class UserPage extends ContainerCommon
 
         ProfileRef newOne = profileRefs.createChild("ProfileRef", ProfileRef.class);
         newOne.setAddress(urlAddress);
+        profileList = null;
         return newOne;
     }
 
@@ -680,6 +744,7 @@ public class UserPage extends ContainerCommon
     public void deleteAgentRule(String id) throws Exception {
         AgentRule found = findAgentRule(id);
         agentRules.removeChild(found);
+        agentList = null;
     }
 
     public void purgeDeletedAttachments() throws Exception {
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.socialbiz.cog.exception.NGException;
+import org.w3c.dom.Document;
+
+/**
+ * Keeps the user pages ({userKey}.user files) in memory, parsed, so that a
+ * request that asks for a user page does not read and parse the file
+ * every time.
+ *
+ * The parsed document in the cache is never given out.  Every call to
+ * getUserPage gets a deep copy of it (cloneNode) so a request can change
+ * its page without other requests seeing it, and changes that are never
+ * saved are simply dropped with the page, as they were before there was
+ * a cache.  Copying is done holding the lock of the user, since a DOM is
+ * not safe to use from two threads at the same time, even for reading.
+ *
+ * Each user has an entry of their own, and the entry is the lock for
+ * that user: reading the file and saving the page are done holding it,
+ * so two requests for the same user never read the file twice or write
+ * it at the same time, while requests for other users do not wait.
+ * Saving a user page writes the file and then keeps a copy of the
+ * document that was written, without reading the file back.
+ * The date and size of the file are kept with the contents, and if they
+ * are different when the page is asked for, the file was changed outside
+ * of the server and it is read again.
+ *
+ * At most userPageCacheSize users (default 500) are kept.  When there are
+ * more, the ones used longest ago are dropped, but never an entry that a
+ * thread is using, so there is only ever one lock object for a user.
+ */
+public class UserPageCache {
+
+    private static final int DEFAULT_MAX_PAGES = 500;
+
+    private static final MetricsRegistry.Counter CACHE_HITS = MetricsRegistry.counter(
+            "cog_userpage_cache_hits_total", "User pages found in memory instead of read from disk");
+    private static final MetricsRegistry.Counter CACHE_MISSES = MetricsRegistry.counter(
+            "cog_userpage_cache_misses_total", "User pages read from disk");
+
+    //only used while holding the class lock
+    private static HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private static int maxPages = DEFAULT_MAX_PAGES;
+
+
+    public static synchronized void initialize(Cognoscenti cog) throws Exception {
+        clearAllStaticVars();
+        int configSize = DOMFace.safeConvertInt(cog.getConfig().getProperty("userPageCacheSize"));
+        if (configSize>0) {
+            maxPages = configSize;
+        }
+    }
+
+    public static synchronized void clearAllStaticVars() {
+        entries = new HashMap<String, Entry>();
+        maxPages = DEFAULT_MAX_PAGES;
+    }
+
+    /**
+     * A new user page for the key, copied from memory if the file has not
+     * changed since it was read or saved, otherwise read from the file.
+     * A new user gets a new empty page.
+     */
+    public static UserPage getUserPage(Cognoscenti cog, String userKey) throws Exception {
+        File userFolder = cog.getConfig().getUserFolderOrFail();
+        File newPlace = new File(userFolder, userKey+".user");
+        Document newDoc;
+        Entry entry = acquire(userKey);
+        try {
+            synchronized (entry) {
+                entry.lastUsed = System.currentTimeMillis();
+                if (entry.doc==null || !entry.fileUnchanged(newPlace)) {
+                    CACHE_MISSES.inc();
+                    //check to see if the file is there
+                    if (!newPlace.exists())  {
+                        //it might be in the old position.
+                        File oldPlace = cog.getConfig().getFile(userKey+".user");
+                        if (oldPlace.exists()) {
+                            UserPage.moveFile(oldPlace, newPlace);
+                        }
+                    }
+                    entry.readFile(newPlace);
+                }
+                else {
+                    CACHE_HITS.inc();
+                }
+                if (entry.doc==null) {
+                    newDoc = DOMUtils.createDocument("user");
+                }
+                else {
+                    newDoc = (Document) entry.doc.cloneNode(true);
+                }
+            }
+        }
+        catch (Exception e) {
+            throw new NGException("nugen.exception.unable.to.read.create.xml.file",
+                    new Object[] { newPlace.toString() }, e);
+        }
+        finally {
+            release(entry);
+        }
+        return new UserPage(newPlace, newDoc, userKey);
+    }
+
+    /**
+     * The lock of the user, for changing the file of the user.  It is the
+     * same object that getUserPage holds while reading the file.  The entry
+     * is kept until releaseLock is called, which must be done in a finally.
+     */
+    static Object acquireLock(String userKey) {
+        return acquire(userKey);
+    }
+
+    static void releaseLock(Object lock) {
+        release((Entry) lock);
+    }
+
+    /**
+     * Called by UserPage after it has written its file, holding the lock.
+     * A copy of the document that was written is kept for the next request,
+     * with the date and size of the file as it is now.
+     */
+    static void pageSaved(Object lock, UserPage page) {
+        Entry entry = (Entry) lock;
+        entry.lastUsed = System.currentTimeMillis();
+        File file = page.getFilePath();
+        entry.doc = page.copyDocument();
+        entry.fileTime = file.lastModified();
+        entry.fileSize = file.length();
+    }
+
+    /**
+     * The next request for this user page will read the file.  Used when a
+     * save fails, since it is not known what the file holds.
+     */
+    static void forget(Object lock) {
+        ((Entry) lock).doc = null;
+    }
+
+    /**
+     * The entry of the user, counted as in use until release is called,
+     * so that it is not dropped while a thread waits on it or holds it.
+     */
+    private static synchronized Entry acquire(String userKey) {
+        Entry entry = entries.get(userKey);
+        if (entry==null) {
+            entry = new Entry();
+            entries.put(userKey, entry);
+            if (entries.size()>maxPages) {
+                dropOldest();
+            }
+        }
+        entry.inUse++;
+        return entry;
+    }
+
+    private static synchronized void release(Entry entry) {
+        entry.inUse--;
+    }
+
+    /**
+     * Drops the entries used longest ago, down to 90% of the limit, so that
+     * this is not done again for every new user.  Entries in use are skipped.
+     */
+    private static synchronized void dropOldest() {
+        //lastUsed changes while sorting, so sort on a copy of it
+        List<Map.Entry<String, Entry>> list = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        for (Map.Entry<String, Entry> one : list) {
+            one.getValue().sortTime = one.getValue().lastUsed;
+        }
+        Collections.sort(list, new Comparator<Map.Entry<String, Entry>>() {
+            public int compare(Map.Entry<String, Entry> e1, Map.Entry<String, Entry> e2) {
+                long t1 = e1.getValue().sortTime;
+                long t2 = e2.getValue().sortTime;
+                return (t1<t2) ? -1 : ((t1==t2) ? 0 : 1);
+            }
+        });
+        int toRemove = list.size() - (maxPages * 9 / 10);
+        for (int i=0; i<list.size() && toRemove>0; i++) {
+            if (list.get(i).getValue().inUse==0) {
+                entries.remove(list.get(i).getKey());
+                toRemove--;
+            }
+        }
+    }
+
+
+    private static class Entry {
+        //the parsed file, or null if not read or there is no file.
+        //Only used holding the lock of the entry, and never given out.
+        Document doc;
+        long fileTime;
+        long fileSize;
+        volatile long lastUsed = System.currentTimeMillis();
+        long sortTime;
+        //only changed while holding the class lock
+        int inUse = 0;
+
+        void readFile(File file) throws Exception {
+            doc = null;
+            if (!file.exists()) {
+                return;
+            }
+            fileTime = file.lastModified();
+            fileSize = file.length();
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                doc = DOMUtils.convertInputStreamToDocument(fis, false, false);
+            }
+            finally {
+                fis.close();
+            }
+        }
+
+        boolean fileUnchanged(File file) {
+            return file.lastModified()==fileTime && file.length()==fileSize;
+        }
+    }
+}
@@ -20,6 +20,7 @@
 
 package org.socialbiz.cog;
 
+import java.io.Reader;
 import java.util.List;
 import java.util.Vector;
 
@@ -66,6 +67,16 @@ public class WikiConverter
         wc.writeWikiAsHtml(tv);
     }
 
+    /**
+    * Streaming version of the above, for wiki text that is read from a file
+    * or other stream, so that the whole text is never held in memory.
+    */
+    public static void writeWikiAsHtml(AuthRequest destination, Reader tv) throws Exception
+    {
+        WikiConverter wc = new WikiConverter(destination);
+        wc.writeWikiAsHtml(tv);
+    }
+
     /**
     * Takes a block of data formatted in wiki format, and converts
     * it to HTML, outputting that to the AuthRequest that was
@@ -73,7 +84,20 @@ public class WikiConverter
     */
     public void writeWikiAsHtml(String tv) throws Exception
     {
-        LineIterator li = new LineIterator(tv);
+        writeLines(new LineIterator(tv));
+    }
+
+    /**
+    * Same as above, reading the wiki text one line at a time from the reader.
+    * The reader is not closed.
+    */
+    public void writeWikiAsHtml(Reader tv) throws Exception
+    {
+        writeLines(new LineIterator(tv));
+    }
+
+    private void writeLines(LineIterator li) throws Exception
+    {
         while (li.moreLines())
         {
             String thisLine = li.nextLine();
@@ -46,11 +46,40 @@ public class WikiConverterForWYSIWYG extends WikiConverter
     * Static version create the object instance and then calls the
     * converter directly.   Convenience for the case where you are
     * going to use a converter only once, and only for HTML output.
+    *
+    * The result is kept in the WikiHtmlCache, so converting the same
+    * text for the same workspace again does not run the converter.
     */
     public static String makeHtmlString(AuthRequest destination, String tv) throws Exception {
         if (destination.ngp==null) {
             throw new Exception("makeHtmlString requires the AuthRequest to have a ngp object");
         }
+        if (tv==null) {
+            tv = "";
+        }
+
+        //the output depends on the workspace (for relative links), and on the
+        //base URL and the return path.  The request is always new UI here.
+        NGContainer ngc = destination.ngp;
+        String context = ngc.getKey();
+        if (ngc instanceof NGPage) {
+            context = ((NGPage)ngc).getSiteKey() + "/" + context;
+        }
+        context = context + "|" + destination.getSystemProperty("baseURL")
+                + "|" + destination.retPath;
+        String key = WikiHtmlCache.makeKey(WikiHtmlCache.MODE_WYSIWYG, context, tv);
+        String html = WikiHtmlCache.get(key);
+        if (html!=null) {
+            return html;
+        }
+
+        long linkVersion = NGTerm.getLinkIndexVersion();
+        html = convertToString(destination, tv);
+        WikiHtmlCache.put(key, html, linkVersion);
+        return html;
+    }
+
+    private static String convertToString(AuthRequest destination, String tv) throws Exception {
         MemFile htmlChunk = new MemFile();
         AuthDummy dummy = new AuthDummy(destination.getUserProfile(), htmlChunk.getWriter(), destination.getCogInstance());
         dummy.ngp     = destination.ngp;
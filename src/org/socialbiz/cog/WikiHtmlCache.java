@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * Holds the HTML produced from wiki text, so that the same text is not
+ * converted again and again.  Every poll of a topic or meeting converts
+ * the topic, every comment, and all the agenda items, and almost all of
+ * that text has not changed since the last poll.
+ *
+ * An entry is found using a hash of the wiki text, the render mode (which
+ * converter is used), and the context the links are written for: the
+ * workspace, the base URL, and the return path.  Links to other workspaces
+ * by name are resolved through the NGTerm index, so every entry also
+ * records the link index version it was made with.  When that index
+ * changes, everything cached is dropped.
+ *
+ * The number of entries is bounded by "wikiHtmlCacheSize" in the config
+ * file, least recently used are dropped first.  The hit rate is written to
+ * the log periodically, and is available from getStatsJSON.
+ */
+public class WikiHtmlCache {
+
+    public static final String MODE_WYSIWYG = "w";
+
+    private static final int DEFAULT_CACHE_SIZE = 2000;
+
+    //how many lookups between hit rate reports in the log
+    private static final int REPORT_INTERVAL = 1000;
+
+    private static int cacheSize = DEFAULT_CACHE_SIZE;
+    private static LinkedHashMap<String, String> cache = new LinkedHashMap<String, String>(256, 0.75f, true);
+    private static long cacheLinkVersion = -1;
+
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long evictions = 0;
+    private static long invalidations = 0;
+
+    private static final MetricsRegistry.Counter HIT_COUNT = MetricsRegistry.counter(
+            "cog_wiki_html_cache_hits_total", "Wiki to HTML conversions found in the cache");
+    private static final MetricsRegistry.Counter MISS_COUNT = MetricsRegistry.counter(
+            "cog_wiki_html_cache_misses_total", "Wiki to HTML conversions not found in the cache");
+
+    public static void initialize(Cognoscenti cog) throws Exception {
+        int newSize = DOMFace.safeConvertInt(cog.getConfig().getProperty("wikiHtmlCacheSize"));
+        if (newSize<=0) {
+            newSize = DEFAULT_CACHE_SIZE;
+        }
+        synchronized (WikiHtmlCache.class) {
+            cacheSize = newSize;
+            cache.clear();
+        }
+    }
+
+    public static synchronized void clearAllStaticVars() {
+        cache.clear();
+        cacheLinkVersion = -1;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        invalidations = 0;
+    }
+
+    /**
+     * Make the key for a piece of wiki text rendered in a particular mode
+     * for a particular context.  The context string must include everything,
+     * other than the text, that the output depends on.
+     */
+    public static String makeKey(String mode, String context, String wikiText) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] digest = md.digest(wikiText.getBytes("UTF-8"));
+        StringBuilder sb = new StringBuilder(mode.length() + context.length() + 44);
+        sb.append(mode);
+        sb.append("|");
+        sb.append(context);
+        sb.append("|");
+        for (byte b : digest) {
+            int val = b & 0xFF;
+            if (val<16) {
+                sb.append('0');
+            }
+            sb.append(Integer.toHexString(val));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the cached HTML for that key, or null if it has to be
+     * converted.  If the link index changed since the entries were made,
+     * they are all dropped.
+     */
+    public static synchronized String get(String key) {
+        checkLinkVersion();
+        String html = cache.get(key);
+        if (html==null) {
+            misses++;
+            MISS_COUNT.inc();
+        }
+        else {
+            hits++;
+            HIT_COUNT.inc();
+        }
+        if ((hits+misses) % REPORT_INTERVAL == 0) {
+            System.out.println("WIKIHTMLCACHE: "+(hits+misses)+" lookups, hit rate "
+                    +(hits*100/(hits+misses))+"%, "+cache.size()+" entries, "
+                    +invalidations+" invalidations");
+        }
+        return html;
+    }
+
+    /**
+     * Store the converted HTML.  Pass the link index version that was current
+     * before the conversion started, so that if the index changed during the
+     * conversion, the possibly stale result is not kept.
+     */
+    public static synchronized void put(String key, String html, long linkVersion) {
+        checkLinkVersion();
+        if (linkVersion!=cacheLinkVersion) {
+            return;
+        }
+        cache.put(key, html);
+        while (cache.size()>cacheSize) {
+            cache.remove(cache.keySet().iterator().next());
+            evictions++;
+        }
+    }
+
+    private static void checkLinkVersion() {
+        long current = NGTerm.getLinkIndexVersion();
+        if (current!=cacheLinkVersion) {
+            if (cache.size()>0) {
+                invalidations++;
+            }
+            cache.clear();
+            cacheLinkVersion = current;
+        }
+    }
+
+    public static synchronized JSONObject getStatsJSON() throws Exception {
+        JSONObject jo = new JSONObject();
+        jo.put("size", cache.size());
+        jo.put("maxSize", cacheSize);
+        jo.put("hits", hits);
+        jo.put("misses", misses);
+        jo.put("evictions", evictions);
+        jo.put("invalidations", invalidations);
+        long total = hits + misses;
+        if (total>0) {
+            jo.put("hitRate", ((double)hits) / total);
+        }
+        else {
+            jo.put("hitRate", 0.0);
+        }
+        return jo;
+    }
+}
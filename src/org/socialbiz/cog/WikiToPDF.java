@@ -180,32 +180,46 @@ public class WikiToPDF
         wc.writeWikiAsPDF(ngp, ar);
     }
 
+    /**
+    * Copies what is needed out of the workspace according to the request
+    * parameters: "publicNotes" (the ids of the topics) and the presence of
+    * "decisions", "attachments", "comments", "roles", "actionItems".
+    */
+    public static PDFExportData collectFromRequest(NGWorkspace ngw, AuthRequest ar) throws Exception {
+        return PDFExportData.collect(ngw, ar.req.getParameterValues("publicNotes"),
+                ar.req.getParameter("decisions")!=null,
+                ar.req.getParameter("attachments")!=null,
+                ar.req.getParameter("comments")!=null,
+                ar.req.getParameter("roles")!=null,
+                ar.req.getParameter("actionItems")!=null);
+    }
 
 
     public void writeWikiAsPDF(NGPage ngp, AuthRequest ar)  throws Exception {
 
-        Vector<TopicRecord> memberNotes = new Vector<TopicRecord>();
+        PDFExportData data = collectFromRequest((NGWorkspace)ngp, ar);
 
-        String[] publicNoteIDs = ar.req.getParameterValues("publicNotes");
-        
-        if (publicNoteIDs==null) {
-            publicNoteIDs = new String[0];
-        }
+        String fileName = ngp.getKey() + ".pdf";
+        ar.resp.setContentType("application/pdf");
+        ar.resp.setHeader( "Content-Disposition", "attachment; filename=\"" + fileName + "\"" );
+        OutputStream out = ar.resp.getOutputStream();
+        writeDataAsPDF(data, out);
+        out.flush();
+    }
 
-        for (String noteId : publicNoteIDs) {
-            TopicRecord lrt = ngp.getNote(noteId);
-            if (lrt!=null) {
-                memberNotes.add(lrt);
-            }
-        }
-        
-        includeDecisions = (ar.req.getParameter("decisions")!=null);
-        includeAttachments = (ar.req.getParameter("attachments")!=null);
-        includeComments = (ar.req.getParameter("comments")!=null);
-        includeRoles = (ar.req.getParameter("roles")!=null);
-        includeActionItems = (ar.req.getParameter("actionItems")!=null);
+    /**
+    * Renders the PDF from the copied data.  Does not touch the workspace,
+    * so it does not need the workspace lock.
+    */
+    public void writeDataAsPDF(PDFExportData data, OutputStream out)  throws Exception {
 
-        int totalNotes = memberNotes.size();
+        includeDecisions = data.includeDecisions;
+        includeAttachments = data.includeAttachments;
+        includeComments = data.includeComments;
+        includeRoles = data.includeRoles;
+        includeActionItems = data.includeActionItems;
+
+        int totalNotes = data.notes.size();
         pddoc = new PDDocument();
         
         //set up the print time for use in the footer
@@ -213,48 +227,40 @@ public class WikiToPDF
         
 
         if (totalNotes>1 || includeDecisions || includeAttachments) {
-            writeTOCPage(ngp, memberNotes);
+            writeTOCPage(data);
         }
 
         int noteCount = 0;
-        if(memberNotes.size() > 0){
-            for (TopicRecord lr : memberNotes) {
-                noteCount++;
-                writeNoteToPDF(ngp, lr, noteCount);
-            }
+        for (PDFExportData.NoteData note : data.notes) {
+            noteCount++;
+            writeNoteToPDF(data, note, noteCount);
         }
         
         if (includeDecisions) {
-            writeDecisionsToPDF(ngp);
+            writeDecisionsToPDF(data);
         }
         if (includeAttachments) {
-            writeAttachmentListToPDF(ngp);
+            writeAttachmentListToPDF(data);
         }
         if (includeActionItems) {
-            writeActionItemsToPDF(ngp);
+            writeActionItemsToPDF(data);
         }
         if (includeRoles) {
-            writeRolesToPDF(ngp);
+            writeRolesToPDF(data);
         }
         endPage();
 
-        String fileName = ngp.getKey() + ".pdf";
-        ar.resp.setContentType("application/pdf");
-        ar.resp.setHeader( "Content-Disposition", "attachment; filename=\"" + fileName + "\"" );
-        OutputStream out = ar.resp.getOutputStream();
         pddoc.save(out);
         pddoc.close();
-        out.flush();
     }
 
 
-    private void writeTOCPage(NGPage ngp, 
-            Vector<TopicRecord> memberNoteList)  throws Exception {
+    private void writeTOCPage(PDFExportData data)  throws Exception {
         headerText = "Topic report generated from Weaver";
 
         startPage();
 
-        String projectName = ngp.getFullName();
+        String projectName = data.workspaceName;
         setPFont();
         newLine();
         writeWrappedLine("Workspace:");
@@ -265,16 +271,16 @@ public class WikiToPDF
 
         int noteCount = 0;
 
-        if(memberNoteList.size() > 0){
+        if(data.notes.size() > 0){
             setPFont();
             newLine();
             newLine();
             writeWrappedLine("Discussion Topics: ");
-            for (TopicRecord note : memberNoteList) {
+            for (PDFExportData.NoteData note : data.notes) {
                 noteCount++;
                 setH2Font();
                 newLine();
-                writeWrappedLine(Integer.toString(noteCount)+": "+note.getSubject());
+                writeWrappedLine(Integer.toString(noteCount)+": "+note.subject);
             }
         }
 
@@ -312,13 +318,10 @@ public class WikiToPDF
     * it to HTML, outputting that to the AuthRequest that was
     * passed in when the object was constructed.
     */
-    public void writeNoteToPDF(NGPage ngp, TopicRecord note, int noteNum) throws Exception
+    public void writeNoteToPDF(PDFExportData data, PDFExportData.NoteData note, int noteNum) throws Exception
     {
-        NGBook book = ngp.getSite();
-
-        String subject = stripBadCharacters(note.getSubject());
-        UserRef lastEditor = note.getModUser();
-        String editTime = convertDateAndTime(note.getLastEdited());
+        String subject = stripBadCharacters(note.subject);
+        String editTime = convertDateAndTime(note.lastEdited);
 
         headerText = "Topic "+noteNum+": "+subject;
         if(!isNewPage){
@@ -334,32 +337,25 @@ public class WikiToPDF
         setH1Font();
         currentLineSize = 8;  //but really small
         newLine();
-        writeWrappedLine("Workspace: "+ngp.getFullName()+", Site: "+book.getFullName());
+        writeWrappedLine("Workspace: "+data.workspaceName+", Site: "+data.siteName);
         newLine();
-        writeWrappedLine("Last modified by:  "+lastEditor.getName()+" on "+editTime);
+        writeWrappedLine("Last modified by:  "+note.editorName+" on "+editTime);
 
         box(LEFT_MARGIN-2, TOP_MARGIN+2, RIGHT_MARGIN+2, (int) yPos-3);
         currentLineSize = 12;
         newLine();
 
-        writeWikiData(note.getWiki());
+        writeWikiData(note.wiki);
         if (includeComments) {
-            for (CommentRecord cr : note.getComments()) {
-                if (cr.getState() == CommentRecord.COMMENT_STATE_DRAFT) {
-                    continue;
-                }
-                long date = cr.getPostTime();
-                if (date<100) {
-                    date = cr.getTime();
-                }
-                String dateStr = convertDateAndTime(date);
+            for (PDFExportData.CommentData cr : note.comments) {
+                String dateStr = convertDateAndTime(cr.time);
                 makeHorizontalRule();
                 setH3Font();
                 newLine();
-                writeWrappedLine(dateStr+" from "+cr.getUser().getName());
+                writeWrappedLine(dateStr+" from "+cr.userName);
                 setPFont();
                 newLine();
-                writeWikiData(cr.getContent());
+                writeWikiData(cr.content);
             }
         }
     }
@@ -375,8 +371,7 @@ public class WikiToPDF
     }
 
     
-    private void pageTop(NGPage ngp, String title) throws Exception {
-        NGBook book = ngp.getSite();
+    private void pageTop(PDFExportData data, String title) throws Exception {
         headerText = title;
         if(!isNewPage){
             endPage();
@@ -391,7 +386,7 @@ public class WikiToPDF
         setH1Font();
         currentLineSize = 8;  //but really small
         newLine();
-        writeWrappedLine("Workspace: "+ngp.getFullName()+", Site: "+book.getFullName());
+        writeWrappedLine("Workspace: "+data.workspaceName+", Site: "+data.siteName);
 
         box(LEFT_MARGIN-2, TOP_MARGIN+2, RIGHT_MARGIN+2, (int) yPos-3);
     }
@@ -399,63 +394,63 @@ public class WikiToPDF
     /**
     * Takes all the decisions and makes a page(s) with them listed.
     */
-    public void writeDecisionsToPDF(NGPage ngp) throws Exception {
-        pageTop(ngp, "Decision List");
+    public void writeDecisionsToPDF(PDFExportData data) throws Exception {
+        pageTop(data, "Decision List");
         
-        for (DecisionRecord dr : ngp.getDecisions()) {
+        for (PDFExportData.DecisionData dr : data.decisions) {
             currentLineSize = 30;
             newLine();
             currentLineSize = 12;
             setH1Font();
-            writeWrappedLine("Decision #"+dr.getNumber()+" - "+convertDate(dr.getTimestamp()));
+            writeWrappedLine("Decision #"+dr.number+" - "+convertDate(dr.timestamp));
             newLine();
-            writeWikiData(dr.getDecision());
+            writeWikiData(dr.decision);
         }
     }    
 
-    public void writeAttachmentListToPDF(NGPage ngp) throws Exception {
-        pageTop(ngp, "Attachment Documents");
+    public void writeAttachmentListToPDF(PDFExportData data) throws Exception {
+        pageTop(data, "Attachment Documents");
         
         int count = 0;
-        for (AttachmentRecord att : ngp.getAllAttachments()) {
+        for (PDFExportData.AttachmentData att : data.attachments) {
             count++;
             currentLineSize = 16;
             newLine();
             setH3Font();
-            writeWrappedLine(""+count+". "+att.getDisplayName());
+            writeWrappedLine(""+count+". "+att.name);
             currentLineSize = 12;
-            writeWikiData(att.getDescription());
+            writeWikiData(att.description);
         }
     }        
 
-    public void writeActionItemsToPDF(NGPage ngp) throws Exception {
-        pageTop(ngp, "Action Items");
+    public void writeActionItemsToPDF(PDFExportData data) throws Exception {
+        pageTop(data, "Action Items");
         
         int count = 0;
-        for (GoalRecord actionItem : ngp.getAllGoals()) {
+        for (PDFExportData.ActionItemData actionItem : data.actionItems) {
             count++;
             currentLineSize = 16;
             newLine();
             setH3Font();
-            writeWrappedLine(""+count+". "+actionItem.getSynopsis()
-                    +" ("+GoalRecord.stateName(actionItem.getState())+")");
+            writeWrappedLine(""+count+". "+actionItem.synopsis
+                    +" ("+GoalRecord.stateName(actionItem.state)+")");
             currentLineSize = 12;
             StringBuilder sb = new StringBuilder();
-            sb.append(actionItem.getDescription());
+            sb.append(actionItem.description);
             sb.append("\n\n");
-            for (AddressListEntry ale : actionItem.getAssigneeRole().getDirectPlayers()) {
-                sb.append("* "+ale.getName()+"\n \n");
+            for (String name : actionItem.assignees) {
+                sb.append("* "+name+"\n \n");
             }
             
-            long date = actionItem.getDueDate();
+            long date = actionItem.dueDate;
             if (date>100) {
                 sb.append("Due: "+convertDate(date)+", ");
             }
-            date = actionItem.getStartDate();
+            date = actionItem.startDate;
             if (date>100) {
                 sb.append("Started: "+convertDate(date)+", ");
             }
-            date = actionItem.getEndDate();
+            date = actionItem.endDate;
             if (date>100) {
                 sb.append("Completed: "+convertDate(date)+", ");
             }
@@ -466,24 +461,24 @@ public class WikiToPDF
         }
     }            
 
-    public void writeRolesToPDF(NGPage ngp) throws Exception {
-        pageTop(ngp, "Roles");
+    public void writeRolesToPDF(PDFExportData data) throws Exception {
+        pageTop(data, "Roles");
         
         int count = 0;
-        for (CustomRole role : ngp.getAllRoles()) {
+        for (PDFExportData.RoleData role : data.roles) {
             count++;
             currentLineSize = 16;
             newLine();
             setH3Font();
-            writeWrappedLine(""+count+". "+role.getName());
+            writeWrappedLine(""+count+". "+role.name);
             currentLineSize = 12;
             StringBuilder sb = new StringBuilder();
-            sb.append(role.getDescription());
+            sb.append(role.description);
             sb.append("\n\n");
-            sb.append(role.getRequirements());
+            sb.append(role.requirements);
             sb.append("\n\n");
-            for (AddressListEntry ale : role.getDirectPlayers()) {
-                sb.append("* "+ale.getName()+"\n \n");
+            for (String name : role.players) {
+                sb.append("* "+name+"\n \n");
             }
             
             writeWikiData(sb.toString());
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * The 'circle' hierarchy of the workspaces: each workspace can name a
+ * parent workspace (the parentKey in the index entry) and this keeps,
+ * for every workspace, the list of its children, so that the front page
+ * and the hierarchy views do not have to look through all the workspaces
+ * of the server to find them.
+ *
+ * Workspaces are identified by the combined key "site|key".  A parent
+ * key without a site is a workspace in the same site as the child.
+ * The workspaces that do not have a parent are kept as the children of
+ * the site, under the key "site|".
+ *
+ * Cognoscenti keeps this up to date when a workspace is added to or
+ * removed from the index, and when the index entry of a workspace is
+ * refreshed after a save, which is when a changed parent is noticed.
+ *
+ * The lists of children are replaced, never changed, so reading does
+ * not lock.  Membership is also taken from the index entries, so listing a
+ * subtree does not read any workspace.  Deleted workspaces stay in the lists (they can be undeleted
+ * without saving the parent) and are left out when the lists are read.
+ */
+public class WorkspaceHierarchy {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    //combined key of the parent -> the children
+    private final ConcurrentHashMap<String, List<NGPageIndex>> children =
+            new ConcurrentHashMap<String, List<NGPageIndex>>();
+
+    //combined key of the child -> combined key of the parent it is listed under
+    private final ConcurrentHashMap<String, String> parentOf =
+            new ConcurrentHashMap<String, String>();
+
+    //for the site entries, which have the executives
+    private final Cognoscenti cog;
+
+
+    public WorkspaceHierarchy(Cognoscenti cog) {
+        this.cog = cog;
+    }
+
+
+    public static String combinedKey(NGPageIndex ngpi) {
+        return ngpi.wsSiteKey + "|" + ngpi.containerKey;
+    }
+
+    /**
+     * The key that the top level workspaces of a site are listed under.
+     */
+    public static String siteRootKey(String siteKey) {
+        return siteKey + "|";
+    }
+
+    /**
+     * The combined key of the parent of the workspace, or the site root
+     * key if it does not have a parent.
+     */
+    private static String parentCombinedKey(NGPageIndex ngpi) {
+        String parentKey = ngpi.parentKey;
+        if (parentKey == null || parentKey.length() == 0) {
+            return siteRootKey(ngpi.wsSiteKey);
+        }
+        if (parentKey.indexOf("|") >= 0) {
+            return parentKey;
+        }
+        return ngpi.wsSiteKey + "|" + parentKey;
+    }
+
+    /**
+     * Add a new index entry for a workspace, or move an existing one if
+     * its parent changed.  An old entry for the same workspace is replaced.
+     */
+    public synchronized void workspaceChanged(NGPageIndex ngpi) {
+        if (!ngpi.isProject()) {
+            return;
+        }
+        String childKey = combinedKey(ngpi);
+        String newParent = parentCombinedKey(ngpi);
+        String oldParent = parentOf.get(childKey);
+        if (oldParent != null) {
+            List<NGPageIndex> oldList = children.get(oldParent);
+            if (newParent.equals(oldParent) && oldList != null && oldList.contains(ngpi)) {
+                //the common case: saved without changing the parent
+                return;
+            }
+            removeChild(oldParent, childKey);
+        }
+        List<NGPageIndex> oldList = children.get(newParent);
+        List<NGPageIndex> newList = new ArrayList<NGPageIndex>();
+        if (oldList != null) {
+            newList.addAll(oldList);
+        }
+        newList.add(ngpi);
+        children.put(newParent, Collections.unmodifiableList(newList));
+        parentOf.put(childKey, newParent);
+    }
+
+    /**
+     * Take the workspace out of the hierarchy.  Its children stay listed
+     * under its key, and are found again if it comes back.
+     */
+    public synchronized void workspaceRemoved(NGPageIndex ngpi) {
+        String childKey = combinedKey(ngpi);
+        String oldParent = parentOf.remove(childKey);
+        if (oldParent != null) {
+            removeChild(oldParent, childKey);
+        }
+    }
+
+    private void removeChild(String parentKey, String childKey) {
+        List<NGPageIndex> oldList = children.get(parentKey);
+        if (oldList == null) {
+            return;
+        }
+        List<NGPageIndex> newList = new ArrayList<NGPageIndex>();
+        for (NGPageIndex one : oldList) {
+            if (!childKey.equals(combinedKey(one))) {
+                newList.add(one);
+            }
+        }
+        if (newList.size() == 0) {
+            children.remove(parentKey);
+        }
+        else {
+            children.put(parentKey, Collections.unmodifiableList(newList));
+        }
+    }
+
+    /**
+     * The workspaces that are not deleted and have the given workspace as
+     * parent, in order of name.
+     */
+    public List<NGPageIndex> getChildren(String siteKey, String key) {
+        return liveChildren(siteKey + "|" + key);
+    }
+
+    /**
+     * The workspaces of the site that are not deleted and do not have a
+     * parent, in order of name.
+     */
+    public List<NGPageIndex> getTopLevel(String siteKey) {
+        return liveChildren(siteRootKey(siteKey));
+    }
+
+    private List<NGPageIndex> liveChildren(String parentKey) {
+        List<NGPageIndex> ret = new ArrayList<NGPageIndex>();
+        List<NGPageIndex> list = children.get(parentKey);
+        if (list == null) {
+            return ret;
+        }
+        for (NGPageIndex ngpi : list) {
+            if (!ngpi.isDeleted) {
+                ret.add(ngpi);
+            }
+        }
+        NGPageIndex.sortByName(ret);
+        return ret;
+    }
+
+    /**
+     * The combined keys of the parent, the parent of the parent, and so
+     * on up to the top, the top level workspace last.  Parents that are
+     * not in the index are included, since the chain is only keys.  A
+     * loop in the parents ends the chain.
+     */
+    public List<String> getAncestors(String siteKey, String key) {
+        List<String> ret = new ArrayList<String>();
+        HashSet<String> seen = new HashSet<String>();
+        String current = siteKey + "|" + key;
+        seen.add(current);
+        while (true) {
+            String parent = parentOf.get(current);
+            if (parent == null || parent.endsWith("|") || !seen.add(parent)) {
+                return ret;
+            }
+            ret.add(parent);
+            current = parent;
+        }
+    }
+
+    /**
+     * All the workspaces below the given one, depth first, each child
+     * after its parent, as a page of at most limit entries starting at
+     * offset.  Each entry has the depth below the given workspace (1 for
+     * the children) and the number of children it has.
+     *
+     * If a user is given, only the workspaces that user is a member of are
+     * listed and counted.  The workspaces below one that is left out are
+     * still listed, at their own depth.  Pass null to list them all.
+     */
+    public JSONObject getSubtreeJSON(String siteKey, String key, int offset, int limit,
+            UserProfile viewer) throws Exception {
+        if (offset < 0) {
+            offset = 0;
+        }
+        if (limit <= 0) {
+            limit = DEFAULT_PAGE_SIZE;
+        }
+        if (limit > MAX_PAGE_SIZE) {
+            limit = MAX_PAGE_SIZE;
+        }
+        List<NGPageIndex> found = new ArrayList<NGPageIndex>();
+        List<Integer> depths = new ArrayList<Integer>();
+        HashSet<String> seen = new HashSet<String>();
+        String rootKey = siteKey + "|" + key;
+        seen.add(rootKey);
+        addSubtree(rootKey, 1, found, depths, seen);
+
+        HashSet<String> visible = new HashSet<String>();
+        for (int i = found.size()-1; i >= 0; i--) {
+            NGPageIndex ngpi = found.get(i);
+            if (canSee(ngpi, viewer, cog.getSiteByKey(ngpi.wsSiteKey))) {
+                visible.add(combinedKey(ngpi));
+            }
+            else {
+                found.remove(i);
+                depths.remove(i);
+            }
+        }
+
+        JSONArray list = new JSONArray();
+        int end = Math.min(found.size(), offset + limit);
+        for (int i = offset; i < end; i++) {
+            NGPageIndex ngpi = found.get(i);
+            JSONObject jo = new JSONObject();
+            jo.put("name", ngpi.containerName);
+            jo.put("key", ngpi.containerKey);
+            jo.put("site", ngpi.wsSiteKey);
+            jo.put("depth", depths.get(i).intValue());
+            int childCount = 0;
+            for (NGPageIndex child : liveChildren(combinedKey(ngpi))) {
+                if (visible.contains(combinedKey(child))) {
+                    childCount++;
+                }
+            }
+            jo.put("children", childCount);
+            list.put(jo);
+        }
+
+        JSONArray ancestors = new JSONArray();
+        for (String ancestor : getAncestors(siteKey, key)) {
+            ancestors.put(ancestor);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("site", siteKey);
+        result.put("key", key);
+        result.put("ancestors", ancestors);
+        result.put("offset", offset);
+        result.put("limit", limit);
+        result.put("total", found.size());
+        result.put("workspaces", list);
+        return result;
+    }
+
+    /**
+     * The same test as primaryOrSecondaryPermission, made on the index
+     * entries of the workspace and its site, as of their last save.
+     */
+    private static boolean canSee(NGPageIndex ngpi, UserProfile viewer, NGPageIndex siteIndex) {
+        if (viewer == null) {
+            return true;
+        }
+        if (ngpi.isMember(viewer)) {
+            return true;
+        }
+        return siteIndex != null && siteIndex.isMember(viewer);
+    }
+
+    private void addSubtree(String parentKey, int depth, List<NGPageIndex> found,
+            List<Integer> depths, HashSet<String> seen) {
+        for (NGPageIndex child : liveChildren(parentKey)) {
+            String childKey = combinedKey(child);
+            if (!seen.add(childKey)) {
+                //a loop in the parents
+                continue;
+            }
+            found.add(child);
+            depths.add(Integer.valueOf(depth));
+            addSubtree(childKey, depth + 1, found, depths, seen);
+        }
+    }
+}
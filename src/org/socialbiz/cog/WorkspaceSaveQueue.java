@@ -0,0 +1,684 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.w3c.dom.Document;
+
+import com.purplehillsbooks.json.JSONException;
+import com.purplehillsbooks.json.JSONObject;
+import com.purplehillsbooks.json.JSONTokener;
+
+/**
+ * Write-behind for workspace saves.
+ *
+ * Collaborative editing (meeting minutes, agenda items, topic autosave) can
+ * save the same workspace many times a second.  When this is enabled, a save
+ * takes a private copy of the workspace document in memory, and the copy is
+ * written to disk by a background thread.  All the saves of a workspace that
+ * come within the window are written as one.  The refresh of the link index
+ * and the change event are also done once, after the write.
+ *
+ * Until the write completes, reads of that workspace get the same in-memory
+ * workspace object that was saved, so a request always sees what the earlier
+ * requests saved.  If a request rolls back its changes, the workspace object
+ * is rebuilt from the last saved copy.  Anything that saves a workspace
+ * directly (with save()) writes the queued copy first.
+ *
+ * The window is set with "workspaceSaveWindow" in the config file, in
+ * milliseconds.  It is the longest that a save waits in memory.  Zero (the
+ * default) disables the queue and every save is written immediately.
+ * Everything queued is written when the server is paused or shut down.
+ *
+ * So that a save is not lost if the server process dies before the write,
+ * the saved copy is also appended to a journal file for the workspace, in the
+ * "saveJournal" folder of the user folder.  This is a group commit: a save
+ * does no disk I/O, and a single journal thread appends the latest copy of
+ * each workspace saved since its last pass and syncs each of those journals
+ * once, no matter how many saves were made.  A thread that saved waits for
+ * that pass when it releases its workspace locks (in
+ * NGPageIndex.clearLocksHeldByThisThread) so it does not hold a workspace
+ * locked during the sync, and the request ends only after its saves are on
+ * disk.  The journal of a workspace is deleted when everything saved has been
+ * written.  When the server starts, any journal left behind is replayed: the
+ * last copy in it is written to the workspace files before the workspaces
+ * are read.  A record that was only partly written when the process died
+ * fails its checksum and is ignored, and that request had not ended.
+ */
+public class WorkspaceSaveQueue {
+
+    private static final int JOURNAL_RECORD = 0x574A5231;
+
+    private static long saveWindow = 0;
+    private static Cognoscenti cog = null;
+    private static File journalFolder = null;
+    private static HashMap<String, QueuedSave> queued = new HashMap<String, QueuedSave>();
+    private static Thread writerThread = null;
+    private static Thread journalThread = null;
+    private static boolean shutdownHookAdded = false;
+
+    private static long totalSaves = 0;
+    private static long totalWrites = 0;
+
+    //every save gets the next number, and a thread that saved waits until
+    //the journal thread has passed its number
+    private static long saveSequence = 0;
+    private static long journaledSequence = 0;
+    private static ThreadLocal<Long> unjournaledSave = new ThreadLocal<Long>();
+
+    static {
+        MetricsRegistry.gauge("cog_workspace_save_queue_length", "Workspaces saved but not yet written",
+                new MetricsRegistry.GaugeValue() {
+                    public double getValue() {
+                        synchronized (WorkspaceSaveQueue.class) {
+                            return queued.size();
+                        }
+                    }
+                });
+    }
+
+    private static class QueuedSave {
+        File xmlFile;
+        File jsonFile;
+        String siteKey;
+        String key;
+
+        //the workspace object the saves were made on, null if rolled back
+        NGWorkspace live;
+
+        //private copies of what is to be written, null if unchanged
+        Document xmlSnapshot;
+        JSONObject jsonSnapshot;
+
+        long dueTime;
+        int saveCount;
+        long version;
+
+        File journalFile;
+        //the version that is in the journal on disk
+        long journaledVersion;
+    }
+
+    /**
+     * Read the window from the config file.  Called as part of server
+     * initialization, and can be called again on reinitialization.
+     */
+    public static void initialize(Cognoscenti newCog) throws Exception {
+        long newWindow = DOMFace.safeConvertLong(newCog.getConfig().getProperty("workspaceSaveWindow"));
+        if (newWindow<0) {
+            newWindow = 0;
+        }
+        File newJournalFolder = new File(newCog.getConfig().getUserFolderOrFail(), "saveJournal");
+        if (!newJournalFolder.exists()) {
+            newJournalFolder.mkdirs();
+        }
+        replayJournals(newJournalFolder);
+        synchronized (WorkspaceSaveQueue.class) {
+            cog = newCog;
+            saveWindow = newWindow;
+            journalFolder = newJournalFolder;
+            if (saveWindow>0 && writerThread==null) {
+                writerThread = new Thread(new Runnable() {
+                    public void run() {
+                        writerLoop();
+                    }
+                }, "Workspace Save Queue");
+                writerThread.setDaemon(true);
+                writerThread.start();
+            }
+            if (saveWindow>0 && journalThread==null) {
+                journalThread = new Thread(new Runnable() {
+                    public void run() {
+                        journalLoop();
+                    }
+                }, "Workspace Save Journal");
+                journalThread.setDaemon(true);
+                journalThread.start();
+            }
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread("Workspace Save Queue Shutdown") {
+                    public void run() {
+                        flushAll();
+                    }
+                });
+                shutdownHookAdded = true;
+            }
+            WorkspaceSaveQueue.class.notifyAll();
+        }
+        if (newWindow==0) {
+            flushAll();
+        }
+        System.out.println("WorkspaceSaveQueue: save window is "+newWindow+"ms");
+    }
+
+    public static synchronized boolean isEnabled() {
+        return saveWindow>0;
+    }
+
+    /**
+     * Record a save of the workspace.  The caller must hold the lock on the
+     * workspace, and can continue to use the workspace object after this.
+     * Returns without any disk I/O.  The save is in the journal on disk
+     * when waitForJournal returns on this thread.
+     */
+    public static void scheduleSave(NGWorkspace ngw) throws Exception {
+        Document xmlSnapshot = ngw.takeSaveSnapshot();
+        JSONObject jsonSnapshot = ngw.takeJSONSnapshot();
+        String path = ngw.getFilePath().toString();
+
+        QueuedSave qs;
+        synchronized (WorkspaceSaveQueue.class) {
+            totalSaves++;
+            qs = queued.get(path);
+            if (qs==null) {
+                if (xmlSnapshot==null && jsonSnapshot==null) {
+                    //nothing changed since the last write
+                    return;
+                }
+                qs = new QueuedSave();
+                qs.xmlFile = ngw.getFilePath();
+                qs.jsonFile = ngw.getJSONFilePath();
+                qs.siteKey = ngw.getSiteKey();
+                qs.key = ngw.getKey();
+                qs.journalFile = new File(journalFolder, qs.siteKey+"."+qs.key+".journal");
+                qs.dueTime = System.currentTimeMillis() + saveWindow;
+                queued.put(path, qs);
+            }
+            if (xmlSnapshot!=null) {
+                qs.xmlSnapshot = xmlSnapshot;
+            }
+            if (jsonSnapshot!=null) {
+                qs.jsonSnapshot = jsonSnapshot;
+            }
+            qs.live = ngw;
+            qs.saveCount++;
+            qs.version++;
+            unjournaledSave.set(++saveSequence);
+            WorkspaceSaveQueue.class.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the saves made on this thread are in the journal on disk.
+     * Called after the thread has released its workspace locks.  If the
+     * journal can not be written the failure is logged and this returns,
+     * the saves are still written to the workspace files later.
+     */
+    public static void waitForJournal() {
+        Long mySave = unjournaledSave.get();
+        if (mySave==null) {
+            return;
+        }
+        unjournaledSave.remove();
+        synchronized (WorkspaceSaveQueue.class) {
+            while (journaledSequence<mySave && journalThread!=null) {
+                try {
+                    WorkspaceSaveQueue.class.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * If the workspace at this path has been saved but not yet written,
+     * return the workspace object with those saved changes.  Returns null
+     * if nothing is queued, in which case the file on disk is current.
+     */
+    public static NGWorkspace getQueuedWorkspace(String path) throws Exception {
+        QueuedSave qs;
+        synchronized (WorkspaceSaveQueue.class) {
+            qs = queued.get(path);
+            if (qs==null) {
+                return null;
+            }
+            if (qs.live!=null) {
+                return qs.live;
+            }
+        }
+
+        //rolled back, so rebuild from the last saved copy
+        NGWorkspace rebuilt;
+        synchronized (qs) {
+            Document doc;
+            if (qs.xmlSnapshot!=null) {
+                doc = (Document) qs.xmlSnapshot.cloneNode(true);
+            }
+            else {
+                doc = DOMFile.readOrCreateFile(qs.xmlFile, "page");
+            }
+            rebuilt = NGWorkspace.constructWorkspace(qs.xmlFile, doc);
+            if (qs.jsonSnapshot!=null) {
+                rebuilt.restoreJSON(qs.jsonSnapshot);
+            }
+        }
+        synchronized (WorkspaceSaveQueue.class) {
+            if (qs.live==null) {
+                qs.live = rebuilt;
+            }
+            return qs.live;
+        }
+    }
+
+    /**
+     * Called on rollback.  The in-memory workspace might have unsaved changes
+     * on it, so it can not be used any more.  The next read will rebuild the
+     * workspace from the saved copy.
+     */
+    public static synchronized void discardLiveCopy(String path) {
+        QueuedSave qs = queued.get(path);
+        if (qs!=null) {
+            qs.live = null;
+        }
+    }
+
+    /**
+     * Write anything queued for this workspace right now, on this thread.
+     * The caller holds the lock on the workspace.
+     */
+    public static void flushNow(NGWorkspace ngw) throws Exception {
+        QueuedSave qs;
+        synchronized (WorkspaceSaveQueue.class) {
+            qs = queued.get(ngw.getFilePath().toString());
+        }
+        if (qs!=null) {
+            writeQueuedSave(qs);
+            if (cog!=null) {
+                ngw.refreshOutboundLinks(cog);
+            }
+            NGPageIndex.postEventMsg(qs.key);
+        }
+    }
+
+    /**
+     * Write everything that is queued, without waiting for the window.
+     * Used at pause and shutdown.
+     */
+    public static void flushAll() {
+        List<QueuedSave> all;
+        synchronized (WorkspaceSaveQueue.class) {
+            all = new ArrayList<QueuedSave>(queued.values());
+        }
+        for (QueuedSave qs : all) {
+            try {
+                writeQueuedSave(qs);
+            }
+            catch (Exception e) {
+                JSONException.traceException(System.out, e, "WorkspaceSaveQueue: unable to write "+qs.xmlFile);
+            }
+        }
+    }
+
+    /**
+     * Writes the copies to disk.  Only one thread writes a given workspace at a
+     * time.  If another save came in while writing, the entry stays queued for
+     * another window, otherwise it is removed and its journal deleted.
+     * Returns true if removed.
+     */
+    private static boolean writeQueuedSave(QueuedSave qs) throws Exception {
+        synchronized (qs) {
+            Document xmlSnapshot;
+            JSONObject jsonSnapshot;
+            long version;
+            int saveCount;
+            synchronized (WorkspaceSaveQueue.class) {
+                if (queued.get(qs.xmlFile.toString())!=qs) {
+                    //already written by another thread
+                    return true;
+                }
+                xmlSnapshot = qs.xmlSnapshot;
+                jsonSnapshot = qs.jsonSnapshot;
+                version = qs.version;
+                saveCount = qs.saveCount;
+            }
+            long startTime = System.currentTimeMillis();
+            long bytes = 0;
+            if (xmlSnapshot!=null) {
+                DOMUtils.writeDomToFile(xmlSnapshot, qs.xmlFile);
+                bytes += qs.xmlFile.length();
+            }
+            if (jsonSnapshot!=null) {
+                jsonSnapshot.writeToFile(qs.jsonFile);
+                bytes += qs.jsonFile.length();
+            }
+            NGWorkspace.SAVE_TIME.recordSince(startTime);
+            NGWorkspace.SAVE_BYTES.record(bytes);
+            boolean removed = false;
+            synchronized (WorkspaceSaveQueue.class) {
+                totalWrites++;
+                if (qs.version==version) {
+                    queued.remove(qs.xmlFile.toString());
+                    if (qs.journalFile.exists() && !qs.journalFile.delete()) {
+                        System.out.println("WorkspaceSaveQueue: unable to delete journal "+qs.journalFile);
+                    }
+                    removed = true;
+                }
+                else {
+                    qs.dueTime = System.currentTimeMillis() + saveWindow;
+                }
+            }
+            System.out.println("FILESAVE written ("+qs.key+") "+saveCount+" saves, bytes="+bytes);
+            return removed;
+        }
+    }
+
+    /**
+     * One record of the journal: the paths of the files and the copies to be
+     * written to them, with a length in front and a checksum after.
+     */
+    private static byte[] makeJournalRecord(File xmlFile, File jsonFile,
+            Document xmlSnapshot, JSONObject jsonSnapshot) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(body);
+        dos.writeUTF(xmlFile.toString());
+        dos.writeUTF(jsonFile.toString());
+        if (xmlSnapshot!=null) {
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            DOMUtils.writeDom(xmlSnapshot, xml);
+            dos.writeInt(xml.size());
+            xml.writeTo(dos);
+        }
+        else {
+            dos.writeInt(-1);
+        }
+        if (jsonSnapshot!=null) {
+            byte[] json = jsonSnapshot.toString().getBytes("UTF-8");
+            dos.writeInt(json.length);
+            dos.write(json);
+        }
+        else {
+            dos.writeInt(-1);
+        }
+        dos.flush();
+        byte[] bodyBytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bodyBytes.length+16);
+        DataOutputStream rec = new DataOutputStream(record);
+        rec.writeInt(JOURNAL_RECORD);
+        rec.writeInt(bodyBytes.length);
+        rec.write(bodyBytes);
+        rec.writeLong(crc.getValue());
+        rec.flush();
+        return record.toByteArray();
+    }
+
+    /**
+     * Adds the record to the end of the journal and waits for it to be
+     * on the disk.  Only the journal thread calls this.
+     */
+    private static void appendToJournal(File journalFile, byte[] record) throws Exception {
+        FileOutputStream fos = new FileOutputStream(journalFile, true);
+        try {
+            fos.write(record);
+            fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Writes the last copy in each journal left from before to the workspace
+     * files, and deletes the journal.  Journals of workspaces that are still
+     * queued in this process are left alone.
+     */
+    private static void replayJournals(File folder) {
+        File[] children = folder.listFiles();
+        if (children==null) {
+            return;
+        }
+        HashSet<String> inUse = new HashSet<String>();
+        synchronized (WorkspaceSaveQueue.class) {
+            for (QueuedSave qs : queued.values()) {
+                inUse.add(qs.journalFile.getName());
+            }
+        }
+        for (File child : children) {
+            if (!child.getName().endsWith(".journal") || inUse.contains(child.getName())) {
+                continue;
+            }
+            try {
+                replayJournal(child);
+                child.delete();
+            }
+            catch (Exception e) {
+                JSONException.traceException(System.out, e, "WorkspaceSaveQueue: unable to replay journal "+child);
+            }
+        }
+    }
+
+    private static void replayJournal(File journalFile) throws Exception {
+        String xmlPath = null;
+        String jsonPath = null;
+        byte[] lastXml = null;
+        byte[] lastJson = null;
+        int records = 0;
+        DataInputStream dis = new DataInputStream(new FileInputStream(journalFile));
+        try {
+            while (true) {
+                byte[] body;
+                try {
+                    if (dis.readInt()!=JOURNAL_RECORD) {
+                        break;
+                    }
+                    int len = dis.readInt();
+                    if (len<0 || len>journalFile.length()) {
+                        break;
+                    }
+                    body = new byte[len];
+                    dis.readFully(body);
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if (dis.readLong()!=crc.getValue()) {
+                        break;
+                    }
+                }
+                catch (EOFException e) {
+                    //the end of the file, or a record that was not finished
+                    break;
+                }
+                DataInputStream rec = new DataInputStream(new ByteArrayInputStream(body));
+                xmlPath = rec.readUTF();
+                jsonPath = rec.readUTF();
+                byte[] xml = readBlock(rec);
+                if (xml!=null) {
+                    lastXml = xml;
+                }
+                byte[] json = readBlock(rec);
+                if (json!=null) {
+                    lastJson = json;
+                }
+                records++;
+            }
+        }
+        finally {
+            dis.close();
+        }
+        if (lastXml!=null) {
+            Document doc = DOMUtils.convertInputStreamToDocument(
+                    new ByteArrayInputStream(lastXml), false, false);
+            DOMUtils.writeDomToFile(doc, new File(xmlPath));
+        }
+        if (lastJson!=null) {
+            JSONObject jo = new JSONObject(new JSONTokener(new String(lastJson, "UTF-8")));
+            jo.writeToFile(new File(jsonPath));
+        }
+        System.out.println("WorkspaceSaveQueue: replayed "+records+" saves from journal "+journalFile);
+    }
+
+    private static byte[] readBlock(DataInputStream dis) throws Exception {
+        int len = dis.readInt();
+        if (len<0) {
+            return null;
+        }
+        byte[] block = new byte[len];
+        dis.readFully(block);
+        return block;
+    }
+
+    /**
+     * After a background write, the link index and the change event are
+     * updated in the same way that a direct save does it.
+     */
+    private static void refreshAfterWrite(QueuedSave qs) throws Exception {
+        Cognoscenti theCog;
+        synchronized (WorkspaceSaveQueue.class) {
+            theCog = cog;
+        }
+        if (theCog==null || !theCog.isInitialized) {
+            return;
+        }
+        try {
+            NGPageIndex ngpi = theCog.getWSBySiteAndKey(qs.siteKey, qs.key);
+            if (ngpi==null) {
+                return;
+            }
+            NGWorkspace ngw = ngpi.getWorkspace();
+            ngw.refreshOutboundLinks(theCog);
+            NGPageIndex.postEventMsg(qs.key);
+        }
+        finally {
+            NGPageIndex.clearLocksHeldByThisThread();
+        }
+    }
+
+    /**
+     * Brings the journal of one workspace up to the latest saved copy, unless
+     * that copy has already been written to the workspace files.  Holding the
+     * monitor of the entry keeps the writer from writing it, and deleting the
+     * journal, at the same time.
+     */
+    private static void journalQueuedSave(QueuedSave qs) throws Exception {
+        synchronized (qs) {
+            Document xmlSnapshot;
+            JSONObject jsonSnapshot;
+            long version;
+            synchronized (WorkspaceSaveQueue.class) {
+                if (queued.get(qs.xmlFile.toString())!=qs || qs.journaledVersion==qs.version) {
+                    return;
+                }
+                xmlSnapshot = qs.xmlSnapshot;
+                jsonSnapshot = qs.jsonSnapshot;
+                version = qs.version;
+            }
+            appendToJournal(qs.journalFile,
+                    makeJournalRecord(qs.xmlFile, qs.jsonFile, xmlSnapshot, jsonSnapshot));
+            synchronized (WorkspaceSaveQueue.class) {
+                qs.journaledVersion = version;
+            }
+        }
+    }
+
+    /**
+     * Each pass takes all the saves made since the last pass, and puts the
+     * latest copy of each of those workspaces in its journal.  Saves made
+     * during a pass are taken by the next one.
+     */
+    private static void journalLoop() {
+        while (true) {
+            long upTo;
+            List<QueuedSave> batch = new ArrayList<QueuedSave>();
+            try {
+                synchronized (WorkspaceSaveQueue.class) {
+                    while (journaledSequence==saveSequence) {
+                        WorkspaceSaveQueue.class.wait();
+                    }
+                    upTo = saveSequence;
+                    for (QueuedSave qs : queued.values()) {
+                        if (qs.journaledVersion!=qs.version) {
+                            batch.add(qs);
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            for (QueuedSave qs : batch) {
+                try {
+                    journalQueuedSave(qs);
+                }
+                catch (Exception e) {
+                    JSONException.traceException(System.out, e, "WorkspaceSaveQueue: unable to journal "+qs.xmlFile);
+                }
+            }
+            synchronized (WorkspaceSaveQueue.class) {
+                journaledSequence = upTo;
+                WorkspaceSaveQueue.class.notifyAll();
+            }
+        }
+    }
+
+    private static void writerLoop() {
+        while (true) {
+            QueuedSave next = null;
+            try {
+                synchronized (WorkspaceSaveQueue.class) {
+                    long now = System.currentTimeMillis();
+                    long earliest = Long.MAX_VALUE;
+                    for (QueuedSave qs : queued.values()) {
+                        if (qs.dueTime<earliest) {
+                            earliest = qs.dueTime;
+                            next = qs;
+                        }
+                    }
+                    if (next==null) {
+                        WorkspaceSaveQueue.class.wait();
+                        continue;
+                    }
+                    if (earliest>now) {
+                        WorkspaceSaveQueue.class.wait(earliest-now);
+                        continue;
+                    }
+                }
+                writeQueuedSave(next);
+                refreshAfterWrite(next);
+            }
+            catch (Exception e) {
+                JSONException.traceException(System.out, e, "WorkspaceSaveQueue: failure writing queued workspace");
+                if (next!=null) {
+                    synchronized (WorkspaceSaveQueue.class) {
+                        //try again after another window
+                        next.dueTime = System.currentTimeMillis() + Math.max(saveWindow, 1000);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.socialbiz.cog.AttachmentRecord;
 import org.socialbiz.cog.AttachmentVersion;
 import org.socialbiz.cog.AuthRequest;
+import org.socialbiz.cog.DOMFace;
 import org.socialbiz.cog.GoalRecord;
 import org.socialbiz.cog.HistoryRecord;
 import org.socialbiz.cog.IdGenerator;
@@ -42,6 +43,7 @@ import org.socialbiz.cog.SectionWiki;
 import org.socialbiz.cog.TopicRecord;
 import org.socialbiz.cog.UtilityMethods;
 import org.socialbiz.cog.WikiConverter;
+import org.socialbiz.cog.util.JSONStreamWriter;
 
 import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONException;
@@ -76,6 +78,10 @@ import com.purplehillsbooks.json.JSONTokener;
  * {site-proj}/summary.json
  * This will list all the action items, notes, and attachments to this project.
  * and include some info like modified date, owner, and file size.
+ * The listing includes a "syncToken".  Pass that back as ?since={syncToken}
+ * and anything that was last changed before then is left out of the full
+ * lists, and is listed in goalsUnchanged, docsUnchanged, and notesUnchanged
+ * with only the id, universal id, name, modified time, and size.
  *
  * {site-proj}/doc{docid}/docname.ext
  * documents can be accessed directly with this, the docname and extension
@@ -612,6 +618,15 @@ public class APIServlet extends javax.servlet.http.HttpServlet {
         ar.flush();
     }
 
+    /**
+     * The listing of a workspace can be large, so it is streamed: the
+     * goals, documents and topics are each written as they are made.
+     * The stubs for the unchanged ones are small and are collected and
+     * written at the end.  Everything up to the start of the stream is
+     * checked first.  If something fails after that, the JSON that was
+     * started is ended with the error in it, since an error response
+     * after part of the listing would not be JSON.
+     */
     private void getWorkspaceListing(AuthRequest ar, ResourceDecoder resDec) throws Exception {
         JSONObject root = new JSONObject();
 
@@ -644,15 +659,59 @@ public class APIServlet extends javax.servlet.http.HttpServlet {
         String siteUI = ar.baseURL + ar.getDefaultURL(ngp.getSite());
         root.put("siteui", siteUI);
 
-        JSONArray goals = new JSONArray();
+        //anything changed at or after this time will be in the next listing.
+        //Something changed in this same millisecond after the workspace was
+        //read would be missed with <=, so those are sent again instead.
+        root.put("syncToken", ar.nowTime);
+        long since = DOMFace.safeConvertLong(ar.defParam("since", "0"));
+        if (since>0) {
+            root.put("since", since);
+        }
+
+        ar.resp.setContentType("application/json");
+        JSONStreamWriter jw = new JSONStreamWriter(ar.resp.getWriter(), true);
+        try {
+            streamWorkspaceListing(ar, resDec, root, urlRoot, since, jw);
+        }
+        catch (Exception e) {
+            Exception ctx = new Exception("Unable to complete the listing of "+ar.getCompleteURL(), e);
+            ar.logException("API Servlet", ctx);
+            jw.endWithError(JSONException.convertToJSON(ctx, "API Exception"));
+            jw.finish();
+        }
+        ar.flush();
+    }
+
+    private void streamWorkspaceListing(AuthRequest ar, ResourceDecoder resDec, JSONObject root,
+            String urlRoot, long since, JSONStreamWriter jw) throws Exception {
+        NGPage ngp = resDec.workspace;
+        jw.startObject();
+        for (String key : JSONObject.getNames(root)) {
+            jw.field(key, root.get(key));
+        }
+
+        jw.startArray("goals");
+        JSONArray goalsUnchanged = new JSONArray();
         if (resDec.hasFullMemberAccess()) {
             for (GoalRecord goal : resDec.workspace.getAllGoals()) {
-                goals.put(goal.getJSON4Goal(resDec.workspace, ar.baseURL, resDec.lic));
+                if (since>0 && goal.getModifiedDate()<since) {
+                    JSONObject stub = new JSONObject();
+                    stub.put("universalid", goal.getUniversalId());
+                    stub.put("id", goal.getId());
+                    stub.put("synopsis", goal.getSynopsis());
+                    stub.put("modifiedtime", goal.getModifiedDate());
+                    stub.put("modifieduser", goal.getModifiedBy());
+                    stub.put("state", goal.getState());
+                    goalsUnchanged.put(stub);
+                    continue;
+                }
+                jw.value(goal.getJSON4Goal(resDec.workspace, ar.baseURL, resDec.lic));
             }
         }
-        root.put("goals", goals);
+        jw.endArray();
 
-        JSONArray docs = new JSONArray();
+        jw.startArray("docs");
+        JSONArray docsUnchanged = new JSONArray();
         for (AttachmentRecord att : ngp.getAllAttachments()) {
             if (att.isDeleted()) {
                 continue;
@@ -666,23 +725,48 @@ public class APIServlet extends javax.servlet.http.HttpServlet {
             if (!resDec.canAccessAttachment(att)) {
                 continue;
             }
+            if (since>0 && att.getModifiedDate()<since) {
+                JSONObject stub = new JSONObject();
+                stub.put("universalid", att.getUniversalId());
+                stub.put("id", att.getId());
+                stub.put("name", att.getNiceName());
+                stub.put("modifiedtime", att.getModifiedDate());
+                stub.put("modifieduser", att.getModifiedBy());
+                stub.put("size", att.getFileSize(ngp));
+                docsUnchanged.put(stub);
+                continue;
+            }
             JSONObject thisDoc = att.getJSON4Doc(resDec.workspace, ar, urlRoot, resDec.lic);
-            docs.put(thisDoc);
+            jw.value(thisDoc);
         }
-        root.put("docs", docs);
+        jw.endArray();
 
-        JSONArray notes = new JSONArray();
+        jw.startArray("notes");
+        JSONArray notesUnchanged = new JSONArray();
         for (TopicRecord note : resDec.workspace.getAllNotes()) {
             if (!resDec.canAccessNote(note)) {
                 continue;
             }
-            notes.put(note.getJSON4Note(urlRoot, false, resDec.lic, resDec.workspace));
+            if (since>0 && note.getLastEdited()<since) {
+                JSONObject stub = new JSONObject();
+                stub.put("universalid", note.getUniversalId());
+                stub.put("id", note.getId());
+                stub.put("subject", note.getSubject());
+                stub.put("modTime", note.getLastEdited());
+                notesUnchanged.put(stub);
+                continue;
+            }
+            jw.value(note.getJSON4Note(urlRoot, false, resDec.lic, resDec.workspace));
         }
-        root.put("notes", notes);
+        jw.endArray();
 
-        ar.resp.setContentType("application/json");
-        root.write(ar.resp.getWriter(), 2, 0);
-        ar.flush();
+        if (since>0) {
+            jw.field("goalsUnchanged", goalsUnchanged);
+            jw.field("docsUnchanged", docsUnchanged);
+            jw.field("notesUnchanged", notesUnchanged);
+        }
+        jw.endObject();
+        jw.finish();
     }
 
     private void streamDocument(AuthRequest ar, ResourceDecoder resDec) throws Exception {
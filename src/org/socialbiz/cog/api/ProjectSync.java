@@ -21,13 +21,16 @@
 package org.socialbiz.cog.api;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.socialbiz.cog.AttachmentRecord;
 import org.socialbiz.cog.AttachmentVersion;
@@ -36,14 +39,26 @@ import org.socialbiz.cog.GoalRecord;
 import org.socialbiz.cog.HistoryRecord;
 import org.socialbiz.cog.LicenseForUser;
 import org.socialbiz.cog.NGPage;
+import org.socialbiz.cog.RemoteJSON;
 import org.socialbiz.cog.SectionDef;
 import org.socialbiz.cog.TopicRecord;
-import org.socialbiz.cog.UtilityMethods;
 import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONObject;
 
 /**
 * supports comparing a local and remote project
+*
+* The remote listing is asked for with the sync token saved from the last
+* download, so resources that have not changed upstream since then come
+* as short "unchanged" entries with only the id, time, and size.  That is
+* enough to compare them.  If one of them does need to be downloaded
+* anyway (for example it was skipped last time because of a name clash)
+* then the full listing is retrieved instead.
+*
+* The contents of documents and topics are transferred several at a time
+* (see RemoteJSON.getParallelTransfers) on other threads.  Those threads
+* only do network and file transfers: the local workspace is read and
+* changed only on the thread that holds its lock.
 */
 public class ProjectSync {
     NGPage local;
@@ -62,10 +77,52 @@ public class ProjectSync {
 
         statii = new ArrayList<SyncStatus>();
 
+        remote.setChangesSince(local.getUpstreamSyncToken());
+        figureAll();
+        if (needsFullListing()) {
+            remote.setChangesSince(0);
+            statii.clear();
+            figureAll();
+        }
+    }
+
+    private void figureAll() throws Exception {
         figureAttachments();
         figureNotes();
         figureGoals();
+    }
+
+    /**
+     * True if something listed as unchanged still has to be downloaded,
+     * which needs the full details from the remote listing.
+     */
+    private boolean needsFullListing() {
+        int[] types = new int[] {SyncStatus.TYPE_DOCUMENT, SyncStatus.TYPE_NOTE, SyncStatus.TYPE_TASK};
+        for (int resourceType : types) {
+            for (SyncStatus stat : getToDownload(resourceType)) {
+                if (stat.remoteCopy==null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
+    /**
+     * The full remote entries followed by the unchanged ones, which are
+     * marked so that they are not mistaken for full entries.
+     */
+    private static JSONArray combineRemote(JSONArray full, JSONArray unchanged) throws Exception {
+        JSONArray all = new JSONArray();
+        for (int i=0; i<full.length(); i++) {
+            all.put(full.getJSONObject(i));
+        }
+        for (int i=0; i<unchanged.length(); i++) {
+            JSONObject stub = unchanged.getJSONObject(i);
+            stub.put("unchanged", true);
+            all.put(stub);
+        }
+        return all;
     }
 
     private void figureAttachments() throws Exception {
@@ -91,7 +148,7 @@ public class ProjectSync {
             String attName = att.getUniversalId();
             docNames.add(attName);
         }
-        JSONArray att2s = remote.getDocs();
+        JSONArray att2s = combineRemote(remote.getDocs(), remote.getUnchangedDocs());
         int len = att2s.length();
         for (int i=0; i<len; i++) {
             JSONObject oneAtt = att2s.getJSONObject(i);
@@ -142,10 +199,12 @@ public class ProjectSync {
                             +retval.nameRemote+") (id="+retval.idRemote
                             +") because the timestamp is zero");
                 }
-                retval.urlRemote = att2.getString("content");
                 retval.sizeRemote = att2.getLong("size");
                 retval.editorRemote = att2.getString("modifieduser");
-                retval.remoteCopy = att2;
+                if (!att2.optBoolean("unchanged")) {
+                    retval.urlRemote = att2.getString("content");
+                    retval.remoteCopy = att2;
+                }
                 break;
             }
         }
@@ -168,7 +227,7 @@ public class ProjectSync {
             }
             noteIds.add(note.getUniversalId());
         }
-        JSONArray notes2 = remote.getNotes();
+        JSONArray notes2 = combineRemote(remote.getNotes(), remote.getUnchangedNotes());
         int len = notes2.length();
         for (int i=0; i<len; i++) {
             JSONObject noteRef = notes2.getJSONObject(i);
@@ -210,12 +269,14 @@ public class ProjectSync {
             if (noteId.equals(uid)) {
                 retval.isRemote = true;
                 retval.timeRemote = noteRef.getLong("modTime");
-                retval.urlRemote = noteRef.getString("content");
                 retval.idRemote = noteRef.getString("id");
                 retval.nameRemote = noteRef.getString("subject");
-                JSONObject userObj = noteRef.getJSONObject("modUser");
-                retval.editorRemote = userObj.getString("uid");
-                retval.remoteCopy = noteRef;
+                if (!noteRef.optBoolean("unchanged")) {
+                    retval.urlRemote = noteRef.getString("content");
+                    JSONObject userObj = noteRef.getJSONObject("modUser");
+                    retval.editorRemote = userObj.getString("uid");
+                    retval.remoteCopy = noteRef;
+                }
                 break;
             }
         }
@@ -235,7 +296,7 @@ public class ProjectSync {
         So we never hae any case where we send action items from here upstream
         Only download if remote action items have changed.
         */
-        JSONArray goals2 = remote.getGoals();
+        JSONArray goals2 = combineRemote(remote.getGoals(), remote.getUnchangedGoals());
         int len = goals2.length();
         for (int i=0; i<len; i++) {
             JSONObject goal2 = goals2.getJSONObject(i);
@@ -278,8 +339,10 @@ public class ProjectSync {
                 retval.nameRemote = remGoalObj.getString("synopsis");
                 retval.editorRemote = remGoalObj.getString("modifieduser");
                 retval.sizeRemote = remGoalObj.getInt("state");
-                retval.urlRemote = remGoalObj.optString("ui");
-                retval.remoteCopy = remGoalObj;
+                if (!remGoalObj.optBoolean("unchanged")) {
+                    retval.urlRemote = remGoalObj.optString("ui");
+                    retval.remoteCopy = remGoalObj;
+                }
                 break;
             }
         }
@@ -398,7 +461,9 @@ public class ProjectSync {
         int noteNum = 0;
         int goalNum = 0;
 
+        //first decide which documents will be downloaded, without changing anything
         List<SyncStatus> docsNeedingDown  = getToDownload(SyncStatus.TYPE_DOCUMENT);
+        List<SyncStatus> docsToGet = new ArrayList<SyncStatus>();
         for (SyncStatus docStat : docsNeedingDown) {
             if (docStat.timeRemote==0) {
                 //this is a programming consistency thing.  A doc falls into the needing
@@ -406,10 +471,9 @@ public class ProjectSync {
                 throw new Exception("Something is wrong with information about remote document ("
                         +docStat.nameRemote+") because the timestamp is zero");
             }
-            AttachmentRecord localAtt;
             String newName = docStat.nameRemote;  //might be a new name or same old name
             if (docStat.isLocal) {
-                localAtt = local.findAttachmentByID(docStat.idLocal);
+                AttachmentRecord localAtt = local.findAttachmentByID(docStat.idLocal);
                 if (!localAtt.isUpstream()) {
                     //this is the case of a 'severed' sync.  The User has marked this local document
                     //to NOT be synchronized upstream, so it is cut off.  Do not synchronize this
@@ -431,8 +495,6 @@ public class ProjectSync {
                         //TODO: should we tell the user about this problem?
                     }
                 }
-                HistoryRecord.createAttHistoryRecord(local, localAtt, HistoryRecord.EVENT_DOC_UPDATED, ar,
-                        "from upstream project");
             }
             else {
                 //this is a new document to us, but check for name conflict
@@ -443,56 +505,95 @@ public class ProjectSync {
                     continue;
                     //TODO: should we tell the user about this problem?
                 }
-
-                localAtt = local.createAttachment();
-                localAtt.setUniversalId(docStat.universalId);
-                //this document came from upstream, so set to synch in the future upstream
-                localAtt.setUpstream(true);
-                HistoryRecord.createAttHistoryRecord(local, localAtt, HistoryRecord.EVENT_TYPE_CREATED, ar,
-                        "from upstream project");
             }
-            localAtt.updateDocFromJSON(docStat.remoteCopy, ar);
-            String modifieduser = docStat.remoteCopy.getString("modifieduser");
-            long modifiedtime = docStat.remoteCopy.getLong("modifiedtime");
-
-            URL link = new URL(docStat.urlRemote);
-            InputStream is = link.openStream();
-            localAtt.streamNewVersion(local, is, modifieduser, modifiedtime);
-            docNum++;
+            docsToGet.add(docStat);
         }
-
         List<SyncStatus> notesNeedingDown  = getToDownload(SyncStatus.TYPE_NOTE);
 
-        for (SyncStatus noteStat : notesNeedingDown) {
+        //transfer the contents, several at a time, before changing anything
+        List<File> docFiles = new ArrayList<File>();
+        try {
+            List<Callable<File>> docTransfers = new ArrayList<Callable<File>>();
+            for (SyncStatus docStat : docsToGet) {
+                final URL link = new URL(docStat.urlRemote);
+                final File tempFile = File.createTempFile("cogsync", ".tmp");
+                docFiles.add(tempFile);
+                docTransfers.add(new Callable<File>() {
+                    public File call() throws Exception {
+                        RemoteJSON.getFileFromRemote(link, tempFile);
+                        return tempFile;
+                    }
+                });
+            }
+            List<Callable<String>> noteTransfers = new ArrayList<Callable<String>>();
+            for (SyncStatus noteStat : notesNeedingDown) {
+                final URL url = new URL(noteStat.urlRemote);
+                noteTransfers.add(new Callable<String>() {
+                    public String call() throws Exception {
+                        return RemoteJSON.getTextFromRemote(url);
+                    }
+                });
+            }
+            runParallel(docTransfers);
+            List<String> noteContents = runParallel(noteTransfers);
+
+            for (int i=0; i<docsToGet.size(); i++) {
+                SyncStatus docStat = docsToGet.get(i);
+                AttachmentRecord localAtt;
+                if (docStat.isLocal) {
+                    localAtt = local.findAttachmentByID(docStat.idLocal);
+                    HistoryRecord.createAttHistoryRecord(local, localAtt, HistoryRecord.EVENT_DOC_UPDATED, ar,
+                            "from upstream project");
+                }
+                else {
+                    localAtt = local.createAttachment();
+                    localAtt.setUniversalId(docStat.universalId);
+                    //this document came from upstream, so set to synch in the future upstream
+                    localAtt.setUpstream(true);
+                    HistoryRecord.createAttHistoryRecord(local, localAtt, HistoryRecord.EVENT_TYPE_CREATED, ar,
+                            "from upstream project");
+                }
+                localAtt.updateDocFromJSON(docStat.remoteCopy, ar);
+                String modifieduser = docStat.remoteCopy.getString("modifieduser");
+                long modifiedtime = docStat.remoteCopy.getLong("modifiedtime");
 
-            TopicRecord note;
-            int historyEvent = 0;
-            if (noteStat.isLocal) {
-                note = local.getNote(noteStat.idLocal);
-                historyEvent = HistoryRecord.EVENT_TYPE_MODIFIED;
-            }
-            else {
-                note = local.createNote();
-                note.setUniversalId(noteStat.universalId);
-                note.setUpstream(true);
-                historyEvent = HistoryRecord.EVENT_TYPE_CREATED;
+                InputStream is = new FileInputStream(docFiles.get(i));
+                try {
+                    localAtt.streamNewVersion(local, is, modifieduser, modifiedtime);
+                }
+                finally {
+                    is.close();
+                }
+                docNum++;
             }
 
-            URL url = new URL(noteStat.urlRemote);
-            InputStream is = url.openStream();
-            InputStreamReader isr = new InputStreamReader(is, "UTF-8");
-            StringBuilder sb = new StringBuilder();
-            char[] buf = new char[800];
-            int amt = isr.read(buf);
-            while (amt>0) {
-                sb.append(buf,0,amt);
-                amt = isr.read(buf);
+            for (int i=0; i<notesNeedingDown.size(); i++) {
+                SyncStatus noteStat = notesNeedingDown.get(i);
+
+                TopicRecord note;
+                int historyEvent = 0;
+                if (noteStat.isLocal) {
+                    note = local.getNote(noteStat.idLocal);
+                    historyEvent = HistoryRecord.EVENT_TYPE_MODIFIED;
+                }
+                else {
+                    note = local.createNote();
+                    note.setUniversalId(noteStat.universalId);
+                    note.setUpstream(true);
+                    historyEvent = HistoryRecord.EVENT_TYPE_CREATED;
+                }
+
+                noteStat.remoteCopy.put("data", noteContents.get(i));
+                note.updateNoteFromJSON(noteStat.remoteCopy, ar);
+                noteNum++;
+                HistoryRecord.createNoteHistoryRecord(local, note, historyEvent, ar,
+                        "from upstream project");
+            }
+        }
+        finally {
+            for (File tempFile : docFiles) {
+                tempFile.delete();
             }
-            noteStat.remoteCopy.put("data", sb.toString());
-            note.updateNoteFromJSON(noteStat.remoteCopy, ar);
-            noteNum++;
-            HistoryRecord.createNoteHistoryRecord(local, note, historyEvent, ar,
-                    "from upstream project");
         }
 
         List<SyncStatus> goalsNeedingDown  = getToDownload(SyncStatus.TYPE_TASK);
@@ -518,12 +619,18 @@ public class ProjectSync {
                 +noteNum+" topics, and "+goalNum+" action items.");
         }
 
+        //everything up to the time of the listing is here now
+        local.setUpstreamSyncToken(remote.getSyncToken());
         local.saveFile(ar, "Synchronized topics and documents from upstream workspace");
     }
 
     /**
     * This will walk through the discrepancies, and send all documents up
     * to the upstream project.
+    *
+    * Everything to send is prepared from the local workspace first, then
+    * sent several at a time: action items, then documents, then topics,
+    * because topics may refer to the documents.
     */
     public void uploadAll() throws Exception {
 
@@ -533,6 +640,7 @@ public class ProjectSync {
         //This license is not really used after upload is complete, so any license will do
         LicenseForUser lfu = new LicenseForUser(ar.getUserProfile());
 
+        List<Callable<JSONObject>> goalCalls = new ArrayList<Callable<JSONObject>>();
         for (SyncStatus goalStat : goalsNeedingUp) {
 
             GoalRecord goal = local.getGoalOrNull(goalStat.universalId);
@@ -545,58 +653,46 @@ public class ProjectSync {
                 request.put("operation", "newGoal");
             }
             request.put("goal", goalObj);
-            remote.call(request);
+            goalCalls.add(new RemoteCall(request));
         }
+
         List<SyncStatus> docsNeedingUp  = getToUpload(SyncStatus.TYPE_DOCUMENT);
+        List<Callable<JSONObject>> docCalls = new ArrayList<Callable<JSONObject>>();
         for (SyncStatus docStat : docsNeedingUp) {
             AttachmentRecord newAtt = local.findAttachmentByIDOrFail(docStat.idLocal);
-
-            //first we make a quick request to the project to get a temp file name to send to
-            JSONObject tempFileRequest = new JSONObject();
-            tempFileRequest.put("operation", "tempFile");
-            JSONObject response = remote.call(tempFileRequest);
-            String tempFileName = response.getString("tempFileName");
-            String tempFileURL = response.getString("tempFileURL");
-
-            //now upload the contents to the tempfile address
             AttachmentVersion aVer = newAtt.getLatestVersion(local);
-            File docFile = aVer.getLocalFile();
-            URL remoteURL = new URL(tempFileURL);
-            HttpURLConnection httpCon = (HttpURLConnection) remoteURL.openConnection();
-            httpCon.setDoOutput(true);
-            httpCon.setRequestProperty( "Content-Type", "application/octet-stream" );
-            httpCon.setRequestMethod("PUT");
-            httpCon.setUseCaches(false);
-            httpCon.setDoInput(true);
-            httpCon.setConnectTimeout(60000); //60 secs
-            httpCon.setReadTimeout(60000); //60 secs
-            httpCon.setRequestProperty("Accept-Encoding", "application/octet-stream");
-            httpCon.connect();
-            OutputStream os = httpCon.getOutputStream();
-            UtilityMethods.streamFileContents(docFile, os);
-            os.flush();
-            os.close();
-            httpCon.getInputStream();
-            if (httpCon.getResponseCode()!=200) {
-                throw new Exception("Attempt to PUT file failed with code ("
-                        +httpCon.getResponseCode()+"): "+tempFileURL);
-            }
-            //there is a response... should it be read here?
-
-            //Now, make the temp file official
-            JSONObject request = new JSONObject();
+            final File docFile = aVer.getLocalFile();
+
+            final JSONObject request = new JSONObject();
             if (docStat.isRemote) {
                 request.put("operation", "updateDoc");
             }
             else {
                 request.put("operation", "newDoc");
             }
-            request.put("tempFileName", tempFileName);
-            newAtt = local.findAttachmentByID(docStat.idLocal);
             request.put("doc", newAtt.getJSON4Doc(local, ar, urlRoot, lfu));
-            response = remote.call(request);
+
+            docCalls.add(new Callable<JSONObject>() {
+                public JSONObject call() throws Exception {
+                    //first we make a quick request to the project to get a temp file name to send to
+                    JSONObject tempFileRequest = new JSONObject();
+                    tempFileRequest.put("operation", "tempFile");
+                    JSONObject response = remote.call(tempFileRequest);
+                    String tempFileName = response.getString("tempFileName");
+                    String tempFileURL = response.getString("tempFileURL");
+
+                    //now upload the contents to the tempfile address
+                    RemoteJSON.putFileToRemote(new URL(tempFileURL), docFile);
+
+                    //Now, make the temp file official
+                    request.put("tempFileName", tempFileName);
+                    return remote.call(request);
+                }
+            });
         }
+
         List<SyncStatus> notesNeedingUp  = getToUpload(SyncStatus.TYPE_NOTE);
+        List<Callable<JSONObject>> noteCalls = new ArrayList<Callable<JSONObject>>();
         for (SyncStatus docStat : notesNeedingUp) {
             TopicRecord note = local.getNoteOrFail(docStat.idLocal);
             JSONObject request = new JSONObject();
@@ -607,9 +703,63 @@ public class ProjectSync {
                 request.put("operation", "newNote");
             }
             request.put("note", note.getJSON4Note(urlRoot, true, lfu, local));
-            remote.call(request);
+            noteCalls.add(new RemoteCall(request));
         }
 
+        runParallel(goalCalls);
+        runParallel(docCalls);
+        runParallel(noteCalls);
+    }
+
+    /**
+     * Posts a prepared request to the remote project.
+     */
+    private class RemoteCall implements Callable<JSONObject> {
+        JSONObject request;
+
+        RemoteCall(JSONObject _request) {
+            request = _request;
+        }
+
+        public JSONObject call() throws Exception {
+            return remote.call(request);
+        }
+    }
+
+    /**
+     * Runs the transfers, at most RemoteJSON.getParallelTransfers() at a
+     * time, and returns the results in the same order.  If any fails, the
+     * first failure is thrown after all have finished or been cancelled.
+     */
+    private static <T> List<T> runParallel(List<Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<T>();
+        if (tasks.isEmpty()) {
+            return results;
+        }
+        int threads = Math.min(RemoteJSON.getParallelTransfers(), tasks.size());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (Callable<T> task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                }
+                catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw ee;
+                }
+            }
+            return results;
+        }
+        finally {
+            pool.shutdownNow();
+        }
     }
 
 
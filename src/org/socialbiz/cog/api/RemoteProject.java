@@ -34,15 +34,39 @@ public class RemoteProject
 {
     String     urlStr;
     JSONObject root;
+    long       changesSince = 0;
 
     public RemoteProject(String s) throws Exception {
         urlStr = s;
     }
 
+    /**
+     * Ask for only the changes since the sync token from an earlier
+     * synchronization.  Resources that have not changed since then are
+     * listed in the "unchanged" lists with only their id, time, and size.
+     * Zero asks for everything in full.  An older server that does not
+     * know about this sends everything in full anyway.
+     */
+    public void setChangesSince(long syncToken) {
+        if (syncToken != changesSince) {
+            changesSince = syncToken;
+            root = null;
+        }
+    }
+
     public JSONObject getJSONObj() throws Exception {
         try {
             if (root == null) {
-                root = RemoteJSON.getFromRemote(new URL(urlStr));
+                String listingUrl = urlStr;
+                if (changesSince>0) {
+                    if (listingUrl.indexOf('?')<0) {
+                        listingUrl = listingUrl + "?since=" + changesSince;
+                    }
+                    else {
+                        listingUrl = listingUrl + "&since=" + changesSince;
+                    }
+                }
+                root = RemoteJSON.getFromRemote(new URL(listingUrl));
             }
             return root;
         }
@@ -60,6 +84,30 @@ public class RemoteProject
     public JSONArray getGoals() throws Exception {
         return getJSONObj().getJSONArray("goals");
     }
+    public JSONArray getUnchangedNotes() throws Exception {
+        return getUnchanged("notesUnchanged");
+    }
+    public JSONArray getUnchangedDocs() throws Exception {
+        return getUnchanged("docsUnchanged");
+    }
+    public JSONArray getUnchangedGoals() throws Exception {
+        return getUnchanged("goalsUnchanged");
+    }
+    private JSONArray getUnchanged(String name) throws Exception {
+        JSONArray list = getJSONObj().optJSONArray(name);
+        if (list==null) {
+            list = new JSONArray();
+        }
+        return list;
+    }
+
+    /**
+     * The time on the remote server when this listing was made, to pass
+     * to setChangesSince the next time.  Zero from an older server.
+     */
+    public long getSyncToken() throws Exception {
+        return getJSONObj().optLong("syncToken");
+    }
     public License getLicense() throws Exception {
         return new RemoteLicense(getJSONObj().optJSONObject("license"));
     }
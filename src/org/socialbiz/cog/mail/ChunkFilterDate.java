@@ -67,10 +67,13 @@ public class ChunkFilterDate  extends BasicFilter implements ChunkFilter {
             format = argStrings[0];
         }
         SimpleDateFormat sdf = new SimpleDateFormat(format);
-        sdf.setCalendar(cal);
+        //formatting changes the calendar, and this filter is shared by all
+        //the threads rendering with the same Theme, so use a copy
+        Calendar myCal = (Calendar) cal.clone();
+        sdf.setCalendar(myCal);
         String res = sdf.format(new Date(dateVal));
         if (res.contains("ttt")) {
-            res = res.replace("ttt", cal.getTimeZone().getID());
+            res = res.replace("ttt", myCal.getTimeZone().getID());
         }
         return res;
     }
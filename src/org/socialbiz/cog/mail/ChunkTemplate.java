@@ -6,9 +6,15 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.socialbiz.cog.Cognoscenti;
+import org.socialbiz.cog.DOMFace;
+import org.socialbiz.cog.MetricsRegistry;
+
 import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONObject;
 import com.purplehillsbooks.streams.MemFile;
@@ -20,9 +26,157 @@ import com.x5.template.Theme;
  * Chunk Template is an open source template library.
  *
  * This class isolates all the special code needed to work with it.
+ *
+ * Setting up a Theme and parsing a template is far more expensive than
+ * rendering it, and the same few templates are rendered for every email.
+ * So a Theme is kept for each template folder and time zone (the date
+ * filter is the only thing that depends on the calendar) and reused.
+ * Each Theme keeps the parsed templates, and the modified time of every
+ * template rendered through it is remembered, so that when a template
+ * file changes, the Theme for that folder is thrown away and the new
+ * file is parsed.  Included templates are checked by the Theme itself
+ * once a minute.
+ *
+ * The number of Themes kept is bounded by "templateCacheSize" in the
+ * config file, least recently used are dropped first.
  */
 public class ChunkTemplate {
 
+    private static final int DEFAULT_CACHE_SIZE = 50;
+
+    //how often, in minutes, a Theme rechecks templates it has parsed
+    private static final int RECHECK_MINUTES = 1;
+
+    private static int cacheSize = DEFAULT_CACHE_SIZE;
+    private static LinkedHashMap<String, CachedTheme> themeCache = new LinkedHashMap<String, CachedTheme>(16, 0.75f, true);
+
+    private static final MetricsRegistry.Counter HIT_COUNT = MetricsRegistry.counter(
+            "cog_template_cache_hits_total", "Email templates found already compiled in the cache");
+    private static final MetricsRegistry.Counter MISS_COUNT = MetricsRegistry.counter(
+            "cog_template_cache_misses_total", "Email templates that had to be read and compiled");
+
+    static {
+        MetricsRegistry.gauge("cog_template_themes_cached", "Email template Themes kept in the cache",
+                new MetricsRegistry.GaugeValue() {
+                    public double getValue() {
+                        synchronized (ChunkTemplate.class) {
+                            return themeCache.size();
+                        }
+                    }
+                });
+    }
+
+    private static class CachedTheme {
+        Theme theme;
+        //template file path -> modified time when it was first rendered
+        HashMap<String, Long> templateTimes = new HashMap<String, Long>();
+    }
+
+    /**
+     * Read the cache size from the config file.  Called as part of server
+     * initialization.
+     */
+    public static void initialize(Cognoscenti cog) throws Exception {
+        int newSize = DOMFace.safeConvertInt(cog.getConfig().getProperty("templateCacheSize"));
+        if (newSize<=0) {
+            newSize = DEFAULT_CACHE_SIZE;
+        }
+        synchronized (ChunkTemplate.class) {
+            cacheSize = newSize;
+            themeCache.clear();
+        }
+    }
+
+    public static synchronized void clearAllStaticVars() {
+        themeCache.clear();
+    }
+
+    /**
+     * The render time of each template goes in a timer of its own, named
+     * after the template, in the metrics (see MetricsRegistry).  There are
+     * only a few templates, all files in the templates folder.
+     */
+    private static void recordRender(String name, long startTime) {
+        StringBuilder metricName = new StringBuilder("cog_template_render_seconds_");
+        for (char ch : name.toCharArray()) {
+            if ((ch>='a' && ch<='z') || (ch>='A' && ch<='Z') || (ch>='0' && ch<='9')) {
+                metricName.append(ch);
+            }
+            else {
+                metricName.append('_');
+            }
+        }
+        MetricsRegistry.timer(metricName.toString(), "Time to render the email template "+name)
+                .recordSince(startTime);
+    }
+
+    /**
+     * Get the shared Theme for the folder and calendar.  If the template
+     * file was modified since the Theme parsed it, a new Theme is made.
+     * Pass null for folder and template when there is no template file.
+     */
+    private static synchronized Theme getTheme(File folder, File templateFile, Calendar cal) {
+        String folderPath = "";
+        if (folder!=null) {
+            folderPath = folder.toString();
+        }
+        String key = folderPath + "|" + cal.getTimeZone().getID();
+        CachedTheme ct = themeCache.get(key);
+        if (ct!=null && templateFile!=null) {
+            String path = templateFile.toString();
+            long modTime = templateFile.lastModified();
+            Long knownTime = ct.templateTimes.get(path);
+            if (knownTime==null) {
+                ct.templateTimes.put(path, modTime);
+            }
+            else if (knownTime.longValue()!=modTime) {
+                //template file changed, drop all themes for this folder
+                //since they all hold the old parsed copy
+                dropFolder(folderPath);
+                ct = null;
+            }
+        }
+        if (ct!=null) {
+            HIT_COUNT.inc();
+            return ct.theme;
+        }
+        MISS_COUNT.inc();
+        ct = new CachedTheme();
+        ct.theme = new Theme();
+        if (folder!=null) {
+            ct.theme.setTemplateFolder(folderPath);
+        }
+        ct.theme.setDefaultFileExtension("chtml");
+        ct.theme.setEncoding("UTF-8");
+        ct.theme.setDirtyInterval(RECHECK_MINUTES);
+
+        //This allows {$myDate|date(YYYY-MM-dd)} style tokens in the file
+        ct.theme.registerFilter(new ChunkFilterDate(cal));
+
+        if (templateFile!=null) {
+            ct.templateTimes.put(templateFile.toString(), templateFile.lastModified());
+        }
+        themeCache.put(key, ct);
+        while (themeCache.size()>cacheSize) {
+            String eldest = themeCache.keySet().iterator().next();
+            themeCache.remove(eldest);
+        }
+        return ct.theme;
+    }
+
+    private static void dropFolder(String folderPath) {
+        String prefix = folderPath + "|";
+        List<String> toRemove = new ArrayList<String>();
+        for (String key : themeCache.keySet()) {
+            if (key.startsWith(prefix)) {
+                toRemove.add(key);
+            }
+        }
+        for (String key : toRemove) {
+            themeCache.remove(key);
+        }
+    }
+
     public static HashMap<String,Object> convertToMap(JSONObject jo) throws Exception {
         HashMap<String,Object> res = new HashMap<String,Object> ();
         Set<String> keys = jo.keySet();
@@ -121,18 +275,12 @@ public class ChunkTemplate {
         if (fileName.toLowerCase().endsWith(".chtml")) {
             fileName = fileName.substring(0,fileName.length()-6);
         }
-        //TemplateSet tempSet = new TemplateSet(templateFile.getParentFile().toString(), "chtml", 5);
-        Theme theme = new Theme();
-        theme.setTemplateFolder(templateFile.getParentFile().toString());
-        theme.setDefaultFileExtension("chtml");
-        theme.setEncoding("UTF-8");
-
-        //This allows {$myDate|date(YYYY-MM-dd)} style tokens in the file
-        theme.registerFilter(new ChunkFilterDate(cal));
-
+        long startTime = System.currentTimeMillis();
+        Theme theme = getTheme(templateFile.getParentFile(), templateFile, cal);
         Chunk c = theme.makeChunk(fileName);
-        
+
         finishUp(w,c,data);
+        recordRender(fileName, startTime);
     }
     public static String streamToString(File templateFile, JSONObject data, Calendar cal) throws Exception {
         MemFile mf = new MemFile();
@@ -156,12 +304,7 @@ public class ChunkTemplate {
      */
     public static String stringIt(String str, JSONObject data, Calendar cal) throws Exception {
         StringWriter sw = new StringWriter();
-        Theme theme = new Theme();
-        theme.setDefaultFileExtension("chtml");
-        theme.setEncoding("UTF-8");
-
-        //This allows {$myDate|date(YYYY-MM-dd)} style tokens in the file
-        theme.registerFilter(new ChunkFilterDate(cal));
+        Theme theme = getTheme(null, null, cal);
 
         Chunk c = theme.makeChunk();
         c.append(str);
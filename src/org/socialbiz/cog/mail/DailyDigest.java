@@ -5,33 +5,32 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.socialbiz.cog.AccessControl;
 import org.socialbiz.cog.AddressListEntry;
 import org.socialbiz.cog.AuthDummy;
 import org.socialbiz.cog.AuthRequest;
 import org.socialbiz.cog.BaseRecord;
 import org.socialbiz.cog.Cognoscenti;
+import org.socialbiz.cog.DOMFace;
 import org.socialbiz.cog.GoalRecord;
 import org.socialbiz.cog.HistoryRecord;
-import org.socialbiz.cog.NGBook;
-import org.socialbiz.cog.NGPage;
 import org.socialbiz.cog.NGPageIndex;
 import org.socialbiz.cog.NGWorkspace;
 import org.socialbiz.cog.OptOutAddr;
-import org.socialbiz.cog.ReminderMgr;
-import org.socialbiz.cog.ReminderRecord;
 import org.socialbiz.cog.SectionUtil;
 import org.socialbiz.cog.SiteReqFile;
 import org.socialbiz.cog.SiteRequest;
 import org.socialbiz.cog.SuperAdminLogFile;
-import org.socialbiz.cog.UserCache;
 import org.socialbiz.cog.UserProfile;
 import org.socialbiz.cog.exception.NGException;
 
 import com.purplehillsbooks.json.JSONArray;
 import com.purplehillsbooks.json.JSONObject;
-import com.purplehillsbooks.json.JSONTokener;
 import com.purplehillsbooks.streams.HTMLWriter;
 import com.purplehillsbooks.streams.MemFile;
 
@@ -39,6 +38,8 @@ public class DailyDigest {
 
     private static boolean forceIt = false;
 
+    private static final int DEFAULT_DIGEST_THREADS = 4;
+
     public static void forceDailyDigest(AuthRequest arx, Cognoscenti cog) throws Exception {
         forceIt = true;
         sendDailyDigest(arx, cog);
@@ -49,6 +50,12 @@ public class DailyDigest {
     /*
      * This method loops through all known users (with profiles) and sends an
      * email with their tasks on it.
+     *
+     * All the workspaces are read once, up front, into a DigestSnapshot.  Then
+     * the users are handled in parallel by a fixed pool of threads, the size
+     * of which is set by "dailyDigestThreads" in the config file.  Each user
+     * is recorded in a DigestCheckpoint as soon as finished, and if the server
+     * goes down during the run, the next run skips the users already done.
      */
     public static void sendDailyDigest(AuthRequest arx, Cognoscenti cog) throws Exception {
         MemFile debugStuff = new MemFile();
@@ -57,7 +64,10 @@ public class DailyDigest {
         JSONObject logFile = new JSONObject();
         JSONArray logEntries = new JSONArray();
         logFile.put("events", logEntries);
-        File dailyDigestFile = new File(cog.getConfig().getUserFolderOrFail(), "DailyDigestLog.json");
+        File userFolder = cog.getConfig().getUserFolderOrFail();
+        File dailyDigestFile = new File(userFolder, "DailyDigestLog.json");
+        DigestCheckpoint checkpoint = null;
+        ExecutorService pool = null;
 
         try {
             NGPageIndex.assertNoLocksOnThread();
@@ -69,9 +79,15 @@ public class DailyDigest {
 
             // we pick up the time here, at the beginning, so that any new
             // events created AFTER this time, but before the end of this routine are
-            // not lost during the processing.
-            long processingStartTime = System.currentTimeMillis();
+            // not lost during the processing.  If resuming an interrupted run, use
+            // the time of that run.
+            checkpoint = DigestCheckpoint.open(userFolder, System.currentTimeMillis());
+            long processingStartTime = checkpoint.getRunStartTime();
             long threeYearsAgo = processingStartTime - (3L*365L*24L*3600L*1000L);
+            if (checkpoint.isResumed()) {
+                System.out.println("DAILYDIGEST: resuming the interrupted run from "+new Date(processingStartTime));
+                logFile.put("ResumedRun", true);
+            }
 
             debugWriter.write("</li>\n<li>Email being sent at: ");
             SectionUtil.nicePrintDateAndTime(debugWriter, processingStartTime);
@@ -81,8 +97,11 @@ public class DailyDigest {
             logFile.put("CurrentSend", processingStartTime);
             logFile.put("UserDisableLimit", threeYearsAgo);
 
-
-            // loop thru all the profiles to send out the email.
+            // decide which users need handling, and how far back the history has to go
+            long phaseStart = System.currentTimeMillis();
+            List<UserProfile> toHandle = new ArrayList<UserProfile>();
+            List<JSONObject> toHandleLogs = new ArrayList<JSONObject>();
+            long earliestHistory = processingStartTime;
             for (UserProfile up : arx.getCogInstance().getUserManager().getAllUserProfiles()) {
                 JSONObject userObject = new JSONObject();
                 logEntries.put(userObject);
@@ -104,13 +123,54 @@ public class DailyDigest {
                     userObject.put("conclusion", "Disabled Now");
                     continue;
                 }
+                String doneBefore = checkpoint.getCompletedConclusion(up.getKey());
+                if (doneBefore!=null) {
+                    //handled by the interrupted run, the notification time set
+                    //then was never saved, so set it again
+                    if ("Email Sent".equals(doneBefore)) {
+                        up.setNotificationTime(processingStartTime);
+                    }
+                    userObject.put("conclusion", doneBefore);
+                    userObject.put("resumed", true);
+                    continue;
+                }
+                toHandle.add(up);
+                toHandleLogs.add(userObject);
+                long historyStartTime = getHistoryStartTime(up);
+                if (historyStartTime < earliestHistory) {
+                    earliestHistory = historyStartTime;
+                }
+            }
+            long selectTime = System.currentTimeMillis() - phaseStart;
 
-                handleOneUser(cog, arx, up, debugWriter, processingStartTime, userObject);
+            // one pass through all the workspaces for everyone
+            phaseStart = System.currentTimeMillis();
+            DigestSnapshot snapshot = null;
+            if (toHandle.size()>0) {
+                snapshot = DigestSnapshot.build(cog, toHandle.get(0), earliestHistory, processingStartTime);
+            }
+            long snapshotTime = System.currentTimeMillis() - phaseStart;
 
-                //this clears locks if there was an error during sending
-                NGPageIndex.clearLocksHeldByThisThread();
+            // now the users in parallel
+            phaseStart = System.currentTimeMillis();
+            int threadCount = DOMFace.safeConvertInt(cog.getConfig().getProperty("dailyDigestThreads"));
+            if (threadCount<=0) {
+                threadCount = DEFAULT_DIGEST_THREADS;
             }
+            DigestTimes times = new DigestTimes();
+            pool = Executors.newFixedThreadPool(threadCount);
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i=0; i<toHandle.size(); i++) {
+                results.add(pool.submit(new UserTask(cog, arx, toHandle.get(i), snapshot,
+                        processingStartTime, toHandleLogs.get(i), checkpoint, times)));
+            }
+            for (Future<String> result : results) {
+                //debug output is assembled in user order, regardless of which finished first
+                debugWriter.write(result.get());
+            }
+            long userTime = System.currentTimeMillis() - phaseStart;
 
+            phaseStart = System.currentTimeMillis();
             debugWriter.flush();
             // at the very last moment, if all was successful, mark down the
             // time that we sent it all.
@@ -119,19 +179,113 @@ public class DailyDigest {
 
             //save all the times that we set on the user profiles
             cog.getUserManager().saveUserProfiles();
-            
-
+            checkpoint.finished();
+            long finishTime = System.currentTimeMillis() - phaseStart;
+
+            System.out.println("DAILYDIGEST: finished "+toHandle.size()+" users on "+threadCount
+                    +" threads.  Select users "+selectTime+"ms, read "
+                    +(snapshot==null ? 0 : snapshot.workspaceCount)+" workspaces "+snapshotTime
+                    +"ms, users "+userTime+"ms (cache refresh "+times.cacheRefresh.get()
+                    +"ms, format "+times.format.get()+"ms, send "+times.send.get()
+                    +"ms, summed over threads), save "+finishTime+"ms");
+            JSONObject timing = new JSONObject();
+            timing.put("selectUsers", selectTime);
+            timing.put("readWorkspaces", snapshotTime);
+            timing.put("users", userTime);
+            timing.put("cacheRefresh", times.cacheRefresh.get());
+            timing.put("format", times.format.get());
+            timing.put("send", times.send.get());
+            timing.put("save", finishTime);
+            timing.put("threads", threadCount);
+            logFile.put("timing", timing);
 
         } catch (Exception e) {
             throw new NGException("nugen.exception.unable.to.send.daily.digest", null, e);
         } finally {
+            if (pool!=null) {
+                pool.shutdown();
+            }
+            if (checkpoint!=null) {
+                checkpoint.close();
+            }
             NGPageIndex.clearLocksHeldByThisThread();
             logFile.writeToFile(dailyDigestFile);
         }
     }
 
+    /**
+     * Processing time summed across all the worker threads.
+     */
+    private static class DigestTimes {
+        AtomicLong cacheRefresh = new AtomicLong();
+        AtomicLong format = new AtomicLong();
+        AtomicLong send = new AtomicLong();
+    }
+
+    /**
+     * Handles one user on a worker thread.  Returns the debug output for
+     * the user, and records the user in the checkpoint when done.
+     */
+    private static class UserTask implements Callable<String> {
+        private Cognoscenti cog;
+        private AuthRequest arx;
+        private UserProfile up;
+        private DigestSnapshot snapshot;
+        private long processingStartTime;
+        private JSONObject userLog;
+        private DigestCheckpoint checkpoint;
+        private DigestTimes times;
+
+        UserTask(Cognoscenti cog, AuthRequest arx, UserProfile up, DigestSnapshot snapshot,
+                long processingStartTime, JSONObject userLog, DigestCheckpoint checkpoint,
+                DigestTimes times) {
+            this.cog = cog;
+            this.arx = arx;
+            this.up = up;
+            this.snapshot = snapshot;
+            this.processingStartTime = processingStartTime;
+            this.userLog = userLog;
+            this.checkpoint = checkpoint;
+            this.times = times;
+        }
+
+        public String call() throws Exception {
+            MemFile debugStuff = new MemFile();
+            Writer debugWriter = debugStuff.getWriter();
+            try {
+                handleOneUser(cog, arx, up, snapshot, debugWriter, processingStartTime, userLog, times);
+                checkpoint.markComplete(up.getKey(), userLog.optString("conclusion"));
+            }
+            catch (Exception e) {
+                //handleOneUser catches everything, so this is unexpected
+                System.out.println("DAILYDIGEST: failure handling user "+up.getKey()+": "+e);
+            }
+            finally {
+                //this clears locks if there was an error during sending
+                NGPageIndex.clearLocksHeldByThisThread();
+            }
+            debugWriter.flush();
+            return debugStuff.toString();
+        }
+    }
+
+    /**
+     * This is the last time they were notified, but never go back more than twice
+     * the notification period.  Some users (schema migration) will not have this
+     * value set, and this avoids getting a message with all possible history in it.
+     */
+    private static long getHistoryStartTime(UserProfile up) {
+        long historyStartTime = up.getNotificationTime();
+        long earliestPossible = System.currentTimeMillis()-(up.getNotificationPeriod()*2L*24*60*60*1000);
+        if (historyStartTime<earliestPossible) {
+            historyStartTime = earliestPossible;
+        }
+        return historyStartTime;
+    }
+
     private static void handleOneUser(Cognoscenti cog, AuthRequest arx, UserProfile up,
-            Writer debugEvidence, long processingStartTime, JSONObject userLog) {
+            DigestSnapshot snapshot, Writer debugEvidence, long processingStartTime,
+            JSONObject userLog, DigestTimes times) {
         try {
             NGPageIndex.assertNoLocksOnThread();
 
@@ -144,16 +298,7 @@ public class DailyDigest {
                 return;
             }
 
-            //this is the last time they were notified.
-            long historyStartTime = up.getNotificationTime();
-
-            //schema migration ... some users will not have this value set.
-            //never go back more than twice the notification period.
-            //This avoids getting a message with all possible history in it
-            long earliestPossible = System.currentTimeMillis()-(up.getNotificationPeriod()*2L*24*60*60*1000);
-            if (historyStartTime<earliestPossible) {
-                historyStartTime = earliestPossible;
-            }
+            long historyStartTime = getHistoryStartTime(up);
 
             //Calculate the time by adding the days and subtracting an hour to account for the time
             //it takes to run through all the users.  Don't want to kick a message to tomorrow just
@@ -174,73 +319,20 @@ public class DailyDigest {
                 return;
             }
 
+            long phaseStart = System.currentTimeMillis();
             MemFile body = new MemFile();
             AuthDummy clone = new AuthDummy(up, body.getWriter(), cog);
             clone.nowTime = processingStartTime;
 
-            //the user cache contains all the action items, open rounds, and proposals for a user
-            UserCache userCache = cog.getUserCacheMgr().getCache(up.getKey());
-            //because this is background, it is a good time to refresh the data in the cache
-            userCache.refreshCache(cog);
-
-            userLog.put("ActionItems", userCache.getActionItems().length());
-            userLog.put("OpenRounds",  userCache.getOpenRounds().length());
-            userLog.put("Proposals",   userCache.getProposals().length());
-
-            JSONObject data = userCache.getAsJSON();
-            MemFile mf = new MemFile();
-            Writer memWriter = mf.getWriter();
-            data.write(memWriter);
-            memWriter.flush();
-            data = new JSONObject(new JSONTokener(mf.getReader()));
-
-            data.put("baseURL", clone.baseURL);
-            data.put("to",up.getJSON());
-            data.put("timeStart",historyStartTime);
-            data.put("timeEnd",processingStartTime);
-
-            JSONArray notifyList = new JSONArray();
-            for (String noteKey : up.getNotificationList()) {
-                NGPageIndex ngpi = cog.getWSByCombinedKey(noteKey);
-                if (ngpi == null) {
-                    //ignoring any reference to a workspace that no longer exists
-                    continue;
-                }
-                if (!ngpi.isProject()) {
-                    //ignore site objects
-                    continue;
-                }
-                if (ngpi.isDeleted) {
-                    //ignore any deleted workspaces
-                    continue;
-                }
-                NGPage ngp = ngpi.getWorkspace();
-                if (ngp.isDeleted()) {
-                    //ignore any deleted workspaces
-                    continue;
-                }
-                NGBook site = ngp.getSite();
-                if (site.isDeleted() || site.isMoved()) {
-                    //ignore any workspaces in deleted or moved sites.
-                    continue;
-                }
-                
-                List<HistoryRecord> histRecs = ngp.getHistoryRange(
-                        historyStartTime, processingStartTime);
-                if (histRecs.size() == 0) {
-                    // skip this if there is no history
-                    continue;
-                }
-                JSONObject oneWorkspace = ngpi.getJSON4List();
-                JSONArray history = new JSONArray();
-                for (HistoryRecord oneHist : histRecs) {
-                    history.put(oneHist.getJSON(ngp, clone));
-                }
-                oneWorkspace.put("history",history);
-                notifyList.put(oneWorkspace);
-            }
-            data.put("notifyList", notifyList);
+            //the user cache contains all the action items, open rounds, and proposals for a user.
+            //Because this is background, it is a good time to refresh it, from the snapshot
+            JSONObject counts = snapshot.storeUserLists(cog, up);
+            userLog.put("ActionItems", counts.getInt("ActionItems"));
+            userLog.put("OpenRounds",  counts.getInt("OpenRounds"));
+            userLog.put("Proposals",   counts.getInt("Proposals"));
+            times.cacheRefresh.addAndGet(System.currentTimeMillis() - phaseStart);
 
+            phaseStart = System.currentTimeMillis();
             OptOutAddr ooa = new OptOutAddr(
                 AddressListEntry.parseCombinedAddress(realAddress));
 
@@ -262,7 +354,7 @@ public class DailyDigest {
             int numTasks = 0;
 
             {
-                List<NGPageIndex> containers = new ArrayList<NGPageIndex>();
+                List<DigestSnapshot.WorkspaceDigest> containers = new ArrayList<DigestSnapshot.WorkspaceDigest>();
                 for (String noteKey : up.getNotificationList()) {
                     NGPageIndex ngci = clone.getCogInstance().getWSByCombinedKey(noteKey);
 
@@ -272,8 +364,9 @@ public class DailyDigest {
                     if (ngci != null) {
                         //apparently it is possible for people to get a 'Site' in their
                         //notify list.
-                        if (ngci.isProject()) {
-                            containers.add(ngci);
+                        DigestSnapshot.WorkspaceDigest wd = snapshot.getWorkspace(ngci);
+                        if (wd != null) {
+                            containers.add(wd);
                         }
                     }
                 }
@@ -281,8 +374,7 @@ public class DailyDigest {
 
                 if (containers.size() > 0) {
                     clone.write("<div style=\"margin-top:15px;margin-bottom:20px;\"><span style=\"font-size:24px;font-weight:bold;\">Workspace Updates</span>&nbsp;&nbsp;&nbsp;");
-                    NGPageIndex.clearLocksHeldByThisThread();
-                    numberOfUpdates += constructDailyDigestEmail(clone, containers,
+                    numberOfUpdates += writeWorkspaceHistory(clone, containers,
                             historyStartTime, processingStartTime);
                     clone.write("</div>");
                 }
@@ -299,21 +391,16 @@ public class DailyDigest {
                     }
                 }
 
-                //formatTaskListForEmail is going to clear locks, so clear here before entering
-                NGPageIndex.clearLocksHeldByThisThread();
-                numTasks = formatTaskListForEmail(clone, up);
+                numTasks = formatTaskListForEmail(clone, up, snapshot);
                 userLog.put("tasks", numTasks);
-
-                //writeReminders will walk through a bunch of pages and all locks must be
-                //cleared before entering it.  Clean up locks from containers processing.
-                NGPageIndex.clearLocksHeldByThisThread();
             }
 
-            int numReminders = writeReminders(clone, up);
+            int numReminders = writeReminders(clone, up, snapshot);
             userLog.put("reminders", numReminders);
 
             clone.write("</body></html>");
             clone.flush();
+            times.format.addAndGet(System.currentTimeMillis() - phaseStart);
 
             //very important.  Don't hold on to the locks while sending the email because if the
             //email server is slow (and we have one that is) then all those pages are locked
@@ -326,7 +413,9 @@ public class DailyDigest {
                         + numReminders + " reminders.";
 
                 //Actually SEND the email here
+                phaseStart = System.currentTimeMillis();
                 EmailSender.generalMailToOne(ooa, up.getAddressListEntry(), thisSubj, body.toString(), cog);
+                times.send.addAndGet(System.currentTimeMillis() - phaseStart);
 
 
                 debugEvidence.write("\n<li>");
@@ -368,6 +457,71 @@ public class DailyDigest {
         }
     }
 
+    /**
+     * Same output as constructDailyDigestEmail, but from the history that was
+     * already read and formatted for all users.  Returns the number of history
+     * records found for this user's range.
+     */
+    private static int writeWorkspaceHistory(AuthRequest clone,
+            List<DigestSnapshot.WorkspaceDigest> containers,
+            long historyRangeStart, long historyRangeEnd) throws Exception {
+        int totalHistoryCount = 0;
+        boolean needsFirst = true;
+
+        for (DigestSnapshot.WorkspaceDigest wd : containers) {
+            List<DigestSnapshot.HistoryItem> histRecs = new ArrayList<DigestSnapshot.HistoryItem>();
+            for (DigestSnapshot.HistoryItem hi : wd.history) {
+                if (hi.timeStamp > historyRangeStart && hi.timeStamp <= historyRangeEnd) {
+                    histRecs.add(hi);
+                }
+            }
+            if (histRecs.size() == 0) {
+                // skip this if there is nothing to show
+                continue;
+            }
+
+            if (needsFirst) {
+                clone.write("<a href=\"");
+                clone.write(clone.baseURL);
+                clone.write("v/");
+                clone.writeURLData(clone.getUserProfile().getKey());
+                clone.write("/userAlerts.htm\">View Latest</a></div>");
+
+                needsFirst = false;
+            }
+
+            clone.write("\n<table width=\"100%\" cellpadding=\"0\" cellspacing=\"0\">");
+            clone.write("<thead>");
+            clone.write("\n<tr>");
+            clone.write("\n<td style=\"height:30px\" colspan=\"2\" valign=\"top\">");
+
+            clone.write("<h4><img border=\"0\" align=\"middle\" src=\"");
+            clone.write(clone.baseURL);
+            clone.write("assets/iconProject.png");
+            clone.write("\" alt=\"Workspace");
+            clone.write("\"/>&nbsp;&nbsp;<a href=\"");
+
+            clone.write(wd.url);
+            clone.write("\">");
+            clone.writeHtml(wd.fullName);
+            clone.write("</a></h4></td>");
+            clone.write("\n</tr>");
+            clone.write("\n</thead>");
+            clone.write("<tbody>");
+
+            for (DigestSnapshot.HistoryItem history : histRecs) {
+                ++totalHistoryCount;
+                clone.write(history.html);
+            }
+            clone.write("\n<tr>");
+            clone.write("\n  <td style=\"height:15px\"></td>");
+            clone.write("\n</tr>");
+            clone.write("</tbody>");
+            clone.write("</table>");
+        }
+        return totalHistoryCount;
+    }
+
     /**
      * Returns the total number of history records actually found.
      */
@@ -507,10 +661,10 @@ public class DailyDigest {
         clone.write("</table>");
     }
 
-    private static int formatTaskListForEmail(AuthRequest ar, UserProfile up)
+    private static int formatTaskListForEmail(AuthRequest ar, UserProfile up, DigestSnapshot snapshot)
             throws Exception {
         int taskNum = 0;
-        List<ProjectGoal> tasks = getActiveTaskList(up, ar.getCogInstance());
+        List<DigestSnapshot.TaskItem> tasks = snapshot.getTasksFor(up);
         if (tasks.size() == 0) {
             return 0;
         }
@@ -533,10 +687,9 @@ public class DailyDigest {
         ar.write("\n </tr> ");
         ar.write("\n </thead> ");
         ar.write("\n <tbody>");
-        for (ProjectGoal pg : tasks) {
+        for (DigestSnapshot.TaskItem task : tasks) {
             taskNum++;
-            NGPageIndex ngpi = pg.ngpi;
-            GoalRecord task = pg.goal;
+            NGPageIndex ngpi = task.ngpi;
 
             ar.write("\n <tr");
             if (taskNum % 2 == 0) {
@@ -547,31 +700,31 @@ public class DailyDigest {
             // task state, name and the page link.
             ar.write("\n <td>");
             ar.write("<a href=\"");
-            writeGoalLinkUrl(ar, ngpi, task, up);
+            writeGoalLinkUrl(ar, task, up);
             ar.write("\" title=\"access current status of task\">");
             ar.write("<img border=\"0\" align=\"absbottom\" src=\"");
             ar.write(ar.baseURL);
-            ar.write(BaseRecord.stateImg(task.getState()));
+            ar.write(BaseRecord.stateImg(task.state));
             ar.write("\" alt=\"");
-            ar.writeHtml(GoalRecord.stateName(task.getState()));
+            ar.writeHtml(GoalRecord.stateName(task.state));
             ar.write("\"/></a>&nbsp;</td><td>");
             ar.write("<a href=\"");
-            writeGoalLinkUrl(ar, ngpi, task, up);
+            writeGoalLinkUrl(ar, task, up);
             ar.write("\" title=\"access current status of task\">");
-            ar.writeHtml(task.getSynopsis());
+            ar.writeHtml(task.synopsis);
             ar.write("</a> - <a href=\"");
             writeProcessLinkUrl(ar, ngpi);
             ar.write("\" title=\"See the workspace containing this task\">");
             ar.writeHtml(ngpi.containerName);
             ar.write("</a>");
             ar.write("\n<br/>Status: ");
-            ar.writeHtml(task.getStatus());
+            ar.writeHtml(task.status);
             ar.write("\n </td>");
 
             // due date column.
             ar.write("\n <td>");
-            if (task.getDueDate() > 0) {
-                ar.write(SectionUtil.getNicePrintDate(task.getDueDate()));
+            if (task.dueDate > 0) {
+                ar.write(SectionUtil.getNicePrintDate(task.dueDate));
             }
             ar.write("\n </td>");
             ar.write("\n </tr>");
@@ -585,19 +738,18 @@ public class DailyDigest {
      * Writes a URL of the task details page for a given task
      * along with the magic number and user key for anonymous access.
      */
-    private static void writeGoalLinkUrl(AuthRequest ar, NGPageIndex ngpi,
-            GoalRecord gr, UserProfile up) throws Exception {
+    private static void writeGoalLinkUrl(AuthRequest ar, DigestSnapshot.TaskItem task,
+            UserProfile up) throws Exception {
         ar.write(ar.baseURL);
         ar.write("t/");
-        ar.writeURLData(ngpi.wsSiteKey);
+        ar.writeURLData(task.ngpi.wsSiteKey);
         ar.write("/");
-        ar.writeURLData(ngpi.containerKey);
+        ar.writeURLData(task.ngpi.containerKey);
         ar.write("/task");
-        ar.writeURLData(gr.getId());
+        ar.writeURLData(task.id);
         ar.write(".htm");
         ar.write("?");
-        NGWorkspace ngp = ngpi.getWorkspace();
-        ar.write(AccessControl.getAccessGoalParams(ngp, gr));
+        ar.write(task.accessParams);
         ar.write("&ukey=");
         ar.writeURLData(up.getKey());
     }
@@ -612,197 +764,110 @@ public class DailyDigest {
         ar.write("/goalList.htm");
     }
 
-    private static int writeReminders(AuthRequest ar, UserProfile up) throws Exception {
+    private static int writeReminders(AuthRequest ar, UserProfile up, DigestSnapshot snapshot) throws Exception {
 
         int noOfReminders = 0;
+        int count = 0;
 
-        for (NGPageIndex ngpi : ar.getCogInstance().getAllContainers()) {
+        for (DigestSnapshot.ReminderItem reminder : snapshot.getRemindersFor(up)) {
+            NGPageIndex ngpi = reminder.ngpi;
+            if (noOfReminders == 0) {
+                ar.write("<div style=\"margin-top:25px;margin-bottom:5px;\">");
+                ar.write("<span style=\"font-size:24px;font-weight:bold;\">");
+                ar.write("Reminders To Share Document</span>&nbsp;&nbsp;&nbsp;");
 
-            noOfReminders = writeOneReminder(ar, up, ngpi, noOfReminders);
+                ar.write("<a href=\"");
+                ar.write(ar.baseURL);
+                ar.write("v/");
+                ar.writeURLData(up.getKey());
+                ar.write("/userActiveTasks.htm\">View Latest </a>");
+                ar.write("(Below is list of reminders of documents which you are requested to upload.)</div>");
+                ar.write("\n <table width=\"800\" class=\"Design8\">");
+                ar.write("\n <thead> ");
+                ar.write("\n <tr>");
+                ar.write("\n <th></th> ");
+                ar.write("\n <th>Document to upload</th> ");
+                ar.write("\n <th>Requested By</th> ");
+                ar.write("\n <th>Sent On</th>");
+                ar.write("\n <th>Workspace</th>");
+                ar.write("\n </tr> ");
+                ar.write("\n </thead> ");
+                ar.write("\n <tbody>");
+            }
 
-        }
-        ar.write("\n </tbody>");
-        ar.write("\n </table>");
-        return noOfReminders;
-    }
+            ar.write("\n <tr");
+            if (count % 2 == 0) {
+                ar.write(" class=\"Odd\"");
+            }
+            ar.write(" valign=\"top\">");
 
-    private static int writeOneReminder(AuthRequest ar, UserProfile up, NGPageIndex ngpi, int noOfReminders)
-            throws Exception {
+            ar.write("\n <td>");
+            ar.write("<a href=\"");
+            writeReminderLink(ar, up, reminder);
+            ar.write("\" title=\"access details of reminder\">");
+            ar.write("<img src=\"");
+            ar.write(ar.baseURL);
+            ar.write("assets/iconUpload.png\" />");
+            ar.write("</a> ");
+            ar.write("</td>");
 
-        NGPageIndex.assertNoLocksOnThread();
-        if (!ngpi.isProject()) {
-            return noOfReminders;
-        }
-        int count = 0;
-        NGPage aPage = ngpi.getWorkspace();
-
-        ReminderMgr rMgr = aPage.getReminderMgr();
-        List<ReminderRecord> rVec = rMgr.getUserReminders(up);
-        for (ReminderRecord reminder : rVec) {
-            if ("yes".equals(reminder.getSendNotification())) {
-                if (noOfReminders == 0) {
-                    ar.write("<div style=\"margin-top:25px;margin-bottom:5px;\">");
-                    ar.write("<span style=\"font-size:24px;font-weight:bold;\">");
-                    ar.write("Reminders To Share Document</span>&nbsp;&nbsp;&nbsp;");
-
-                    ar.write("<a href=\"");
-                    ar.write(ar.baseURL);
-                    ar.write("v/");
-                    ar.writeURLData(up.getKey());
-                    ar.write("/userActiveTasks.htm\">View Latest </a>");
-                    ar.write("(Below is list of reminders of documents which you are requested to upload.)</div>");
-                    ar.write("\n <table width=\"800\" class=\"Design8\">");
-                    ar.write("\n <thead> ");
-                    ar.write("\n <tr>");
-                    ar.write("\n <th></th> ");
-                    ar.write("\n <th>Document to upload</th> ");
-                    ar.write("\n <th>Requested By</th> ");
-                    ar.write("\n <th>Sent On</th>");
-                    ar.write("\n <th>Workspace</th>");
-                    ar.write("\n </tr> ");
-                    ar.write("\n </thead> ");
-                    ar.write("\n <tbody>");
-                }
+            ar.write("\n <td>");
 
-                ar.write("\n <tr");
-                if (count % 2 == 0) {
-                    ar.write(" class=\"Odd\"");
-                }
-                ar.write(" valign=\"top\">");
+            ar.write("<a href=\"");
+            writeReminderLink(ar, up, reminder);
+            ar.write("\" title=\"access details of reminder\">");
+            ar.writeHtml(reminder.subject);
+            ar.write("</a> ");
 
-                ar.write("\n <td>");
-                ar.write("<a href=\"");
-                writeReminderLink(ar, up, aPage, reminder);
-                ar.write("\" title=\"access details of reminder\">");
-                ar.write("<img src=\"");
-                ar.write(ar.baseURL);
-                ar.write("assets/iconUpload.png\" />");
-                ar.write("</a> ");
-                ar.write("</td>");
+            ar.write("\n </td>");
 
-                ar.write("\n <td>");
+            ar.write("\n <td>");
+            (new AddressListEntry(reminder.modifiedBy))
+                    .writeLink(ar);
+            // ar.write(reminder.getModifiedBy());
+            ar.write("\n </td>");
 
-                ar.write("<a href=\"");
-                writeReminderLink(ar, up, aPage, reminder);
-                ar.write("\" title=\"access details of reminder\">");
-                ar.writeHtml(reminder.getSubject());
-                ar.write("</a> ");
-
-                ar.write("\n </td>");
-
-                ar.write("\n <td>");
-                (new AddressListEntry(reminder.getModifiedBy()))
-                        .writeLink(ar);
-                // ar.write(reminder.getModifiedBy());
-                ar.write("\n </td>");
-
-                ar.write("\n <td>");
-                SectionUtil.nicePrintTime(ar, reminder.getModifiedDate(),
-                        ar.nowTime);
-                ar.write("\n </td>");
-
-                ar.write("\n <td>");
-                ar.write("<a href='");
-                ar.write(ar.baseURL);
-                ar.write("t/");
-                ar.writeURLData(ngpi.wsSiteKey);
-                ar.write("/");
-                ar.writeURLData(ngpi.containerKey);
-                ar.write("/reminders.htm' >");
-                ar.writeHtml(aPage.getFullName());
-                ar.write("</a>");
-                ar.write("\n </td>");
-
-                ar.write("\n </tr>");
-
-                noOfReminders++;
-            }
-        }
+            ar.write("\n <td>");
+            SectionUtil.nicePrintTime(ar, reminder.modifiedDate,
+                    ar.nowTime);
+            ar.write("\n </td>");
 
-        // clear any locks made in this handling
-        NGPageIndex.clearLocksHeldByThisThread();
+            ar.write("\n <td>");
+            ar.write("<a href='");
+            ar.write(ar.baseURL);
+            ar.write("t/");
+            ar.writeURLData(ngpi.wsSiteKey);
+            ar.write("/");
+            ar.writeURLData(ngpi.containerKey);
+            ar.write("/reminders.htm' >");
+            ar.writeHtml(reminder.workspaceName);
+            ar.write("</a>");
+            ar.write("\n </td>");
+
+            ar.write("\n </tr>");
+
+            noOfReminders++;
+        }
+        ar.write("\n </tbody>");
+        ar.write("\n </table>");
         return noOfReminders;
     }
 
 
 
     private static void writeReminderLink(AuthRequest ar, UserProfile up,
-            NGPage aPage, ReminderRecord reminder) throws Exception {
+            DigestSnapshot.ReminderItem reminder) throws Exception {
         ar.write(ar.baseURL);
         ar.write("t/");
-        ar.writeURLData(aPage.getSiteKey());
+        ar.writeURLData(reminder.ngpi.wsSiteKey);
         ar.write("/");
-        ar.writeURLData(aPage.getKey());
+        ar.writeURLData(reminder.ngpi.containerKey);
         ar.write("/remindAttachment.htm?rid=");
-        ar.writeURLData(reminder.getId());
+        ar.writeURLData(reminder.id);
         ar.write("&");
-        ar.write(AccessControl.getAccessReminderParams(aPage, reminder));
+        ar.write(reminder.accessParams);
         ar.write("&emailId=");
         ar.writeURLData(up.getPreferredEmail());
     }
 
-    // operation get task list.
-    private static List<ProjectGoal> getActiveTaskList(UserProfile up, Cognoscenti cog) throws Exception {
-        NGPageIndex.assertNoLocksOnThread();
-
-        ArrayList<ProjectGoal> activeTask = new ArrayList<ProjectGoal>();
-
-        if (up == null) {
-            throw new Exception("can not get list of action items for userwhich is null");
-        }
-
-        for (NGPageIndex ngpi : cog.getAllContainers()) {
-            // start by clearing any outstanding locks in every loop
-            NGPageIndex.clearLocksHeldByThisThread();
-            if (!ngpi.isProject() || ngpi.isDeleted) {
-                continue;
-            }
-            NGPage aPage = ngpi.getWorkspace();
-            if (aPage.isDeleted() || aPage.isFrozen()) {
-                continue;
-            }
-            NGBook site = aPage.getSite();
-            if (site.isDeleted() || site.isMoved() || site.isFrozen()) {
-                //ignore any workspaces in deleted, frozen, or moved sites.
-                continue;
-            }
-            for (GoalRecord gr : aPage.getAllGoals()) {
-                if (gr.isPassive()) {
-                    //ignore tasks that are from other servers
-                    continue;
-                }
-                if (!gr.isAssignee(up)) {
-                    continue;
-                }
-                int state = gr.getState();
-                if (state == BaseRecord.STATE_ERROR) {
-                    if (gr.isAssignee(up)) {
-                        activeTask.add(new ProjectGoal(gr, aPage, cog));
-                    }
-                }
-                else if (state == BaseRecord.STATE_ACCEPTED || state == BaseRecord.STATE_OFFERED
-                        || state == BaseRecord.STATE_WAITING) {
-                    // the assignee should see this task in the active task list.
-                    if (gr.isAssignee(up)) {
-                        activeTask.add(new ProjectGoal(gr, aPage, cog));
-                    }
-                }
-            }
-        }
-
-        return activeTask;
-    }
-
-    private static class ProjectGoal {
-
-        public GoalRecord goal;
-        public NGPageIndex ngpi;
-
-
-        public ProjectGoal(GoalRecord aGoal, NGPage aPage, Cognoscenti cog) throws Exception {
-            goal = aGoal;
-            ngpi = cog.getWSBySiteAndKey(aPage.getSiteKey(), aPage.getKey());
-        }
-    }
-
 }
@@ -0,0 +1,135 @@
+package org.socialbiz.cog.mail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+
+import org.socialbiz.cog.DOMFace;
+
+/**
+ * Records the progress of a daily digest run, one line for each user as
+ * soon as that user is finished, so that if the server goes down in the
+ * middle of a run, the next run picks up where this one left off instead
+ * of sending everyone's email again.
+ *
+ * The first line of the file is the processing time of the run.  Each
+ * following line is a user key, a tab, and the conclusion for that user.
+ * The file is deleted when the run completes.  A resumed run uses the
+ * processing time of the run that was interrupted, so that the history
+ * ranges are the same for every user, but a run more than a day old is
+ * not resumed.
+ */
+class DigestCheckpoint {
+
+    private static final long MAX_RESUME_AGE = 24L*60*60*1000;
+
+    private File file;
+    private long runStartTime;
+    private HashMap<String, String> completed = new HashMap<String, String>();
+    private Writer appender;
+
+    /**
+     * Open the checkpoint file, resuming the interrupted run if there is one,
+     * or starting a new run at the time given.
+     */
+    static DigestCheckpoint open(File folder, long newStartTime) throws Exception {
+        DigestCheckpoint dc = new DigestCheckpoint();
+        dc.file = new File(folder, "DailyDigestProgress.txt");
+        dc.runStartTime = newStartTime;
+        if (dc.file.exists()) {
+            dc.readFile(newStartTime);
+        }
+        if (dc.completed.size()==0) {
+            //start a fresh file
+            dc.runStartTime = newStartTime;
+            Writer w = new OutputStreamWriter(new FileOutputStream(dc.file), "UTF-8");
+            w.write(Long.toString(newStartTime));
+            w.write("\n");
+            w.close();
+        }
+        dc.appender = new OutputStreamWriter(new FileOutputStream(dc.file, true), "UTF-8");
+        return dc;
+    }
+
+    private void readFile(long newStartTime) throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            long oldStart = DOMFace.safeConvertLong(br.readLine());
+            if (oldStart <= 0 || oldStart < newStartTime - MAX_RESUME_AGE) {
+                return;
+            }
+            String line = br.readLine();
+            while (line != null) {
+                int tabPos = line.indexOf('\t');
+                if (tabPos > 0) {
+                    completed.put(line.substring(0, tabPos), line.substring(tabPos+1));
+                }
+                line = br.readLine();
+            }
+            if (completed.size() > 0) {
+                runStartTime = oldStart;
+            }
+        }
+        finally {
+            br.close();
+        }
+    }
+
+    boolean isResumed() {
+        return completed.size() > 0;
+    }
+
+    long getRunStartTime() {
+        return runStartTime;
+    }
+
+    /**
+     * If this user was completed by the interrupted run, returns the
+     * conclusion recorded for them, otherwise null.
+     */
+    synchronized String getCompletedConclusion(String userKey) {
+        return completed.get(userKey);
+    }
+
+    /**
+     * Called from the worker threads as each user finishes.  The line is
+     * flushed right away so it survives a crash.
+     */
+    synchronized void markComplete(String userKey, String conclusion) {
+        try {
+            if (conclusion == null) {
+                conclusion = "";
+            }
+            appender.write(userKey);
+            appender.write("\t");
+            appender.write(conclusion);
+            appender.write("\n");
+            appender.flush();
+        }
+        catch (Exception e) {
+            System.out.println("DAILYDIGEST: unable to record progress for "+userKey+": "+e);
+        }
+    }
+
+    /**
+     * The run is complete, the file is no longer needed.
+     */
+    synchronized void finished() {
+        close();
+        file.delete();
+    }
+
+    synchronized void close() {
+        try {
+            appender.close();
+        }
+        catch (Exception e) {
+            //nothing can be done about it
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.socialbiz.cog.mail;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.socialbiz.cog.AccessControl;
+import org.socialbiz.cog.AddressListEntry;
+import org.socialbiz.cog.AuthDummy;
+import org.socialbiz.cog.AgendaItem;
+import org.socialbiz.cog.BaseRecord;
+import org.socialbiz.cog.Cognoscenti;
+import org.socialbiz.cog.CommentRecord;
+import org.socialbiz.cog.CustomRole;
+import org.socialbiz.cog.GoalRecord;
+import org.socialbiz.cog.HistoryRecord;
+import org.socialbiz.cog.MeetingRecord;
+import org.socialbiz.cog.NGBook;
+import org.socialbiz.cog.NGPageIndex;
+import org.socialbiz.cog.NGRole;
+import org.socialbiz.cog.NGWorkspace;
+import org.socialbiz.cog.ReminderRecord;
+import org.socialbiz.cog.ResponseRecord;
+import org.socialbiz.cog.SectionUtil;
+import org.socialbiz.cog.TopicRecord;
+import org.socialbiz.cog.UserCache;
+import org.socialbiz.cog.UserProfile;
+
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONException;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * Everything the daily digest needs from the workspaces, collected in one
+ * pass over all the workspaces, before any user is processed.
+ *
+ * Before this, every user caused a scan of every workspace (for tasks and
+ * reminders) and of every workspace on the notify list (for history).
+ * Now the workspaces are each read once, and the parts of the email that
+ * do not depend on the user are formatted once.  The same pass collects
+ * the goals, open comments and meetings, with who they are for, so the
+ * action items, proposals, open rounds and meetings of each user (the
+ * UserCache lists) are picked from here instead of from the workspaces.  Nothing here refers to
+ * the workspace DOM, so the users can be processed on many threads at
+ * the same time without holding any workspace locks.
+ */
+class DigestSnapshot {
+
+    //the history that was found, and tasks & reminders, by workspace
+    private HashMap<NGPageIndex, WorkspaceDigest> workspaces = new HashMap<NGPageIndex, WorkspaceDigest>();
+
+    //all active tasks, in the same order as the workspaces
+    List<TaskItem> tasks = new ArrayList<TaskItem>();
+
+    //all reminders with notification, in the same order as the workspaces
+    List<ReminderItem> reminders = new ArrayList<ReminderItem>();
+
+    //every goal that is not passive, for the action item lists
+    List<ActionItem> actionItems = new ArrayList<ActionItem>();
+
+    //open and draft comments, for the proposal and open round lists
+    List<CommentItem> comments = new ArrayList<CommentItem>();
+
+    //meetings that are planned or running, for the future meeting lists
+    List<MeetingItem> meetings = new ArrayList<MeetingItem>();
+
+    int workspaceCount = 0;
+    int historyCount = 0;
+
+    static class WorkspaceDigest {
+        NGPageIndex ngpi;
+        String fullName;
+        String url;
+        List<HistoryItem> history = new ArrayList<HistoryItem>();
+    }
+
+    static class HistoryItem {
+        long timeStamp;
+        //table row, already formatted
+        String html;
+    }
+
+    static class TaskItem {
+        NGPageIndex ngpi;
+        List<AddressListEntry> assignees;
+        String id;
+        int state;
+        String synopsis;
+        String status;
+        long dueDate;
+        String accessParams;
+    }
+
+    static class ReminderItem {
+        NGPageIndex ngpi;
+        String workspaceName;
+        String assignee;
+        String id;
+        String subject;
+        String modifiedBy;
+        long modifiedDate;
+        String accessParams;
+    }
+
+    static class ActionItem {
+        List<AddressListEntry> assignees;
+        JSONObject json;
+    }
+
+    static class CommentItem {
+        boolean open;
+        AddressListEntry owner;
+        //players of the target role, null if there is no such role
+        List<AddressListEntry> targetPlayers;
+        List<String> responders = new ArrayList<String>();
+        JSONObject json;
+    }
+
+    static class MeetingItem {
+        List<AddressListEntry> attendees;
+        JSONObject json;
+    }
+
+    WorkspaceDigest getWorkspace(NGPageIndex ngpi) {
+        return workspaces.get(ngpi);
+    }
+
+    /**
+     * Read all the workspaces.  History is collected for the range that covers
+     * all the users, each user selects the part they need.  History rows are
+     * formatted with the request object passed in: the formatting only depends
+     * on the base URL and on the request being logged in, so any user will do.
+     */
+    static DigestSnapshot build(Cognoscenti cog, UserProfile formatUser,
+            long historyStart, long historyEnd) throws Exception {
+        NGPageIndex.assertNoLocksOnThread();
+        DigestSnapshot snap = new DigestSnapshot();
+        for (NGPageIndex ngpi : cog.getAllContainers()) {
+            if (!ngpi.isProject()) {
+                continue;
+            }
+            try {
+                snap.readWorkspace(cog, ngpi, formatUser, historyStart, historyEnd);
+            }
+            catch (Exception e) {
+                //skip the workspace, but do not stop the digest for everyone
+                JSONException.traceException(System.out, e, "DAILYDIGEST: unable to read workspace "+ngpi.containerKey);
+            }
+            finally {
+                NGPageIndex.clearLocksHeldByThisThread();
+            }
+        }
+        return snap;
+    }
+
+    private void readWorkspace(Cognoscenti cog, NGPageIndex ngpi, UserProfile formatUser,
+            long historyStart, long historyEnd) throws Exception {
+        NGWorkspace ngw = ngpi.getWorkspace();
+        workspaceCount++;
+
+        StringWriter sw = new StringWriter();
+        AuthDummy clone = new AuthDummy(formatUser, sw, cog);
+        clone.nowTime = historyEnd;
+
+        WorkspaceDigest wd = new WorkspaceDigest();
+        wd.ngpi = ngpi;
+        wd.fullName = ngw.getFullName();
+        wd.url = clone.retPath + clone.getDefaultURL(ngw);
+        for (HistoryRecord history : ngw.getHistoryRange(historyStart, historyEnd)) {
+            HistoryItem hi = new HistoryItem();
+            hi.timeStamp = history.getTimeStamp();
+            hi.html = formatHistoryRow(clone, sw, ngw, history);
+            wd.history.add(hi);
+            historyCount++;
+        }
+        workspaces.put(ngpi, wd);
+
+        for (ReminderRecord reminder : ngw.getReminderMgr().getAllReminders()) {
+            if (!reminder.isOpen() || !"yes".equals(reminder.getSendNotification())) {
+                continue;
+            }
+            ReminderItem ri = new ReminderItem();
+            ri.ngpi = ngpi;
+            ri.workspaceName = wd.fullName;
+            ri.assignee = reminder.getAssignee();
+            ri.id = reminder.getId();
+            ri.subject = reminder.getSubject();
+            ri.modifiedBy = reminder.getModifiedBy();
+            ri.modifiedDate = reminder.getModifiedDate();
+            ri.accessParams = AccessControl.getAccessReminderParams(ngw, reminder);
+            reminders.add(ri);
+        }
+
+        if (ngpi.isDeleted || ngw.isDeleted() || ngw.isFrozen()) {
+            return;
+        }
+        NGBook site = ngw.getSite();
+        if (site.isDeleted() || site.isMoved() || site.isFrozen()) {
+            //ignore any tasks in deleted, frozen, or moved sites.
+            return;
+        }
+        for (GoalRecord gr : ngw.getAllGoals()) {
+            if (gr.isPassive()) {
+                //ignore tasks that are from other servers
+                continue;
+            }
+            ActionItem ai = new ActionItem();
+            ai.assignees = gr.getAssigneeRole().getDirectPlayers();
+            ai.json = gr.getJSON4Goal(ngw);
+            actionItems.add(ai);
+
+            int state = gr.getState();
+            if (state != BaseRecord.STATE_ERROR && state != BaseRecord.STATE_ACCEPTED
+                    && state != BaseRecord.STATE_OFFERED && state != BaseRecord.STATE_WAITING) {
+                continue;
+            }
+            TaskItem ti = new TaskItem();
+            ti.ngpi = ngpi;
+            ti.assignees = gr.getAssigneeRole().getDirectPlayers();
+            ti.id = gr.getId();
+            ti.state = state;
+            ti.synopsis = gr.getSynopsis();
+            ti.status = gr.getStatus();
+            ti.dueDate = gr.getDueDate();
+            ti.accessParams = AccessControl.getAccessGoalParams(ngw, gr);
+            tasks.add(ti);
+        }
+
+        for (TopicRecord aNote : ngw.getAllNotes()) {
+            String address = "noteZoom"+aNote.getId()+".htm";
+            List<AddressListEntry> targetPlayers = getRolePlayers(ngw, aNote.getTargetRole());
+            for (CommentRecord cr : aNote.getComments()) {
+                addComment(ngw, cr, targetPlayers, address);
+            }
+        }
+        for (MeetingRecord meet : ngw.getMeetings()) {
+            if (meet.isBacklogContainer()) {
+                //don't ever get anything from the backlog container
+                continue;
+            }
+            String address = "meetingFull.htm?id="+meet.getId();
+            List<AddressListEntry> targetPlayers = getRolePlayers(ngw, meet.getTargetRole());
+            for (AgendaItem agendaItem : meet.getSortedAgendaItems()) {
+                for (CommentRecord cr : agendaItem.getComments()) {
+                    addComment(ngw, cr, targetPlayers, address);
+                }
+            }
+            if (targetPlayers!=null && (meet.getState() == MeetingRecord.MEETING_STATE_PLANNING
+                    || meet.getState() == MeetingRecord.MEETING_STATE_RUNNING)) {
+                MeetingItem mi = new MeetingItem();
+                mi.attendees = targetPlayers;
+                mi.json = UserCache.meetingJSON(meet, ngw, address);
+                meetings.add(mi);
+            }
+        }
+    }
+
+    private static List<AddressListEntry> getRolePlayers(NGWorkspace ngw, String roleName) throws Exception {
+        NGRole role = ngw.getRole(roleName);
+        if (role==null) {
+            return null;
+        }
+        return role.getDirectPlayers();
+    }
+
+    private void addComment(NGWorkspace ngw, CommentRecord cr, List<AddressListEntry> targetPlayers,
+            String address) throws Exception {
+        int state = cr.getState();
+        if (state!=CommentRecord.COMMENT_STATE_OPEN && state!=CommentRecord.COMMENT_STATE_DRAFT) {
+            return;
+        }
+        CommentItem ci = new CommentItem();
+        ci.open = (state==CommentRecord.COMMENT_STATE_OPEN);
+        ci.owner = cr.getUser();
+        ci.targetPlayers = targetPlayers;
+        for (ResponseRecord rr : cr.getResponses()) {
+            ci.responders.add(rr.getUserId());
+        }
+        ci.json = UserCache.commentJSON(cr, ngw, address);
+        comments.add(ci);
+    }
+
+    private static String formatHistoryRow(AuthDummy clone, StringWriter sw, NGWorkspace ngw,
+            HistoryRecord history) throws Exception {
+        sw.getBuffer().setLength(0);
+        clone.write("<tr>");
+        clone.write("<td style=\"width:25px\"></td><td>&bull;&nbsp;&nbsp;");
+        // dummy link for the sorting purpose.
+        clone.write("<a href=\"");
+        clone.write(Long.toString(history.getTimeStamp()));
+        clone.write("\"></a>");
+
+        history.writeLocalizedHistoryMessage(ngw, clone);
+        SectionUtil.nicePrintTime(clone.w, history.getTimeStamp(),
+                clone.nowTime);
+        if (history.getContextType() != HistoryRecord.CONTEXT_TYPE_PERMISSIONS
+                && history.getComments() != null
+                && history.getComments().length() > 0) {
+            clone.write("<br/>Comments: &raquo;&nbsp;");
+            clone.writeHtml(history.getComments());
+        }
+
+        clone.write("</td>");
+        clone.write("</tr>");
+        clone.write("\n<tr>");
+        clone.write("\n  <td style=\"height:5px\"></td>");
+        clone.write("\n</tr>");
+        return sw.toString();
+    }
+
+    /**
+     * The active tasks that this user is assigned to.
+     */
+    List<TaskItem> getTasksFor(UserProfile up) throws Exception {
+        List<TaskItem> res = new ArrayList<TaskItem>();
+        for (TaskItem ti : tasks) {
+            if (CustomRole.isPlayerOfAddressList(up, ti.assignees)) {
+                res.add(ti);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The open reminders, with notification, assigned to this user.
+     */
+    List<ReminderItem> getRemindersFor(UserProfile up) {
+        List<ReminderItem> res = new ArrayList<ReminderItem>();
+        for (ReminderItem ri : reminders) {
+            if (up.hasAnyId(ri.assignee)) {
+                res.add(ri);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Makes the action item, proposal, open round, and future meeting lists
+     * of the user the same way UserCache.refreshCache does, and stores them
+     * in the cache of the user.  Returns the lists for the log.
+     */
+    JSONObject storeUserLists(Cognoscenti cog, UserProfile up) throws Exception {
+        JSONArray actionItemList = new JSONArray();
+        JSONArray proposalList = new JSONArray();
+        JSONArray openRounds = new JSONArray();
+        JSONArray futureMeetings = new JSONArray();
+        for (ActionItem ai : actionItems) {
+            if (CustomRole.isPlayerOfAddressList(up, ai.assignees)) {
+                actionItemList.put(ai.json);
+            }
+        }
+        for (CommentItem ci : comments) {
+            //the owner is reminded of their open and draft rounds
+            if (up.equals(ci.owner)) {
+                openRounds.put(ci.json);
+            }
+            //the target role is asked to respond to open ones
+            if (ci.open && ci.targetPlayers!=null && CustomRole.isPlayerOfAddressList(up, ci.targetPlayers)
+                    && !hasResponded(up, ci)) {
+                proposalList.put(ci.json);
+            }
+        }
+        for (MeetingItem mi : meetings) {
+            if (CustomRole.isPlayerOfAddressList(up, mi.attendees)) {
+                futureMeetings.put(mi.json);
+            }
+        }
+        cog.getUserCacheMgr().storeLists(up.getKey(), actionItemList, proposalList,
+                openRounds, futureMeetings);
+        JSONObject counts = new JSONObject();
+        counts.put("ActionItems", actionItemList.length());
+        counts.put("OpenRounds",  openRounds.length());
+        counts.put("Proposals",   proposalList.length());
+        return counts;
+    }
+
+    private static boolean hasResponded(UserProfile up, CommentItem ci) {
+        for (String responder : ci.responders) {
+            if (up.hasAnyId(responder)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -28,12 +28,11 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.socialbiz.cog.AddressListEntry;
 import org.socialbiz.cog.AuthDummy;
 import org.socialbiz.cog.AuthRequest;
+import org.socialbiz.cog.BackgroundScheduler;
 import org.socialbiz.cog.Cognoscenti;
 import org.socialbiz.cog.DOMFace;
 import org.socialbiz.cog.EmailRecord;
@@ -48,6 +47,7 @@ import org.socialbiz.cog.exception.ProgramLogicError;
 
 import com.purplehillsbooks.json.JSONException;
 import com.purplehillsbooks.json.JSONObject;
+import com.purplehillsbooks.streams.NullWriter;
 
 /**
  * Support class for sending email messages based on an email configuration
@@ -57,7 +57,7 @@ import com.purplehillsbooks.json.JSONObject;
  * this is the essential method for sending email and will be supported in the
  * long run.
  */
-public class EmailSender extends TimerTask {
+public class EmailSender implements Runnable {
     private static Properties emailProperties = new Properties();
     private Cognoscenti cog;
 
@@ -67,6 +67,7 @@ public class EmailSender extends TimerTask {
 
     // expressed in milliseconds
     private final static long TWICE_PER_MINUTE = 30000;
+    private final static long EVERY_MINUTE = 60000;
 
     /**
      * Every time the thread checks to see if it needs to send email, it marks
@@ -127,24 +128,32 @@ public class EmailSender extends TimerTask {
      * server starts up. There are some error checks to make sure that this is
      * the case.
      */
-    public static void initSender(Timer timer, Cognoscenti cog) throws Exception {
+    public static void initSender(BackgroundScheduler scheduler, Cognoscenti cog) throws Exception {
 
         File userFolder = cog.getConfig().getUserFolderOrFail();
         globalMailArchive = new File(userFolder, "GlobalEmailArchive.json");
 
-        // apparently a timer task can not be reused by a Timer, or in another
-        // Timer.  You have to create them every time you schedule them???
-        // TODO: no reason to make these static then
-        EmailSender singletonSender = new EmailSender(cog);
+        // a new sender every time the server is initialized, so that
+        // the properties are read again
+        final EmailSender singletonSender = new EmailSender(cog);
 
 
         // As long as the server is up, the mail should
         // always be sent within 20 minutes of the time it was scheduled to go.
 
-        // second parameter is the "delay" of 60 seconds.
-        // The first mailing will be tested one minute from now,
+        // second parameter is the "delay" of 30 seconds.
+        // The first mailing will be tested 30 seconds from now,
         // and every 30 seconds after that.
-        timer.scheduleAtFixedRate(singletonSender, 30000, TWICE_PER_MINUTE);
+        scheduler.schedule(BackgroundScheduler.LANE_OUTBOUND_MAIL, "Outbound email",
+                singletonSender, 30000, TWICE_PER_MINUTE);
+
+        // the daily digest takes a long time, so it has its own lane
+        // and does not hold up the rest of the email
+        scheduler.schedule(BackgroundScheduler.LANE_DIGEST, "Daily digest", new Runnable() {
+            public void run() {
+                singletonSender.runDailyDigest();
+            }
+        }, 60000, EVERY_MINUTE);
     }
     
     static long runCount = 0;
@@ -155,7 +164,8 @@ public class EmailSender extends TimerTask {
     // The calling of this method has nothing to do with the email schedule /
     // frequency.
     public void run() {
-        AuthRequest ar = AuthDummy.serverBackgroundRequest();
+        //each background job has its own request object because they run at the same time
+        AuthRequest ar = new AuthDummy(new NullWriter(), cog);
         long startTime = System.currentTimeMillis();
         ar.nowTime = startTime;
         ar.setNewUI(true);
@@ -164,14 +174,13 @@ public class EmailSender extends TimerTask {
         try {
             System.out.println("EmailSender run: "+SectionUtil.getDateAndTime(startTime));
             NGPageIndex.assertNoLocksOnThread();
-            checkAndSendDailyDigest(ar);
             handleGlobalEmail();
             handleAllOverdueScheduledEvents(ar);
         } catch (Exception e) {
             Exception failure = new Exception(
-                    "EmailSender-TimerTask failed in run method.",
+                    "EmailSender failed in run method.",
                     e);
-            JSONException.traceException(System.out, failure, "EmailSender-TimerTask failed in run method.");
+            JSONException.traceException(System.out, failure, "EmailSender failed in run method.");
             threadLastCheckException = failure;
         }
         finally {
@@ -192,6 +201,30 @@ public class EmailSender extends TimerTask {
         }
     }
 
+    /**
+     * The daily digest job, which checks whether it is time to send the
+     * digest, and sends it if it is.
+     */
+    public void runDailyDigest() {
+        AuthRequest ar = new AuthDummy(new NullWriter(), cog);
+        ar.nowTime = System.currentTimeMillis();
+        ar.setNewUI(true);
+        try {
+            NGPageIndex.assertNoLocksOnThread();
+            checkAndSendDailyDigest(ar);
+        } catch (Exception e) {
+            Exception failure = new Exception(
+                    "EmailSender failed sending the daily digest.",
+                    e);
+            JSONException.traceException(System.out, failure, "EmailSender failed sending the daily digest.");
+            threadLastCheckException = failure;
+        }
+        finally {
+            //only call this when you are sure you are not holding on to any containers
+            NGPageIndex.clearLocksHeldByThisThread();
+        }
+    }
+
     Object globalEmailFileLock = new Integer(999);
 
     private void handleGlobalEmail() {
@@ -244,8 +277,11 @@ public class EmailSender extends TimerTask {
                 MailConversions.moveEmails(ngw, emailArchive, cog);
 
                 ngpi.nextScheduledAction = ngw.nextActionDue();
-                ngw.saveWithoutAuthenticatedUser(ar.getBestUserId(), ar.nowTime, 
-                        "Processing handleAllOverdueScheduledEvents", cog);
+                //only save if moving the email actually changed something
+                if (ngw.hasUnsavedChanges()) {
+                    ngw.saveWithoutAuthenticatedUser(ar.getBestUserId(), ar.nowTime, 
+                            "Processing handleAllOverdueScheduledEvents", cog);
+                }
                 NGPageIndex.clearLocksHeldByThisThread();
                 emailArchive.save();
             }
@@ -269,7 +305,9 @@ public class EmailSender extends TimerTask {
                 }
 
                 ngpi.nextScheduledAction = ngw.nextActionDue();
-                ngw.save(); //save all the changes from the removal of email and scheduling of events
+                if (ngw.hasUnsavedChanges()) {
+                    ngw.save(); //save all the changes from the removal of email and scheduling of events
+                }
                 NGPageIndex.clearLocksHeldByThisThread();
 
                 //now we can go an actually send the email in the mailArchive
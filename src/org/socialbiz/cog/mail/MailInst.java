@@ -24,6 +24,7 @@ import javax.mail.internet.MimeUtility;
 import org.socialbiz.cog.AddressListEntry;
 import org.socialbiz.cog.EmailRecord;
 import org.socialbiz.cog.MemFileDataSource;
+import org.socialbiz.cog.MetricsRegistry;
 import org.socialbiz.cog.MimeTypes;
 
 import com.purplehillsbooks.json.JSONArray;
@@ -47,6 +48,13 @@ public class MailInst extends JSONWrapper {
     public static final String FAILED = "Failed";
     public static final String SKIPPED = "Skipped";
 
+    private static final MetricsRegistry.Counter SENT_COUNT = MetricsRegistry.counter(
+            "cog_mail_sent_total", "Email messages sent to the mail server");
+    private static final MetricsRegistry.Counter FAILED_COUNT = MetricsRegistry.counter(
+            "cog_mail_failed_total", "Email messages that could not be sent");
+    private static final MetricsRegistry.Histogram SEND_TIME = MetricsRegistry.timer(
+            "cog_mail_send_seconds", "Time to send one email message");
+
 
 
 
@@ -181,6 +189,7 @@ public class MailInst extends JSONWrapper {
     public boolean sendPreparedMessageImmediately(Mailer mailer) {
 
         long sendTime = MailFile.getUniqueTime();
+        long startTime = System.currentTimeMillis();
         Transport transport = null;
         String addressee = "UNSPECIFIED";
 
@@ -251,8 +260,11 @@ public class MailInst extends JSONWrapper {
 
             setStatus(EmailRecord.SENT);
             setLastSentDate(sendTime);
+            SEND_TIME.recordSince(startTime);
+            SENT_COUNT.inc();
             return true;
         } catch (Exception me) {
+            FAILED_COUNT.inc();
             try {
                 String context = "Failed ("+new Date()+") while sending a simple message ("+getSubject()+") to ("+addressee+"): ";
                 setExceptionMessage(me, context);
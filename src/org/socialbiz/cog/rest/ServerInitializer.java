@@ -24,8 +24,11 @@ import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import org.socialbiz.cog.BackgroundScheduler;
 import org.socialbiz.cog.Cognoscenti;
+import org.socialbiz.cog.EmailListener;
 import org.socialbiz.cog.NGPageIndex;
+import org.socialbiz.cog.WorkspaceSaveQueue;
 
 import com.purplehillsbooks.json.JSONException;
 
@@ -113,7 +116,7 @@ public class ServerInitializer extends TimerTask {
     public Exception lastFailureMsg = null;
     public long lastInitAttemptTime = 0;
 
-    private Timer timerForOtherTasks = null;
+    private BackgroundScheduler backgroundJobs = null;
     private Timer timerForInit = null;
 
 
@@ -147,12 +150,16 @@ public class ServerInitializer extends TimerTask {
     public void pauseServer() {
         serverInitState = STATE_PAUSED;
 
-        //cancel all the background processing from this existing timer
-        if (timerForOtherTasks!=null) {
-            timerForOtherTasks.cancel();
+        //cancel all the background processing from this existing scheduler
+        if (backgroundJobs!=null) {
+            backgroundJobs.shutdown();
         }
-        timerForOtherTasks = null;
+        backgroundJobs = null;
+        EmailListener.stopListener();
         cog.isInitialized = false;
+
+        //write out any workspace saves that are still waiting
+        WorkspaceSaveQueue.flushAll();
         System.out.println("COG SERVER CHANGE - New state "+getServerStateString());
     }
 
@@ -189,10 +196,10 @@ public class ServerInitializer extends TimerTask {
 
             //I don't know if this is needed.  Basically, you should never be in this
             //situation, but it makes sense to clean things up before restarting.
-            if (timerForOtherTasks!=null) {
-                timerForOtherTasks.cancel();
+            if (backgroundJobs!=null) {
+                backgroundJobs.shutdown();
             }
-            timerForOtherTasks = new Timer("Main Cog Background Timer", true);
+            backgroundJobs = new BackgroundScheduler("Cog Background");
 
             //start by clearing everything ... in case there is mess left over.
             cog.clearAllStaticVariables();
@@ -201,7 +208,7 @@ public class ServerInitializer extends TimerTask {
             //freeing up and defragmenting memory
             System.gc();
 
-            cog.initializeAll(timerForOtherTasks);
+            cog.initializeAll(backgroundJobs);
 
             serverInitState = STATE_RUNNING;
             System.out.println("ServerInitializer: successfully initialized and ready");
@@ -213,10 +220,10 @@ public class ServerInitializer extends TimerTask {
             try {
                 System.out.println("ServerInitializer: (FAILED) because "+e.toString());
                 JSONException.traceException(System.out, e, "ServerInitializer: (FAILED)");
-                if (timerForOtherTasks!=null) {
-                    timerForOtherTasks.cancel();
+                if (backgroundJobs!=null) {
+                    backgroundJobs.shutdown();
                 }
-                timerForOtherTasks = null;
+                backgroundJobs = null;
                 cog.clearAllStaticVariables();
             }
             catch (Exception eee) {
@@ -25,8 +25,10 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 
 import org.socialbiz.cog.AttachmentRecord;
+import org.socialbiz.cog.AttachmentVersion;
 import org.socialbiz.cog.AuthRequest;
 import org.socialbiz.cog.HistoryRecord;
+import org.socialbiz.cog.ImageThumbnails;
 import org.socialbiz.cog.NGPage;
 import org.socialbiz.cog.NGWorkspace;
 import org.socialbiz.cog.SectionAttachments;
@@ -120,8 +122,12 @@ public class AttachmentHelper {
         tempFile.delete();
         saveToFileAH(file, tempFile);
         FileInputStream fis = new FileInputStream(tempFile);
-        att.streamNewVersion(ar, ar.ngp, fis);
+        AttachmentVersion av = att.streamNewVersion(ar, ar.ngp, fis);
         tempFile.delete();
+        if (ar.ngp instanceof NGPage) {
+            NGPage ngp = (NGPage) ar.ngp;
+            ImageThumbnails.attachmentVersionAdded(ngp.getSiteKey(), ngp.getKey(), att, av);
+        }
 
         return fileExtension;
     }
@@ -38,6 +38,7 @@ import org.socialbiz.cog.NGWorkspace;
 import org.socialbiz.cog.UserProfile;
 import org.socialbiz.cog.exception.NGException;
 import org.socialbiz.cog.exception.ServletExit;
+import org.socialbiz.cog.util.JSONStreamWriter;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 
@@ -462,6 +463,34 @@ public class BaseController {
         }
     }
     
+    /**
+     * For an exception in a controller that uses startJsonStream.  If the
+     * stream was started, part of the JSON has already been sent, and an
+     * error response after it would not be JSON, so the JSON that was
+     * started is ended with the error in it.  Otherwise this is the same
+     * as streamException.
+     */
+    protected void streamException(Exception e, AuthRequest ar, JSONStreamWriter jw) {
+        if (jw==null) {
+            streamException(e, ar);
+            return;
+        }
+        try {
+            System.out.println("EXCEPTION (BaseController) tid="+Thread.currentThread().getId()+", in stream, "+ar.getCompleteURL());
+            ar.rollbackChanges();
+            NGPageIndex.clearLocksHeldByThisThread();
+            ar.logException("EXCEPTION (BaseController)", e);
+
+            JSONObject errorResponse = JSONException.convertToJSON(e, "BaseController Exception tid="+Thread.currentThread().getId());
+            jw.endWithError(errorResponse);
+            jw.finish();
+            ar.flush();
+        } catch (Exception eeeee) {
+            // nothing we can do here...
+            System.out.println("DOUBLE EXCEPTION (BaseController) tid="+Thread.currentThread().getId()+", "+eeeee.toString());
+        }
+    }
+
     /**
      * This is a testing tool.  It is simply a delay.  In normal production
      * operation this delay should be zero in order to respond as quickly as
@@ -503,6 +532,37 @@ public class BaseController {
         ar.flush();
     }
     
+    /**
+     * Sends JSON that was already written out as text, for example by the
+     * MeetingNotesCache, adding the serverTime member to it on the way out.
+     * The text must be one JSON object.
+     */
+    protected static void sendJsonText(AuthRequest ar, String jsonText) throws Exception {
+        releaseLock();
+
+        //this has no effect since getWriter has already been called
+        ar.resp.setContentType("application/json");
+
+        testLatencyDelay();
+        int end = jsonText.lastIndexOf('}');
+        if (end<0) {
+            throw new Exception("sendJsonText: the text is not a JSON object");
+        }
+        //the members, without the white space before the closing brace
+        while (end>0 && Character.isWhitespace(jsonText.charAt(end-1))) {
+            end--;
+        }
+        String body = jsonText.substring(0, end);
+        ar.write(body);
+        if (!body.endsWith("{")) {
+            ar.write(",");
+        }
+        ar.write(indentJson ? "\n  \"serverTime\": " : "\"serverTime\":");
+        ar.write(Long.toString(System.currentTimeMillis()));
+        ar.write(indentJson ? "\n}" : "}");
+        ar.flush();
+    }
+
     /**
      * Should probably NEVER be sending an array, but there are some cases where it
      * was done and so this method supports it while cleaning them out.
@@ -523,6 +583,34 @@ public class BaseController {
         ar.flush();
     }
 
+    /**
+     * For a large response, instead of sendJson: this starts the JSON
+     * object, the controller writes the members to the returned writer,
+     * putting each element of a long list as it is made, and then calls
+     * finishJsonStream.  The whole response is never in memory.
+     *
+     * The lock is kept until finishJsonStream, since the elements are
+     * still being read from the workspace.  Everything that can fail
+     * (access checks, finding the objects) should be done before this,
+     * because once the output has started an exception can no longer be
+     * sent as a proper JSON error response.  For what can still fail, pass
+     * the writer to streamException, which ends the JSON with the error.
+     */
+    protected static JSONStreamWriter startJsonStream(AuthRequest ar) throws Exception {
+        ar.resp.setContentType("application/json");
+        testLatencyDelay();
+        JSONStreamWriter jw = new JSONStreamWriter(ar.w, indentJson);
+        jw.startObject();
+        return jw;
+    }
+
+    protected static void finishJsonStream(AuthRequest ar, JSONStreamWriter jw) throws Exception {
+        jw.field("serverTime", System.currentTimeMillis());
+        jw.endObject();
+        jw.finish();
+        releaseLock();
+    }
+
     protected static void saveAndReleaseLock(NGWorkspace ngw, AuthRequest ar, String msg) throws Exception {
         ngw.saveFile(ar, msg);
         NGPageIndex.clearLocksHeldByThisThread();
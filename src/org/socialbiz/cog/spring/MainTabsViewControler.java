@@ -27,17 +27,23 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.socialbiz.cog.AccessControl;
+import org.socialbiz.cog.ActivityFeed;
 import org.socialbiz.cog.AddressListEntry;
 import org.socialbiz.cog.AuthRequest;
+import org.socialbiz.cog.Cognoscenti;
+import org.socialbiz.cog.DOMFace;
 import org.socialbiz.cog.GoalRecord;
 import org.socialbiz.cog.HistoryRecord;
 import org.socialbiz.cog.NGPage;
+import org.socialbiz.cog.NGPageIndex;
 import org.socialbiz.cog.NGRole;
 import org.socialbiz.cog.NGWorkspace;
 import org.socialbiz.cog.SearchResultRecord;
 import org.socialbiz.cog.TopicRecord;
 import org.socialbiz.cog.UserProfile;
+import org.socialbiz.cog.WorkspaceHierarchy;
 import org.socialbiz.cog.exception.NGException;
+import org.socialbiz.cog.util.JSONStreamWriter;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -50,9 +56,6 @@ import com.purplehillsbooks.json.JSONObject;
 
 @Controller
 public class MainTabsViewControler extends BaseController {
-    
-    public static MeetingNotesCache meetingCache = new MeetingNotesCache();
-
 
     //////////////////////////////// REDIRECTS ///////////////////////////////////
 
@@ -277,6 +280,63 @@ public class MainTabsViewControler extends BaseController {
      }
 
 
+     /**
+      * The workspaces below this one in the circle hierarchy, depth first,
+      * a page at a time (offset and limit parameters), along with the keys
+      * of the workspaces above it.  Only for members of this workspace, and
+      * only the workspaces below that the caller is a member of.
+      */
+     @RequestMapping(value = "/{siteId}/{pageId}/workspaceTree.json", method = RequestMethod.GET)
+     public void workspaceTree(@PathVariable String siteId,@PathVariable String pageId,
+             HttpServletRequest request, HttpServletResponse response) {
+         AuthRequest ar = AuthRequest.getOrCreate(request, response);
+         try{
+             //logged in, not an honorary member, the user is needed to check the ones below
+             ar.assertLoggedIn("Must be logged in to see the workspace hierarchy.");
+             Cognoscenti cog = ar.getCogInstance();
+             NGPageIndex ngpi = cog.getWSBySiteAndKeyOrFail( siteId, pageId );
+             NGWorkspace ngw = ngpi.getWorkspace();
+             ar.setPageAccessLevels(ngw);
+             ar.assertMember("Must be a member to see the workspace hierarchy.");
+             //a super admin sees them all
+             UserProfile viewer = ar.isSuperAdmin() ? null : ar.getUserProfile();
+             int offset = DOMFace.safeConvertInt(ar.defParam("offset", "0"));
+             int limit = DOMFace.safeConvertInt(ar.defParam("limit",
+                     Integer.toString(WorkspaceHierarchy.DEFAULT_PAGE_SIZE)));
+             JSONObject tree = cog.getWorkspaceHierarchy().getSubtreeJSON(ngpi.wsSiteKey,
+                     ngpi.containerKey, offset, limit, viewer);
+             sendJson(ar, tree);
+         }catch(Exception ex){
+             Exception ee = new Exception("Unable to get the workspaces below "+pageId, ex);
+             streamException(ee, ar);
+         }
+     }
+
+
+     /**
+      * The history of the workspace, newest first, a page at a time:
+      * pass the cursor of the last page to get the next one.
+      */
+     @RequestMapping(value = "/{siteId}/{pageId}/activity.json", method = RequestMethod.GET)
+     public void workspaceActivity(@PathVariable String siteId,@PathVariable String pageId,
+             HttpServletRequest request, HttpServletResponse response) {
+         AuthRequest ar = AuthRequest.getOrCreate(request, response);
+         try{
+             NGWorkspace ngw = ar.getCogInstance().getWSBySiteAndKeyOrFail( siteId, pageId ).getWorkspace();
+             ar.setPageAccessLevels(ngw);
+             ar.assertMember("Must be a member to see the history of a workspace.");
+             int limit = DOMFace.safeConvertInt(ar.defParam("limit",
+                     Integer.toString(ActivityFeed.DEFAULT_PAGE_SIZE)));
+             JSONObject page = ar.getCogInstance().getActivityFeed().getWorkspacePageJSON(ngw,
+                     ar.defParam("cursor", ""), limit);
+             sendJson(ar, page);
+         }catch(Exception ex){
+             Exception ee = new Exception("Unable to get the history of workspace "+pageId, ex);
+             streamException(ee, ar);
+         }
+     }
+
+
      @RequestMapping(value = "/{siteId}/{pageId}/noteHtmlUpdate.json", method = RequestMethod.POST)
      public void noteHtmlUpdate(@PathVariable String siteId,@PathVariable String pageId,
              HttpServletRequest request, HttpServletResponse response) {
@@ -329,27 +389,28 @@ public class MainTabsViewControler extends BaseController {
      public void topicList(@PathVariable String siteId,@PathVariable String pageId,
              HttpServletRequest request, HttpServletResponse response) {
          AuthRequest ar = AuthRequest.getOrCreate(request, response);
-         String nid = "";
+         JSONStreamWriter jw = null;
          try{
              NGWorkspace ngw = ar.getCogInstance().getWSBySiteAndKeyOrFail( siteId, pageId ).getWorkspace();
              ar.setPageAccessLevels(ngw);
              boolean isMember = ar.isMember();
+             List<TopicRecord> allNotes = ngw.getAllNotes();
 
-             JSONArray allTopics = new JSONArray();
-             for (TopicRecord aNote : ngw.getAllNotes()) {
+             //a workspace can have many topics, each is written as it is made
+             jw = startJsonStream(ar);
+             jw.startArray("topics");
+             for (TopicRecord aNote : allNotes) {
                  if (!isMember && !aNote.isPublic()) {
                      //skip non public if not member
                      continue;
                  }
-                 allTopics.put(aNote.getJSON(ngw));
+                 jw.value(aNote.getJSON(ngw));
              }
-
-             JSONObject repo = new JSONObject();
-             repo.put("topics", allTopics);
-             sendJson(ar, repo);
+             jw.endArray();
+             finishJsonStream(ar, jw);
          }catch(Exception ex){
-             Exception ee = new Exception("Unable to updated topic "+nid+" contents", ex);
-             streamException(ee, ar);
+             Exception ee = new Exception("Unable to list the topics of workspace "+pageId, ex);
+             streamException(ee, ar, jw);
          }
      }
 
@@ -364,11 +364,10 @@ public class MeetingControler extends BaseController {
                   }
               }
 
-              JSONObject repo = meetingCache.updateCacheFull(ngw, ar, id);
+              MeetingNotesCache.NoteHolder repo = meetingCache.updateCacheFull(ngw, ar, id);
               saveAndReleaseLock(ngw, ar, "Updated Meeting");
-              //this is so that clients can calculate the offset for their particular clock.
-              repo.put("serverTime", System.currentTimeMillis());
-              sendJson(ar, repo);
+              //serverTime is added so that clients can calculate the offset for their particular clock.
+              sendJsonText(ar, repo.getFullText());
           }catch(Exception ex){
               Exception ee = new Exception("Unable to update meeting information.", ex);
               streamException(ee, ar);
@@ -394,11 +393,10 @@ public class MeetingControler extends BaseController {
 
               meeting.actOnProposedTime(timeUpdateInfo);
 
-              JSONObject repo = meetingCache.updateCacheFull(ngw, ar, id);
+              MeetingNotesCache.NoteHolder repo = meetingCache.updateCacheFull(ngw, ar, id);
               saveAndReleaseLock(ngw, ar, "Updated Meeting");
-              //this is so that clients can calculate the offset for their particular clock.
-              repo.put("serverTime", System.currentTimeMillis());
-              sendJson(ar, repo);
+              //serverTime is added so that clients can calculate the offset for their particular clock.
+              sendJsonText(ar, repo.getFullText());
           }catch(Exception ex){
               Exception ee = new Exception("Unable to update meeting proposed times.", ex);
               streamException(ee, ar);
@@ -413,8 +411,8 @@ public class MeetingControler extends BaseController {
           try{
               String id = ar.reqParam("id");
               
-              JSONObject jo = meetingCache.getOrCacheFull(siteId, pageId, ar, id);
-              sendJson(ar, jo);
+              MeetingNotesCache.NoteHolder nh = meetingCache.getOrCacheFull(siteId, pageId, ar, id);
+              sendJsonText(ar, nh.getFullText());
           }catch(Exception ex){
               Exception ee = new Exception("Unable to access meeting information.", ex);
               streamException(ee, ar);
@@ -429,9 +427,9 @@ public class MeetingControler extends BaseController {
           try{
               String id = ar.reqParam("id");
               
-              JSONObject jo = meetingCache.getOrCacheNotes(siteId, pageId, ar, id);
+              MeetingNotesCache.NoteHolder nh = meetingCache.getOrCacheNotes(siteId, pageId, ar, id);
 
-              sendJson(ar, jo);
+              sendJsonText(ar, nh.getNotesText());
           }catch(Exception ex){
               Exception ee = new Exception("Unable to access meeting notes.", ex);
               streamException(ee, ar);
@@ -447,7 +445,7 @@ public class MeetingControler extends BaseController {
               if (!meetingInfo.has("minutes") || meetingInfo.getJSONArray("minutes").length()==0) {
                   //this is the case that you are not actually updating anything, so just return 
                   //the cached notes.
-                  sendJson(ar, meetingCache.getOrCacheNotes(siteId, pageId, ar, id));
+                  sendJsonText(ar, meetingCache.getOrCacheNotes(siteId, pageId, ar, id).getNotesText());
                   return;
               }
               
@@ -459,9 +457,9 @@ public class MeetingControler extends BaseController {
                   throw new Exception("Unable to access meeting "+id);
               }
               meeting.updateMeetingNotes(meetingInfo);
-              JSONObject repo = meetingCache.updateCacheNotes(ngw, ar, id);
+              MeetingNotesCache.NoteHolder repo = meetingCache.updateCacheNotes(ngw, ar, id);
               saveAndReleaseLock(ngw, ar, "Updated Meeting Notes");
-              sendJson(ar, repo);
+              sendJsonText(ar, repo.getNotesText());
           }catch(Exception ex){
               Exception ee = new Exception("Unable to read meeting notes.", ex);
               streamException(ee, ar);
@@ -483,6 +481,7 @@ public class MeetingControler extends BaseController {
               JSONObject meetingInfo = getPostedObject(ar);
               meetingId = meetingInfo.getString("id");
               ngw.removeMeeting(meetingId);
+              meetingCache.removeMeeting(siteId, pageId, meetingId);
               saveAndReleaseLock(ngw, ar, "Deleted new Meeting");
               ar.write("deleted Meeting "+meetingId);
               ar.flush();
@@ -1,150 +1,280 @@
 package org.socialbiz.cog.spring;
 
-import java.util.Hashtable;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.socialbiz.cog.AddressListEntry;
 import org.socialbiz.cog.AuthRequest;
 import org.socialbiz.cog.CustomRole;
 import org.socialbiz.cog.MeetingRecord;
+import org.socialbiz.cog.NGContainer;
+import org.socialbiz.cog.NGPage;
 import org.socialbiz.cog.NGRole;
 import org.socialbiz.cog.NGWorkspace;
 import org.socialbiz.cog.UserRef;
 
 import com.purplehillsbooks.json.JSONObject;
 
+/**
+ * Keeps the JSON of the meetings that are being looked at, so that the
+ * many clients polling a meeting during the meeting do not each need the
+ * lock on the workspace.
+ *
+ * At most MAX_ENTRIES meetings are kept, the ones used longest ago are
+ * dropped first.  An entry is never changed: updating a meeting makes a
+ * new entry with the next version number, so a thread that got the old
+ * entry can still use it.  An entry is never replaced by one with a lower
+ * version, so an entry made from an older reading of the meeting can not
+ * overwrite a newer one.  The callers hold the workspace lock while they
+ * make entries, which already keeps them in order; this check makes the
+ * cache not depend on that.  The JSON is kept as text, written once when
+ * the entry is made, so sending it is just writing the text, and two
+ * requests sending it at the same time do not share a JSONObject.
+ *
+ * The controllers make a new entry after they change a meeting (the
+ * update methods).  The entries of a workspace are dropped when its roles
+ * change (rolesChanged), since the roles decide who can see the meeting:
+ * Cognoscenti does this whenever a save of the workspace changes the
+ * players of any role, whichever page or API made the change.
+ * A user that is not in the cached list is checked again against the
+ * workspace, but at most once every MEMBER_RECHECK_MILLIS for a meeting,
+ * in case a role was changed some other way.
+ */
 public class MeetingNotesCache {
-    
-    private Hashtable<String,NoteHolder> cache;
-    
-    private class NoteHolder {
-        List<AddressListEntry> members;
-        String targetRole;
-        JSONObject notesObject;
-        JSONObject fullObject;
-        String meetingId;
-        String siteKey;
-        String workspaceKey;
-
-        boolean canAccess(AuthRequest ar) throws Exception {
+
+    public static final int MAX_ENTRIES = 200;
+    private static final long MEMBER_RECHECK_MILLIS = 30000;
+
+    //access ordered, so the first one is the one used longest ago
+    private final LinkedHashMap<String,NoteHolder> cache =
+            new LinkedHashMap<String,NoteHolder>(64, 0.75f, true);
+    private long lastVersion = 0;
+
+    /**
+     * The cached JSON of one meeting, and the people that can see it.
+     */
+    public static class NoteHolder {
+        private final String key;
+        private final long version;
+        private final List<AddressListEntry> members;
+        private final long membersTime;
+        private final String notesText;
+        private final String fullText;
+        private final String meetingId;
+
+        private NoteHolder(String key, long version, List<AddressListEntry> members,
+                String notesText, String fullText, String meetingId) {
+            this.key = key;
+            this.version = version;
+            this.members = members;
+            this.membersTime = System.currentTimeMillis();
+            this.notesText = notesText;
+            this.fullText = fullText;
+            this.meetingId = meetingId;
+        }
+
+        /**
+         * The meeting notes, as JSON text.
+         */
+        public String getNotesText() {
+            return notesText;
+        }
+
+        /**
+         * The full meeting, as JSON text.
+         */
+        public String getFullText() {
+            return fullText;
+        }
+
+        boolean isMember(AuthRequest ar) throws Exception {
             UserRef user = ar.getUserProfile();
             if (user==null) {
                 return false;
             }
-            if (CustomRole.isPlayerOfAddressList(user, members)) {
-                return true;
-            }
-            
-            //here is the problem, the list of users was cached, and if the role has changed
-            //we should check one more time to see if the user is in the official list
-            calculateMemberList(ar);
             return CustomRole.isPlayerOfAddressList(user, members);
         }
-        
-        private void calculateMemberList(AuthRequest ar) throws Exception {
-            NGWorkspace ngw = ar.getCogInstance().getWSBySiteAndKeyOrFail( siteKey, workspaceKey ).getWorkspace();
-            CustomRole meetRole = ngw.getRole(targetRole);
-            List<AddressListEntry> targetPlayers = meetRole.getExpandedPlayers(ngw);
-            
-            //now add the regular workspace members
-            NGRole memberRole = ngw.getPrimaryRole();
-            for (AddressListEntry one : memberRole.getExpandedPlayers(ngw)) {
-                AddressListEntry.addIfNotPresent(targetPlayers,one);
-            }
-            
-            //now add the participants if any
-            MeetingRecord meet = ngw.findMeeting(this.meetingId);
-            for (String part : meet.getParticipants()) {
-                AddressListEntry.addIfNotPresent(targetPlayers, new AddressListEntry(part));
-            }
-            members = targetPlayers;
+    }
+
+    public MeetingNotesCache() {
+    }
+
+    private static String makeKey(String site, String workspace, String meetingId) {
+        return site + "|" + workspace + "|" + meetingId;
+    }
+
+    private synchronized NoteHolder get(String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Stores the entry, unless there is one with a higher version, and
+     * returns the entry that is in the cache.
+     */
+    private synchronized NoteHolder put(NoteHolder nh) {
+        NoteHolder existing = cache.get(nh.key);
+        if (existing != null && existing.version > nh.version) {
+            return existing;
         }
-        
-        void assertMeetingParticipant(AuthRequest ar) throws Exception {
-            if (!ar.isLoggedIn()) {
-                throw new Exception("Must be logged in to access meeting "+meetingId+".");
-            }
-            if (!canAccess(ar)) {
-                throw new Exception("User ("+ar.getBestUserId()+") is not a perticipant for meeting "+meetingId+" and can not access the meeting");
-            }
+        cache.put(nh.key, nh);
+        while (cache.size() > MAX_ENTRIES) {
+            Iterator<String> oldest = cache.keySet().iterator();
+            oldest.next();
+            oldest.remove();
         }
+        return nh;
     }
-    
-    public MeetingNotesCache() {
-        cache = new Hashtable<String,NoteHolder>();
+
+    private synchronized long nextVersion() {
+        return ++lastVersion;
+    }
+
+    public synchronized int size() {
+        return cache.size();
     }
-    
-    public boolean canAcccessMeeting(String site, String workspace, AuthRequest ar, 
+
+    public boolean canAcccessMeeting(String site, String workspace, AuthRequest ar,
             String meetingId) throws Exception {
-        String key = site + "|" + workspace + "|" + meetingId;
-        NoteHolder nh = cache.get(key);
-        if (nh==null) {
-            //this gets a lock and that can block....
-            NGWorkspace ngw = ar.getCogInstance().getWSBySiteAndKeyOrFail( site, workspace ).getWorkspace();
-            ar.setPageAccessLevels(ngw);
-            nh = cacheMeeting(ngw,ar,meetingId);
-        }
-        return nh.canAccess(ar);
+        return getAccessibleEntry(site, workspace, ar, meetingId) != null;
     }
 
-    
-    public JSONObject getOrCacheNotes(String site, String workspace, AuthRequest ar, 
+    /**
+     * The cached meeting if the user can see it, or null if they can not.
+     * The lock on the workspace is taken only when the meeting is not in
+     * the cache, or to check a user that is not in the cached list again.
+     */
+    private NoteHolder getAccessibleEntry(String site, String workspace, AuthRequest ar,
             String meetingId) throws Exception {
-        String key = site + "|" + workspace + "|" + meetingId;
-        NoteHolder nh = cache.get(key);
+        if (ar.getUserProfile()==null) {
+            return null;
+        }
+        NoteHolder nh = get(makeKey(site, workspace, meetingId));
         if (nh!=null) {
-            nh.assertMeetingParticipant(ar);
-            return nh.notesObject;
+            if (nh.isMember(ar)) {
+                return nh;
+            }
+            if (System.currentTimeMillis() - nh.membersTime < MEMBER_RECHECK_MILLIS) {
+                return null;
+            }
         }
-        
-        //this requires waiting for and getting the lock
+        //this gets a lock and that can block....
         NGWorkspace ngw = ar.getCogInstance().getWSBySiteAndKeyOrFail( site, workspace ).getWorkspace();
         ar.setPageAccessLevels(ngw);
-        return updateCacheNotes(ngw, ar, meetingId);
+        nh = cacheMeeting(ngw, ar, meetingId);
+        if (nh.isMember(ar)) {
+            return nh;
+        }
+        return null;
     }
 
-    public JSONObject getOrCacheFull(String site, String workspace, AuthRequest ar, 
+    private NoteHolder getAccessibleEntryOrFail(String site, String workspace, AuthRequest ar,
             String meetingId) throws Exception {
-        String key = site + "|" + workspace + "|" + meetingId;
-        NoteHolder nh = cache.get(key);
-        if (nh!=null) {
-            nh.assertMeetingParticipant(ar);
-            return nh.fullObject;
+        if (!ar.isLoggedIn()) {
+            throw new Exception("Must be logged in to access meeting "+meetingId+".");
         }
-        
-        //this requires waiting for and getting the lock
-        NGWorkspace ngw = ar.getCogInstance().getWSBySiteAndKeyOrFail( site, workspace ).getWorkspace();
-        ar.setPageAccessLevels(ngw);
-        return updateCacheFull(ngw, ar, meetingId);
+        NoteHolder nh = getAccessibleEntry(site, workspace, ar, meetingId);
+        if (nh==null) {
+            throw new Exception("User ("+ar.getBestUserId()+") is not a perticipant for meeting "+meetingId+" and can not access the meeting");
+        }
+        return nh;
     }
 
-    public JSONObject updateCacheNotes(NGWorkspace ngw, AuthRequest ar, 
+    public NoteHolder getOrCacheNotes(String site, String workspace, AuthRequest ar,
             String meetingId) throws Exception {
-        NoteHolder nh = cacheMeeting(ngw,ar,meetingId);
-        return nh.notesObject;
+        return getAccessibleEntryOrFail(site, workspace, ar, meetingId);
     }
 
-    public JSONObject updateCacheFull(NGWorkspace ngw, AuthRequest ar, 
+    public NoteHolder getOrCacheFull(String site, String workspace, AuthRequest ar,
             String meetingId) throws Exception {
-        NoteHolder nh = cacheMeeting(ngw,ar,meetingId);
-        return nh.fullObject;
+        return getAccessibleEntryOrFail(site, workspace, ar, meetingId);
+    }
+
+    /**
+     * Call after changing a meeting, holding the lock on the workspace.
+     * Returns the new entry.
+     */
+    public NoteHolder updateCacheNotes(NGWorkspace ngw, AuthRequest ar,
+            String meetingId) throws Exception {
+        return cacheMeeting(ngw,ar,meetingId);
+    }
+
+    public NoteHolder updateCacheFull(NGWorkspace ngw, AuthRequest ar,
+            String meetingId) throws Exception {
+        return cacheMeeting(ngw,ar,meetingId);
+    }
+
+    /**
+     * Drop the meeting, for example when it is deleted.
+     */
+    public synchronized void removeMeeting(String site, String workspace, String meetingId) {
+        cache.remove(makeKey(site, workspace, meetingId));
+    }
+
+    /**
+     * Drop all the meetings of the workspace.  Call when the roles of the
+     * workspace change, since those decide who can see the meetings.
+     */
+    public synchronized void rolesChanged(NGContainer ngc) {
+        if (!(ngc instanceof NGPage)) {
+            //site roles do not give access to meetings
+            return;
+        }
+        NGPage ngp = (NGPage) ngc;
+        String prefix = makeKey(ngp.getSiteKey(), ngp.getKey(), "");
+        Iterator<Map.Entry<String,NoteHolder>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getKey().startsWith(prefix)) {
+                it.remove();
+            }
+        }
     }
-    
-    
-    private NoteHolder cacheMeeting(NGWorkspace ngw, AuthRequest ar, 
+
+    private NoteHolder cacheMeeting(NGWorkspace ngw, AuthRequest ar,
             String meetingId) throws Exception {
-        String key = ngw.getSiteKey() + "|" + ngw.getKey() + "|" + meetingId;
         MeetingRecord meeting = ngw.findMeeting(meetingId);
-        NoteHolder nh = new NoteHolder();
-        nh.notesObject = meeting.getMeetingNotes();
-        nh.fullObject = meeting.getFullJSON(ar, ngw);
-        nh.targetRole = meeting.getTargetRole();
-        nh.meetingId = meeting.getId();
-        nh.siteKey = ngw.getSiteKey();
-        nh.workspaceKey = ngw.getKey();
-        nh.calculateMemberList(ar);
-        cache.put(key, nh);
-        return nh;
+        String key = makeKey(ngw.getSiteKey(), ngw.getKey(), meeting.getId());
+        NoteHolder nh = new NoteHolder(key, nextVersion(),
+                calculateMemberList(ngw, meeting),
+                toText(meeting.getMeetingNotes()),
+                toText(meeting.getFullJSON(ar, ngw)),
+                meeting.getId());
+        return put(nh);
+    }
+
+    private static List<AddressListEntry> calculateMemberList(NGWorkspace ngw,
+            MeetingRecord meet) throws Exception {
+        CustomRole meetRole = ngw.getRole(meet.getTargetRole());
+        List<AddressListEntry> targetPlayers = new ArrayList<AddressListEntry>();
+        if (meetRole!=null) {
+            targetPlayers.addAll(meetRole.getExpandedPlayers(ngw));
+        }
+
+        //now add the regular workspace members
+        NGRole memberRole = ngw.getPrimaryRole();
+        for (AddressListEntry one : memberRole.getExpandedPlayers(ngw)) {
+            AddressListEntry.addIfNotPresent(targetPlayers,one);
+        }
+
+        //now add the participants if any
+        for (String part : meet.getParticipants()) {
+            AddressListEntry.addIfNotPresent(targetPlayers, new AddressListEntry(part));
+        }
+        return Collections.unmodifiableList(targetPlayers);
+    }
+
+    private static String toText(JSONObject jo) throws Exception {
+        StringWriter sw = new StringWriter();
+        if (BaseController.indentJson) {
+            jo.write(sw, 2, 0);
+        }
+        else {
+            jo.write(sw, 0, 0);
+        }
+        return sw.toString();
     }
-    
 }
@@ -20,6 +20,8 @@
 
 package org.socialbiz.cog.spring;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.net.URLEncoder;
 
@@ -32,10 +34,14 @@ import org.socialbiz.cog.AttachmentVersion;
 import org.socialbiz.cog.AuthRequest;
 import org.socialbiz.cog.DOMFace;
 import org.socialbiz.cog.HistoryRecord;
+import org.socialbiz.cog.ImageThumbnails;
 import org.socialbiz.cog.MimeTypes;
 import org.socialbiz.cog.NGPage;
 import org.socialbiz.cog.NGPageIndex;
 import org.socialbiz.cog.NGWorkspace;
+import org.socialbiz.cog.PDFExportData;
+import org.socialbiz.cog.PDFExportQueue;
+import org.socialbiz.cog.PDFExportQueue.ExportJob;
 import org.socialbiz.cog.SectionAttachments;
 import org.socialbiz.cog.SharePortRecord;
 import org.socialbiz.cog.TopicRecord;
@@ -55,6 +61,9 @@ import com.purplehillsbooks.json.JSONObject;
 @Controller
 public class ProjectDocsController extends BaseController {
 
+    //the longest that the pdf/{docId}.pdf request waits for the render
+    private static final long PDF_WAIT_MILLIS = 30000;
+
 
     @RequestMapping(value = "/{siteId}/{pageId}/listAttachments.htm", method = RequestMethod.GET)
     public void listAttachments(@PathVariable String siteId,@PathVariable String pageId,
@@ -233,6 +242,62 @@ public class ProjectDocsController extends BaseController {
         }
     }
 
+    /**
+     * A small JPEG of one version of an image attachment, for the document
+     * lists.  A version never changes, so the browser can keep it.
+     */
+    @RequestMapping(value="/{siteId}/{pageId}/thumb/{size}/{docId}/{version}.jpg", method = RequestMethod.GET)
+    public void loadThumbnail(
+           @PathVariable String siteId,
+           @PathVariable String pageId,
+           @PathVariable String size,
+           @PathVariable String docId,
+           @PathVariable String version,
+           HttpServletRequest request,
+           HttpServletResponse response) throws Exception {
+        try{
+            NGPageIndex.assertNoLocksOnThread();
+            AuthRequest ar = AuthRequest.getOrCreate(request, response);
+            NGWorkspace ngw = registerRequiredProject(ar, siteId, pageId);
+            AttachmentRecord att = ngw.findAttachmentByIDOrFail(docId);
+            if (!AccessControl.canAccessDoc(ar, ngw, att)) {
+                sendRedirectToLogin(ar);
+                return;
+            }
+            if (!ImageThumbnails.isImage(att.getNiceName())) {
+                throw new Exception("Document "+docId+" is not an image");
+            }
+            AttachmentVersion av = att.getSpecificVersion(ngw, DOMFace.safeConvertInt(version));
+            if (av==null || av.getNumber()!=DOMFace.safeConvertInt(version)) {
+                throw new Exception("Document "+docId+" does not have a version "+version);
+            }
+
+            //making the thumbnail can take a moment, do not hold the workspace
+            NGPageIndex.releaseLock(ngw);
+            ngw=null;
+
+            File thumbFile = ImageThumbnails.getAttachmentThumbnail(siteId, pageId, docId,
+                    av, DOMFace.safeConvertInt(size));
+            if (thumbFile==null) {
+                throw new Exception("Document "+docId+" can not be read as an image, or is too large for a thumbnail");
+            }
+            ar.resp.setContentType("image/jpeg");
+            //the document is private, so only the browser may keep it, not a shared cache
+            ar.resp.setHeader("Cache-Control", "private, max-age=31536000");
+            ar.resp.setHeader( "Content-Length", Long.toString(thumbFile.length()) );
+            InputStream fis = new FileInputStream(thumbFile);
+            try {
+                ar.streamBytesOut(fis);
+            }
+            finally {
+                fis.close();
+            }
+        }
+        catch(Exception ex){
+            throw new NGException("nugen.operation.fail.project.download.document", new Object[]{pageId,siteId} , ex);
+        }
+    }
+
     @RequestMapping(value="/{siteId}/{pageId}/f/{docId}.{ext}", method = RequestMethod.GET)
     public void loadRemoteDocument(
             @PathVariable String siteId,
@@ -261,6 +326,10 @@ public class ProjectDocsController extends BaseController {
     * every file for convenience of auto-generating a file name to save to.
     *
     * following the name is a bunch of query paramters listing the topics to include in the output.
+    *
+    * If the PDF is not rendered within PDF_WAIT_MILLIS, the response is a 202
+    * with the status of the job, and a Location header pointing at the status,
+    * so that the request thread is not held while a big workspace renders.
     */
     @RequestMapping(value="/{siteId}/{pageId}/pdf/{docId}.pdf", method = RequestMethod.GET)
     public void generatePDFDocument(
@@ -273,16 +342,114 @@ public class ProjectDocsController extends BaseController {
         try{
             AuthRequest ar = AuthRequest.getOrCreate(request, response);
             ar.getCogInstance().getSiteByIdOrFail(siteId);
-            NGPage ngp = registerRequiredProject(ar, siteId, pageId);
+            NGWorkspace ngw = registerRequiredProject(ar, siteId, pageId);
 
-            //this constructs and outputs the PDF file to the output stream
-            WikiToPDF.handlePDFRequest(ar, ngp);
+            //copy out what is needed, and let go of the workspace, so that others
+            //can use it while the PDF is rendered in the background
+            PDFExportData data = WikiToPDF.collectFromRequest(ngw, ar);
+            NGPageIndex.releaseLock(ngw);
+            ngw = null;
+
+            ExportJob job = PDFExportQueue.submit(data);
+            job.waitFor(PDF_WAIT_MILLIS);
+            if (!job.isFinished()) {
+                String statusUrl = "../pdfExport/"+job.getId()+".json";
+                ar.resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+                ar.resp.setHeader("Location", statusUrl);
+                JSONObject status = job.getJSON();
+                status.put("statusUrl", statusUrl);
+                status.put("fileUrl", "../pdfExport/"+job.getId()+".pdf");
+                sendJson(ar, status);
+                return;
+            }
+            streamExportFile(ar, job);
 
         }catch(Exception ex){
             throw new NGException("nugen.operation.fail.project.download.document", new Object[]{pageId,siteId} , ex);
         }
     }
 
+    /**
+    * Starts a PDF export in the background and returns the status of the job.
+    * The posted object lists the topics and the sections to include, see
+    * PDFExportData.  If the same export of the unchanged workspace was made
+    * recently, the finished job is returned.
+    */
+    @RequestMapping(value = "/{siteId}/{pageId}/pdfExport.json", method = RequestMethod.POST)
+    public void startPDFExport(@PathVariable String siteId,@PathVariable String pageId,
+            HttpServletRequest request, HttpServletResponse response) {
+        AuthRequest ar = AuthRequest.getOrCreate(request, response);
+        try{
+            NGWorkspace ngw = registerRequiredProject(ar, siteId, pageId);
+            JSONObject options = getPostedObject(ar);
+            PDFExportData data = PDFExportData.collect(ngw, options);
+            releaseLock();
+
+            ExportJob job = PDFExportQueue.submit(data);
+            sendJson(ar, job.getJSON());
+        }catch(Exception ex){
+            Exception ee = new Exception("Unable to start PDF export of workspace "+pageId, ex);
+            streamException(ee, ar);
+        }
+    }
+
+    @RequestMapping(value = "/{siteId}/{pageId}/pdfExport/{jobId}.json", method = RequestMethod.GET)
+    public void getPDFExportStatus(@PathVariable String siteId,@PathVariable String pageId,
+            @PathVariable String jobId,
+            HttpServletRequest request, HttpServletResponse response) {
+        AuthRequest ar = AuthRequest.getOrCreate(request, response);
+        try{
+            registerRequiredProject(ar, siteId, pageId);
+            ExportJob job = findExportJobOrFail(siteId, pageId, jobId);
+            sendJson(ar, job.getJSON());
+        }catch(Exception ex){
+            Exception ee = new Exception("Unable to get status of PDF export "+jobId, ex);
+            streamException(ee, ar);
+        }
+    }
+
+    @RequestMapping(value = "/{siteId}/{pageId}/pdfExport/{jobId}.pdf", method = RequestMethod.GET)
+    public void getPDFExportFile(@PathVariable String siteId,@PathVariable String pageId,
+            @PathVariable String jobId,
+            HttpServletRequest request, HttpServletResponse response) throws Exception {
+        try{
+            AuthRequest ar = AuthRequest.getOrCreate(request, response);
+            registerRequiredProject(ar, siteId, pageId);
+            ExportJob job = findExportJobOrFail(siteId, pageId, jobId);
+            releaseLock();
+            streamExportFile(ar, job);
+        }catch(Exception ex){
+            throw new NGException("nugen.operation.fail.project.download.document", new Object[]{pageId,siteId} , ex);
+        }
+    }
+
+    private static ExportJob findExportJobOrFail(String siteId, String pageId, String jobId) throws Exception {
+        ExportJob job = PDFExportQueue.getJob(jobId);
+        if (job==null || !siteId.equals(job.getSiteKey()) || !pageId.equals(job.getWorkspaceKey())) {
+            throw new Exception("There is no PDF export "+jobId+" for workspace "+pageId
+                    +", it may have expired and need to be requested again.");
+        }
+        return job;
+    }
+
+    private static void streamExportFile(AuthRequest ar, ExportJob job) throws Exception {
+        File pdfFile = job.getFile();
+        if (pdfFile==null) {
+            throw new Exception("PDF export "+job.getId()+" is not available, state is "+job.getState());
+        }
+        String fileName = job.getWorkspaceKey() + ".pdf";
+        ar.resp.setContentType("application/pdf");
+        ar.resp.setHeader( "Content-Disposition", "attachment; filename=\"" + fileName + "\"" );
+        ar.resp.setHeader( "Content-Length", Long.toString(pdfFile.length()) );
+        InputStream fis = new FileInputStream(pdfFile);
+        try {
+            ar.streamBytesOut(fis);
+        }
+        finally {
+            fis.close();
+        }
+    }
+
     @RequestMapping(value="/{siteId}/{pageId}/pdf1/{docId}.{ext}", method = RequestMethod.POST)
     public void generatePDFDocument(
             @PathVariable String siteId,
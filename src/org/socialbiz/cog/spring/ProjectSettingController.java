@@ -357,6 +357,7 @@ public class ProjectSettingController extends BaseController {
             }
 
             ngc.saveFile(ar, "Updated role "+roleId);
+            MeetingControler.meetingCache.rolesChanged(ngc);
             JSONObject repo = new JSONObject();
             repo.put("op",  op);
             repo.put("success",  true);
@@ -457,6 +458,7 @@ public class ProjectSettingController extends BaseController {
             else {
                 ngc.saveWithoutAuthenticatedUser("Unknown", ar.nowTime, "Resolved role "+roleName, ar.getCogInstance());
             }
+            MeetingControler.meetingCache.rolesChanged(ngc);
             JSONObject repo = new JSONObject();
             repo.put("state", rrr.getState());
             repo.put("completed", rrr.isCompleted());
@@ -508,6 +510,7 @@ public class ProjectSettingController extends BaseController {
             }
 
             ngc.saveFile(ar, "Updated Role");
+            MeetingControler.meetingCache.rolesChanged(ngc);
             sendJson(ar, repo);
         }catch(Exception ex){
             Exception ee = new Exception("Unable to '"+op+"' the role.", ex);
@@ -26,9 +26,11 @@ import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.socialbiz.cog.ActivityFeed;
 import org.socialbiz.cog.AuthRequest;
 import org.socialbiz.cog.Cognoscenti;
 import org.socialbiz.cog.CustomRole;
+import org.socialbiz.cog.DOMFace;
 import org.socialbiz.cog.HistoricActions;
 import org.socialbiz.cog.NGBook;
 import org.socialbiz.cog.NGPageIndex;
@@ -454,6 +456,31 @@ public class SiteController extends BaseController {
     }
 
     
+    /**
+     * The most recent history of all the workspaces in the site, newest
+     * first, a page at a time: pass the cursor of the last page to get the
+     * next one.
+     */
+    @RequestMapping(value = "/{siteId}/$/activity.json", method = RequestMethod.GET)
+    public void siteActivity(@PathVariable String siteId,
+            HttpServletRequest request, HttpServletResponse response) {
+        AuthRequest ar = AuthRequest.getOrCreate(request, response);
+        try{
+            Cognoscenti cog = ar.getCogInstance();
+            NGBook site = cog.getSiteByIdOrFail(siteId);
+            ar.setPageAccessLevels(site);
+            ar.assertAdmin("Must be owner of a site to see the activity in all its workspaces.");
+            int limit = DOMFace.safeConvertInt(ar.defParam("limit",
+                    Integer.toString(ActivityFeed.DEFAULT_PAGE_SIZE)));
+            JSONObject page = ActivityFeed.getPageJSON(cog.getActivityFeed().getSiteFeed(siteId),
+                    ar.defParam("cursor", ""), limit);
+            sendJson(ar, page);
+        }catch(Exception ex){
+            Exception ee = new Exception("Unable to get the activity of site "+siteId, ex);
+            streamException(ee, ar);
+        }
+    }
+
     @RequestMapping(value = "/{siteId}/$/replaceUsers.json", method = RequestMethod.POST)
     public void getGoalHistory(@PathVariable String siteId,
             HttpServletRequest request, HttpServletResponse response) {
@@ -31,6 +31,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.socialbiz.cog.AuthRequest;
 import org.socialbiz.cog.Cognoscenti;
 import org.socialbiz.cog.NGPageIndex;
+import org.socialbiz.cog.WorkspaceSaveQueue;
 import org.springframework.web.servlet.DispatcherServlet;
 
 import com.purplehillsbooks.streams.SSLPatch;
@@ -141,6 +142,16 @@ public class SpringServletWrapper extends HttpServlet
     }
 
 
+    /**
+    * The container is shutting down or unloading the application, so write
+    * any workspace saves that are still waiting in memory.
+    */
+    public void destroy() {
+        WorkspaceSaveQueue.flushAll();
+        wrappedServlet.destroy();
+    }
+
+
     /**
     * Can generate any page in the system.
     * Page is generated to the Writer in the AuthRequest object, and according
@@ -29,6 +29,7 @@ import org.socialbiz.cog.Cognoscenti;
 import org.socialbiz.cog.ErrorLog;
 import org.socialbiz.cog.ErrorLogDetails;
 import org.socialbiz.cog.HistoricActions;
+import org.socialbiz.cog.MetricsRegistry;
 import org.socialbiz.cog.OptOutAddr;
 import org.socialbiz.cog.SiteReqFile;
 import org.socialbiz.cog.SiteRequest;
@@ -104,6 +105,67 @@ public class SuperAdminController extends BaseController {
          }
      }
 
+     @RequestMapping(value = "/su/backgroundJobs.htm", method = RequestMethod.GET)
+     public void backgroundJobs(HttpServletRequest request, HttpServletResponse response)
+             throws Exception {
+         AuthRequest ar = AuthRequest.getOrCreate(request, response);
+         try{
+             adminModelSetUp(ar, "backgroundJobs");
+         }catch(Exception ex){
+             throw new NGException("nugen.operation.fail.administration.page", new Object[]{ar.getBestUserId()} , ex);
+         }
+     }
+
+     @RequestMapping(value = "/su/metrics.json", method = RequestMethod.GET)
+     public void metricsJSON(HttpServletRequest request, HttpServletResponse response) {
+         AuthRequest ar = AuthRequest.getOrCreate(request, response);
+         try{
+             ar.assertSuperAdmin("Must be a super admin to see the server metrics.");
+             sendJson(ar, MetricsRegistry.getJSON());
+         }
+         catch(Exception ex){
+             Exception ee = new Exception("Unable to get the server metrics", ex);
+             streamException(ee, ar);
+         }
+     }
+
+     /**
+      * The metrics in the Prometheus text format.  Prometheus can not log
+      * in, so when "metricsToken" is set in the config file, a request that
+      * has that token, as a bearer token or as the "token" parameter, is
+      * allowed without being logged in.
+      */
+     @RequestMapping(value = "/su/metrics.txt", method = RequestMethod.GET)
+     public void metricsText(HttpServletRequest request, HttpServletResponse response) {
+         AuthRequest ar = AuthRequest.getOrCreate(request, response);
+         try{
+             if (!hasMetricsToken(ar)) {
+                 ar.assertSuperAdmin("Must be a super admin, or have the metrics token, to see the server metrics.");
+             }
+             releaseLock();
+             ar.resp.setContentType("text/plain; version=0.0.4");
+             MetricsRegistry.writePrometheus(ar.w);
+             ar.flush();
+         }
+         catch(Exception ex){
+             Exception ee = new Exception("Unable to get the server metrics", ex);
+             streamException(ee, ar);
+         }
+     }
+
+     private static boolean hasMetricsToken(AuthRequest ar) throws Exception {
+         String token = ar.getCogInstance().getConfig().getProperty("metricsToken");
+         if (token==null || token.trim().length()==0) {
+             return false;
+         }
+         token = token.trim();
+         String auth = ar.req.getHeader("Authorization");
+         if (auth!=null && auth.startsWith("Bearer ")) {
+             return token.equals(auth.substring(7).trim());
+         }
+         return token.equals(ar.defParam("token", ""));
+     }
+
      @RequestMapping(value = "/su/newUsers.htm", method = RequestMethod.GET)
      public void newUsers(HttpServletRequest request, HttpServletResponse response)
              throws Exception {
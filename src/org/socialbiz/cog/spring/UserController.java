@@ -22,6 +22,7 @@ package org.socialbiz.cog.spring;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -37,16 +38,19 @@ import jxl.Sheet;
 import jxl.Workbook;
 
 import org.socialbiz.cog.AccessControl;
+import org.socialbiz.cog.ActivityFeed;
 import org.socialbiz.cog.AddressListEntry;
 import org.socialbiz.cog.AgentRule;
 import org.socialbiz.cog.AuthDummy;
 import org.socialbiz.cog.AuthRequest;
 import org.socialbiz.cog.BaseRecord;
 import org.socialbiz.cog.Cognoscenti;
+import org.socialbiz.cog.CompressingResponse;
 import org.socialbiz.cog.DOMFace;
 import org.socialbiz.cog.EmailListener;
 import org.socialbiz.cog.GoalRecord;
 import org.socialbiz.cog.HistoryRecord;
+import org.socialbiz.cog.ImageThumbnails;
 import org.socialbiz.cog.MicroProfileMgr;
 import org.socialbiz.cog.NGContainer;
 import org.socialbiz.cog.NGPage;
@@ -54,6 +58,7 @@ import org.socialbiz.cog.NGPageIndex;
 import org.socialbiz.cog.NGRole;
 import org.socialbiz.cog.OptOutAddr;
 import org.socialbiz.cog.OptOutIndividualRequest;
+import org.socialbiz.cog.PeopleIndex;
 import org.socialbiz.cog.ProfileRef;
 import org.socialbiz.cog.ReminderMgr;
 import org.socialbiz.cog.ReminderRecord;
@@ -339,15 +344,33 @@ public class UserController extends BaseController {
             if (!ar.isLoggedIn()) {
                 throw new Exception("Must be logged in to get users");
             }
-            JSONArray peopleList = new JSONArray();
-            List<AddressListEntry> userList = ar.getCogInstance().getUserManager().getAllPossibleUsers();
-            for (AddressListEntry ale : userList) {
-                JSONObject person = ale.getJSON();
-                peopleList.put(person);
+            //the list is made once for each version of the people index, the
+            //browser keeps it and asks again with the version as the ETag.  The
+            //gzip and plain bodies are different, so they have different ETags.
+            PeopleIndex index = PeopleIndex.getIndex();
+            releaseLock();
+            boolean gzip = "gzip".equals(CompressingResponse.chooseEncoding(request));
+            String etag = "\"people-"+index.getVersion()+(gzip ? "-gz\"" : "\"");
+            ar.resp.setHeader("ETag", etag);
+            ar.resp.setHeader("Cache-Control", "private, no-cache");
+            ar.resp.setHeader("Vary", "Accept-Encoding");
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                ar.resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
             }
-            JSONObject result = new JSONObject();
-            result.put("people", peopleList);
-            sendJson(ar, result);
+            byte[] body;
+            if (gzip) {
+                ar.resp.setHeader("Content-Encoding", "gzip");
+                body = index.getFullListGzip();
+            }
+            else {
+                body = index.getFullList();
+            }
+            ar.resp.setContentType("application/json;charset=UTF-8");
+            ar.resp.setContentLength(body.length);
+            OutputStream out = ar.resp.getOutputStream();
+            out.write(body);
+            out.flush();
         }
         catch(Exception ex){
             Exception ee = new Exception("Unable to generate people information.", ex);
@@ -355,6 +378,32 @@ public class UserController extends BaseController {
         }
     }
 
+    /**
+     * The people that match what was typed into a people picker, a page at
+     * a time: parameters q, offset (default 0), and limit (default 20, at
+     * most 100).  See PeopleIndex for how they are matched and ordered.
+     */
+    @RequestMapping(value = "/PeopleSearch.json", method = RequestMethod.GET)
+    public void PeopleSearch(HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+
+        AuthRequest ar = null;
+        try{
+            ar = AuthRequest.getOrCreate(request, response);
+            if (!ar.isLoggedIn()) {
+                throw new Exception("Must be logged in to get users");
+            }
+            int offset = DOMFace.safeConvertInt(ar.defParam("offset", "0"));
+            int limit = DOMFace.safeConvertInt(ar.defParam("limit", Integer.toString(PeopleIndex.DEFAULT_PAGE_SIZE)));
+            JSONObject result = PeopleIndex.getIndex().query(ar.defParam("q", ""), offset, limit);
+            sendJson(ar, result);
+        }
+        catch(Exception ex){
+            Exception ee = new Exception("Unable to search for people.", ex);
+            streamException(ee, ar);
+        }
+    }
+
 
     @RequestMapping(value = "/{userKey}/RemoteProfileAction.form", method = RequestMethod.POST)
     public void RemoteProfileAction(@PathVariable String userKey,
@@ -563,6 +612,33 @@ public class UserController extends BaseController {
         }
     }
 
+    /**
+     * What the user did recently in all the workspaces, newest first, a
+     * page at a time: pass the cursor of the last page to get the next one.
+     */
+    @RequestMapping(value = "/{userKey}/activity.json", method = RequestMethod.GET)
+    public void userActivity(HttpServletRequest request, HttpServletResponse response,
+                              @PathVariable String userKey) throws Exception {
+        AuthRequest ar = AuthRequest.getOrCreate(request, response);
+        try{
+            ar.assertLoggedIn("Must be logged in in order to see the activity of a user.");
+            Cognoscenti cog = ar.getCogInstance();
+            UserProfile userViewed = cog.getUserManager().findUserByAnyIdOrFail(userKey);
+            if (!ar.getUserProfile().getKey().equals(userViewed.getKey()) && !ar.isSuperAdmin()) {
+                throw new Exception("User "+ar.getUserProfile().getName()+" is not allowed to see the activity of user "+userViewed.getName());
+            }
+            int limit = DOMFace.safeConvertInt(ar.defParam("limit",
+                    Integer.toString(ActivityFeed.DEFAULT_PAGE_SIZE)));
+            JSONObject page = ActivityFeed.getPageJSON(cog.getActivityFeed().getUserFeed(userViewed),
+                    ar.defParam("cursor", ""), limit);
+            sendJson(ar, page);
+        }
+        catch(Exception ex){
+            Exception ee = new Exception("Unable to get the activity of user "+userKey, ex);
+            streamException(ee, ar);
+        }
+    }
+
     @RequestMapping(value = "/{userKey}/updateProfile.json", method = RequestMethod.POST)
     public void updateProfile(HttpServletRequest request, HttpServletResponse response,
                               @PathVariable String userKey) throws Exception {
@@ -639,6 +715,7 @@ public class UserController extends BaseController {
                         HistoryRecord.EVENT_PLAYER_ADDED, ar, roleName);
 
                 project.saveFile(ar, "Add New Member ("+requestedBy+") to Role "+roleName);
+                MeetingControler.meetingCache.rolesChanged(project);
 
                 String subject = "Approved: Role request for '"+roleName+"'";
                 sendRoleRequestApprovedOrRejectionEmail(ar, requestedBy, subject,responseDescription,project,roleName,action);
@@ -754,6 +831,7 @@ public class UserController extends BaseController {
             profile.setImage(newImageName);
             profile.setLastUpdated(ar.nowTime);
             ar.getCogInstance().getUserManager().saveUserProfiles();
+            ImageThumbnails.userImageChanged(oldImageName, newImageName);
 
             redirectBrowser(ar,"editUserProfile.htm?u="+userKey);
         }catch(Exception ex){
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog.test;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * What the benchmarks share.  The allocation count uses the HotSpot thread
+ * allocation counter, which is not part of the standard ThreadMXBean, so it
+ * is found by reflection.  On a VM that does not have it, the count is -1.
+ */
+public class BenchmarkSupport {
+
+    private static Object threadBean;
+    private static Method allocatedBytes;
+
+    static {
+        try {
+            threadBean = ManagementFactory.getThreadMXBean();
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            allocatedBytes = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+            getAllocatedBytes();
+        }
+        catch (Exception e) {
+            allocatedBytes = null;
+        }
+    }
+
+    /**
+     * Total bytes allocated by this thread so far, or -1 if not available.
+     */
+    public static long getAllocatedBytes() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+        try {
+            Object val = allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+            return ((Long) val).longValue();
+        }
+        catch (Exception e) {
+            allocatedBytes = null;
+            return -1;
+        }
+    }
+
+    /**
+     * Throws away everything, a whole array at a time, for the output of
+     * the server while it is being measured.
+     */
+    public static class NullOutputStream extends OutputStream {
+        public void write(int b) {
+        }
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.socialbiz.cog.test;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+
+import org.socialbiz.cog.AuthRequest;
+import org.socialbiz.cog.HtmlToWikiConverter;
+import org.socialbiz.cog.WikiConverter;
+
+import com.purplehillsbooks.streams.NullWriter;
+
+/**
+ * Measures the wiki converters on a generated corpus that looks like
+ * meeting minutes: headings, paragraphs, bullet lists, bold and italic
+ * text, and external links.  For each size of document it converts
+ * HTML to wiki and wiki to HTML, first with the string methods and then
+ * with the streaming (Reader to Writer) methods, and reports the
+ * throughput and the bytes allocated per MB of input.
+ *
+ * This does not need a running server.  Run it from the command line
+ * with the cognoscenti classes, the WEB-INF/lib jars, and the servlet API
+ * jar on the class path:
+ *
+ *     java org.socialbiz.cog.test.ConverterBenchmark [sizeKB ...]
+ *
+ * The default sizes are 100KB, 1MB, and 4MB.  Allocation is measured with
+ * the HotSpot thread allocation counter, and is reported as -1 on a VM that
+ * does not have it.
+ */
+public class ConverterBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int TIMED_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = new int[] {100, 1024, 4096};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i=0; i<args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("size    conversion   method     MB/s   alloc bytes/MB");
+        for (int size : sizes) {
+            String html = makeHtmlCorpus(size * 1024);
+            String wiki = HtmlToWikiConverter.htmlToWiki(null, html);
+
+            runOne(size, "html->wiki", "string", html, new Conversion() {
+                public void convert(String input) throws Exception {
+                    String res = HtmlToWikiConverter.htmlToWiki(null, input);
+                    Writer out = new NullWriter();
+                    out.write(res);
+                }
+            });
+            runOne(size, "html->wiki", "stream", html, new Conversion() {
+                public void convert(String input) throws Exception {
+                    HtmlToWikiConverter.htmlToWiki(new StringReader(input), new NullWriter());
+                }
+            });
+            runOne(size, "wiki->html", "string", wiki, new Conversion() {
+                public void convert(String input) throws Exception {
+                    WikiConverter.writeWikiAsHtml(new BenchRequest(), input);
+                }
+            });
+            runOne(size, "wiki->html", "stream", wiki, new Conversion() {
+                public void convert(String input) throws Exception {
+                    Reader r = new StringReader(input);
+                    WikiConverter.writeWikiAsHtml(new BenchRequest(), r);
+                }
+            });
+        }
+    }
+
+    private interface Conversion {
+        void convert(String input) throws Exception;
+    }
+
+    private static void runOne(int sizeKB, String conversion, String method,
+            String input, Conversion conv) throws Exception {
+        for (int i=0; i<WARMUP_ROUNDS; i++) {
+            conv.convert(input);
+        }
+        long startAlloc = BenchmarkSupport.getAllocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i=0; i<TIMED_ROUNDS; i++) {
+            conv.convert(input);
+        }
+        long elapsed = System.nanoTime() - startTime;
+        long endAlloc = BenchmarkSupport.getAllocatedBytes();
+
+        double mb = ((double) input.length() * TIMED_ROUNDS) / (1024*1024);
+        double mbPerSec = mb / (elapsed / 1000000000.0);
+        long allocPerMB = -1;
+        if (startAlloc >= 0 && endAlloc >= 0) {
+            allocPerMB = (long) ((endAlloc - startAlloc) / mb);
+        }
+        System.out.println(String.format("%5dK  %-11s  %-7s %8.2f  %14d",
+                sizeKB, conversion, method, mbPerSec, allocPerMB));
+    }
+
+    /**
+     * Builds HTML similar to what the WYSIWYG editor produces for minutes,
+     * repeating varied sections until it is at least the requested size.
+     */
+    static String makeHtmlCorpus(int targetSize) {
+        StringBuilder sb = new StringBuilder(targetSize + 2000);
+        int item = 0;
+        while (sb.length() < targetSize) {
+            item++;
+            sb.append("<h2>Agenda Item ").append(item).append(": Budget &amp; Planning</h2>\r\n");
+            sb.append("<p>Attendees discussed the <b>quarterly plan</b> and the <i>open issues</i> ");
+            sb.append("from item ").append(item - 1).append(".&nbsp; Details are at ");
+            sb.append("http://example.com/minutes/").append(item).append(" for reference.</p>\r\n");
+            sb.append("<ul>\r\n");
+            for (int j=0; j<5; j++) {
+                sb.append("<li>Action ").append(j).append(" for item ").append(item);
+                sb.append(": follow up with the <b>team</b> by Friday</li>\r\n");
+            }
+            sb.append("</ul>\r\n");
+            sb.append("<p>See <a href=\"https://example.org/doc/").append(item);
+            sb.append("\">the design document</a> and the notes in [brackets] with under_scores ");
+            sb.append("and 'quotes' that need escaping.</p>\r\n");
+            if (item % 4 == 0) {
+                sb.append("<pre>\r\nraw block line one\r\n  raw block line two\r\n</pre>\r\n");
+                sb.append("<hr/>\r\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Request object that writes to nowhere and does not need a server.
+     */
+    private static class BenchRequest extends AuthRequest {
+        BenchRequest() {
+            super(new NullWriter(), null);
+        }
+
+        public String getSystemProperty(String name) {
+            return "http://localhost/cog/";
+        }
+    }
+}
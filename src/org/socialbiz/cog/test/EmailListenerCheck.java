@@ -0,0 +1,302 @@
+package org.socialbiz.cog.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import org.socialbiz.cog.EmailListener;
+
+import com.purplehillsbooks.json.JSONException;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * Checks that EmailListener reads only the new messages from a POP3 inbox,
+ * against a small POP3 server started on a local port by this class.  The
+ * stub server keeps its messages in memory and counts which ones the client
+ * actually downloads (RETR or TOP), so it can tell a message that was only
+ * listed by UIDL from one that was read.
+ *
+ * The steps are:
+ *
+ * - 3 messages in the inbox: all 3 are new and read.
+ * - the same inbox again: nothing is new and nothing is read.
+ * - 2 more messages: only those 2 are new and read.
+ * - a message removed from the server is dropped from the saved UIDs.
+ *
+ * It also checks that EmailListener.stopListener can be called when no
+ * listener is running, as the pause of the server does.
+ *
+ * This does not need a running server or a configuration.  Run it from the
+ * command line with the cognoscenti classes and the mail jars on the class
+ * path:
+ *
+ *     java org.socialbiz.cog.test.EmailListenerCheck
+ *
+ * Each check prints PASS or FAIL, and the exit code is the number that failed.
+ */
+public class EmailListenerCheck {
+
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        StubPop3Server server = null;
+        File stateFile = null;
+        try {
+            server = new StubPop3Server();
+            server.start();
+            stateFile = File.createTempFile("inboundMailState", ".json");
+            stateFile.delete();
+
+            server.addMessage("uid-1", "first");
+            server.addMessage("uid-2", "second");
+            server.addMessage("uid-3", "third");
+            poll(server, stateFile, 3, "three messages in a new inbox");
+            poll(server, stateFile, 0, "inbox that has not changed");
+
+            server.addMessage("uid-4", "fourth");
+            server.addMessage("uid-5", "fifth");
+            poll(server, stateFile, 2, "two messages added");
+
+            server.removeMessage("uid-2");
+            poll(server, stateFile, 0, "one message removed from the server");
+            int saved = JSONObject.readFromFile(stateFile).getJSONArray("seenUids").length();
+            check(saved==4, "removed message dropped from the saved UIDs ("+saved+" saved)");
+
+            EmailListener.stopListener();
+            check(true, "stopListener with no listener running");
+        }
+        catch (Exception e) {
+            failures++;
+            System.out.print("\n\nFATAL ERROR EXIT PROGRAM:\n");
+            JSONException.traceException(System.out, e, "FATAL ERROR EXIT PROGRAM");
+        }
+        finally {
+            if (server!=null) {
+                server.shutdown();
+            }
+            if (stateFile!=null) {
+                stateFile.delete();
+            }
+        }
+        System.out.println(failures==0 ? "ALL PASSED" : failures+" FAILED");
+        System.exit(failures);
+    }
+
+    /**
+     * Reads the inbox the way EmailListener.handleInbox does, and checks
+     * that the expected number of messages were new, and that exactly those
+     * were downloaded from the server.
+     */
+    private static void poll(StubPop3Server server, File stateFile, int expected,
+            String description) throws Exception {
+        Properties props = new Properties();
+        props.put("mail.pop3.connectiontimeout", "5000");
+        props.put("mail.pop3.timeout", "5000");
+        Session session = Session.getInstance(props);
+        Store store = session.getStore("pop3");
+        store.connect("localhost", server.getPort(), "listener", "secret");
+        Folder inbox = store.getFolder("INBOX");
+        inbox.open(Folder.READ_WRITE);
+        server.resetDownloads();
+        try {
+            EmailListener.InboxState state = new EmailListener.InboxState(stateFile);
+            List<Message> newMessages = state.getNewMessages(inbox);
+            for (Message message : newMessages) {
+                //storing a message reads it
+                message.getSubject();
+            }
+            state.markRead(inbox, newMessages);
+            state.save();
+            check(newMessages.size()==expected, description+": "+newMessages.size()
+                    +" new, expected "+expected);
+            int downloaded = server.countDownloads();
+            check(downloaded==expected, description+": "+downloaded
+                    +" downloaded, expected "+expected);
+        }
+        finally {
+            inbox.close(false);
+            store.close();
+        }
+    }
+
+    private static void check(boolean ok, String description) {
+        if (ok) {
+            System.out.println("PASS  "+description);
+        }
+        else {
+            failures++;
+            System.out.println("FAIL  "+description);
+        }
+    }
+
+    /**
+     * Just enough of POP3 (RFC 1939, with CAPA and UIDL) for JavaMail to
+     * list, read, and delete messages.  One connection at a time.
+     */
+    private static class StubPop3Server extends Thread {
+        private final ServerSocket serverSocket;
+        private final List<String[]> messages = new ArrayList<String[]>();
+        private final Set<String> downloaded = new HashSet<String>();
+        private volatile boolean stopped = false;
+
+        StubPop3Server() throws Exception {
+            super("Stub POP3 server");
+            setDaemon(true);
+            serverSocket = new ServerSocket(0, 5, InetAddress.getByName("localhost"));
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        synchronized void addMessage(String uid, String subject) {
+            String text = "From: sender@example.com\r\n"
+                    + "To: listener@example.com\r\n"
+                    + "Subject: "+subject+"\r\n"
+                    + "Date: Mon, 19 Oct 2026 10:00:00 +0000\r\n"
+                    + "\r\n"
+                    + "This is the "+subject+" message.\r\n";
+            messages.add(new String[] {uid, text});
+        }
+
+        synchronized void removeMessage(String uid) {
+            for (int i=0; i<messages.size(); i++) {
+                if (messages.get(i)[0].equals(uid)) {
+                    messages.remove(i);
+                    return;
+                }
+            }
+        }
+
+        synchronized void resetDownloads() {
+            downloaded.clear();
+        }
+
+        synchronized int countDownloads() {
+            return downloaded.size();
+        }
+
+        void shutdown() {
+            stopped = true;
+            try {
+                serverSocket.close();
+            }
+            catch (Exception e) {
+                /* ignore this exception */
+            }
+        }
+
+        public void run() {
+            while (!stopped) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        handle(socket);
+                    }
+                    finally {
+                        socket.close();
+                    }
+                }
+                catch (Exception e) {
+                    if (!stopped) {
+                        System.out.println("Stub POP3 server: "+e);
+                    }
+                }
+            }
+        }
+
+        private void handle(Socket socket) throws Exception {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream out = socket.getOutputStream();
+            Set<Integer> deleted = new HashSet<Integer>();
+            //the messages as they were when the session started, numbered from 1
+            List<String[]> inbox;
+            synchronized (this) {
+                inbox = new ArrayList<String[]>(messages);
+            }
+            send(out, "+OK stub POP3 server ready");
+            String line = in.readLine();
+            while (line!=null) {
+                String[] parts = line.split(" ");
+                String cmd = parts[0].toUpperCase();
+                if ("CAPA".equals(cmd)) {
+                    send(out, "+OK\r\nUSER\r\nUIDL\r\nTOP\r\n.");
+                }
+                else if ("STAT".equals(cmd)) {
+                    int size = 0;
+                    for (String[] msg : inbox) {
+                        size += msg[1].length();
+                    }
+                    send(out, "+OK "+inbox.size()+" "+size);
+                }
+                else if ("LIST".equals(cmd) || "UIDL".equals(cmd)) {
+                    boolean uidl = "UIDL".equals(cmd);
+                    if (parts.length>1) {
+                        int num = Integer.parseInt(parts[1]);
+                        String[] msg = inbox.get(num-1);
+                        send(out, "+OK "+num+" "+(uidl ? msg[0] : ""+msg[1].length()));
+                    }
+                    else {
+                        StringBuilder sb = new StringBuilder("+OK");
+                        for (int i=0; i<inbox.size(); i++) {
+                            String[] msg = inbox.get(i);
+                            sb.append("\r\n").append(i+1).append(" ");
+                            sb.append(uidl ? msg[0] : ""+msg[1].length());
+                        }
+                        sb.append("\r\n.");
+                        send(out, sb.toString());
+                    }
+                }
+                else if ("RETR".equals(cmd) || "TOP".equals(cmd)) {
+                    String[] msg = inbox.get(Integer.parseInt(parts[1])-1);
+                    synchronized (this) {
+                        downloaded.add(msg[0]);
+                    }
+                    String text = msg[1];
+                    if ("TOP".equals(cmd)) {
+                        text = text.substring(0, text.indexOf("\r\n\r\n")+4);
+                    }
+                    send(out, "+OK\r\n"+text+".");
+                }
+                else if ("DELE".equals(cmd)) {
+                    deleted.add(Integer.parseInt(parts[1]));
+                    send(out, "+OK");
+                }
+                else if ("QUIT".equals(cmd)) {
+                    synchronized (this) {
+                        for (int num : deleted) {
+                            messages.remove(inbox.get(num-1));
+                        }
+                    }
+                    send(out, "+OK bye");
+                    return;
+                }
+                else {
+                    //USER, PASS, NOOP, RSET
+                    send(out, "+OK");
+                }
+                line = in.readLine();
+            }
+        }
+
+        private static void send(OutputStream out, String response) throws Exception {
+            out.write((response+"\r\n").getBytes("ISO-8859-1"));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog.test;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.socialbiz.cog.AuthRequest;
+import org.socialbiz.cog.Cognoscenti;
+import org.socialbiz.cog.HtmlToWikiConverter;
+import org.socialbiz.cog.MeetingRecord;
+import org.socialbiz.cog.NGPage;
+import org.socialbiz.cog.NGWorkspace;
+import org.socialbiz.cog.SearchManager;
+import org.socialbiz.cog.TopicRecord;
+import org.socialbiz.cog.WikiConverter;
+import org.socialbiz.cog.util.ThreeWayMerge;
+
+import com.purplehillsbooks.streams.NullWriter;
+
+/**
+ * Measures the paths that most requests go through: reading and writing
+ * workspace files, walking the DOM, converting wiki to and from HTML,
+ * merging minutes, building and searching the search index, and making
+ * the JSON for topics and meetings.  It is meant to be run before and
+ * after a change, to see whether the change made any of these slower.
+ *
+ * It starts the server objects on a new temporary data folder (see
+ * WorkspaceGenerator) so it does not need a servlet container, and it
+ * does not touch any real data.  For each workspace size it generates a
+ * workspace with that many topics and reports, for each operation, the
+ * milliseconds per operation and the bytes allocated per operation.
+ *
+ * Run it from the build with "ant benchmark" (set benchmark.sizes to
+ * change the sizes), or from the command line with the cognoscenti
+ * classes, the WEB-INF/lib jars, and the servlet API jar on the class path:
+ *
+ *     java -Djava.awt.headless=true org.socialbiz.cog.test.HotPathBenchmark [topics ...]
+ *
+ * The default sizes are 20 and 200 topics.  Allocation is measured with
+ * the HotSpot thread allocation counter, and is reported as -1 on a VM
+ * that does not have it.
+ */
+public class HotPathBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int TIMED_ROUNDS = 10;
+
+    //the server prints a lot while it works, the results go here instead
+    private static PrintStream results;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = new int[] {20, 200};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i=0; i<args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        File rootFolder = File.createTempFile("cogbench", "");
+        rootFolder.delete();
+        rootFolder.mkdirs();
+
+        results = System.out;
+        System.setOut(new PrintStream(new BenchmarkSupport.NullOutputStream()));
+        try {
+            Cognoscenti cog = WorkspaceGenerator.startServer(rootFolder);
+            WorkspaceGenerator generator = new WorkspaceGenerator(cog);
+            AuthRequest ar = generator.makeRequest(new NullWriter());
+
+            List<NGWorkspace> workspaces = new ArrayList<NGWorkspace>();
+            for (int topics : sizes) {
+                workspaces.add(generator.generate("bench"+topics, topics, ar));
+            }
+
+            results.println("topics  operation                   ms/op    alloc bytes/op");
+            for (int i=0; i<sizes.length; i++) {
+                runWorkspace(cog, generator, workspaces.get(i), sizes[i]);
+            }
+            runSearch(cog, ar, sizes);
+        }
+        finally {
+            System.setOut(results);
+            deleteAll(rootFolder);
+        }
+    }
+
+    private static void runWorkspace(Cognoscenti cog, WorkspaceGenerator generator,
+            NGWorkspace generated, int topics) throws Exception {
+        final File workspaceFile = generated.getFilePath();
+        final NGWorkspace ngw = NGWorkspace.readWorkspaceAbsolutePath(workspaceFile);
+        final AuthRequest ar = generator.makeRequest(new NullWriter());
+        ar.ngp = ngw;
+        final List<TopicRecord> allTopics = ngw.getAllNotes();
+
+        runOne(topics, "workspace read", new Operation() {
+            public void run(int round) throws Exception {
+                NGPage.clearAllStaticVars();
+                NGWorkspace.readWorkspaceAbsolutePath(workspaceFile);
+            }
+        });
+        runOne(topics, "workspace read (cached)", new Operation() {
+            public void run(int round) throws Exception {
+                NGWorkspace.readWorkspaceAbsolutePath(workspaceFile);
+            }
+        });
+        runOne(topics, "save one change", new Operation() {
+            public void run(int round) throws Exception {
+                allTopics.get(round % allTopics.size()).setSubject("Changed subject "+round);
+                ngw.save();
+            }
+        });
+        runOne(topics, "reformatXML", new Operation() {
+            public void run(int round) throws Exception {
+                ngw.reformatXML();
+            }
+        });
+        runOne(topics, "getChildren (all lists)", new Operation() {
+            public void run(int round) throws Exception {
+                ngw.getAllNotes();
+                ngw.getAllGoals();
+                ngw.getMeetings();
+                ngw.getAllHistory();
+            }
+        });
+
+        final List<String> wikis = new ArrayList<String>();
+        final List<String> htmls = new ArrayList<String>();
+        for (TopicRecord topic : allTopics) {
+            String wiki = topic.getWiki();
+            wikis.add(wiki);
+            StringWriter sw = new StringWriter();
+            WikiConverter.writeWikiAsHtml(generator.makeRequest(sw), wiki);
+            htmls.add(sw.toString());
+        }
+        runOne(topics, "wiki->html (all topics)", new Operation() {
+            public void run(int round) throws Exception {
+                for (String wiki : wikis) {
+                    WikiConverter.writeWikiAsHtml(ar, wiki);
+                }
+            }
+        });
+        runOne(topics, "html->wiki (all topics)", new Operation() {
+            public void run(int round) throws Exception {
+                for (String html : htmls) {
+                    HtmlToWikiConverter.htmlToWiki(null, html);
+                }
+            }
+        });
+
+        final List<String[]> merges = new ArrayList<String[]>();
+        Random rand = new Random(topics);
+        for (String wiki : wikis) {
+            String[] lines = wiki.split("\n");
+            merges.add(new String[] {join(MergeBenchmark.editLines(lines, rand, 0)), wiki,
+                    join(MergeBenchmark.editLines(lines, rand, 1))});
+        }
+        runOne(topics, "ThreeWayMerge (all topics)", new Operation() {
+            public void run(int round) throws Exception {
+                for (String[] merge : merges) {
+                    ThreeWayMerge.mergeThem(merge[0], merge[1], merge[2]);
+                }
+            }
+        });
+
+        runOne(topics, "JSON of all topics", new Operation() {
+            public void run(int round) throws Exception {
+                for (TopicRecord topic : ngw.getAllNotes()) {
+                    topic.getJSONWithComments(ar, ngw).toString();
+                }
+            }
+        });
+        runOne(topics, "JSON of all meetings", new Operation() {
+            public void run(int round) throws Exception {
+                for (MeetingRecord meeting : ngw.getMeetings()) {
+                    meeting.getFullJSON(ar, ngw).toString();
+                }
+            }
+        });
+    }
+
+    /**
+     * The search index covers all the workspaces, so this is measured once
+     * for all of them together.
+     */
+    private static void runSearch(Cognoscenti cog, final AuthRequest ar, int[] sizes) throws Exception {
+        int totalTopics = 0;
+        for (int topics : sizes) {
+            totalTopics += topics;
+        }
+        final SearchManager search = new SearchManager(cog);
+        runOne(totalTopics, "search initializeIndex", new Operation() {
+            public void run(int round) throws Exception {
+                search.initializeIndex();
+            }
+        });
+        runOne(totalTopics, "search performSearch", new Operation() {
+            public void run(int round) throws Exception {
+                search.performSearch(ar, "budget", "", null);
+            }
+        });
+    }
+
+    private interface Operation {
+        void run(int round) throws Exception;
+    }
+
+    private static void runOne(int topics, String name, Operation op) throws Exception {
+        int round = 0;
+        for (int i=0; i<WARMUP_ROUNDS; i++) {
+            op.run(round++);
+        }
+        long startAlloc = BenchmarkSupport.getAllocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i=0; i<TIMED_ROUNDS; i++) {
+            op.run(round++);
+        }
+        long elapsed = System.nanoTime() - startTime;
+        long endAlloc = BenchmarkSupport.getAllocatedBytes();
+
+        double msPerOp = (elapsed / 1000000.0) / TIMED_ROUNDS;
+        long allocPerOp = -1;
+        if (startAlloc >= 0 && endAlloc >= 0) {
+            allocPerOp = (endAlloc - startAlloc) / TIMED_ROUNDS;
+        }
+        results.println(String.format("%6d  %-26s %9.3f  %16d", topics, name, msPerOp, allocPerOp));
+    }
+
+    private static String join(String[] lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line);
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,311 @@
+package org.socialbiz.cog.test;
+
+import java.util.Random;
+
+import org.socialbiz.cog.util.ThreeWayMerge;
+
+/**
+ * Measures ThreeWayMerge on generated meeting minutes of several thousand
+ * lines, the way AgendaItem.mergeMinutes uses it: the current minutes have
+ * edits from other people, and the new minutes have edits made to an older
+ * copy.  Some of the edits are on the same lines, so the word and character
+ * levels of the merge are used as well as the line level.
+ *
+ * For comparison, the same merges are done with the earlier algorithm
+ * (which walked the three strings looking for three characters in common)
+ * kept here as PreviousMerge.  The time per merge and the bytes allocated
+ * per merge are reported for both.
+ *
+ * This does not need a running server.  Run it from the command line with
+ * the cognoscenti classes on the class path:
+ *
+ *     java org.socialbiz.cog.test.MergeBenchmark [lines ...]
+ *
+ * The default sizes are 1000, 5000, and 20000 lines.  Allocation is measured
+ * with the HotSpot thread allocation counter, and is reported as -1 on a VM
+ * that does not have it.
+ */
+public class MergeBenchmark {
+
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int TIMED_ROUNDS = 5;
+
+    //the earlier algorithm is very slow on large minutes, so it is
+    //only measured up to this many lines
+    private static final int PREVIOUS_MAX_LINES = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = new int[] {1000, 5000, 20000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i=0; i<args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println(" lines      chars  method       ms/merge   alloc bytes/merge");
+        for (int lines : sizes) {
+            Random rand = new Random(lines);
+            String[] base = makeMinutes(lines, rand);
+            String old = join(base);
+            String cur = join(editLines(base, rand, 0));
+            String neu = join(editLines(base, rand, 1));
+
+            String merged = runOne(lines, old.length(), "myers", new Merge() {
+                public String merge(String c, String o, String n) {
+                    return ThreeWayMerge.mergeThem(c, o, n);
+                }
+            }, cur, old, neu);
+            if (lines <= PREVIOUS_MAX_LINES) {
+                String previous = runOne(lines, old.length(), "previous", new Merge() {
+                    public String merge(String c, String o, String n) {
+                        return new PreviousMerge(c, o, n).getMerged();
+                    }
+                }, cur, old, neu);
+                if (!previous.equals(merged)) {
+                    System.out.println("        (results differ: "+merged.length()
+                            +" chars now, "+previous.length()+" chars before)");
+                }
+            }
+        }
+    }
+
+    private interface Merge {
+        String merge(String cur, String old, String neu);
+    }
+
+    private static String runOne(int lines, int chars, String method, Merge merge,
+            String cur, String old, String neu) {
+        String result = null;
+        for (int i=0; i<WARMUP_ROUNDS; i++) {
+            result = merge.merge(cur, old, neu);
+        }
+        long startAlloc = BenchmarkSupport.getAllocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i=0; i<TIMED_ROUNDS; i++) {
+            result = merge.merge(cur, old, neu);
+        }
+        long elapsed = System.nanoTime() - startTime;
+        long endAlloc = BenchmarkSupport.getAllocatedBytes();
+
+        double msPerMerge = (elapsed / 1000000.0) / TIMED_ROUNDS;
+        long allocPerMerge = -1;
+        if (startAlloc >= 0 && endAlloc >= 0) {
+            allocPerMerge = (endAlloc - startAlloc) / TIMED_ROUNDS;
+        }
+        System.out.println(String.format("%6d  %9d  %-10s %10.2f  %18d",
+                lines, chars, method, msPerMerge, allocPerMerge));
+        return result;
+    }
+
+    /**
+     * Lines that look like minutes: agenda headings, bullets of action
+     * items, and paragraphs of discussion.  Many lines repeat, as they do
+     * in real minutes.
+     */
+    static String[] makeMinutes(int lines, Random rand) {
+        String[] names = new String[] {"Alice", "Bob", "Carol", "Dave", "Erin"};
+        String[] topics = new String[] {"budget", "schedule", "hiring", "the release", "facilities"};
+        String[] result = new String[lines];
+        for (int i=0; i<lines; i++) {
+            String name = names[rand.nextInt(names.length)];
+            String topic = topics[rand.nextInt(topics.length)];
+            switch (i % 10) {
+            case 0:
+                result[i] = "!!Item "+(i/10+1)+": "+topic;
+                break;
+            case 1:
+            case 5:
+                result[i] = "";
+                break;
+            case 2:
+            case 3:
+            case 4:
+                result[i] = "* "+name+" to follow up on "+topic+" by Friday";
+                break;
+            default:
+                result[i] = name+" reported that "+topic+" is on track, and the group "
+                        +"agreed to review it again at the next meeting.";
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Make an edited copy: change a word in about one line of every fifty,
+     * insert a line in about one of every hundred, and add to the end.
+     * The two copies use a different seed, but some of the lines chosen
+     * will be the same, so there are conflicts to resolve.
+     */
+    static String[] editLines(String[] base, Random rand, int who) {
+        String[] result = new String[base.length];
+        for (int i=0; i<base.length; i++) {
+            String line = base[i];
+            int pick = rand.nextInt(100);
+            if (pick<2 && line.length()>10) {
+                int pos = rand.nextInt(line.length()-5);
+                line = line.substring(0, pos) + (who==0 ? "quickly " : "carefully ") + line.substring(pos);
+            }
+            else if (pick==2) {
+                line = line + "\n* new action item from editor "+who;
+            }
+            result[i] = line;
+        }
+        result[base.length-1] = result[base.length-1] + "\nClosing remarks from editor "+who;
+        return result;
+    }
+
+    private static String join(String[] lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line);
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The earlier merge algorithm, only for comparison.  It walks the three
+     * strings together, and at each difference looks for the nearest three
+     * character chunk that is in all three strings to end the difference.
+     */
+    private static class PreviousMerge {
+        PosStr cur;
+        PosStr old;
+        PosStr neu;
+        PosStr[] allPosStr = new PosStr[3];
+        StringBuilder result = new StringBuilder();
+
+        PreviousMerge(String _cur, String _old, String _neu) {
+            cur = new PosStr(_cur);
+            old = new PosStr(_old);
+            neu = new PosStr(_neu);
+            allPosStr[0] = cur;
+            allPosStr[1] = old;
+            allPosStr[2] = neu;
+        }
+
+        String getMerged() {
+            while (cur.isMore() || old.isMore() || neu.isMore()) {
+                while (cur.isMore() && old.isMore() && neu.isMore()
+                        && cur.ch()==old.ch() && cur.ch()==neu.ch()) {
+                    result.append(cur.ch());
+                    cur.pos++;
+                    old.pos++;
+                    neu.pos++;
+                }
+                if (!cur.isMore() && !old.isMore() && !neu.isMore()) {
+                    break;
+                }
+                findShortestDiffBlock();
+                String curDiff = cur.getDiffBlock();
+                String oldDiff = old.getDiffBlock();
+                String newDiff = neu.getDiffBlock();
+                if (oldDiff.equals(newDiff)) {
+                    result.append(curDiff);
+                }
+                else if (curDiff.equals(oldDiff) || curDiff.equals(newDiff)) {
+                    result.append(newDiff);
+                }
+                else {
+                    result.append(curDiff);
+                    result.append(newDiff);
+                }
+                cur.skipDiff();
+                old.skipDiff();
+                neu.skipDiff();
+            }
+            return result.toString();
+        }
+
+        private void findShortestDiffBlock() {
+            int bias = -1;
+            int bestBias = 0;
+            int which = 2;
+            int bestWhich = 0;
+            int bestValue = 666666;
+            int max = Math.max(Math.max(cur.chunksLeft(), old.chunksLeft()), neu.chunksLeft());
+            cur.diffSize = -1;
+            old.diffSize = -1;
+            neu.diffSize = -1;
+            while (true) {
+                if (which>=2) {
+                    which = 0;
+                    bias++;
+                }
+                else {
+                    which++;
+                }
+                if (bias>=max || bias>=bestValue) {
+                    if (bestValue<666666) {
+                        String chunk = allPosStr[bestWhich].getChunk(bestBias);
+                        cur.diffSize = cur.distanceOf(chunk);
+                        old.diffSize = old.distanceOf(chunk);
+                        neu.diffSize = neu.distanceOf(chunk);
+                    }
+                    return;
+                }
+                if (bias>=allPosStr[which].chunksLeft()) {
+                    continue;
+                }
+                String chunk = allPosStr[which].getChunk(bias);
+                int curPos = cur.distanceOf(chunk);
+                if (curPos<0) {
+                    continue;
+                }
+                int oldPos = old.distanceOf(chunk);
+                if (oldPos<0) {
+                    continue;
+                }
+                int neuPos = neu.distanceOf(chunk);
+                if (neuPos<0) {
+                    continue;
+                }
+                if (curPos + oldPos + neuPos < bestValue) {
+                    bestValue = curPos + oldPos + neuPos;
+                    bestWhich = which;
+                    bestBias = bias;
+                }
+            }
+        }
+    }
+
+    private static class PosStr {
+        String s;
+        int pos;
+        int diffSize;
+
+        PosStr(String val) {
+            s = val;
+        }
+        char ch() {
+            return s.charAt(pos);
+        }
+        boolean isMore() {
+            return pos<s.length();
+        }
+        int chunksLeft() {
+            return s.length()-pos-2;
+        }
+        String getChunk(int bias) {
+            return s.substring(pos+bias, pos+bias+3);
+        }
+        int distanceOf(String chunk) {
+            return s.indexOf(chunk, pos)-pos;
+        }
+        String getDiffBlock() {
+            if (diffSize<0) {
+                return s.substring(pos);
+            }
+            return s.substring(pos, pos+diffSize);
+        }
+        void skipDiff() {
+            if (diffSize<0) {
+                pos = s.length();
+            }
+            else {
+                pos += diffSize;
+            }
+        }
+    }
+}
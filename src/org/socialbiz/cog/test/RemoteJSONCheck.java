@@ -0,0 +1,178 @@
+package org.socialbiz.cog.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.socialbiz.cog.RemoteJSON;
+
+import com.purplehillsbooks.json.JSONException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the pooled HTTP client of RemoteJSON, which ProjectSync uses for
+ * all the calls to an upstream workspace, against a small HTTP server
+ * started on a local port by this class:
+ *
+ * - 20 GETs one after the other use one connection from the pool, which
+ *   the stub server sees as requests all coming from the same client port.
+ * - putFileToRemote sends the whole file: the stub server compares the
+ *   body it received with the bytes of the file.
+ * - a server that does not answer fails at the read timeout, instead of
+ *   holding the thread.
+ *
+ * This does not need a running server or a configuration.  Run it from the
+ * command line with the cognoscenti classes and the HTTP client jars on
+ * the class path:
+ *
+ *     java org.socialbiz.cog.test.RemoteJSONCheck
+ *
+ * Each check prints PASS or FAIL, and the exit code is the number that failed.
+ */
+public class RemoteJSONCheck {
+
+    private static final int READ_TIMEOUT = 1000;
+    private static final int STALL_TIME = 10000;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        HttpServer server = null;
+        ExecutorService handlers = Executors.newCachedThreadPool();
+        File upload = null;
+        try {
+            final Set<Integer> clientPorts = new HashSet<Integer>();
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+            server.setExecutor(handlers);
+            server.createContext("/json", new HttpHandler() {
+                public void handle(HttpExchange ex) {
+                    synchronized (clientPorts) {
+                        clientPorts.add(ex.getRemoteAddress().getPort());
+                    }
+                    respond(ex, "{\"responseCode\": 200}");
+                }
+            });
+            server.createContext("/put", new HttpHandler() {
+                public void handle(HttpExchange ex) {
+                    try {
+                        InputStream is = ex.getRequestBody();
+                        byte[] buf = new byte[8192];
+                        int amt = is.read(buf);
+                        while (amt>0) {
+                            synchronized (received) {
+                                received.write(buf, 0, amt);
+                            }
+                            amt = is.read(buf);
+                        }
+                    }
+                    catch (Exception e) {
+                        System.out.println("Stub HTTP server: "+e);
+                    }
+                    respond(ex, "");
+                }
+            });
+            server.createContext("/stall", new HttpHandler() {
+                public void handle(HttpExchange ex) {
+                    try {
+                        Thread.sleep(STALL_TIME);
+                    }
+                    catch (InterruptedException e) {
+                        /* ignore this exception */
+                    }
+                    respond(ex, "{}");
+                }
+            });
+            server.start();
+            String base = "http://localhost:"+server.getAddress().getPort();
+
+            RemoteJSON.configure(5000, READ_TIMEOUT, 8, 4);
+
+            for (int i=0; i<20; i++) {
+                RemoteJSON.getFromRemote(new URL(base+"/json?n="+i));
+            }
+            check(clientPorts.size()==1, "20 GETs used "+clientPorts.size()+" connection(s), expected 1");
+
+            byte[] contents = new byte[3*1024*1024+17];
+            new Random(36).nextBytes(contents);
+            upload = File.createTempFile("RemoteJSONCheck", ".bin");
+            FileOutputStream fos = new FileOutputStream(upload);
+            fos.write(contents);
+            fos.close();
+            RemoteJSON.putFileToRemote(new URL(base+"/put"), upload);
+            byte[] got;
+            synchronized (received) {
+                got = received.toByteArray();
+            }
+            check(Arrays.equals(contents, got), "PUT sent "+got.length+" bytes of "
+                    +contents.length+", and they are the same");
+
+            long start = System.currentTimeMillis();
+            boolean failed = false;
+            try {
+                RemoteJSON.getFromRemote(new URL(base+"/stall"));
+            }
+            catch (Exception e) {
+                failed = true;
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            check(failed && elapsed<STALL_TIME, "stalled response failed after "+elapsed
+                    +"ms with a read timeout of "+READ_TIMEOUT+"ms");
+        }
+        catch (Exception e) {
+            failures++;
+            System.out.print("\n\nFATAL ERROR EXIT PROGRAM:\n");
+            JSONException.traceException(System.out, e, "FATAL ERROR EXIT PROGRAM");
+        }
+        finally {
+            RemoteJSON.clearAllStaticVars();
+            if (server!=null) {
+                server.stop(0);
+            }
+            handlers.shutdownNow();
+            if (upload!=null) {
+                upload.delete();
+            }
+        }
+        System.out.println(failures==0 ? "ALL PASSED" : failures+" FAILED");
+        System.exit(failures);
+    }
+
+    private static void respond(HttpExchange ex, String body) {
+        try {
+            byte[] bytes = body.getBytes("UTF-8");
+            ex.getResponseHeaders().set("Content-Type", "application/json");
+            ex.sendResponseHeaders(200, bytes.length>0 ? bytes.length : -1);
+            OutputStream os = ex.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+        catch (Exception e) {
+            //the client went away, for example after the read timeout
+        }
+        ex.close();
+    }
+
+    private static void check(boolean ok, String description) {
+        if (ok) {
+            System.out.println("PASS  "+description);
+        }
+        else {
+            failures++;
+            System.out.println("FAIL  "+description);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Random;
+
+import javax.servlet.ServletContext;
+
+import org.socialbiz.cog.AgendaItem;
+import org.socialbiz.cog.AuthDummy;
+import org.socialbiz.cog.AuthRequest;
+import org.socialbiz.cog.BaseRecord;
+import org.socialbiz.cog.CommentRecord;
+import org.socialbiz.cog.Cognoscenti;
+import org.socialbiz.cog.GoalRecord;
+import org.socialbiz.cog.HistoryRecord;
+import org.socialbiz.cog.HtmlToWikiConverter;
+import org.socialbiz.cog.MeetingRecord;
+import org.socialbiz.cog.NGBook;
+import org.socialbiz.cog.NGWorkspace;
+import org.socialbiz.cog.TopicRecord;
+import org.socialbiz.cog.UserProfile;
+
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * Makes workspaces full of made up content, for measuring how the server
+ * performs on workspaces of a known size.  For a workspace of N topics it
+ * makes:
+ *
+ *     N topics, each with a few KB of minutes and 3 comments
+ *     N/2 action items
+ *     N/10 meetings (at least one), each with 6 agenda items
+ *     2N history events
+ *
+ * The content is generated from a fixed seed, so the same size always
+ * gives the same workspace.
+ *
+ * startServer brings up the server objects without a servlet container,
+ * on a data folder of its own, so nothing here touches a real server.
+ */
+public class WorkspaceGenerator {
+
+    public static final String SITE_KEY = "benchsite";
+    public static final String USER_ID = "bench@example.com";
+
+    private Cognoscenti cog;
+    private NGBook site;
+    private UserProfile user;
+
+
+    /**
+     * Creates a server root folder with a config file that puts all the
+     * data inside of it, and initializes the server from that, without
+     * background tasks (no email).
+     */
+    public static Cognoscenti startServer(File rootFolder) throws Exception {
+        File webInf = new File(rootFolder, "WEB-INF");
+        webInf.mkdirs();
+        File dataFolder = new File(rootFolder, "data");
+        File userFolder = new File(dataFolder, "user");
+        userFolder.mkdirs();
+        JSONObject noUsers = new JSONObject();
+        noUsers.put("users", new JSONArray());
+        noUsers.writeToFile(new File(userFolder, "UserProfs.json"));
+        Writer w = new OutputStreamWriter(new FileOutputStream(new File(webInf, "config.txt")), "UTF-8");
+        try {
+            w.write("dataContainer=" + dataFolder.getAbsolutePath().replace('\\', '/') + "\n");
+            w.write("baseURL=http://localhost/cog/\n");
+            w.write("identityProvider=http://localhost/id/\n");
+        }
+        finally {
+            w.close();
+        }
+        Cognoscenti cog = Cognoscenti.getInstance(makeServletContext(rootFolder));
+        cog.initializeAll(null);
+        return cog;
+    }
+
+    /**
+     * The only thing the server asks of the servlet context during
+     * initialization is the root folder and a place to keep attributes.
+     */
+    private static ServletContext makeServletContext(final File rootFolder) {
+        final HashMap<String, Object> attributes = new HashMap<String, Object>();
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getRealPath".equals(name)) {
+                    return new File(rootFolder, (String) args[0]).getAbsolutePath();
+                }
+                if ("getAttribute".equals(name)) {
+                    return attributes.get(args[0]);
+                }
+                if ("setAttribute".equals(name)) {
+                    attributes.put((String) args[0], args[1]);
+                }
+                if ("removeAttribute".equals(name)) {
+                    attributes.remove(args[0]);
+                }
+                return null;
+            }
+        };
+        return (ServletContext) Proxy.newProxyInstance(ServletContext.class.getClassLoader(),
+                new Class<?>[] {ServletContext.class}, handler);
+    }
+
+
+    /**
+     * Makes the site and the user that own the generated workspaces.
+     */
+    public WorkspaceGenerator(Cognoscenti _cog) throws Exception {
+        cog = _cog;
+        site = NGBook.createNewSite(SITE_KEY, "Benchmark Site", cog);
+        site.save();
+        cog.makeIndexForSite(site);
+        user = cog.getUserManager().createUserWithId(USER_ID);
+        user.setName("Bench Marker");
+    }
+
+    public UserProfile getUser() {
+        return user;
+    }
+
+    /**
+     * A request for the generating user that writes to nowhere.
+     */
+    public AuthRequest makeRequest(Writer w) {
+        return new AuthDummy(user, w, cog);
+    }
+
+    /**
+     * Creates and saves a new workspace with the given number of topics.
+     */
+    public NGWorkspace generate(String key, int topics, AuthRequest ar) throws Exception {
+        Random rand = new Random(topics);
+        NGWorkspace ngw = site.createProjectByKey(user, key, ar.nowTime, cog);
+
+        TopicRecord[] allTopics = new TopicRecord[topics];
+        for (int i=0; i<topics; i++) {
+            TopicRecord topic = ngw.createNote();
+            topic.setSubject("Minutes of meeting "+(i+1));
+            topic.setWiki(makeWiki(2000 + rand.nextInt(4000)));
+            topic.setModUser(user);
+            topic.setLastEdited(ar.nowTime);
+            for (int j=0; j<3; j++) {
+                CommentRecord comment = topic.addComment(ar);
+                comment.setTime(ar.nowTime - (i*3 + j) * 60000L);
+                comment.setContent("Comment "+(j+1)+" on topic "+(i+1)
+                        +": I agree with the plan for the budget, but the schedule needs review.");
+            }
+            allTopics[i] = topic;
+        }
+
+        for (int i=0; i<topics/2; i++) {
+            GoalRecord goal = ngw.createGoal(user.getUniversalId());
+            goal.setSynopsis("Follow up on item "+(i+1));
+            goal.setDescription("Check with the team about the schedule for item "+(i+1)
+                    +" and report at the next meeting.");
+            goal.setState(BaseRecord.STATE_ACCEPTED);
+            goal.setDueDate(ar.nowTime + (i+1) * 86400000L);
+            goal.setAssigneeCommaSeparatedList(user.getUniversalId());
+        }
+
+        int meetings = Math.max(1, topics/10);
+        for (int i=0; i<meetings; i++) {
+            MeetingRecord meeting = ngw.createMeeting();
+            JSONObject settings = new JSONObject();
+            settings.put("name", "Weekly Meeting "+(i+1));
+            settings.put("owner", user.getUniversalId());
+            settings.put("targetRole", "Members");
+            settings.put("startTime", ar.nowTime + i * 7 * 86400000L);
+            settings.put("duration", 60);
+            settings.put("meetingInfo", "Regular meeting to review progress.");
+            meeting.updateFromJSON(settings, ar);
+            meeting.setMinutesId(allTopics[(i*10) % topics].getUniversalId());
+            for (int j=0; j<6; j++) {
+                AgendaItem item = meeting.createAgendaItem(ngw);
+                item.setSubject("Agenda item "+(j+1));
+                item.setDesc("Discuss the status of item "+(j+1)+" and decide what to do next.");
+                item.setDuration(10);
+                item.setPosition(j+1);
+            }
+        }
+
+        for (int i=0; i<topics*2; i++) {
+            TopicRecord topic = allTopics[i % topics];
+            HistoryRecord.createHistoryRecord(ngw, topic.getId(), HistoryRecord.CONTEXT_TYPE_LEAFLET,
+                    0, HistoryRecord.EVENT_TYPE_MODIFIED, ar, "edit number "+(i+1));
+        }
+
+        ngw.save();
+        return ngw;
+    }
+
+    /**
+     * Wiki text of about the given size that looks like minutes.
+     */
+    public static String makeWiki(int size) throws Exception {
+        return HtmlToWikiConverter.htmlToWiki(null, ConverterBenchmark.makeHtmlCorpus(size));
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 Keith D Swenson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors Include: Shamim Quader, Sameer Pradhan, Kumar Raja, Jim Farris,
+ * Sandia Yang, CY Chen, Rajiv Onat, Neal Wang, Dennis Tam, Shikha Srivastava,
+ * Anamika Chaudhari, Ajay Kakkar, Rajeev Rastogi
+ */
+
+package org.socialbiz.cog.util;
+
+import java.io.Writer;
+import java.util.ArrayList;
+
+import com.purplehillsbooks.json.JSONArray;
+import com.purplehillsbooks.json.JSONObject;
+
+/**
+ * Writes JSON to a writer a piece at a time, so that a large response
+ * can be sent without first making a JSONObject that holds all of it.
+ * A list is written one element at a time: each element can be a
+ * JSONObject made just for that element, and it can be dropped as soon
+ * as it is written.
+ *
+ * <pre>
+ * jw.startObject();
+ * jw.field("name", "x");
+ * jw.startArray("list");
+ * for (...) {
+ *     jw.value(element.getJSON());
+ * }
+ * jw.endArray();
+ * jw.endObject();
+ * </pre>
+ *
+ * The output is the same as JSONObject.write would give for the same
+ * values, except that the fields of an object are in the order they are
+ * written.  If indent is true, it is indented by 2 the same way.
+ *
+ * Using it in the wrong order (a value in an object without a name, or
+ * ending an array that was not started) throws an exception.
+ *
+ * If something fails after the output has started, endWithError ends
+ * whatever was started, so the client still gets valid JSON, with the
+ * error in it.
+ */
+public class JSONStreamWriter {
+
+    private final Writer w;
+    private final boolean indent;
+
+    //one entry for each open object or array: true if it is an object
+    private final ArrayList<Boolean> isObject = new ArrayList<Boolean>();
+    //one entry for each open object or array: true until something is in it
+    private final ArrayList<Boolean> isEmpty = new ArrayList<Boolean>();
+    private boolean afterName = false;
+    private boolean done = false;
+
+    public JSONStreamWriter(Writer w, boolean indent) {
+        this.w = w;
+        this.indent = indent;
+    }
+
+    public void startObject() throws Exception {
+        beforeValue();
+        w.write('{');
+        open(true);
+    }
+
+    public void startObject(String name) throws Exception {
+        name(name);
+        startObject();
+    }
+
+    public void endObject() throws Exception {
+        close(true);
+        w.write('}');
+    }
+
+    public void startArray() throws Exception {
+        beforeValue();
+        w.write('[');
+        open(false);
+    }
+
+    public void startArray(String name) throws Exception {
+        name(name);
+        startArray();
+    }
+
+    public void endArray() throws Exception {
+        close(false);
+        w.write(']');
+    }
+
+    /**
+     * The name of the next value in the current object.
+     */
+    public void name(String name) throws Exception {
+        if (afterName || isObject.size() == 0 || !isObject.get(isObject.size() - 1)) {
+            throw new Exception("JSONStreamWriter: a name ("+name+") can only be written inside an object, before a value");
+        }
+        separate();
+        JSONObject.quote(name, w);
+        w.write(indent ? ": " : ":");
+        afterName = true;
+    }
+
+    public void field(String name, Object value) throws Exception {
+        name(name);
+        value(value);
+    }
+
+    /**
+     * Writes one value: a JSONObject or JSONArray is written whole, as
+     * JSONObject.write would, anything else (string, number, boolean,
+     * null) as a simple value.
+     */
+    public void value(Object value) throws Exception {
+        beforeValue();
+        if (value instanceof JSONObject) {
+            ((JSONObject)value).write(w, indent ? 2 : 0, indent ? depth() * 2 : 0);
+        }
+        else if (value instanceof JSONArray) {
+            ((JSONArray)value).write(w, indent ? 2 : 0, indent ? depth() * 2 : 0);
+        }
+        else {
+            w.write(JSONObject.valueToString(value));
+        }
+        if (isObject.size() == 0) {
+            done = true;
+        }
+    }
+
+    /**
+     * Ends every object and array that was started, so that what was
+     * written is valid JSON, and puts the error into the outermost object
+     * as a member named "error".  A name that was written without a value
+     * gets null.  If nothing was written yet, the error is the whole value.
+     * Call finish after this.
+     */
+    public void endWithError(JSONObject error) throws Exception {
+        if (done) {
+            return;
+        }
+        if (isObject.size() == 0) {
+            value(error);
+            return;
+        }
+        if (afterName) {
+            value(null);
+        }
+        while (isObject.size() > 1) {
+            if (isObject.get(isObject.size() - 1)) {
+                endObject();
+            }
+            else {
+                endArray();
+            }
+        }
+        if (isObject.get(0)) {
+            field("error", error);
+            endObject();
+        }
+        else {
+            endArray();
+        }
+    }
+
+    /**
+     * Flushes the writer.  Throws an exception if an object or array was
+     * started and not ended.
+     */
+    public void finish() throws Exception {
+        if (isObject.size() > 0) {
+            throw new Exception("JSONStreamWriter: finished with "+isObject.size()+" objects or arrays not ended");
+        }
+        w.flush();
+    }
+
+    private void beforeValue() throws Exception {
+        if (done) {
+            throw new Exception("JSONStreamWriter: the value is already complete, nothing more can be written");
+        }
+        if (isObject.size() == 0) {
+            return;
+        }
+        if (isObject.get(isObject.size() - 1)) {
+            if (!afterName) {
+                throw new Exception("JSONStreamWriter: a value in an object needs a name");
+            }
+            afterName = false;
+        }
+        else {
+            separate();
+        }
+    }
+
+    /**
+     * The comma before every member but the first, and the new line and
+     * indent before every member.
+     */
+    private void separate() throws Exception {
+        int last = isEmpty.size() - 1;
+        if (!isEmpty.get(last)) {
+            w.write(',');
+        }
+        isEmpty.set(last, Boolean.FALSE);
+        newLine(depth());
+    }
+
+    private void open(boolean object) {
+        isObject.add(Boolean.valueOf(object));
+        isEmpty.add(Boolean.TRUE);
+    }
+
+    private void close(boolean object) throws Exception {
+        int last = isObject.size() - 1;
+        if (last < 0 || isObject.get(last).booleanValue() != object || afterName) {
+            throw new Exception("JSONStreamWriter: end of "+(object ? "object" : "array")+" does not match what was started");
+        }
+        boolean empty = isEmpty.get(last);
+        isObject.remove(last);
+        isEmpty.remove(last);
+        if (!empty) {
+            newLine(depth());
+        }
+        if (isObject.size() == 0) {
+            done = true;
+        }
+    }
+
+    private int depth() {
+        return isObject.size();
+    }
+
+    private void newLine(int level) throws Exception {
+        if (!indent) {
+            return;
+        }
+        w.write('\n');
+        for (int i = 0; i < level * 2; i++) {
+            w.write(' ');
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.socialbiz.cog.util;
+
+import java.util.Arrays;
+
+/**
+ * Finds the longest common subsequence of two sequences of tokens, using
+ * the Myers O(ND) difference algorithm in its linear space form: instead
+ * of keeping every step of the search, the search runs from both ends at
+ * once until the two meet (the "middle snake"), and the two halves on
+ * either side of that point are then compared the same way.  Memory is
+ * proportional to the length of the sequences, and time is proportional
+ * to the length times the number of differences, so long texts with few
+ * changes are compared quickly.
+ *
+ * Tokens are ints so that this can be used for lines, words, or characters.
+ * Give equal tokens the same number, see ThreeWayMerge for how strings are
+ * turned into numbers.
+ */
+public class MyersDiff {
+
+    private int[] a;
+    private int[] b;
+    private int[] matches;
+
+    private MyersDiff(int[] _a, int[] _b) {
+        a = _a;
+        b = _b;
+        matches = new int[a.length];
+        Arrays.fill(matches, -1);
+    }
+
+    /**
+     * Returns an array the length of a, where each element is the index of
+     * the token in b that the token in a is matched to, or -1 if that token
+     * is not in the common subsequence (it was removed).  The matched
+     * indexes always increase.
+     */
+    public static int[] match(int[] a, int[] b) {
+        MyersDiff md = new MyersDiff(a, b);
+        md.compare(0, a.length, 0, b.length);
+        return md.matches;
+    }
+
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        //common prefix and suffix are matched without searching
+        while (aLo<aHi && bLo<bHi && a[aLo]==b[bLo]) {
+            matches[aLo++] = bLo++;
+        }
+        while (aLo<aHi && bLo<bHi && a[aHi-1]==b[bHi-1]) {
+            matches[--aHi] = --bHi;
+        }
+        if (aLo==aHi || bLo==bHi) {
+            //only insertions or only deletions left
+            return;
+        }
+        bisect(aLo, aHi, bLo, bHi);
+    }
+
+    /**
+     * Search forward from the start and backward from the end at the same
+     * time, one difference at a time, until the two paths overlap.  The
+     * point where they overlap is on an optimal path, so the two sides
+     * of it can be compared separately.
+     */
+    private void bisect(int aLo, int aHi, int bLo, int bHi) {
+        int aLen = aHi - aLo;
+        int bLen = bHi - bLo;
+        int maxD = (aLen + bLen + 1) / 2;
+        int vOffset = maxD;
+        int vLength = 2 * maxD + 2;
+        int[] v1 = new int[vLength];
+        int[] v2 = new int[vLength];
+        Arrays.fill(v1, -1);
+        Arrays.fill(v2, -1);
+        v1[vOffset + 1] = 0;
+        v2[vOffset + 1] = 0;
+        int delta = aLen - bLen;
+
+        //if the difference in length is odd, the forward path will
+        //be the one to reach the overlap, otherwise the backward path
+        boolean front = (delta % 2 != 0);
+
+        //diagonals that ran off the edge do not need to be searched again
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < maxD; d++) {
+
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1Offset = vOffset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1Offset - 1] < v1[k1Offset + 1])) {
+                    x1 = v1[k1Offset + 1];
+                }
+                else {
+                    x1 = v1[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < aLen && y1 < bLen && a[aLo + x1] == b[bLo + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1Offset] = x1;
+                if (x1 > aLen) {
+                    k1end += 2;
+                }
+                else if (y1 > bLen) {
+                    k1start += 2;
+                }
+                else if (front) {
+                    int k2Offset = vOffset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < vLength && v2[k2Offset] != -1) {
+                        int x2 = aLen - v2[k2Offset];
+                        if (x1 >= x2) {
+                            split(aLo, aHi, bLo, bHi, x1, y1);
+                            return;
+                        }
+                    }
+                }
+            }
+
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2Offset = vOffset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2Offset - 1] < v2[k2Offset + 1])) {
+                    x2 = v2[k2Offset + 1];
+                }
+                else {
+                    x2 = v2[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < aLen && y2 < bLen && a[aHi - x2 - 1] == b[bHi - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2Offset] = x2;
+                if (x2 > aLen) {
+                    k2end += 2;
+                }
+                else if (y2 > bLen) {
+                    k2start += 2;
+                }
+                else if (!front) {
+                    int k1Offset = vOffset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < vLength && v1[k1Offset] != -1) {
+                        int x1 = v1[k1Offset];
+                        int y1 = vOffset + x1 - k1Offset;
+                        if (x1 >= aLen - x2) {
+                            split(aLo, aHi, bLo, bHi, x1, y1);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        //nothing in common at all, nothing to match
+    }
+
+    private void split(int aLo, int aHi, int bLo, int bHi, int x, int y) {
+        compare(aLo, aLo + x, bLo, bLo + y);
+        compare(aLo + x, aHi, bLo + y, bHi);
+    }
+}
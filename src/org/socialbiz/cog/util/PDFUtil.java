@@ -46,6 +46,7 @@ import org.socialbiz.cog.LineIterator;
 import org.socialbiz.cog.MimeTypes;
 import org.socialbiz.cog.NGPageIndex;
 import org.socialbiz.cog.NGWorkspace;
+import org.socialbiz.cog.PDFExportData;
 import org.socialbiz.cog.SectionUtil;
 import org.socialbiz.cog.SectionWiki;
 import org.socialbiz.cog.TopicRecord;
@@ -143,14 +144,14 @@ public class PDFUtil {
         NGWorkspace ngp = ar.getCogInstance().getWSBySiteAndKeyOrFail(siteId, pageId).getWorkspace();
         ar.setPageAccessLevels(ngp);
 
-        List<TopicRecord> publicNotes = new ArrayList<TopicRecord>();
-        List<TopicRecord> memberNotes = new ArrayList<TopicRecord>();
+        List<PDFExportData.NoteData> publicNotes = new ArrayList<PDFExportData.NoteData>();
+        List<PDFExportData.NoteData> memberNotes = new ArrayList<PDFExportData.NoteData>();
 
         List<String> publicNoteList = null;
         if(ar.req.getParameterValues("publicNotes")!= null){
             publicNoteList = Arrays.asList(ar.req.getParameterValues("publicNotes"));
             for (String noteId : publicNoteList) {
-                publicNotes.add(ngp.getNote(noteId));
+                publicNotes.add(copyNote(ngp.getNote(noteId)));
             }
         }
 
@@ -158,13 +159,18 @@ public class PDFUtil {
         if(ar.isLoggedIn() && ar.req.getParameterValues("memberNotes") != null ){
             memberNoteList = Arrays.asList(ar.req.getParameterValues("memberNotes"));
             for (String noteId : memberNoteList) {
-                memberNotes.add(ngp.getNote(noteId));
+                memberNotes.add(copyNote(ngp.getNote(noteId)));
             }
         }
+        String projectName = ngp.getFullName();
+
+        //everything needed has been copied, so let go of the workspace while
+        //the document is built, other users may be waiting for it.
+        NGPageIndex.releaseLock(ngp);
+        ngp = null;
 
         this.ar = ar;
         setPage(); //Initialize
-        String projectName = ngp.getFullName();
         contentStream.setFont(nbfont, h1_font_size );
 
         contentStream.drawString(projectName);
@@ -203,12 +209,21 @@ public class PDFUtil {
         out.flush();
     }
 
-    private void writeInPDF(AuthRequest ar, List<TopicRecord> notes) throws Exception, IOException {
+    private static PDFExportData.NoteData copyNote(TopicRecord lr) throws Exception {
+        PDFExportData.NoteData nd = new PDFExportData.NoteData();
+        nd.subject = lr.getSubject();
+        nd.editorName = lr.getModUser().getName();
+        nd.lastEdited = lr.getLastEdited();
+        nd.wiki = lr.getWiki();
+        return nd;
+    }
+
+    private void writeInPDF(AuthRequest ar, List<PDFExportData.NoteData> notes) throws Exception, IOException {
 
-        for (TopicRecord lr : notes) {
-            String data = lr.getWiki();
+        for (PDFExportData.NoteData lr : notes) {
+            String data = lr.wiki;
 
-            String subject = lr.getSubject();
+            String subject = lr.subject;
             if (subject == null || subject.length() == 0) {
                 subject = "Untitled Topic";
             }
@@ -216,8 +231,8 @@ public class PDFUtil {
             if(subject.length() > 45){
                 subject = subject.substring(0,45)+"...";
             }
-            String lastEditor = lr.getModUser().getName();
-            String editTime = SectionUtil.getNicePrintTime(lr.getLastEdited(),  ar.nowTime).trim();
+            String lastEditor = lr.editorName;
+            String editTime = SectionUtil.getNicePrintTime(lr.lastEdited,  ar.nowTime).trim();
             setCusrosrPosition(10,-5);
             contentStream.setFont( nbfont, h2_font_size );
             String noteHeader =  String.valueOf(notesIndex+1) + ".  " + subject;
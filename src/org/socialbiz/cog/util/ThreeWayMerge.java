@@ -1,5 +1,7 @@
 package org.socialbiz.cog.util;
 
+import java.util.HashMap;
+
 /**
  * Three way merge.
  * 
@@ -13,272 +15,257 @@ package org.socialbiz.cog.util;
  * 
  * But if in all other cases whatever is in the current version is 
  * replaced with whatever is in the new version.
+ *
+ * The merge is done in levels.  First the three are compared line by line:
+ * old against cur and old against new, using MyersDiff.  Lines that are
+ * the same in all three are kept, and each span between them where one or
+ * both has changed is resolved on its own.  If both cur and new changed
+ * the same span of lines, that span is merged again word by word, and if
+ * the same words were changed, those words are merged character by
+ * character.  Only at the character level do two changes both end up in
+ * the result.  Long minutes with a few changes are mostly equal lines,
+ * which are handled quickly, and memory is proportional to the length.
+ *
+ * At the character level, changes closer together than three characters
+ * are treated as one change.  This follows the earlier version of this
+ * class, which looked for three characters in common to end a change.
  */
 public class ThreeWayMerge {
-    
-    PosStr cur;
-    PosStr old;
-    PosStr neu;
-    PosStr[] allPosStr = new PosStr[3];
-    
-    StringBuilder result = new StringBuilder();
 
-    int curGood = 0;
-    int oldGood = 0;
-    int neuGood = 0;
-    
+    private static final int LEVEL_LINE = 0;
+    private static final int LEVEL_WORD = 1;
+    private static final int LEVEL_CHAR = 2;
+
+    private static final int CHAR_SYNC_LENGTH = 3;
+
+    String cur;
+    String old;
+    String neu;
+
     public static String mergeThem(String _cur, String _old, String _neu) {
         ThreeWayMerge twm = new ThreeWayMerge(_cur, _old, _neu);
         return twm.getMerged();
     }
-    
+
     public ThreeWayMerge(String _cur, String _old, String _neu) {
-        cur = new PosStr(_cur);
-        old = new PosStr(_old);
-        neu = new PosStr(_neu);
-        allPosStr[0] = cur;
-        allPosStr[1] = old;
-        allPosStr[2] = neu;
+        cur = _cur;
+        old = _old;
+        neu = _neu;
     }
-    
+
     public String getMerged() {
-        
-        while (cur.isMore() || old.isMore() || neu.isMore()) {
-            skipEqualsSpan();
-            resolveDifferenceSpan();
-        }
+        StringBuilder result = new StringBuilder(Math.max(cur.length(), neu.length()) + 64);
+        mergeSpan(LEVEL_LINE, cur, old, neu, result);
         return result.toString();
     }
-    
-    /**
-     * This is the easy part of the algorithm, which is walk through
-     * the strings advancing each as long as they are all three exactly 
-     * the same.   Advance increments the pos pointer in the PosString
-     * with the understanding that what is before the pos pointer has
-     * been found to be identical.  Remember that due to previous differences
-     * the actual offset might be different, but we are walking through
-     * spans of the strings that are identical looking for the beginning
-     * of a span for which one or two of the strings are different.
-     */
-    private void skipEqualsSpan() {
-        while (cur.isMore() && 
-               old.isMore() && 
-               neu.isMore() && 
-               cur.ch()==old.ch()  &&
-               cur.ch()==neu.ch()) {
-            result.append(cur.ch());
-            cur.advance();
-            old.advance();
-            neu.advance();
-        }
-        //System.out.println("MERGE -- equals up to: "+result.toString());
-    }
 
     /**
-     * The goal here is to find the span of differences in the three strings.
-     * That is, we want to find the next span of three or more characters that are
-     * the same in all three string after the current point.
-     * We hope to find the shortest span across the three.
-     * In many cases, two strings might be identical.
-     * But we need to find a span that exists in all three strings, 
-     * and that span that is closest to the beginning so that we have
-     * a minimal span of difference.
-     * 
-     * for example
-     * 
-     *     abc ^ def    ^ ghi
-     *     abc ^ 123456 ^ ghi
-     *     abc ^ x      ^ ghi
-     *     
-     * In these three, the "ghi" terminates the difference span in all three
-     * strings, and the difference span is 3, 6, and 1 character long respectively.
-     * 
-     * The problem is that you may find a match that is a long ways away, when a 
-     * closer match would do.  We want to avoid this problem:
-     * 
-     *     abc ^ def       ^ ghi456ghi
-     *     abc ^ 123ghi456 ^ ghi
-     *     abc ^ x         ^ ghi456ghi
-     * 
-     * So, we start looking for chunks (3-letter-strings) that are closest to the
-     * beginning of each of the strings -- actually closest to the beginning of the 
-     * the span after the section that was found identical.  Gradually look for further and further
-     * chunks.  Continue to try to find the minimal distance.
+     * Merge three spans of text at a level, adding the result.  Where the
+     * three disagree at this level, and both cur and new have changed, the
+     * span that disagrees is merged again at the next finer level.
      */
-    private void findShortestDiffBlock() {
-        
-        int bias = -1;
-        int bestBias = 0;
-        int which = 2;
-        int bestWhich = 0;
-        int bestValue = 666666;
-        int max = Math.max(Math.max(cur.chunksLeft(), old.chunksLeft()), neu.chunksLeft());
-        cur.diffSize = -1;
-        old.diffSize = -1;
-        neu.diffSize = -1;
+    private static void mergeSpan(int level, String curSpan, String oldSpan,
+            String neuSpan, StringBuilder result) {
 
-        while (true) {
-            
-            if (which>=2) {
-                which = 0;
-                bias++;
-            }
-            else {
-                which++;
-            }
-            if (bias>=max || bias>=bestValue) {
-                //that is the end ... need to leave
-                if (bestValue<666666) {
-                    String chunk = allPosStr[bestWhich].getChunk(bestBias);
-                    cur.setDiffSize(chunk);
-                    old.setDiffSize(chunk);
-                    neu.setDiffSize(chunk);
-                }
-                return;
-            }
-            
-            if (bias>=allPosStr[which].chunksLeft()) {
-                //nothing left in this source, try the next
-                continue;
-            }
-            
-            //A chunk is a three letter string at a particular bias position
-            //beyond the end of the last matching section.
-            String chunk = allPosStr[which].getChunk(bias);
-            
-            int curPos = cur.distanceOf(chunk);
-            if (curPos<0) {
-                continue;
-            }
-            int oldPos = old.distanceOf(chunk);
-            if (oldPos<0) {
-                continue;
-            }
-            int neuPos = neu.distanceOf(chunk);
-            if (neuPos<0) {
-                continue;
-            }
-            if (curPos + oldPos + neuPos < bestValue) {
-                bestValue = curPos + oldPos + neuPos;
-                bestWhich = which;
-                bestBias = bias;
-                //System.out.println("     new best value: "+bestValue+" = "+curPos+" + "+oldPos+" + "+neuPos);                
-            }
-        }
-    }
-    
-    
-    private void resolveDifferenceSpan() {
-        if (!cur.isMore() &&  !old.isMore() &&  !neu.isMore()) {
-            //the strings ended equaling each other, nothing left to do
-            return;
-        }
-        
-        findShortestDiffBlock();
-        
-        String curDiff = cur.getDiffBlock();
-        String oldDiff = old.getDiffBlock();
-        String newDiff = neu.getDiffBlock();
-        //System.out.println("MERGE DIFF: ("+curDiff+")("+oldDiff+")("+newDiff+")");
-        
-        if (curDiff.length()==0 && oldDiff.length()==0 && newDiff.length()==0) {
-            throw new RuntimeException("STRANGE, got zero zero zero for diff results ... they are all equal?");
-        }
-        
-        if (oldDiff.equals(newDiff)) {
+        if (oldSpan.equals(neuSpan)) {
             //This is where the new delta has no change, so
             //preserve the change in the currently merged version
             //and ignore anything in both new and old.
-            result.append(curDiff);
+            result.append(curSpan);
+            return;
         }
-        else if (curDiff.equals(oldDiff)) {
+        if (curSpan.equals(oldSpan)) {
             //This is the regular replace case.  Remove the old
             //and just go with the new.
-            result.append(newDiff);
+            result.append(neuSpan);
+            return;
         }
-        
-        else if (curDiff.equals(newDiff)) {
+        if (curSpan.equals(neuSpan)) {
             //this is the strange case where two people type the
             //exact same thing.  The current already has exactly what
             //the new has, so ignore the change ... it is already there
-            result.append(newDiff);
+            result.append(neuSpan);
+            return;
         }
-        else {
-            //this is a case where all three are different, and it 
+        if (level>LEVEL_CHAR) {
+            //this is a case where all three are different, and it
             //means that two people were typing new material into the
             //same spot at the same time.
             //Include BOTH the changes from the current version
             //and ALSO the changes from the new version.
             //This might result in some duplication.
-            //An earlier version of this algorithm used to delete the 
+            //An earlier version of this algorithm used to delete the
             //earlier modification, but this caused a lot of problem with
             //multiple people typing on the end of the text at the same time.
-            //People would LOSE sentences and things like that.  
-            //This will cause each person's merges to appear mixed with the 
+            //People would LOSE sentences and things like that.
+            //This will cause each person's merges to appear mixed with the
             //other, but it will still be there to move and fix by editing.
-            result.append(curDiff);
-            result.append(newDiff);
+            result.append(curSpan);
+            result.append(neuSpan);
+            return;
         }
-        cur.skipDiff();
-        old.skipDiff();
-        neu.skipDiff();
-    }
-    
 
-    private class PosStr {
-        public String s;
-        public int pos;
-        public int diffSize;
-        
-        public PosStr(String val) {
-            s = val;
-            pos = 0;
+        HashMap<String,Integer> tokenIds = new HashMap<String,Integer>();
+        Tokens curTok = new Tokens(curSpan, level, tokenIds);
+        Tokens oldTok = new Tokens(oldSpan, level, tokenIds);
+        Tokens neuTok = new Tokens(neuSpan, level, tokenIds);
+        int[] curMatch = MyersDiff.match(oldTok.ids, curTok.ids);
+        int[] neuMatch = MyersDiff.match(oldTok.ids, neuTok.ids);
+        int syncLength = 1;
+        if (level==LEVEL_CHAR) {
+            syncLength = CHAR_SYNC_LENGTH;
         }
-        public char ch() {
-            if (pos<s.length()) {
-                return s.charAt(pos);
+
+        int oldPos = 0;
+        int curPos = 0;
+        int neuPos = 0;
+        while (true) {
+
+            //skip the tokens that are the same in all three
+            int equalStart = oldPos;
+            while (oldPos<oldTok.count && curMatch[oldPos]==curPos && neuMatch[oldPos]==neuPos) {
+                oldPos++;
+                curPos++;
+                neuPos++;
             }
-            return (char)0;
-        }
-        public void advance() {
-            pos++;
-        }
-        public int chunksLeft() {
-            return s.length()-pos-2;
-        }
-        public String getChunk(int bias) {
-            return s.substring(pos+bias, pos+bias+3);
+            result.append(oldSpan, oldTok.starts[equalStart], oldTok.starts[oldPos]);
+            if (oldPos==oldTok.count && curPos==curTok.count && neuPos==neuTok.count) {
+                return;
+            }
+
+            //find where the three are the same again, which is the end
+            //of this difference, or else the difference runs to the end
+            int oldEnd = oldPos;
+            int curEnd = curTok.count;
+            int neuEnd = neuTok.count;
+            while (oldEnd<oldTok.count) {
+                if (isSyncPoint(oldEnd, syncLength, curMatch, neuMatch, oldTok, curTok, neuTok)) {
+                    curEnd = curMatch[oldEnd];
+                    neuEnd = neuMatch[oldEnd];
+                    break;
+                }
+                oldEnd++;
+            }
+
+            mergeSpan(level+1, curTok.text(curPos, curEnd), oldTok.text(oldPos, oldEnd),
+                    neuTok.text(neuPos, neuEnd), result);
+            oldPos = oldEnd;
+            curPos = curEnd;
+            neuPos = neuEnd;
         }
-        public int distanceOf(String chunk) {
-            return s.indexOf(chunk, pos)-pos;
+    }
+
+    /**
+     * A difference ends where there is a run of syncLength tokens from old
+     * that are in both cur and new, one after the other, or a shorter run
+     * that goes to the end of all three.
+     */
+    private static boolean isSyncPoint(int oldPos, int syncLength, int[] curMatch, int[] neuMatch,
+            Tokens oldTok, Tokens curTok, Tokens neuTok) {
+        int curStart = curMatch[oldPos];
+        int neuStart = neuMatch[oldPos];
+        if (curStart<0 || neuStart<0) {
+            return false;
         }
-        public void setDiffSize(String chunk) {
-            diffSize = distanceOf(chunk);
+        for (int i=1; i<syncLength; i++) {
+            if (oldPos+i==oldTok.count) {
+                return (curStart+i==curTok.count && neuStart+i==neuTok.count);
+            }
+            if (curMatch[oldPos+i]!=curStart+i || neuMatch[oldPos+i]!=neuStart+i) {
+                return false;
+            }
         }
-        
-        public String getDiffBlock() {
-            if (diffSize<0) {
-                return s.substring(pos);
+        return true;
+    }
+
+
+    /**
+     * A string cut into tokens: lines, words, or characters.  Each token has
+     * a number, and equal tokens in the three strings have the same number.
+     */
+    private static class Tokens {
+        public String s;
+        public int count;
+        public int[] starts;
+        public int[] ids;
+
+        public Tokens(String val, int level, HashMap<String,Integer> tokenIds) {
+            s = val;
+            int len = s.length();
+            if (level==LEVEL_CHAR) {
+                count = len;
+                starts = new int[len+1];
+                ids = new int[len];
+                for (int i=0; i<len; i++) {
+                    starts[i] = i;
+                    ids[i] = s.charAt(i);
+                }
+                starts[len] = len;
+                return;
             }
-            else {
-                return s.substring(pos, pos+diffSize);
+
+            int[] tempStarts = new int[len+1];
+            int pos = 0;
+            while (pos<len) {
+                tempStarts[count++] = pos;
+                if (level==LEVEL_LINE) {
+                    pos = endOfLine(pos);
+                }
+                else {
+                    pos = endOfWord(pos);
+                }
+            }
+            tempStarts[count] = len;
+            starts = new int[count+1];
+            System.arraycopy(tempStarts, 0, starts, 0, count+1);
+            ids = new int[count];
+            for (int i=0; i<count; i++) {
+                String token = s.substring(starts[i], starts[i+1]);
+                Integer id = tokenIds.get(token);
+                if (id==null) {
+                    id = Integer.valueOf(tokenIds.size());
+                    tokenIds.put(token, id);
+                }
+                ids[i] = id.intValue();
             }
         }
-        public void skipDiff() {
-            if (diffSize<0) {
-                pos = s.length();
+
+        /**
+         * A line includes the line feed at the end of it.
+         */
+        private int endOfLine(int pos) {
+            int lf = s.indexOf('\n', pos);
+            if (lf<0) {
+                return s.length();
             }
-            else {
-                pos += diffSize;
+            return lf+1;
+        }
+
+        /**
+         * A word is a run of letters and digits, or a run of white space,
+         * and any other character is a token on its own.
+         */
+        private int endOfWord(int pos) {
+            char ch = s.charAt(pos++);
+            if (Character.isLetterOrDigit(ch)) {
+                while (pos<s.length() && Character.isLetterOrDigit(s.charAt(pos))) {
+                    pos++;
+                }
             }
+            else if (Character.isWhitespace(ch)) {
+                while (pos<s.length() && Character.isWhitespace(s.charAt(pos))) {
+                    pos++;
+                }
+            }
+            return pos;
         }
-        
-        public boolean isMore() {
-            return pos<s.length();
+
+        public String text(int from, int to) {
+            return s.substring(starts[from], starts[to]);
         }
     }
-    
-    
+
+
     public static void testMergeCases() throws Exception  {
         String curStr = "abcdefghi";
         String oldStr = "abcdefghi";
@@ -404,8 +391,8 @@ public class ThreeWayMerge {
             neuStr = "abcdefgzzhi"; //add middle
             testOneMerge("abxxcdefgzzhi", curStr, oldStr, neuStr);
             curStr = "abxxcdefghi"; //add middle
-            neuStr = "abczzdefghi"; //add middle close to other (wins)
-            testOneMerge("abczzdefghi", curStr, oldStr, neuStr);
+            neuStr = "abczzdefghi"; //add middle close to other (both kept)
+            testOneMerge("abxxcczzdefghi", curStr, oldStr, neuStr);
             curStr = "abxxcdefghi"; //add middle
             neuStr = "abcdefghizz"; //add end
             testOneMerge("abxxcdefghizz", curStr, oldStr, neuStr);
@@ -413,8 +400,8 @@ public class ThreeWayMerge {
             neuStr = "zzabcdefghi"; //add begin
             testOneMerge("zzabcdxxefghi", curStr, oldStr, neuStr);
             curStr = "abxxcdefghi"; //add middle close to begin
-            neuStr = "zzabcdefghi"; //add begin (wins)
-            testOneMerge("zzabcdefghi", curStr, oldStr, neuStr);
+            neuStr = "zzabcdefghi"; //add begin (both kept)
+            testOneMerge("abxxzzabcdefghi", curStr, oldStr, neuStr);
             
             curStr = "abcdefxxghi"; //add middle
             neuStr = "abczzdefghi"; //add middle
@@ -429,9 +416,16 @@ public class ThreeWayMerge {
             curStr = "adefghi"; // delete middle
             neuStr = "abcdefi"; // delete middle
             testOneMerge("adefi", curStr, oldStr, neuStr);
+            //the deletions overlap, so this is a conflict and both are kept.
+            //The earlier three-character merge gave "abefghicdefi" here, with
+            //the unchanged last i in both copies.  The diff3 merge keeps it once.
             curStr = "abefghi"; // delete middle close
-            neuStr = "abcdefi"; // delete middle close (wins)
-            testOneMerge("abcdefi", curStr, oldStr, neuStr);
+            neuStr = "abcdefi"; // delete middle close (both kept)
+            testOneMerge("abefghcdefi", curStr, oldStr, neuStr);
+            //the same with the sides swapped, earlier this gave "abcdefiefghi"
+            curStr = "abcdefi"; // delete middle close
+            neuStr = "abefghi"; // delete middle close (both kept)
+            testOneMerge("abcdefefghi", curStr, oldStr, neuStr);
             curStr = "cdefghi"; // delete begin
             neuStr = "abcdefg"; // delete end
             testOneMerge("cdefg", curStr, oldStr, neuStr);
@@ -439,19 +433,20 @@ public class ThreeWayMerge {
             neuStr = "defghi"; // delete begin
             testOneMerge("def", curStr, oldStr, neuStr);
             
-            //now test non CONFLICTS cur and neu have changes in same places
+            //now test CONFLICTS cur and neu have changes in same places
+            //both changes are kept, current first
             curStr = "abcdxxxefghi"; //add some
             neuStr = "abcdzzzefghi"; //add different
-            testOneMerge("abcdzzzefghi", curStr, oldStr, neuStr);
+            testOneMerge("abcdxxxzzzefghi", curStr, oldStr, neuStr);
             curStr = "abcxxxghi"; //replace some
             neuStr = "abczzzghi"; //replace different
-            testOneMerge("abczzzghi", curStr, oldStr, neuStr);
+            testOneMerge("abcxxxzzzghi", curStr, oldStr, neuStr);
             curStr = "abcdxxxefghi"; //add some
             neuStr = "abczzzghi"; //replace different
-            testOneMerge("abczzzghi", curStr, oldStr, neuStr);
+            testOneMerge("abcdxxxefzzzghi", curStr, oldStr, neuStr);
             curStr = "abcxxxghi"; //replace some
             neuStr = "abcdzzzefghi"; //add different
-            testOneMerge("abcdzzzefghi", curStr, oldStr, neuStr);
+            testOneMerge("abcxxxdzzzefghi", curStr, oldStr, neuStr);
             
             //now test the special cases on the end, where both have added
             //and we want to preserve both changes, even though the clash
@@ -472,14 +467,19 @@ public class ThreeWayMerge {
             neuStr = "The cat and black dog make a dark pair"; //add different
             testOneMerge("The black cat and black dog make a dark pair.", curStr, oldStr, neuStr);
             
-            //this is a pathological case because there is a repeated value
-            //within a short distance, less than 3x the size of the change.
-            //so leaving this strange case with strange result.
-            //at least it is well behaved.
+            //this used to be a pathological case because there is a repeated
+            //value within a short distance, less than 3x the size of the change.
+            //Comparing word by word finds the two changes separately.
             curStr = "line 1xxx-line 2xxx-blue 3xxx"; //add some
             oldStr = "line 1xxx-line 2xxx-line 3xxx"; //add some
             neuStr = "line 1xxx-red 2xxx-line 3xxx"; //add different
-            testOneMerge("line 1xxx-red 2xxx-line 3xxx", curStr, oldStr, neuStr);
+            testOneMerge("line 1xxx-red 2xxx-blue 3xxx", curStr, oldStr, neuStr);
+            
+            //changes on different lines of longer text are both kept
+            curStr = "first line\nsecond line\nthird line\nfourth line\n";
+            oldStr = "first line\nsecond line\nthird line\n";
+            neuStr = "first line\nsecond changed\nthird line\n";
+            testOneMerge("first line\nsecond changed\nthird line\nfourth line\n", curStr, oldStr, neuStr);
             
         }catch (Exception e) {
             System.out.println("Merge failed on case: ("+curStr+")("+oldStr+")("+neuStr+")"+e.toString());
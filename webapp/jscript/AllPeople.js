@@ -66,6 +66,14 @@ app.service('AllPeople', function($http) {
         });
         return res;
     }
+    //asks the server for the people matching what was typed, best matches
+    //first, a page at a time.  Returns a promise of the list of people.
+    AllPeople.queryPeople = function(query, limit) {
+        return $http.get("../../PeopleSearch.json", {params: {q: query, limit: limit || 20}})
+        .then( function(response) {
+            return response.data.people;
+        });
+    }
     AllPeople.refreshCache = function() {
         AllPeople.allPersonList = {people:[],validTime:0};
         AllPeople.refreshListIfNeeded();
@@ -0,0 +1,95 @@
+<%@page errorPage="/spring/jsp/error.jsp"
+%><%@ include file="/spring/jsp/include.jsp"
+%><%@page import="org.socialbiz.cog.BackgroundScheduler"
+%><%
+
+    ar.assertLoggedIn("Background jobs page should never be accessed when not logged in");
+    ar.assertSuperAdmin("Must be a super admin to see the background jobs");
+
+    JSONObject status = new JSONObject();
+    BackgroundScheduler scheduler = ar.getCogInstance().getBackgroundScheduler();
+    if (scheduler!=null) {
+        status = scheduler.getStatusJSON();
+    }
+    long serverTime = System.currentTimeMillis();
+
+%>
+<script type="text/javascript">
+
+var app = angular.module('myApp');
+app.controller('myCtrl', function($scope, $http) {
+    $scope.status = <%status.write(out,2,4);%>;
+    $scope.serverTime = <%=serverTime%>;
+
+    $scope.showError = false;
+    $scope.errorMsg = "";
+    $scope.errorTrace = "";
+    $scope.showTrace = false;
+    $scope.reportError = function(serverErr) {
+        errorPanelHandler($scope, serverErr);
+    };
+    $scope.seconds = function(ms) {
+        return Math.round(ms/100)/10;
+    };
+});
+
+</script>
+
+<div ng-app="myApp" ng-controller="myCtrl">
+
+<%@include file="ErrorPanel.jsp"%>
+
+    <div class="h1">
+        Background Jobs
+    </div>
+
+    <div ng-hide="status.lanes">
+        Background processing is not running on this server.
+    </div>
+    <div ng-show="status.lanes">
+        <p>Each lane runs its jobs one at a time, on its own thread
+           <span ng-show="status.virtualThreads">(virtual threads)</span>.
+           Lag is how late a run started because other jobs in the lane were still running.
+           Times are in seconds.</p>
+        <table class="table">
+            <thead>
+                <tr>
+                    <th>Lane</th>
+                    <th>Job</th>
+                    <th>Every</th>
+                    <th>Runs</th>
+                    <th>Failures</th>
+                    <th>Last Run</th>
+                    <th>Last</th>
+                    <th>Average</th>
+                    <th>Max</th>
+                    <th>Last Lag</th>
+                    <th>Max Lag</th>
+                    <th>Last Failure</th>
+                </tr>
+            </thead>
+            <tbody ng-repeat="lane in status.lanes">
+                <tr ng-hide="lane.jobs.length">
+                    <td>{{lane.name}}</td>
+                    <td colspan="11"><i>no jobs</i></td>
+                </tr>
+                <tr ng-repeat="job in lane.jobs">
+                    <td>{{lane.name}}</td>
+                    <td>{{job.name}} <b ng-show="job.running">(running)</b></td>
+                    <td><span ng-show="job.periodMs">{{seconds(job.periodMs)}}</span><i ng-hide="job.periodMs">on request</i></td>
+                    <td>{{job.runs}}</td>
+                    <td>{{job.failures}}</td>
+                    <td><span ng-show="job.lastStart">{{job.lastStart|date:'MMM dd, HH:mm:ss'}}</span></td>
+                    <td>{{seconds(job.lastDurationMs)}}</td>
+                    <td>{{seconds(job.avgDurationMs)}}</td>
+                    <td>{{seconds(job.maxDurationMs)}}</td>
+                    <td>{{seconds(job.lastLagMs)}}</td>
+                    <td>{{seconds(job.maxLagMs)}}</td>
+                    <td><span ng-show="job.lastFailure">{{job.lastFailureTime|date:'MMM dd, HH:mm:ss'}}:
+                        {{job.lastFailure}}</span></td>
+                </tr>
+            </tbody>
+        </table>
+        <div>Server Time: {{serverTime|date:'yyyy MMM dd, HH:mm:ss'}}</div>
+    </div>
+</div>
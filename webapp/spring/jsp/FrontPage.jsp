@@ -51,17 +51,12 @@ Required parameters:
     }
 
     JSONArray children = new JSONArray();
-    for (NGPageIndex ngpi : cog.getAllContainers()) {
-        if (!ngpi.isProject()) {
-            continue;
-        }
-        if (pageId.equals(ngpi.parentKey)) {
-            JSONObject jo = new JSONObject();
-            jo.put("name", ngpi.containerName);
-            jo.put("key",  ngpi.containerKey);
-            jo.put("site", ngpi.wsSiteKey);
-            children.put(jo);
-        }
+    for (NGPageIndex ngpi : cog.getWorkspaceHierarchy().getChildren(ngp.getSiteKey(), pageId)) {
+        JSONObject jo = new JSONObject();
+        jo.put("name", ngpi.containerName);
+        jo.put("key",  ngpi.containerKey);
+        jo.put("site", ngpi.wsSiteKey);
+        children.put(jo);
     }
 
     UserProfile uProf = ar.getUserProfile();
@@ -72,7 +67,8 @@ Required parameters:
     JSONArray myActions = new JSONArray();
     
     if (isMember) {
-        List<HistoryRecord> histRecs = ngp.getAllHistory();
+        //only the top of the history is shown, no need to sort all of it
+        List<HistoryRecord> histRecs = ngp.getRecentHistory(200);
         int limit=10;
         Hashtable<String,String> seenBefore = new Hashtable<String,String>();
 
@@ -83,7 +79,7 @@ Required parameters:
             if(responsible!=null) {
                 String personImage = responsible.getImage();
                 if (personImage!=null && personImage.length() > 0) {
-                    imagePath = "users/"+personImage;
+                    imagePath = "users/"+ImageThumbnails.getUserImage(personImage, 32);
                 }
             }
             String objectKey = hist.getContext();
@@ -163,7 +159,13 @@ Required parameters:
         for (AddressListEntry ale : ngp.getPrimaryRole().getExpandedPlayers(ngp)) {
             //used to remove the current user here, but feedback suggests
             //that we should include the current user in this list.
-            otherMembers.put(ale.getJSON());
+            JSONObject memberJSON = ale.getJSON();
+            UserProfile memberProfile = ale.getUserProfile();
+            if (memberProfile!=null && memberProfile.getImage()!=null && memberProfile.getImage().length()>0) {
+                //shown at 32 pixels, no need for the whole photo
+                memberJSON.put("image", ImageThumbnails.getUserImage(memberProfile.getImage(), 32));
+            }
+            otherMembers.put(memberJSON);
         }
 
         for (MeetingRecord meet : ngp.getMeetings()) {
@@ -625,7 +627,7 @@ a {
               <td>
                   <span class="dropdown">
                     <span id="menu1" data-toggle="dropdown">
-                    <img class="img-circle" src="<%=ar.retPath%>users/{{imageName(person)}}" 
+                    <img class="img-circle" src="<%=ar.retPath%>users/{{person.image || imageName(person)}}" 
                          style="width:32px;height:32px" title="{{person.name}} - {{person.uid}}">
                     </span>
                     <ul class="dropdown-menu" role="menu" aria-labelledby="menu1">
@@ -24,20 +24,12 @@ Required parameters:
     }
 
     JSONArray children = new JSONArray();
-    for (NGPageIndex ngpi : cog.getAllContainers()) {
-        if (!ngpi.isProject()) {
-            continue;
-        }
-        if (!siteKey.equals(ngpi.wsSiteKey)) {
-            continue;
-        }
-        if (ngpi.parentKey==null || ngpi.parentKey.length()==0) {
-            JSONObject jo = new JSONObject();
-            jo.put("name", ngpi.containerName);
-            jo.put("key",  ngpi.containerKey);
-            jo.put("site", ngpi.wsSiteKey);
-            children.put(jo);
-        }
+    for (NGPageIndex ngpi : cog.getWorkspaceHierarchy().getTopLevel(siteKey)) {
+        JSONObject jo = new JSONObject();
+        jo.put("name", ngpi.containerName);
+        jo.put("key",  ngpi.containerKey);
+        jo.put("site", ngpi.wsSiteKey);
+        children.put(jo);
     }
 
     UserProfile uProf = ar.getUserProfile();
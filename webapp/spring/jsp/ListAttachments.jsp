@@ -291,7 +291,8 @@ app.controller('myCtrl', function($scope, $http) {
                 <a href="editDetails{{rec.id}}.htm">
                     <span ng-show="rec.deleted"><i class="fa fa-trash"></i></span>
                     <span ng-show="rec.upstream"><img src="<%=ar.retPath%>assets/images/iconUpstream.png"></span>
-                    <span ng-show="rec.attType=='FILE'"><img src="<%=ar.retPath%>assets/images/iconFile.png"></span>
+                    <span ng-show="rec.attType=='FILE' && !rec.thumbnail"><img src="<%=ar.retPath%>assets/images/iconFile.png"></span>
+                    <span ng-show="rec.thumbnail"><img ng-src="{{rec.thumbnail}}" style="max-width:32px;max-height:32px"></span>
                     <span ng-show="rec.attType=='URL'"><img src="<%=ar.retPath%>assets/images/iconUrl.png"></span>
                 </a>
             </td>
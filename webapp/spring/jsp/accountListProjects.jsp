@@ -4,29 +4,18 @@
     UserProfile uProf = ar.getUserProfile();
     Cognoscenti cog = ar.getCogInstance();
     
-    List<NGPageIndex> ownedProjs = ar.getCogInstance().getAllContainers();
-    boolean noneFound = ownedProjs.size()==0;
     String accountKey = ar.reqParam("siteId");
     NGBook site = cog.getSiteByIdOrFail(accountKey);
     boolean showExperimental = site.getShowExperimental();
 
     JSONArray projList = new JSONArray();
     for (NGPageIndex ngpi : cog.getAllProjectsInSite(accountKey)) {
-        if (!ngpi.isProject()) {
-            continue;
-        }
         projList.put(ngpi.getJSON4List());
     }
-    for (NGPageIndex ngpi : cog.getDeletedContainers()) {
-        if (!ngpi.isProject()) {
-            continue;
-        }
-        if (!accountKey.equals(ngpi.wsSiteKey)) {
-            // only consider if the project is in the site we look for
-            continue;
-        }
+    for (NGPageIndex ngpi : cog.getDeletedProjectsInSite(accountKey)) {
         projList.put(ngpi.getJSON4List());
     }
+    boolean noneFound = projList.length()==0;
     
 
 /** RECORD PROTOTYPE
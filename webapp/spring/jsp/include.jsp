@@ -30,6 +30,7 @@
 %><%@page import="org.socialbiz.cog.DOMFace"
 %><%@page import="org.socialbiz.cog.GoalRecord"
 %><%@page import="org.socialbiz.cog.HistoryRecord"
+%><%@page import="org.socialbiz.cog.ImageThumbnails"
 %><%@page import="org.socialbiz.cog.LicensedURL"
 %><%@page import="org.socialbiz.cog.MeetingRecord"
 %><%@page import="org.socialbiz.cog.MimeTypes"